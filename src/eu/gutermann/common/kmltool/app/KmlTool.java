@@ -5,8 +5,16 @@ import java.awt.Color;
 import java.awt.EventQueue;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
 import java.io.File;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
+import javax.swing.JCheckBoxMenuItem;
 import javax.swing.JFileChooser;
 import javax.swing.JFrame;
 import javax.swing.JMenu;
@@ -21,10 +29,18 @@ import javax.swing.filechooser.FileFilter;
 
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
 
+import com.vividsolutions.jts.geom.Envelope;
+
 import eu.gutermann.common.kmltool.impexp.dxf.DxfImporter;
+import eu.gutermann.common.kmltool.impexp.geojson.GeoJsonExporter;
+import eu.gutermann.common.kmltool.impexp.gpkg.GeoPackageExporter;
 import eu.gutermann.common.kmltool.impexp.kml.KmlExporter;
 import eu.gutermann.common.kmltool.impexp.kml.KmlImporter;
+import eu.gutermann.common.kmltool.impexp.mbtiles.MBTilesExporter;
+import eu.gutermann.common.kmltool.impexp.shp.ShapefileImporter;
 import eu.gutermann.common.kmltool.model.KmlModel;
+import eu.gutermann.common.kmltool.util.metrics.JobMetrics;
+import eu.gutermann.common.kmltool.util.metrics.JsonFileMetricsSink;
 
 /**
  * The main window of the application. Created by WindowBuilder for Swing.
@@ -32,19 +48,60 @@ import eu.gutermann.common.kmltool.model.KmlModel;
 public class KmlTool {
 	private static final String APP_TITLE = "KML Tool";
 	
+	/**
+	 * System property with a directory to which a JSON metrics report of every import and export is written.
+	 */
+	private static final String METRICS_DIR_PROPERTY = "kmltool.metrics.dir";
+	
 	private JFrame frmKmlTool;
 	private JTable styleTable;
 	private StyleTableModel styleTableModel;
 	private JFileChooser openKmlChooser;
 	private JFileChooser openDxfChooser;
+	private JFileChooser openShpChooser;
 	private JFileChooser saveKmzChooser;
+	private JFileChooser saveGpkgChooser;
+	private JFileChooser saveMbtilesChooser;
+	private JFileChooser saveGeoJsonChooser;
+	private JCheckBoxMenuItem chckbxmntmSharedBalloons;
+	private JCheckBoxMenuItem chckbxmntmSnapshots;
+	private JCheckBoxMenuItem chckbxmntmMergeLinkedFiles;
+	private JCheckBoxMenuItem chckbxmntmParallelParse;
 	
 	private KmlModel model = new KmlModel();
+	
+	/**
+	 * Runs the exports one after another in the background. Each export works on a read-only copy of the model, so
+	 * that the styles can be edited in the meantime.
+	 */
+	private ExecutorService exportExecutor = Executors.newSingleThreadExecutor();
+	
+	/**
+	 * The number of exports that were started and haven't finished yet. Only used in the event dispatch thread.
+	 */
+	private int numPendingExports = 0;
+	
+	/**
+	 * Whether the application exits as soon as the pending exports are finished.
+	 */
+	private boolean exitAfterExports = false;
+	
+	/**
+	 * The file of the export that is currently running, and the files that existed next to it when it started.
+	 * Guarded by the lock of the executor.
+	 */
+	private File runningExportFile;
+	private Set<String> existingFileNames;
 
 	/**
 	 * Launch the application.
 	 */
 	public static void main(String[] args) {
+		String metricsDir = System.getProperty(METRICS_DIR_PROPERTY);
+		if (metricsDir != null) {
+			JobMetrics.addSink(new JsonFileMetricsSink(new File(metricsDir)));
+		}
+		
 		EventQueue.invokeLater(new Runnable() {
 			public void run() {
 				try {
@@ -74,7 +131,13 @@ public class KmlTool {
 		frmKmlTool = new JFrame();
 		frmKmlTool.setTitle(APP_TITLE);
 		frmKmlTool.setBounds(100, 100, 1024, 800);
-		frmKmlTool.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+		frmKmlTool.setDefaultCloseOperation(JFrame.DO_NOTHING_ON_CLOSE);
+		frmKmlTool.addWindowListener(new WindowAdapter() {
+			@Override
+			public void windowClosing(WindowEvent e) {
+				close();
+			}
+		});
 		
 		// File chooser for opening KML/KMZ files.
 		openKmlChooser = new JFileChooser();
@@ -113,6 +176,24 @@ public class KmlTool {
 			}
 		});
 		
+		// File chooser for opening Shapefiles.
+		openShpChooser = new JFileChooser();
+		openShpChooser.setAcceptAllFileFilterUsed(false);
+		openShpChooser.setFileFilter(new FileFilter() {
+			@Override
+			public String getDescription() {
+				return "ESRI Shapefiles (*.shp)";
+			}
+			
+			@Override
+			public boolean accept(File f) {
+				if (f.isDirectory())
+					return true;
+				
+				return f.getName().toLowerCase().endsWith(".shp");
+			}
+		});
+		
 		// File chooser for saving KMZ files.
 		saveKmzChooser = new JFileChooser();
 		saveKmzChooser.setAcceptAllFileFilterUsed(false);
@@ -131,6 +212,61 @@ public class KmlTool {
 			}
 		});
 		
+		// File chooser for saving GeoPackage files.
+		saveGpkgChooser = new JFileChooser();
+		saveGpkgChooser.setAcceptAllFileFilterUsed(false);
+		saveGpkgChooser.setFileFilter(new FileFilter() {
+			@Override
+			public String getDescription() {
+				return "GeoPackage Files (*.gpkg)";
+			}
+			
+			@Override
+			public boolean accept(File f) {
+				if (f.isDirectory())
+					return true;
+				
+				return f.getName().toLowerCase().endsWith(".gpkg");
+			}
+		});
+		
+		// File chooser for saving MBTiles files.
+		saveMbtilesChooser = new JFileChooser();
+		saveMbtilesChooser.setAcceptAllFileFilterUsed(false);
+		saveMbtilesChooser.setFileFilter(new FileFilter() {
+			@Override
+			public String getDescription() {
+				return "MBTiles Files (*.mbtiles)";
+			}
+			
+			@Override
+			public boolean accept(File f) {
+				if (f.isDirectory())
+					return true;
+				
+				return f.getName().toLowerCase().endsWith(".mbtiles");
+			}
+		});
+		
+		// File chooser for saving GeoJSON files, as a FeatureCollection or newline-delimited.
+		saveGeoJsonChooser = new JFileChooser();
+		saveGeoJsonChooser.setAcceptAllFileFilterUsed(false);
+		saveGeoJsonChooser.setFileFilter(new FileFilter() {
+			@Override
+			public String getDescription() {
+				return "GeoJSON Files (*.geojson, *.ndjson)";
+			}
+			
+			@Override
+			public boolean accept(File f) {
+				if (f.isDirectory())
+					return true;
+				
+				String name = f.getName().toLowerCase();
+				return name.endsWith(".geojson") || name.endsWith(".ndjson");
+			}
+		});
+		
 		JMenuBar menuBar = new JMenuBar();
 		frmKmlTool.setJMenuBar(menuBar);
 		
@@ -196,6 +332,41 @@ public class KmlTool {
 		});
 		mnFile.add(mntmLoadDxf);
 		
+		// Menu item for importing Shapefiles.
+		// The coordinate system is only asked for if the Shapefile has no .prj file that defines it.
+		JMenuItem mntmLoadShp = new JMenuItem("Load Shapefile...");
+		mntmLoadShp.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent arg0) {
+				try {
+					int ret = openShpChooser.showOpenDialog(frmKmlTool);
+					if (ret == JFileChooser.APPROVE_OPTION) {
+						File file = openShpChooser.getSelectedFile();
+						CoordinateReferenceSystem srcCrs = null;
+						if (!ShapefileImporter.hasProjectionFile(file)) {
+							srcCrs = JCRSChooser.showDialog();
+							if (srcCrs == null)
+								return;
+						}
+						
+						resetModel();
+						
+						new ShapefileImporter(model).importFile(file, srcCrs);
+						
+						styleTableModel.fireTableDataChanged();
+						
+						updateAppTitle(file);
+					}
+					
+					openShpChooser.setSelectedFile(null);
+				}
+				catch (Exception e) {
+					JOptionPane.showMessageDialog(frmKmlTool, e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+					updateAppTitle(null);
+				}
+			}
+		});
+		mnFile.add(mntmLoadShp);
+		
 		mnFile.addSeparator();
 		
 		// Menu item for saving a single KMZ file that works in Google Earth (but not Maps).
@@ -210,7 +381,13 @@ public class KmlTool {
 							file = new File(file.getPath() + ".kmz");
 						}
 						
-						new KmlExporter(model).exportKmz(file);
+						final File exportFile = file;
+						final KmlExporter exporter = new KmlExporter(model.createReadOnlyCopy());
+						runExport(exportFile, new Runnable() {
+							public void run() {
+								exporter.exportKmz(exportFile);
+							}
+						});
 					}
 					
 					saveKmzChooser.setSelectedFile(null);
@@ -222,6 +399,47 @@ public class KmlTool {
 		});
 		mnFile.add(mntmSaveKmz);
 		
+		// Menu item for saving only the part of the KML within a bounding box to a KMZ file for Google Earth.
+		// The bounding box is entered as "west, south, east, north" in degrees.
+		JMenuItem mntmSaveKmzArea = new JMenuItem("Save Area As KMZ For Google Earth...");
+		mntmSaveKmzArea.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent arg0) {
+				try {
+					String input = JOptionPane.showInputDialog(frmKmlTool, "Bounding box (west, south, east, north):", "Save Area", JOptionPane.QUESTION_MESSAGE);
+					if (input == null)
+						return;
+					
+					String[] parts = input.split(",");
+					if (parts.length != 4)
+						throw new IllegalArgumentException("The bounding box must consist of 4 numbers separated by commas.");
+					final Envelope area = new Envelope(Double.parseDouble(parts[0].trim()), Double.parseDouble(parts[2].trim()),
+							Double.parseDouble(parts[1].trim()), Double.parseDouble(parts[3].trim()));
+					
+					int ret = saveKmzChooser.showSaveDialog(frmKmlTool);
+					if (ret == JFileChooser.APPROVE_OPTION) {
+						File file = saveKmzChooser.getSelectedFile();
+						if (!file.getName().toLowerCase().endsWith(".kmz")) {
+							file = new File(file.getPath() + ".kmz");
+						}
+						
+						final File exportFile = file;
+						final KmlExporter exporter = new KmlExporter(model.createReadOnlyCopy());
+						runExport(exportFile, new Runnable() {
+							public void run() {
+								exporter.exportKmzClipped(exportFile, area);
+							}
+						});
+					}
+					
+					saveKmzChooser.setSelectedFile(null);
+				}
+				catch (Exception e) {
+					JOptionPane.showMessageDialog(frmKmlTool, e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+				}
+			}
+		});
+		mnFile.add(mntmSaveKmzArea);
+		
 		// Menu item for saving a KMZ file that works in Google Maps (for ZONESCAN net).
 		// Note that multiple KMZ files may be saved if a single file would be too large
 		// for Google Maps.
@@ -236,7 +454,15 @@ public class KmlTool {
 							file = new File(file.getPath() + ".kmz");
 						}
 						
-						new KmlExporter(model).exportKmzForGoogleMaps(file);
+						final File exportFile = file;
+						final KmlExporter exporter = new KmlExporter(model.createReadOnlyCopy());
+						if (chckbxmntmSharedBalloons.isSelected())
+							exporter.setExtendedDataMode(KmlExporter.ExtendedDataMode.SHARED_BALLOON_STYLE);
+						runExport(exportFile, new Runnable() {
+							public void run() {
+								exporter.exportKmzForGoogleMaps(exportFile);
+							}
+						});
 					}
 					
 					saveKmzChooser.setSelectedFile(null);
@@ -248,14 +474,191 @@ public class KmlTool {
 		});
 		mnFile.add(mntmSaveKmzGoogleMaps);
 		
+		// Menu item for saving a root KMZ file with spatial tiles that are only loaded when they're in view.
+		// The tiles are saved as separate KMZ files next to the root file.
+		JMenuItem mntmSaveKmzTiles = new JMenuItem("Save As Tiled KMZ For Google Maps...");
+		mntmSaveKmzTiles.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent arg0) {
+				try {
+					int ret = saveKmzChooser.showSaveDialog(frmKmlTool);
+					if (ret == JFileChooser.APPROVE_OPTION) {
+						File file = saveKmzChooser.getSelectedFile();
+						if (!file.getName().toLowerCase().endsWith(".kmz")) {
+							file = new File(file.getPath() + ".kmz");
+						}
+						
+						final File exportFile = file;
+						final KmlExporter exporter = new KmlExporter(model.createReadOnlyCopy());
+						if (chckbxmntmSharedBalloons.isSelected())
+							exporter.setExtendedDataMode(KmlExporter.ExtendedDataMode.SHARED_BALLOON_STYLE);
+						runExport(exportFile, new Runnable() {
+							public void run() {
+								exporter.exportKmzTiles(exportFile);
+							}
+						});
+					}
+					
+					saveKmzChooser.setSelectedFile(null);
+				}
+				catch (Exception e) {
+					JOptionPane.showMessageDialog(frmKmlTool, e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+				}
+			}
+		});
+		mnFile.add(mntmSaveKmzTiles);
+		
+		// Menu item for saving a GeoPackage with a spatial index, for GIS applications.
+		JMenuItem mntmSaveGpkg = new JMenuItem("Save As GeoPackage...");
+		mntmSaveGpkg.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent arg0) {
+				try {
+					int ret = saveGpkgChooser.showSaveDialog(frmKmlTool);
+					if (ret == JFileChooser.APPROVE_OPTION) {
+						File file = saveGpkgChooser.getSelectedFile();
+						if (!file.getName().toLowerCase().endsWith(".gpkg")) {
+							file = new File(file.getPath() + ".gpkg");
+						}
+						
+						final File exportFile = file;
+						final GeoPackageExporter exporter = new GeoPackageExporter(model.createReadOnlyCopy());
+						runExport(exportFile, new Runnable() {
+							public void run() {
+								exporter.exportFile(exportFile);
+							}
+						});
+					}
+					
+					saveGpkgChooser.setSelectedFile(null);
+				}
+				catch (Exception e) {
+					JOptionPane.showMessageDialog(frmKmlTool, e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+				}
+			}
+		});
+		mnFile.add(mntmSaveGpkg);
+		
+		// Menu item for saving vector tiles for web maps. The zoom range is entered as "minimum, maximum".
+		JMenuItem mntmSaveMbtiles = new JMenuItem("Save As MBTiles Vector Tiles...");
+		mntmSaveMbtiles.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent arg0) {
+				try {
+					final MBTilesExporter exporter = new MBTilesExporter(model.createReadOnlyCopy());
+					Object input = JOptionPane.showInputDialog(frmKmlTool, "Zoom levels (minimum, maximum):", "Save Vector Tiles",
+							JOptionPane.QUESTION_MESSAGE, null, null, exporter.getMinZoom() + ", " + exporter.getMaxZoom());
+					if (input == null)
+						return;
+					
+					String[] parts = input.toString().split(",");
+					if (parts.length != 2)
+						throw new IllegalArgumentException("The zoom levels must consist of 2 numbers separated by a comma.");
+					exporter.setZoomRange(Integer.parseInt(parts[0].trim()), Integer.parseInt(parts[1].trim()));
+					
+					int ret = saveMbtilesChooser.showSaveDialog(frmKmlTool);
+					if (ret == JFileChooser.APPROVE_OPTION) {
+						File file = saveMbtilesChooser.getSelectedFile();
+						if (!file.getName().toLowerCase().endsWith(".mbtiles")) {
+							file = new File(file.getPath() + ".mbtiles");
+						}
+						
+						final File exportFile = file;
+						runExport(exportFile, new Runnable() {
+							public void run() {
+								exporter.exportFile(exportFile);
+							}
+						});
+					}
+					
+					saveMbtilesChooser.setSelectedFile(null);
+				}
+				catch (Exception e) {
+					JOptionPane.showMessageDialog(frmKmlTool, e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+				}
+			}
+		});
+		mnFile.add(mntmSaveMbtiles);
+		
+		// Menu item for saving the Placemarks as GeoJSON for web maps.
+		// A file name ending with .ndjson results in newline-delimited GeoJSON with one Feature per line.
+		JMenuItem mntmSaveGeoJson = new JMenuItem("Save As GeoJSON...");
+		mntmSaveGeoJson.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent arg0) {
+				try {
+					int ret = saveGeoJsonChooser.showSaveDialog(frmKmlTool);
+					if (ret == JFileChooser.APPROVE_OPTION) {
+						File file = saveGeoJsonChooser.getSelectedFile();
+						String name = file.getName().toLowerCase();
+						final GeoJsonExporter exporter = new GeoJsonExporter(model.createReadOnlyCopy());
+						
+						if (name.endsWith(".ndjson")) {
+							final File exportFile = file;
+							runExport(exportFile, new Runnable() {
+								public void run() {
+									exporter.exportNdjson(exportFile);
+								}
+							});
+						}
+						else {
+							if (!name.endsWith(".geojson")) {
+								file = new File(file.getPath() + ".geojson");
+							}
+							final File exportFile = file;
+							runExport(exportFile, new Runnable() {
+								public void run() {
+									exporter.exportGeoJson(exportFile);
+								}
+							});
+						}
+					}
+					
+					saveGeoJsonChooser.setSelectedFile(null);
+				}
+				catch (Exception e) {
+					JOptionPane.showMessageDialog(frmKmlTool, e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+				}
+			}
+		});
+		mnFile.add(mntmSaveGeoJson);
+
+		// Option for showing ExtendedData in Google Maps with one shared BalloonStyle per Schema
+		// instead of an HTML table in every Placemark's description. This makes the files much smaller.
+		chckbxmntmSharedBalloons = new JCheckBoxMenuItem("Use Shared Balloon Templates For Google Maps");
+		mnFile.add(chckbxmntmSharedBalloons);
+		
+		// Option for loading unchanged KML/KMZ and DXF files from a snapshot next to the file instead of parsing them again.
+		// The snapshots are written into the directory of the imported files, so this is off unless the user enables it.
+		chckbxmntmSnapshots = new JCheckBoxMenuItem("Reuse Snapshots Of Imported Files");
+		chckbxmntmSnapshots.setSelected(false);
+		chckbxmntmSnapshots.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				model.setSnapshotsEnabled(chckbxmntmSnapshots.isSelected());
+			}
+		});
+		mnFile.add(chckbxmntmSnapshots);
+		
+		// Option for importing all KML files of a KMZ file and the local KML files that NetworkLinks refer to into one KML.
+		chckbxmntmMergeLinkedFiles = new JCheckBoxMenuItem("Merge Linked KML Files On Import");
+		chckbxmntmMergeLinkedFiles.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				model.setLinkedFilesMerged(chckbxmntmMergeLinkedFiles.isSelected());
+			}
+		});
+		mnFile.add(chckbxmntmMergeLinkedFiles);
+		
+		// Option for parsing large KML files in partitions on all processors.
+		chckbxmntmParallelParse = new JCheckBoxMenuItem("Parse Large KML Files In Parallel");
+		chckbxmntmParallelParse.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				model.setParallelParseEnabled(chckbxmntmParallelParse.isSelected());
+			}
+		});
+		mnFile.add(chckbxmntmParallelParse);
+		
 		mnFile.addSeparator();
 		
 		JMenuItem mntmExit = new JMenuItem("Exit");
 		mntmExit.addActionListener(new ActionListener() {
 			public void actionPerformed(ActionEvent e) {
-				frmKmlTool.setVisible(false);
-				frmKmlTool.dispose();
-				System.exit(0);
+				close();
 			}
 		});
 		mnFile.add(mntmExit);
@@ -279,8 +682,124 @@ public class KmlTool {
 		
 	}
 
+	/**
+	 * Runs an export in the background after the previous exports. When it's finished, the result or the error is
+	 * shown in the event dispatch thread.
+	 * @param exportFile the file that the export writes, which is deleted if the export is cancelled
+	 * @param export
+	 */
+	private void runExport(final File exportFile, final Runnable export) {
+		numPendingExports++;
+		exportExecutor.execute(new Runnable() {
+			public void run() {
+				synchronized (exportExecutor) {
+					runningExportFile = exportFile;
+					existingFileNames = listFileNames(exportFile.getAbsoluteFile().getParentFile());
+				}
+				
+				Exception error = null;
+				try {
+					export.run();
+				}
+				catch (Exception e) {
+					error = e;
+				}
+				finally {
+					synchronized (exportExecutor) {
+						runningExportFile = null;
+						existingFileNames = null;
+					}
+				}
+				
+				final Exception exportError = error;
+				EventQueue.invokeLater(new Runnable() {
+					public void run() {
+						exportFinished(exportFile, exportError);
+					}
+				});
+			}
+		});
+	}
+	
+	private void exportFinished(File exportFile, Exception error) {
+		numPendingExports--;
+		if (error != null)
+			JOptionPane.showMessageDialog(frmKmlTool, error.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+		else if (!exitAfterExports)
+			JOptionPane.showMessageDialog(frmKmlTool, "Saved " + exportFile + ".", "Export Finished", JOptionPane.INFORMATION_MESSAGE);
+		
+		if (exitAfterExports && numPendingExports == 0)
+			exit();
+	}
+	
+	/**
+	 * Closes the application. If exports are still running, the user can wait for them to finish or cancel them.
+	 */
+	private void close() {
+		if (numPendingExports == 0) {
+			exit();
+			return;
+		}
+		
+		Object[] options = new Object[] {"Wait", "Cancel Export", "Don't Close"};
+		int ret = JOptionPane.showOptionDialog(frmKmlTool,
+				"An export is still running. Close the application when it's finished, or cancel it now?\n"
+						+ "The unfinished files of a cancelled export are deleted.",
+				"Export Running", JOptionPane.DEFAULT_OPTION, JOptionPane.WARNING_MESSAGE, null, options, options[0]);
+		if (ret == 0) {
+			exitAfterExports = true;
+			frmKmlTool.setVisible(false);
+		}
+		else if (ret == 1) {
+			exportExecutor.shutdownNow();
+			synchronized (exportExecutor) {
+				// The lock keeps the export from finishing in the meantime, so that a complete file isn't deleted.
+				if (runningExportFile != null)
+					deleteNewFiles(runningExportFile, existingFileNames);
+				exit();
+			}
+		}
+	}
+	
+	private void exit() {
+		frmKmlTool.setVisible(false);
+		frmKmlTool.dispose();
+		System.exit(0);
+	}
+	
+	private static Set<String> listFileNames(File dir) {
+		Set<String> res = new HashSet<String>();
+		String[] names = (dir != null) ? dir.list() : null;
+		if (names != null)
+			res.addAll(Arrays.asList(names));
+		return res;
+	}
+	
+	/**
+	 * Deletes the files of an export that were created since the export started: the file itself and the files next
+	 * to it that start with the same base name, like the tiles of a tiled KMZ file. Files that existed before, like
+	 * the file of a previous export that is replaced, are kept.
+	 * @param exportFile
+	 * @param existingNames the names of the files in the directory of the export file before the export started
+	 */
+	private static void deleteNewFiles(File exportFile, Set<String> existingNames) {
+		String baseName = exportFile.getName();
+		int offset = baseName.lastIndexOf('.');
+		if (offset > 0)
+			baseName = baseName.substring(0, offset);
+		
+		File dir = exportFile.getAbsoluteFile().getParentFile();
+		for (String name : listFileNames(dir)) {
+			if (name.startsWith(baseName) && !existingNames.contains(name))
+				new File(dir, name).delete();
+		}
+	}
+	
 	private void resetModel() {
 		model = new KmlModel();
+		model.setSnapshotsEnabled(chckbxmntmSnapshots.isSelected());
+		model.setLinkedFilesMerged(chckbxmntmMergeLinkedFiles.isSelected());
+		model.setParallelParseEnabled(chckbxmntmParallelParse.isSelected());
 		styleTableModel.setKmlModel(model);
 	}
 	
@@ -28,6 +28,7 @@ public class StyleTableModel extends AbstractTableModel {
 	// Column definitions.
 	private static enum Columns {
 		STYLE_NAME("Style Name", String.class),
+		USAGE_COUNT("Used By", Integer.class),
 		LINE_WIDTH("Line Width", Double.class),
 		LINE_COLOR("Line Color", Color.class),
 		ICON_URL("Icon URL", String.class),
@@ -87,7 +88,7 @@ public class StyleTableModel extends AbstractTableModel {
 	@Override
 	public boolean isCellEditable(int row, int col) {
 		Columns colDef = Columns.values()[col];
-		if (colDef == Columns.STYLE_NAME) {
+		if (colDef == Columns.STYLE_NAME || colDef == Columns.USAGE_COUNT) {
 			return false;
 		}
 		else {
@@ -103,7 +104,9 @@ public class StyleTableModel extends AbstractTableModel {
 	
 	@Override
 	public void setValueAt(Object value, int row, int col) {
-		Style style = model.getStyles().get(row);
+		// The Style may be shared with a read-only copy of the model that is being exported, in which case the model
+		// replaces it with a copy that can be changed.
+		Style style = model.edit(model.getStyles().get(row));
 		Columns colDef = Columns.values()[col];
 		
 		switch (colDef) {
@@ -139,6 +142,9 @@ public class StyleTableModel extends AbstractTableModel {
 		}
 		break;
 		}
+		
+		// The changed Style has to be written again on export instead of being copied from the source file.
+		model.markModified(style);
 	}
 	
 	private Object getValueForCell(int row, int col) {
@@ -152,6 +158,13 @@ public class StyleTableModel extends AbstractTableModel {
 		}
 		break;
 		
+		case USAGE_COUNT: {
+			// The number of Features that refer to the style directly (not through a StyleMap).
+			if (style.getId() != null)
+				res = model.getFeaturesUsingStyle(style.getId()).size();
+		}
+		break;
+		
 		case LINE_WIDTH: {
 			LineStyle lineStyle = style.getLineStyle();
 			if (lineStyle != null)
@@ -0,0 +1,145 @@
+package eu.gutermann.common.kmltool.impexp;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * The formats of the files that can be imported, detected from the first bytes of a file or stream instead of from
+ * the file name.
+ */
+public enum FileFormat {
+	/**
+	 * A KML file, or any other XML.
+	 */
+	KML,
+	
+	/**
+	 * A zipped KML file.
+	 */
+	KMZ,
+	
+	/**
+	 * An Autocad DXF file in text or binary format.
+	 */
+	DXF,
+	
+	/**
+	 * None of the other formats.
+	 */
+	UNKNOWN;
+	
+	/**
+	 * The number of bytes that are needed to detect the format.
+	 */
+	public static final int HEADER_SIZE = 32;
+	
+	private static final String DXF_BINARY_SIGNATURE = "AutoCAD Binary DXF";
+	
+	/**
+	 * Detects the format of a file from its first bytes.
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public static FileFormat detect(File file) throws IOException {
+		InputStream in = new FileInputStream(file);
+		try {
+			byte[] header = new byte[HEADER_SIZE];
+			return detect(header, readFully(in, header));
+		}
+		finally {
+			in.close();
+		}
+	}
+	
+	/**
+	 * Detects the format of a stream from its first bytes. The stream must support mark and reset, for example a
+	 * BufferedInputStream, since it's reset to the start afterwards.
+	 * @param in
+	 * @return
+	 * @throws IOException
+	 */
+	public static FileFormat detect(InputStream in) throws IOException {
+		if (!in.markSupported())
+			throw new IllegalArgumentException("The stream doesn't support mark and reset");
+		
+		in.mark(HEADER_SIZE);
+		try {
+			byte[] header = new byte[HEADER_SIZE];
+			return detect(header, readFully(in, header));
+		}
+		finally {
+			in.reset();
+		}
+	}
+	
+	/**
+	 * Detects the format from the first bytes of a file.
+	 * @param header
+	 * @param len the number of bytes in the header
+	 * @return
+	 */
+	public static FileFormat detect(byte[] header, int len) {
+		// ZIP files start with a local file header.
+		if (len >= 4 && header[0] == 'P' && header[1] == 'K' && header[2] == 3 && header[3] == 4)
+			return KMZ;
+		
+		// XML may start with a byte order mark, which is the only way to tell UTF-16 and UTF-32 apart from others.
+		int b0 = (len > 0) ? header[0] & 0xFF : -1;
+		int b1 = (len > 1) ? header[1] & 0xFF : -1;
+		if ((b0 == 0xFE && b1 == 0xFF) || (b0 == 0xFF && b1 == 0xFE) || (b0 == 0 && b1 == 0) || (b0 == 0 && b1 == '<') || (b0 == '<' && b1 == 0))
+			return KML;
+		
+		int pos = 0;
+		if (len >= 3 && b0 == 0xEF && b1 == 0xBB && (header[2] & 0xFF) == 0xBF)
+			pos = 3;
+		if (startsWith(header, len, pos, DXF_BINARY_SIGNATURE))
+			return DXF;
+		while (pos < len && isWhitespace(header[pos]))
+			pos++;
+		if (pos < len && header[pos] == '<')
+			return KML;
+		
+		// A DXF file in text format starts with a group code, which is an integer on a line of its own, usually
+		// 0 for the start of a section or 999 for a comment.
+		int digits = 0;
+		while (pos < len && header[pos] >= '0' && header[pos] <= '9') {
+			pos++;
+			digits++;
+		}
+		while (pos < len && (header[pos] == ' ' || header[pos] == '\t'))
+			pos++;
+		if (digits > 0 && pos < len && (header[pos] == '\r' || header[pos] == '\n'))
+			return DXF;
+		
+		return UNKNOWN;
+	}
+	
+	private static int readFully(InputStream in, byte[] buf) throws IOException {
+		int len = 0;
+		while (len < buf.length) {
+			int n = in.read(buf, len, buf.length - len);
+			if (n < 0)
+				break;
+			len += n;
+		}
+		return len;
+	}
+	
+	private static boolean startsWith(byte[] header, int len, int pos, String s) {
+		if (pos + s.length() > len)
+			return false;
+		for (int i = 0; i < s.length(); i++) {
+			if (header[pos + i] != s.charAt(i))
+				return false;
+		}
+		return true;
+	}
+	
+	private static boolean isWhitespace(byte b) {
+		return b == ' ' || b == '\t' || b == '\r' || b == '\n';
+	}
+
+}
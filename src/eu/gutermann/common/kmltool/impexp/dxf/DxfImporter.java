@@ -2,6 +2,9 @@ package eu.gutermann.common.kmltool.impexp.dxf;
 
 import java.awt.Color;
 import java.io.File;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
 import java.util.Iterator;
 import java.util.List;
 
@@ -15,6 +18,7 @@ import org.kabeja.dxf.DXFLayer;
 import org.kabeja.dxf.DXFPoint;
 import org.kabeja.dxf.DXFPolyline;
 import org.kabeja.dxf.DXFVertex;
+import org.kabeja.parser.DXFParser;
 import org.kabeja.parser.Parser;
 import org.kabeja.parser.ParserBuilder;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
@@ -31,7 +35,10 @@ import de.micromata.opengis.kml.v_2_2_0.Placemark;
 import de.micromata.opengis.kml.v_2_2_0.Point;
 import de.micromata.opengis.kml.v_2_2_0.Style;
 import eu.gutermann.common.kmltool.impexp.exception.ImportException;
+import eu.gutermann.common.kmltool.impexp.snapshot.KmlSnapshot;
 import eu.gutermann.common.kmltool.model.KmlModel;
+import eu.gutermann.common.kmltool.util.metrics.JobMetrics;
+import eu.gutermann.common.kmltool.util.metrics.StageTimer;
 
 /**
  * Class for importing Autocad DXF files and converting them to the KML model.
@@ -56,43 +63,177 @@ public class DxfImporter {
 	
 	private MathTransform transform;
 	
+	/**
+	 * The metrics of the last import job.
+	 */
+	private JobMetrics metrics;
+	
+	/**
+	 * The timer of the running conversion stage, used for counting the converted elements.
+	 */
+	private StageTimer convertTimer;
+	
 	public DxfImporter(KmlModel model) {
 		this.model = model;
 	}
 	
+	/**
+	 * Returns the metrics of the last import, or null if nothing was imported yet.
+	 * @return
+	 */
+	public JobMetrics getMetrics() {
+		return metrics;
+	}
+	
 	public void importFile(File file, CoordinateReferenceSystem srcCrs) {
+		metrics = new JobMetrics("dxf-import");
+		
 		try {
 			// Test code for checking if the definition of the CH1903 / LV03 coordinate system was working correctly.
 			//String wkt = "PROJCS[\"CH1903 / LV03\", GEOGCS[\"CH1903\", DATUM[\"CH1903\", SPHEROID[\"Bessel 1841\", 6377397.155, 299.1528128, AUTHORITY[\"EPSG\",\"7004\"]], TOWGS84[674.4, 15.1, 405.3, 0.0, 0.0, 0.0, 0.0], AUTHORITY[\"EPSG\",\"6149\"]], PRIMEM[\"Greenwich\", 0.0, AUTHORITY[\"EPSG\",\"8901\"]], UNIT[\"degree\", 0.017453292519943295], AXIS[\"Geodetic latitude\", NORTH], AXIS[\"Geodetic longitude\", EAST], AUTHORITY[\"EPSG\",\"4149\"]], PROJECTION[\"Oblique_Mercator\", AUTHORITY[\"EPSG\",\"9815\"]], PARAMETER[\"longitude_of_center\", 7.439583333333333], PARAMETER[\"latitude_of_center\", 46.952405555555565], PARAMETER[\"azimuth\", 90.0], PARAMETER[\"scale_factor\", 1.0], PARAMETER[\"false_easting\", 600000.0], PARAMETER[\"false_northing\", 200000.0], PARAMETER[\"rectified_grid_angle\", 90.0], UNIT[\"m\", 1.0], AXIS[\"Easting\", EAST], AXIS[\"Northing\", NORTH], AUTHORITY[\"EPSG\",\"21781\"]]";
   		//CoordinateReferenceSystem testCrs = CRS.parseWKT(wkt);
 			
-			// Get the transformation algorithm for converting from the DXF file's coordinate system to WGS84.
+			// The snapshot depends on the coordinate system as well as on the file.
+			String snapshotKey = srcCrs.toWKT();
+			Kml kml = model.isSnapshotsEnabled() ? KmlSnapshot.read(file, snapshotKey, metrics) : null;
+			if (kml == null) {
+				kml = convertFile(file, srcCrs);
+				
+				if (model.isSnapshotsEnabled())
+					KmlSnapshot.write(file, snapshotKey, kml, metrics);
+			}
+			
+			setKml(kml);
+		}
+		catch (Exception e) {
+			throw new ImportException("Could not import DXF file: " + e.getMessage(), e);
+		}
+		finally {
+			metrics.finish();
+		}
+	}
+	
+	/**
+	 * Imports DXF data from a stream. The stream is read to its end but not closed. No snapshots are used, since
+	 * there is no file.
+	 * @param in
+	 * @param name the name of the data, usually a file name, which is used as name of the KML Document
+	 * @param srcCrs
+	 */
+	public void importStream(InputStream in, String name, CoordinateReferenceSystem srcCrs) {
+		metrics = new JobMetrics("dxf-import");
+		
+		try {
 			transform = CRS.findMathTransform(srcCrs, DefaultGeographicCRS.WGS84, true);
 			
-			// Get the root DXFDocument from the DXF file.
+			StageTimer parseTimer = metrics.begin("parse");
+			DXFDocument dxfDoc;
+			try {
+				Parser parser = ParserBuilder.createDefaultParser();
+				parser.parse(in, DXFParser.DEFAULT_ENCODING);
+				dxfDoc = parser.getDocument();
+			}
+			finally {
+				parseTimer.end();
+			}
+			
+			setKml(convertDocument(dxfDoc, name));
+		}
+		catch (Exception e) {
+			throw new ImportException("Could not import DXF data: " + e.getMessage(), e);
+		}
+		finally {
+			metrics.finish();
+		}
+	}
+	
+	/**
+	 * Imports DXF data from a channel. See {@link #importStream(InputStream, String, CoordinateReferenceSystem)}.
+	 * @param channel
+	 * @param name
+	 * @param srcCrs
+	 */
+	public void importStream(ReadableByteChannel channel, String name, CoordinateReferenceSystem srcCrs) {
+		importStream(Channels.newInputStream(channel), name, srcCrs);
+	}
+	
+	private void setKml(Kml kml) {
+		StageTimer styleTimer = metrics.begin("style-extraction");
+		try {
+			model.setKml(kml);
+			styleTimer.addCount("styles", model.getStyles().size());
+		}
+		finally {
+			styleTimer.end();
+		}
+		
+		if (model.isSpatialIndexEnabled()) {
+			StageTimer indexTimer = metrics.begin("spatial-index");
+			try {
+				indexTimer.addCount("placemarks", model.getSpatialIndex().size());
+			}
+			finally {
+				indexTimer.end();
+			}
+		}
+	}
+	
+	/**
+	 * Parses the DXF file and converts it to KML.
+	 * @param file
+	 * @param srcCrs
+	 * @return
+	 * @throws Exception
+	 */
+	private Kml convertFile(File file, CoordinateReferenceSystem srcCrs) throws Exception {
+		// Get the transformation algorithm for converting from the DXF file's coordinate system to WGS84.
+		transform = CRS.findMathTransform(srcCrs, DefaultGeographicCRS.WGS84, true);
+		
+		// Get the root DXFDocument from the DXF file.
+		StageTimer parseTimer = metrics.begin("parse").addBytesIn(file.length());
+		DXFDocument dxfDoc;
+		try {
 			Parser parser = ParserBuilder.createDefaultParser();
 			parser.parse(file.getPath());
-			DXFDocument dxfDoc = parser.getDocument();
-			
-			// Create the KML and a Document element with the DXF file's name.
-			Kml kml = KmlFactory.createKml();
-			Document kmlDoc = kml.createAndSetDocument();
-			
-			String filename = file.getName();
+			dxfDoc = parser.getDocument();
+		}
+		finally {
+			parseTimer.end();
+		}
+		
+		return convertDocument(dxfDoc, file.getName());
+	}
+	
+	/**
+	 * Converts a parsed DXF document to KML.
+	 * @param dxfDoc
+	 * @param filename the name of the DXF file, or null
+	 * @return
+	 * @throws TransformException
+	 */
+	private Kml convertDocument(DXFDocument dxfDoc, String filename) throws TransformException {
+		// Create the KML and a Document element with the DXF file's name.
+		Kml kml = KmlFactory.createKml();
+		Document kmlDoc = kml.createAndSetDocument();
+		
+		if (filename != null) {
 			int extensionIndex = filename.lastIndexOf('.');
 			String docName = (extensionIndex > 0) ? filename.substring(0, extensionIndex) : filename;
 			kmlDoc.setName(docName);
-			
-			// Convert DXF data to KML for each layer within the DXF document.
+		}
+		
+		// Convert DXF data to KML for each layer within the DXF document.
+		convertTimer = metrics.begin("convert");
+		try {
 			for (Iterator<?> layerIt = dxfDoc.getDXFLayerIterator(); layerIt.hasNext();) {
 				handleDxfLayer((DXFLayer) layerIt.next(), kmlDoc);
 			}
-			
-			model.setKml(kml);
 		}
-		catch (Exception e) {
-			throw new ImportException("Could not import DXF file: " + e.getMessage(), e);
+		finally {
+			convertTimer.end();
 		}
+		
+		return kml;
 	}
 	
 	@SuppressWarnings("unchecked")
@@ -113,6 +254,8 @@ public class DxfImporter {
 			if (points == null && polyLines == null && lwPolyLines == null)
 				return;
 			
+			convertTimer.addCount("layers", 1);
+			
 			// Convert the layer's style definition to KML Style elements within the Document.
 			Style style = kmlDoc.createAndAddStyle();
 			style.setId(layerName);
@@ -176,6 +319,8 @@ public class DxfImporter {
 		double[] dstCoords = new double[2];
 		transform.transform(srcCoords, 0, dstCoords, 0, 1);
 		point.addToCoordinates(dstCoords[0], dstCoords[1]);
+		
+		convertTimer.addCount("placemarks", 1).addCount("vertices", 1);
 	}
 	
 	private void handleDxfPolyLine(DXFPolyline dxfPolyLine, Folder folder, Style style) throws TransformException {
@@ -190,6 +335,8 @@ public class DxfImporter {
 			transform.transform(srcCoords, 0, dstCoords, 0, 1);
 			line.addToCoordinates(dstCoords[0], dstCoords[1]);
 		}
+		
+		convertTimer.addCount("placemarks", 1).addCount("vertices", line.getCoordinates().size());
 	}
 	
 }
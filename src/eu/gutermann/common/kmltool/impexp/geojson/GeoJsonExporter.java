@@ -0,0 +1,455 @@
+package eu.gutermann.common.kmltool.impexp.geojson;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+
+import de.micromata.opengis.kml.v_2_2_0.Boundary;
+import de.micromata.opengis.kml.v_2_2_0.Coordinate;
+import de.micromata.opengis.kml.v_2_2_0.Feature;
+import de.micromata.opengis.kml.v_2_2_0.Geometry;
+import de.micromata.opengis.kml.v_2_2_0.IconStyle;
+import de.micromata.opengis.kml.v_2_2_0.LineString;
+import de.micromata.opengis.kml.v_2_2_0.LineStyle;
+import de.micromata.opengis.kml.v_2_2_0.LinearRing;
+import de.micromata.opengis.kml.v_2_2_0.MultiGeometry;
+import de.micromata.opengis.kml.v_2_2_0.Pair;
+import de.micromata.opengis.kml.v_2_2_0.Placemark;
+import de.micromata.opengis.kml.v_2_2_0.Point;
+import de.micromata.opengis.kml.v_2_2_0.PolyStyle;
+import de.micromata.opengis.kml.v_2_2_0.Polygon;
+import de.micromata.opengis.kml.v_2_2_0.Style;
+import de.micromata.opengis.kml.v_2_2_0.StyleMap;
+import de.micromata.opengis.kml.v_2_2_0.StyleSelector;
+import de.micromata.opengis.kml.v_2_2_0.StyleState;
+import eu.gutermann.common.kmltool.impexp.exception.ExportException;
+import eu.gutermann.common.kmltool.model.KmlModel;
+import eu.gutermann.common.kmltool.util.CoordinateFormatter;
+import eu.gutermann.common.kmltool.util.ExtendedDataUtil;
+import eu.gutermann.common.kmltool.util.KmlReadUtil;
+import eu.gutermann.common.kmltool.util.kmlcrawler.KmlCrawler;
+import eu.gutermann.common.kmltool.util.kmlcrawler.KmlCrawlerListener;
+import eu.gutermann.common.kmltool.util.kmlcrawler.KmlItem;
+import eu.gutermann.common.kmltool.util.metrics.JobMetrics;
+import eu.gutermann.common.kmltool.util.metrics.StageTimer;
+
+/**
+ * Class for exporting the Placemarks of the KML model as <a href="http://geojson.org/">GeoJSON</a>, either as a
+ * single FeatureCollection or as newline-delimited GeoJSON with one Feature per line.
+ *
+ * The Features are written while the KML is crawled, so only one Feature at a time is held in memory besides the
+ * KML itself. Each Feature has the Placemark's name and description, its ExtendedData and the properties of the
+ * <a href="https://github.com/mapbox/simplestyle-spec">simplestyle</a> specification for its resolved style as
+ * properties. The coordinates are written with the {@link CoordinateFormatter}. JSON has no notation for NaN and
+ * infinity, so the export fails if a coordinate isn't a finite number.
+ *
+ * Note: an instance must not be used by multiple threads at the same time.
+ */
+public class GeoJsonExporter {
+	/**
+	 * The default number of decimals of the coordinates, which is a precision of about 1 cm.
+	 */
+	public static final int DEFAULT_COORDINATE_PRECISION = 7;
+	
+	private static final int BUFFER_SIZE = 64 * 1024;
+	
+	private KmlModel model;
+	
+	private int coordinatePrecision = DEFAULT_COORDINATE_PRECISION;
+	
+	private CoordinateFormatter formatter;
+	
+	/**
+	 * The simplestyle properties of the shared styles by style id, while an export is running.
+	 */
+	private Map<String, Map<String, Object>> styleProperties;
+	
+	/**
+	 * The buffer in which the geometry of a Feature is built. It's reused for every Feature.
+	 */
+	private StringBuilder buffer = new StringBuilder(1024);
+	
+	/**
+	 * The metrics of the last export job.
+	 */
+	private JobMetrics metrics;
+	
+	public GeoJsonExporter(KmlModel model) {
+		this.model = model;
+	}
+	
+	public int getCoordinatePrecision() {
+		return coordinatePrecision;
+	}
+	
+	/**
+	 * Sets the maximum number of decimals of the coordinates.
+	 * @param coordinatePrecision between 0 and {@link CoordinateFormatter#MAX_DECIMALS}
+	 */
+	public void setCoordinatePrecision(int coordinatePrecision) {
+		if (coordinatePrecision < 0 || coordinatePrecision > CoordinateFormatter.MAX_DECIMALS)
+			throw new IllegalArgumentException("The coordinate precision must be between 0 and " + CoordinateFormatter.MAX_DECIMALS);
+		this.coordinatePrecision = coordinatePrecision;
+	}
+	
+	/**
+	 * Returns the metrics of the last export, or null if nothing was exported yet.
+	 * @return
+	 */
+	public JobMetrics getMetrics() {
+		return metrics;
+	}
+	
+	/**
+	 * Exports the Placemarks to a GeoJSON file with a single FeatureCollection.
+	 * @param file
+	 */
+	public void exportGeoJson(File file) {
+		metrics = new JobMetrics("geojson-export");
+		exportFile(file, false);
+	}
+	
+	/**
+	 * Exports the Placemarks to a newline-delimited GeoJSON file, with one Feature per line.
+	 * @param file
+	 */
+	public void exportNdjson(File file) {
+		metrics = new JobMetrics("ndjson-export");
+		exportFile(file, true);
+	}
+	
+	private void exportFile(File file, boolean newlineDelimited) {
+		StageTimer writeTimer = metrics.begin("write");
+		Writer writer = null;
+		boolean success = false;
+		
+		try {
+			writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"), BUFFER_SIZE);
+			write(writer, newlineDelimited, writeTimer);
+			writer.close();
+			writer = null;
+			writeTimer.addBytesOut(file.length());
+			success = true;
+		}
+		catch (Exception e) {
+			throw new ExportException("Could not export GeoJSON file: " + e.getMessage(), e);
+		}
+		finally {
+			close(writer);
+			
+			// Don't leave a half written file behind.
+			if (!success)
+				file.delete();
+			writeTimer.end();
+			metrics.finish();
+		}
+	}
+	
+	private void write(final Writer writer, final boolean newlineDelimited, final StageTimer writeTimer) throws IOException {
+		formatter = new CoordinateFormatter(coordinatePrecision);
+		styleProperties = new HashMap<String, Map<String, Object>>();
+		
+		try {
+			if (!newlineDelimited)
+				writer.write("{\"type\":\"FeatureCollection\",\"features\":[\n");
+			
+			// Write every Placemark as soon as it's visited.
+			if (model.getKml().getFeature() != null) {
+				KmlCrawlerListener listener = new KmlCrawlerListener() {
+					private boolean first = true;
+					
+					@Override
+					public void onStyleSelector(KmlItem item) {}
+					
+					@Override
+					public void onFeature(KmlItem item) {
+						if (!(item.getObject() instanceof Placemark))
+							return;
+						
+						try {
+							if (!first && !newlineDelimited)
+								writer.write(",\n");
+							writeFeature(writer, (Placemark) item.getObject());
+							if (newlineDelimited)
+								writer.write('\n');
+							first = false;
+						}
+						catch (IOException e) {
+							throw new ExportException(e.getMessage(), e);
+						}
+						writeTimer.addCount("placemarks", 1);
+					}
+				};
+				new KmlCrawler(model.getKml()).addListener(listener).crawl();
+			}
+			
+			if (!newlineDelimited)
+				writer.write("\n]}\n");
+		}
+		finally {
+			formatter = null;
+			styleProperties = null;
+		}
+	}
+	
+	private void writeFeature(Writer writer, Placemark placemark) throws IOException {
+		writer.write("{\"type\":\"Feature\"");
+		if (placemark.getId() != null) {
+			writer.write(",\"id\":");
+			writer.write(JSONValue.toJSONString(placemark.getId()));
+		}
+		
+		// Placemarks without coordinates get a null geometry.
+		buffer.setLength(0);
+		if (!appendGeometry(buffer, placemark.getGeometry()))
+			buffer.append("null");
+		writer.write(",\"geometry\":");
+		writer.append(buffer);
+		
+		writer.write(",\"properties\":");
+		JSONObject.writeJSONString(getProperties(placemark), writer);
+		writer.write('}');
+	}
+	
+	private Map<String, Object> getProperties(Placemark placemark) {
+		// The name, description and style properties take precedence over ExtendedData fields with the same name.
+		Map<String, Object> res = new LinkedHashMap<String, Object>();
+		if (placemark.getName() != null)
+			res.put("name", placemark.getName());
+		if (placemark.getDescription() != null)
+			res.put("description", placemark.getDescription());
+		res.putAll(getStyleProperties(placemark));
+		for (Map.Entry<String, String> entry : ExtendedDataUtil.getValues(placemark).entrySet()) {
+			if (!res.containsKey(entry.getKey()))
+				res.put(entry.getKey(), entry.getValue());
+		}
+		return res;
+	}
+	
+	private Map<String, Object> getStyleProperties(Feature feat) {
+		// The properties of a shared style are computed once. A Style within the Feature overrides them.
+		Map<String, Object> res = null;
+		String styleUrl = feat.getStyleUrl();
+		if (styleUrl != null && styleUrl.startsWith("#")) {
+			String id = styleUrl.substring(1);
+			res = styleProperties.get(id);
+			if (res == null) {
+				res = getStyleProperties(resolveStyle(id));
+				styleProperties.put(id, res);
+			}
+		}
+		
+		for (StyleSelector selector : KmlReadUtil.<StyleSelector>getList(feat, "styleSelector")) {
+			if (selector instanceof Style) {
+				Map<String, Object> merged = (res != null) ? new LinkedHashMap<String, Object>(res) : new LinkedHashMap<String, Object>();
+				merged.putAll(getStyleProperties((Style) selector));
+				res = merged;
+			}
+		}
+		return (res != null) ? res : new HashMap<String, Object>();
+	}
+	
+	private Style resolveStyle(String id) {
+		// A StyleMap is resolved to the Style for the normal state.
+		StyleSelector selector = model.getStyleSelector(id);
+		if (selector instanceof StyleMap) {
+			for (Pair pair : KmlReadUtil.<Pair>getList(selector, "pair")) {
+				String url = pair.getStyleUrl();
+				if (pair.getKey() != StyleState.HIGHLIGHT && url != null && url.startsWith("#"))
+					return model.getStyle(url.substring(1));
+			}
+			return null;
+		}
+		return (selector instanceof Style) ? (Style) selector : null;
+	}
+	
+	private static Map<String, Object> getStyleProperties(Style style) {
+		Map<String, Object> res = new LinkedHashMap<String, Object>();
+		if (style == null)
+			return res;
+		
+		LineStyle lineStyle = style.getLineStyle();
+		if (lineStyle != null) {
+			putColor(res, lineStyle.getColor(), "stroke", "stroke-opacity");
+			res.put("stroke-width", lineStyle.getWidth());
+		}
+		PolyStyle polyStyle = style.getPolyStyle();
+		if (polyStyle != null) {
+			putColor(res, polyStyle.getColor(), "fill", "fill-opacity");
+			if (Boolean.FALSE.equals(polyStyle.isFill()))
+				res.put("fill-opacity", 0.0);
+		}
+		IconStyle iconStyle = style.getIconStyle();
+		if (iconStyle != null) {
+			putColor(res, iconStyle.getColor(), "marker-color", null);
+		}
+		return res;
+	}
+	
+	private static void putColor(Map<String, Object> properties, String kmlColor, String colorKey, String opacityKey) {
+		// KML colors are written as aabbggrr, simplestyle colors as #rrggbb with a separate opacity.
+		if (kmlColor == null || kmlColor.length() != 8)
+			return;
+		
+		try {
+			int alpha = Integer.parseInt(kmlColor.substring(0, 2), 16);
+			properties.put(colorKey, "#" + kmlColor.substring(6, 8) + kmlColor.substring(4, 6) + kmlColor.substring(2, 4));
+			if (opacityKey != null)
+				properties.put(opacityKey, Math.round(alpha * 1000.0 / 255.0) / 1000.0);
+		}
+		catch (NumberFormatException e) {
+			// Not a valid color, so it's left out.
+		}
+	}
+	
+	private boolean appendGeometry(StringBuilder b, Geometry geom) {
+		if (!hasCoordinates(geom))
+			return false;
+		
+		if (geom instanceof MultiGeometry) {
+			List<Geometry> children = new ArrayList<Geometry>();
+			for (Geometry child : KmlReadUtil.<Geometry>getList(geom, "geometry")) {
+				if (hasCoordinates(child))
+					children.add(child);
+			}
+			
+			// A MultiGeometry with parts of the same type becomes a MultiPoint, MultiLineString or MultiPolygon.
+			String type = getType(children.get(0));
+			for (Geometry child : children) {
+				if (type == null || !type.equals(getType(child)))
+					type = null;
+			}
+			
+			if (type != null) {
+				b.append("{\"type\":\"Multi").append(type).append("\",\"coordinates\":[");
+				for (int i = 0; i < children.size(); i++) {
+					if (i > 0)
+						b.append(',');
+					appendCoordinates(b, children.get(i));
+				}
+				b.append("]}");
+			}
+			else {
+				b.append("{\"type\":\"GeometryCollection\",\"geometries\":[");
+				for (int i = 0; i < children.size(); i++) {
+					if (i > 0)
+						b.append(',');
+					appendGeometry(b, children.get(i));
+				}
+				b.append("]}");
+			}
+			return true;
+		}
+		
+		b.append("{\"type\":\"").append(getType(geom)).append("\",\"coordinates\":");
+		appendCoordinates(b, geom);
+		b.append('}');
+		return true;
+	}
+	
+	private static String getType(Geometry geom) {
+		// GeoJSON has no rings outside of Polygons, so LinearRings are written as LineStrings.
+		if (geom instanceof Point)
+			return "Point";
+		if (geom instanceof LineString || geom instanceof LinearRing)
+			return "LineString";
+		if (geom instanceof Polygon)
+			return "Polygon";
+		return null;
+	}
+	
+	private void appendCoordinates(StringBuilder b, Geometry geom) {
+		if (geom instanceof Point) {
+			appendPosition(b, ((Point) geom).getCoordinates().get(0));
+		}
+		else if (geom instanceof LineString) {
+			appendPositions(b, ((LineString) geom).getCoordinates());
+		}
+		else if (geom instanceof LinearRing) {
+			appendPositions(b, ((LinearRing) geom).getCoordinates());
+		}
+		else if (geom instanceof Polygon) {
+			Polygon polygon = (Polygon) geom;
+			b.append('[');
+			appendPositions(b, polygon.getOuterBoundaryIs().getLinearRing().getCoordinates());
+			for (Boundary inner : KmlReadUtil.<Boundary>getList(polygon, "innerBoundaryIs")) {
+				if (inner.getLinearRing() != null && size(inner.getLinearRing().getCoordinates()) > 0) {
+					b.append(',');
+					appendPositions(b, inner.getLinearRing().getCoordinates());
+				}
+			}
+			b.append(']');
+		}
+	}
+	
+	private void appendPositions(StringBuilder b, List<Coordinate> coords) {
+		b.append('[');
+		for (int i = 0; i < coords.size(); i++) {
+			if (i > 0)
+				b.append(',');
+			appendPosition(b, coords.get(i));
+		}
+		b.append(']');
+	}
+	
+	private void appendPosition(StringBuilder b, Coordinate coord) {
+		if (!isFinite(coord.getLongitude()) || !isFinite(coord.getLatitude()) || !isFinite(coord.getAltitude()))
+			throw new ExportException("The coordinate " + coord + " is not a finite number, which can't be written as GeoJSON.");
+		
+		b.append('[');
+		formatter.append(b, coord);
+		b.append(']');
+	}
+	
+	private static boolean isFinite(double value) {
+		return !Double.isNaN(value) && !Double.isInfinite(value);
+	}
+	
+	private static boolean hasCoordinates(Geometry geom) {
+		if (geom instanceof Point)
+			return size(((Point) geom).getCoordinates()) > 0;
+		if (geom instanceof LineString)
+			return size(((LineString) geom).getCoordinates()) > 0;
+		if (geom instanceof LinearRing)
+			return size(((LinearRing) geom).getCoordinates()) > 0;
+		if (geom instanceof Polygon) {
+			Boundary outer = ((Polygon) geom).getOuterBoundaryIs();
+			return outer != null && outer.getLinearRing() != null && size(outer.getLinearRing().getCoordinates()) > 0;
+		}
+		if (geom instanceof MultiGeometry) {
+			for (Geometry child : KmlReadUtil.<Geometry>getList(geom, "geometry")) {
+				if (hasCoordinates(child))
+					return true;
+			}
+		}
+		return false;
+	}
+	
+	private static int size(List<Coordinate> coords) {
+		return (coords != null) ? coords.size() : 0;
+	}
+	
+	private static void close(Writer writer) {
+		if (writer == null)
+			return;
+		
+		try {
+			writer.close();
+		}
+		catch (IOException e) {
+			// The export failed already.
+		}
+	}
+
+}
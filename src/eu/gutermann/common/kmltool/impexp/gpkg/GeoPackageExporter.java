@@ -0,0 +1,488 @@
+package eu.gutermann.common.kmltool.impexp.gpkg;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.geotools.geopkg.GeoPackage;
+import org.geotools.geopkg.geom.GeoPkgGeomWriter;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.PrecisionModel;
+
+import de.micromata.opengis.kml.v_2_2_0.AbstractObject;
+import de.micromata.opengis.kml.v_2_2_0.BalloonStyle;
+import de.micromata.opengis.kml.v_2_2_0.Feature;
+import de.micromata.opengis.kml.v_2_2_0.IconStyle;
+import de.micromata.opengis.kml.v_2_2_0.LabelStyle;
+import de.micromata.opengis.kml.v_2_2_0.LineStyle;
+import de.micromata.opengis.kml.v_2_2_0.Pair;
+import de.micromata.opengis.kml.v_2_2_0.Placemark;
+import de.micromata.opengis.kml.v_2_2_0.PolyStyle;
+import de.micromata.opengis.kml.v_2_2_0.Style;
+import de.micromata.opengis.kml.v_2_2_0.StyleMap;
+import de.micromata.opengis.kml.v_2_2_0.StyleSelector;
+import de.micromata.opengis.kml.v_2_2_0.StyleState;
+import eu.gutermann.common.kmltool.impexp.exception.ExportException;
+import eu.gutermann.common.kmltool.model.KmlModel;
+import eu.gutermann.common.kmltool.util.ExtendedDataUtil;
+import eu.gutermann.common.kmltool.util.KmlGeometryUtil;
+import eu.gutermann.common.kmltool.util.kmlcrawler.KmlCrawler;
+import eu.gutermann.common.kmltool.util.kmlcrawler.KmlCrawlerListener;
+import eu.gutermann.common.kmltool.util.kmlcrawler.KmlItem;
+import eu.gutermann.common.kmltool.util.metrics.JobMetrics;
+import eu.gutermann.common.kmltool.util.metrics.StageTimer;
+
+/**
+ * Class for exporting the KML model to an <a href="http://www.geopackage.org/">OGC GeoPackage</a>, which GIS
+ * applications can query with a spatial index instead of parsing the whole file.
+ * It uses the <a href="http://www.geotools.org/">GeoTools</a> library for creating the GeoPackage and for
+ * encoding the geometries.
+ *
+ * All Placemarks are written to a single feature table with their name, description, Folder path, style id and
+ * a text column for each ExtendedData field. The shared Styles and StyleMaps are written to an attribute table,
+ * so that the style id of a feature can be joined with its style. The features are inserted in batches with one
+ * transaction per batch, and the R-tree index is filled at the same time.
+ *
+ * Note: the R-tree index is filled by the exporter itself. The triggers which keep it up to date when features
+ * are edited are not created, since they need SQL functions that the bundled SQLite driver doesn't provide.
+ */
+public class GeoPackageExporter {
+	/**
+	 * The name of the table with the Placemarks.
+	 */
+	public static final String FEATURE_TABLE = "placemarks";
+	
+	/**
+	 * The name of the attribute table with the shared styles.
+	 */
+	public static final String STYLE_TABLE = "styles";
+	
+	private static final String GEOMETRY_COLUMN = "geom";
+	
+	private static final String INDEX_TABLE = "rtree_" + FEATURE_TABLE + "_" + GEOMETRY_COLUMN;
+	
+	/**
+	 * The columns of the feature table that every Placemark has. ExtendedData fields get other column names.
+	 */
+	private static final String[] FIXED_COLUMNS = { "fid", GEOMETRY_COLUMN, "name", "description", "folder", "style_id" };
+	
+	/**
+	 * The number of features that are inserted in one transaction.
+	 */
+	private static final int BATCH_SIZE = 10000;
+	
+	private static final int WGS84_SRID = 4326;
+	
+	private static final String WGS84_WKT = "GEOGCS[\"WGS 84\",DATUM[\"WGS_1984\",SPHEROID[\"WGS 84\",6378137,298.257223563,"
+			+ "AUTHORITY[\"EPSG\",\"7030\"]],AUTHORITY[\"EPSG\",\"6326\"]],PRIMEM[\"Greenwich\",0,AUTHORITY[\"EPSG\",\"8901\"]],"
+			+ "UNIT[\"degree\",0.0174532925199433,AUTHORITY[\"EPSG\",\"9122\"]],AUTHORITY[\"EPSG\",\"4326\"]]";
+	
+	private KmlModel model;
+	
+	private GeometryFactory factory = new GeometryFactory(new PrecisionModel(), WGS84_SRID);
+	
+	/**
+	 * The metrics of the last export job.
+	 */
+	private JobMetrics metrics;
+	
+	public GeoPackageExporter(KmlModel model) {
+		this.model = model;
+	}
+	
+	/**
+	 * Returns the metrics of the last export, or null if nothing was exported yet.
+	 * @return
+	 */
+	public JobMetrics getMetrics() {
+		return metrics;
+	}
+	
+	/**
+	 * Exports the KML model to a new GeoPackage file. An existing file is replaced.
+	 * @param file
+	 */
+	public void exportFile(File file) {
+		metrics = new JobMetrics("gpkg-export");
+		GeoPackage gpkg = null;
+		Connection conn = null;
+		boolean success = false;
+		
+		try {
+			if (file.exists() && !file.delete())
+				throw new ExportException("Could not replace the file '" + file + "'.");
+			
+			// Collect the Placemarks and the names of their ExtendedData fields, which become the columns of the table.
+			StageTimer collectTimer = metrics.begin("collect");
+			final List<KmlItem> items = new ArrayList<KmlItem>();
+			final Map<String, String> columnsByField = new LinkedHashMap<String, String>();
+			try {
+				if (model.getKml().getFeature() != null) {
+					KmlCrawlerListener listener = new KmlCrawlerListener() {
+						@Override
+						public void onStyleSelector(KmlItem item) {}
+						
+						@Override
+						public void onFeature(KmlItem item) {
+							if (item.getObject() instanceof Placemark) {
+								items.add(item);
+								addColumns((Placemark) item.getObject(), columnsByField);
+							}
+						}
+					};
+					new KmlCrawler(model.getKml()).addListener(listener).crawl();
+				}
+				collectTimer.addCount("placemarks", items.size()).addCount("columns", columnsByField.size());
+			}
+			finally {
+				collectTimer.end();
+			}
+			
+			gpkg = new GeoPackage(file);
+			gpkg.init();
+			
+			conn = gpkg.getDataSource().getConnection();
+			conn.setAutoCommit(false);
+			addWgs84(conn);
+			
+			StageTimer styleTimer = metrics.begin("styles");
+			try {
+				styleTimer.addCount("styles", writeStyles(conn));
+			}
+			finally {
+				styleTimer.end();
+			}
+			
+			StageTimer featureTimer = metrics.begin("features");
+			try {
+				writeFeatures(conn, items, columnsByField, featureTimer);
+			}
+			finally {
+				featureTimer.end();
+			}
+			
+			// Closing the GeoPackage finishes the file, after which its size is known.
+			StageTimer writeTimer = metrics.begin("write");
+			try {
+				conn.close();
+				conn = null;
+				gpkg.close();
+				gpkg = null;
+				writeTimer.addBytesOut(file.length());
+			}
+			finally {
+				writeTimer.end();
+			}
+			
+			success = true;
+		}
+		catch (Exception e) {
+			throw new ExportException("Could not export GeoPackage: " + e.getMessage(), e);
+		}
+		finally {
+			close(conn);
+			if (gpkg != null)
+				gpkg.close();
+			
+			// Don't leave a half written GeoPackage behind.
+			if (!success)
+				file.delete();
+			metrics.finish();
+		}
+	}
+	
+	private static void addWgs84(Connection conn) throws SQLException {
+		// KML coordinates are always WGS84, so its definition is written directly instead of looking it up in the EPSG database.
+		PreparedStatement insert = conn.prepareStatement("INSERT INTO gpkg_spatial_ref_sys VALUES (?, ?, ?, ?, ?, ?)");
+		try {
+			setValues(insert, new Object[] { "WGS 84", WGS84_SRID, "EPSG", WGS84_SRID, WGS84_WKT, "longitude/latitude coordinates in decimal degrees on the WGS 84 spheroid" });
+			insert.executeUpdate();
+		}
+		finally {
+			insert.close();
+		}
+		conn.commit();
+	}
+	
+	private int writeStyles(Connection conn) throws SQLException {
+		Statement stmt = conn.createStatement();
+		try {
+			stmt.executeUpdate("CREATE TABLE " + STYLE_TABLE + " ("
+					+ "id TEXT PRIMARY KEY, type TEXT NOT NULL, normal_style_id TEXT, highlight_style_id TEXT, "
+					+ "line_color TEXT, line_width DOUBLE, poly_color TEXT, poly_fill BOOLEAN, poly_outline BOOLEAN, "
+					+ "icon_href TEXT, icon_color TEXT, icon_scale DOUBLE, label_color TEXT, label_scale DOUBLE, "
+					+ "balloon_text TEXT)");
+			stmt.executeUpdate("INSERT INTO gpkg_contents (table_name, data_type, identifier, description) VALUES ('"
+					+ STYLE_TABLE + "', 'attributes', '" + STYLE_TABLE + "', 'The shared KML styles')");
+		}
+		finally {
+			stmt.close();
+		}
+		
+		// Colors are kept in the aabbggrr notation of KML.
+		int count = 0;
+		PreparedStatement insert = conn.prepareStatement("INSERT INTO " + STYLE_TABLE + " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+		try {
+			for (StyleSelector selector : model.getStyleSelectors()) {
+				Object[] values = new Object[15];
+				values[0] = selector.getId();
+				
+				if (selector instanceof StyleMap) {
+					values[1] = "StyleMap";
+					for (Pair pair : ((StyleMap) selector).getPair()) {
+						String styleId = getStyleId(pair.getStyleUrl());
+						if (pair.getKey() == StyleState.HIGHLIGHT)
+							values[3] = styleId;
+						else
+							values[2] = styleId;
+					}
+				}
+				else if (selector instanceof Style) {
+					Style style = (Style) selector;
+					values[1] = "Style";
+					LineStyle lineStyle = style.getLineStyle();
+					if (lineStyle != null) {
+						values[4] = lineStyle.getColor();
+						values[5] = lineStyle.getWidth();
+					}
+					PolyStyle polyStyle = style.getPolyStyle();
+					if (polyStyle != null) {
+						values[6] = polyStyle.getColor();
+						values[7] = polyStyle.isFill();
+						values[8] = polyStyle.isOutline();
+					}
+					IconStyle iconStyle = style.getIconStyle();
+					if (iconStyle != null) {
+						values[9] = (iconStyle.getIcon() != null) ? iconStyle.getIcon().getHref() : null;
+						values[10] = iconStyle.getColor();
+						values[11] = iconStyle.getScale();
+					}
+					LabelStyle labelStyle = style.getLabelStyle();
+					if (labelStyle != null) {
+						values[12] = labelStyle.getColor();
+						values[13] = labelStyle.getScale();
+					}
+					BalloonStyle balloonStyle = style.getBalloonStyle();
+					if (balloonStyle != null)
+						values[14] = balloonStyle.getText();
+				}
+				else {
+					continue;
+				}
+				
+				setValues(insert, values);
+				insert.addBatch();
+				count++;
+			}
+			insert.executeBatch();
+		}
+		finally {
+			insert.close();
+		}
+		
+		conn.commit();
+		return count;
+	}
+	
+	private void writeFeatures(Connection conn, List<KmlItem> items, Map<String, String> columnsByField, StageTimer featureTimer) throws Exception {
+		// Create the feature table and register it with its geometry column. The bounds are filled in at the end.
+		StringBuilder createSql = new StringBuilder("CREATE TABLE " + FEATURE_TABLE + " (fid INTEGER PRIMARY KEY AUTOINCREMENT, "
+				+ GEOMETRY_COLUMN + " GEOMETRY, name TEXT, description TEXT, folder TEXT, style_id TEXT");
+		StringBuilder insertSql = new StringBuilder("INSERT INTO " + FEATURE_TABLE + " VALUES (?, ?, ?, ?, ?, ?");
+		for (String column : columnsByField.values()) {
+			createSql.append(", ").append(quote(column)).append(" TEXT");
+			insertSql.append(", ?");
+		}
+		createSql.append(")");
+		insertSql.append(")");
+		
+		Statement stmt = conn.createStatement();
+		try {
+			stmt.executeUpdate(createSql.toString());
+			stmt.executeUpdate("INSERT INTO gpkg_contents (table_name, data_type, identifier, description, srs_id) VALUES ('"
+					+ FEATURE_TABLE + "', 'features', '" + FEATURE_TABLE + "', 'The KML Placemarks', " + WGS84_SRID + ")");
+			stmt.executeUpdate("INSERT INTO gpkg_geometry_columns VALUES ('"
+					+ FEATURE_TABLE + "', '" + GEOMETRY_COLUMN + "', 'GEOMETRY', " + WGS84_SRID + ", 2, 0)");
+			
+			// The R-tree is a virtual table with the bounding box of each feature by its fid.
+			stmt.executeUpdate("CREATE VIRTUAL TABLE " + INDEX_TABLE + " USING rtree(id, minx, maxx, miny, maxy)");
+			stmt.executeUpdate("INSERT INTO gpkg_extensions VALUES ('"
+					+ FEATURE_TABLE + "', '" + GEOMETRY_COLUMN + "', 'gpkg_rtree_index', 'GeoPackage 1.0 Specification Annex L', 'write-only')");
+		}
+		finally {
+			stmt.close();
+		}
+		conn.commit();
+		
+		PreparedStatement insertFeature = conn.prepareStatement(insertSql.toString());
+		PreparedStatement insertIndex = conn.prepareStatement("INSERT INTO " + INDEX_TABLE + " VALUES (?, ?, ?, ?, ?)");
+		Envelope bounds = new Envelope();
+		try {
+			GeoPkgGeomWriter geomWriter = new GeoPkgGeomWriter();
+			long fid = 0;
+			int batchCount = 0;
+			
+			for (KmlItem item : items) {
+				// Placemarks without a geometry can't be shown in a GIS, so they are skipped.
+				Placemark placemark = item.getObject();
+				com.vividsolutions.jts.geom.Geometry geom = KmlGeometryUtil.toJtsGeometry(placemark.getGeometry(), factory);
+				if (geom == null || geom.isEmpty()) {
+					featureTimer.addCount("skipped", 1);
+					continue;
+				}
+				
+				// The fid is set explicitly so that the R-tree entry can refer to it without reading it back.
+				fid++;
+				Envelope env = geom.getEnvelopeInternal();
+				bounds.expandToInclude(env);
+				
+				Map<String, String> fieldValues = ExtendedDataUtil.getValues(placemark);
+				
+				insertFeature.setLong(1, fid);
+				insertFeature.setBytes(2, geomWriter.write(geom));
+				setValue(insertFeature, 3, placemark.getName());
+				setValue(insertFeature, 4, placemark.getDescription());
+				setValue(insertFeature, 5, getFolderPath(item));
+				setValue(insertFeature, 6, getStyleId(placemark.getStyleUrl()));
+				int index = 7;
+				for (String field : columnsByField.keySet()) {
+					setValue(insertFeature, index++, fieldValues.get(field));
+				}
+				insertFeature.addBatch();
+				
+				insertIndex.setLong(1, fid);
+				insertIndex.setDouble(2, env.getMinX());
+				insertIndex.setDouble(3, env.getMaxX());
+				insertIndex.setDouble(4, env.getMinY());
+				insertIndex.setDouble(5, env.getMaxY());
+				insertIndex.addBatch();
+				
+				featureTimer.addCount("placemarks", 1).addCount("vertices", geom.getNumPoints());
+				if (++batchCount == BATCH_SIZE) {
+					commitBatch(conn, insertFeature, insertIndex);
+					featureTimer.addCount("batches", 1);
+					batchCount = 0;
+				}
+			}
+			
+			if (batchCount > 0) {
+				commitBatch(conn, insertFeature, insertIndex);
+				featureTimer.addCount("batches", 1);
+			}
+		}
+		finally {
+			insertFeature.close();
+			insertIndex.close();
+		}
+		
+		if (!bounds.isNull()) {
+			PreparedStatement update = conn.prepareStatement("UPDATE gpkg_contents SET min_x = ?, min_y = ?, max_x = ?, max_y = ? WHERE table_name = ?");
+			try {
+				setValues(update, new Object[] { bounds.getMinX(), bounds.getMinY(), bounds.getMaxX(), bounds.getMaxY(), FEATURE_TABLE });
+				update.executeUpdate();
+			}
+			finally {
+				update.close();
+			}
+			conn.commit();
+		}
+	}
+	
+	private static void commitBatch(Connection conn, PreparedStatement insertFeature, PreparedStatement insertIndex) throws SQLException {
+		insertFeature.executeBatch();
+		insertIndex.executeBatch();
+		conn.commit();
+	}
+	
+	private static void addColumns(Placemark placemark, Map<String, String> columnsByField) {
+		// Each new ExtendedData field gets a column name that differs from all other columns, ignoring case like SQLite does.
+		for (String field : ExtendedDataUtil.getValues(placemark).keySet()) {
+			if (columnsByField.containsKey(field))
+				continue;
+			
+			Set<String> usedNames = new HashSet<String>();
+			for (String column : FIXED_COLUMNS) {
+				usedNames.add(column);
+			}
+			for (String column : columnsByField.values()) {
+				usedNames.add(column.toLowerCase());
+			}
+			
+			String column = field.trim().isEmpty() ? "field" : field.trim();
+			String name = column;
+			for (int i = 2; usedNames.contains(name.toLowerCase()); i++) {
+				name = column + "_" + i;
+			}
+			columnsByField.put(field, name);
+		}
+	}
+	
+	private static String getFolderPath(KmlItem item) {
+		// The names of the Documents and Folders that contain the Placemark, from the top down.
+		StringBuilder b = new StringBuilder();
+		for (Iterator<AbstractObject> it = item.getStack().descendingIterator(); it.hasNext();) {
+			AbstractObject obj = it.next();
+			if (obj instanceof Feature) {
+				if (b.length() > 0)
+					b.append('/');
+				String name = ((Feature) obj).getName();
+				b.append((name != null) ? name : "");
+			}
+		}
+		return (b.length() > 0) ? b.toString() : null;
+	}
+	
+	private static String getStyleId(String styleUrl) {
+		// Only references to shared styles in the same document have a row in the style table.
+		if (styleUrl == null || !styleUrl.startsWith("#"))
+			return null;
+		return styleUrl.substring(1);
+	}
+	
+	private static String quote(String identifier) {
+		return "\"" + identifier.replace("\"", "\"\"") + "\"";
+	}
+	
+	private static void setValues(PreparedStatement stmt, Object[] values) throws SQLException {
+		for (int i = 0; i < values.length; i++) {
+			if (values[i] == null)
+				stmt.setNull(i + 1, Types.NULL);
+			else if (values[i] instanceof Boolean)
+				stmt.setInt(i + 1, ((Boolean) values[i]) ? 1 : 0);
+			else
+				stmt.setObject(i + 1, values[i]);
+		}
+	}
+	
+	private static void setValue(PreparedStatement stmt, int index, String value) throws SQLException {
+		if (value == null)
+			stmt.setNull(index, Types.VARCHAR);
+		else
+			stmt.setString(index, value);
+	}
+	
+	private static void close(Connection conn) {
+		if (conn == null)
+			return;
+		
+		try {
+			conn.close();
+		}
+		catch (SQLException e) {
+			// The GeoPackage is closed anyway.
+		}
+	}
+
+}
@@ -0,0 +1,235 @@
+package eu.gutermann.common.kmltool.impexp.kml;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import de.micromata.opengis.kml.v_2_2_0.AbstractObject;
+import de.micromata.opengis.kml.v_2_2_0.Feature;
+import de.micromata.opengis.kml.v_2_2_0.Placemark;
+import eu.gutermann.common.kmltool.util.kmlcrawler.KmlItem;
+
+/**
+ * The manifest of a KML export that is split over multiple numbered KMZ files. It holds the file that each Placemark
+ * was written to and a hash of the KML and the assets in each file. On the next export of the same KML, the
+ * Placemarks are put into the same files again, and only the files whose KML or assets changed are written.
+ *
+ * The manifest is stored next to the base file of the export with the extension {@link #EXTENSION}.
+ */
+class ChunkManifest {
+	public static final String EXTENSION = ".manifest";
+	
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final String NUM_FILES_KEY = "files";
+	private static final String HASH_PREFIX = "hash.";
+	private static final String PLACEMARK_PREFIX = "placemark.";
+	
+	private int numFiles = 0;
+	
+	/**
+	 * The number of the file of each Placemark by its key, see {@link #createKeys(List)}.
+	 */
+	private Map<String, Integer> fileNumbers = new HashMap<String, Integer>();
+	
+	/**
+	 * The hash of the KML and the assets in each file by its number.
+	 */
+	private Map<Integer, String> hashes = new HashMap<Integer, String>();
+	
+	/**
+	 * Returns the manifest file of the base file of an export.
+	 * @param baseFile
+	 * @return
+	 */
+	public static File getFile(File baseFile) {
+		return new File(baseFile.getPath() + EXTENSION);
+	}
+	
+	/**
+	 * Loads the manifest of the base file of an export. Returns an empty manifest if there is none or if it can't be
+	 * read, in which case all files are written.
+	 * @param baseFile
+	 * @return
+	 */
+	public static ChunkManifest load(File baseFile) {
+		ChunkManifest manifest = new ChunkManifest();
+		File file = getFile(baseFile);
+		if (!file.isFile())
+			return manifest;
+		
+		Properties props = new Properties();
+		try {
+			InputStream in = new BufferedInputStream(new FileInputStream(file));
+			try {
+				props.load(in);
+			}
+			finally {
+				in.close();
+			}
+			
+			manifest.numFiles = Integer.parseInt(props.getProperty(NUM_FILES_KEY, "0"));
+			for (String name : props.stringPropertyNames()) {
+				String value = props.getProperty(name);
+				if (name.startsWith(HASH_PREFIX))
+					manifest.hashes.put(Integer.valueOf(name.substring(HASH_PREFIX.length())), value);
+				else if (name.startsWith(PLACEMARK_PREFIX))
+					manifest.fileNumbers.put(name.substring(PLACEMARK_PREFIX.length()), Integer.valueOf(value));
+			}
+		}
+		catch (Exception e) {
+			// Start over with an empty manifest.
+			return new ChunkManifest();
+		}
+		return manifest;
+	}
+	
+	/**
+	 * Saves the manifest next to the base file of an export.
+	 * @param baseFile
+	 * @throws IOException
+	 */
+	public void save(File baseFile) throws IOException {
+		Properties props = new Properties();
+		props.setProperty(NUM_FILES_KEY, Integer.toString(numFiles));
+		for (Map.Entry<Integer, String> entry : hashes.entrySet()) {
+			props.setProperty(HASH_PREFIX + entry.getKey(), entry.getValue());
+		}
+		for (Map.Entry<String, Integer> entry : fileNumbers.entrySet()) {
+			props.setProperty(PLACEMARK_PREFIX + entry.getKey(), entry.getValue().toString());
+		}
+		
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(getFile(baseFile)));
+		try {
+			props.store(out, "Files of a split KMZ export");
+		}
+		finally {
+			out.close();
+		}
+	}
+	
+	public int getNumFiles() {
+		return numFiles;
+	}
+	
+	public void setNumFiles(int numFiles) {
+		this.numFiles = numFiles;
+		
+		// Forget the hashes of files that are no longer part of the export.
+		for (Iterator<Integer> it = hashes.keySet().iterator(); it.hasNext();) {
+			if (it.next() > numFiles)
+				it.remove();
+		}
+	}
+	
+	/**
+	 * Returns the number of the file that a Placemark was written to, or null if it's not in the manifest.
+	 * @param key
+	 * @return
+	 */
+	public Integer getFileNumber(String key) {
+		return fileNumbers.get(key);
+	}
+	
+	/**
+	 * Replaces the file numbers of all Placemarks.
+	 * @param keys the keys of the items, which are null for items that aren't Placemarks
+	 * @param numbers the file number of each key at the same index
+	 */
+	public void setFileNumbers(List<String> keys, int[] numbers) {
+		fileNumbers.clear();
+		for (int i = 0; i < keys.size(); i++) {
+			if (keys.get(i) != null)
+				fileNumbers.put(keys.get(i), numbers[i]);
+		}
+	}
+	
+	public String getHash(int fileNumber) {
+		return hashes.get(fileNumber);
+	}
+	
+	public void setHash(int fileNumber, String hash) {
+		hashes.put(fileNumber, hash);
+	}
+	
+	/**
+	 * Creates a key for each Placemark item that stays the same between exports of the same KML, as long as the
+	 * Placemark keeps its id, or its name and Folder if it has no id. Placemarks with the same key are told apart by
+	 * their order. Items that are not Placemarks get a null key.
+	 * @param items
+	 * @return
+	 */
+	public static List<String> createKeys(List<KmlItem> items) {
+		List<String> keys = new ArrayList<String>(items.size());
+		Map<String, Integer> occurrences = new HashMap<String, Integer>();
+		
+		for (KmlItem item : items) {
+			if (!(item.getObject() instanceof Placemark)) {
+				keys.add(null);
+				continue;
+			}
+			
+			Placemark placemark = item.getObject();
+			StringBuilder b = new StringBuilder();
+			if (placemark.getId() != null) {
+				b.append("id:").append(placemark.getId());
+			}
+			else {
+				b.append("name:");
+				for (Iterator<AbstractObject> it = item.getStack().descendingIterator(); it.hasNext();) {
+					b.append(((Feature) it.next()).getName()).append('/');
+				}
+				b.append(placemark.getName());
+			}
+			
+			String key = b.toString();
+			Integer count = occurrences.get(key);
+			occurrences.put(key, (count == null) ? 1 : count + 1);
+			if (count != null)
+				key += "#" + count;
+			keys.add(key);
+		}
+		return keys;
+	}
+	
+	/**
+	 * Returns the SHA-1 hash of the KML of a file and of the assets that are packed with it as a hexadecimal string.
+	 * @param kmlBytes
+	 * @param assetVersions the versions of the assets, see {@link KmzAssets#getReferencedVersions(byte[])}
+	 * @return
+	 */
+	public static String hash(byte[] kmlBytes, List<String> assetVersions) {
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-1");
+			md.update(kmlBytes);
+			for (String version : assetVersions) {
+				md.update(("\n" + version).getBytes(UTF8));
+			}
+			
+			byte[] digest = md.digest();
+			StringBuilder b = new StringBuilder();
+			for (byte d : digest) {
+				b.append(String.format("%02x", d & 0xFF));
+			}
+			return b.toString();
+		}
+		catch (NoSuchAlgorithmException e) {
+			// Every Java platform has SHA-1.
+			throw new IllegalStateException(e);
+		}
+	}
+
+}
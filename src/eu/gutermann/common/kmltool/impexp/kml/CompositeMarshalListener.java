@@ -0,0 +1,40 @@
+package eu.gutermann.common.kmltool.impexp.kml;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.bind.Marshaller;
+
+/**
+ * Marshaller listener that passes the events on to multiple other listeners, since a JAXB Marshaller only
+ * accepts a single listener. The listeners are called in the order in which they were added.
+ */
+class CompositeMarshalListener extends Marshaller.Listener {
+	private List<Marshaller.Listener> listeners = new ArrayList<Marshaller.Listener>();
+	
+	/**
+	 * Adds a listener. Null is ignored.
+	 * @param listener
+	 * @return
+	 */
+	public CompositeMarshalListener add(Marshaller.Listener listener) {
+		if (listener != null)
+			listeners.add(listener);
+		return this;
+	}
+	
+	@Override
+	public void beforeMarshal(Object source) {
+		for (Marshaller.Listener l : listeners) {
+			l.beforeMarshal(source);
+		}
+	}
+	
+	@Override
+	public void afterMarshal(Object source) {
+		for (Marshaller.Listener l : listeners) {
+			l.afterMarshal(source);
+		}
+	}
+	
+}
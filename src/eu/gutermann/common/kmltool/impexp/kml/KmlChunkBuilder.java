@@ -0,0 +1,169 @@
+package eu.gutermann.common.kmltool.impexp.kml;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import de.micromata.opengis.kml.v_2_2_0.AbstractObject;
+import de.micromata.opengis.kml.v_2_2_0.Container;
+import de.micromata.opengis.kml.v_2_2_0.Document;
+import de.micromata.opengis.kml.v_2_2_0.Feature;
+import de.micromata.opengis.kml.v_2_2_0.Folder;
+import de.micromata.opengis.kml.v_2_2_0.Kml;
+import de.micromata.opengis.kml.v_2_2_0.StyleSelector;
+import eu.gutermann.common.kmltool.util.KmlCopyUtil;
+import eu.gutermann.common.kmltool.util.KmlOverlay;
+import eu.gutermann.common.kmltool.util.StyleOptimizer;
+import eu.gutermann.common.kmltool.util.kmlcrawler.KmlItem;
+
+/**
+ * Builds a new KML that only contains a subset of the Features of a source KML, such as the Placemarks of one
+ * KMZ file of a split export. Instead of cloning the source and removing everything else, the Document and the
+ * Folders around the selected Features are copied with all their properties but without their children, and the
+ * Features themselves are shared with the source. The copied Containers only keep the shared styles that the
+ * selected Features refer to.
+ *
+ * If the source KML has a {@link KmlOverlay}, the copied Containers get their values from the overlay, and the
+ * shared Features must be written with the listener of the overlay.
+ *
+ * Note: since the Features are shared, the built KML is only meant for writing and must not be modified.
+ */
+class KmlChunkBuilder {
+	/**
+	 * The overlay of the source KML, which is empty if there is none.
+	 */
+	private KmlOverlay overlay;
+
+	public KmlChunkBuilder() {
+		this(new KmlOverlay());
+	}
+
+	/**
+	 * Creates a builder for a source KML with changes in an overlay.
+	 * @param overlay
+	 */
+	public KmlChunkBuilder(KmlOverlay overlay) {
+		this.overlay = overlay;
+	}
+
+	/**
+	 * Builds a KML with the given Features in their original Folder structure.
+	 * The items must come from a crawl over the same KML, and be in document order.
+	 * @param items
+	 * @return
+	 */
+	public Kml build(List<KmlItem> items) {
+		return build(items, null);
+	}
+
+	/**
+	 * Builds a KML with replacements for the given Features in their original Folder structure, for example
+	 * Placemarks with a simplified geometry. The replacement for each item is at the same index.
+	 * @param items
+	 * @param features the replacements for the Features of the items, or null to use the Features themselves
+	 * @return
+	 */
+	public Kml build(List<KmlItem> items, List<? extends Feature> features) {
+		Kml kml = new Kml();
+		Map<AbstractObject, Container> copies = new IdentityHashMap<AbstractObject, Container>();
+		Set<String> referencedIds = new HashSet<String>();
+
+		for (int i = 0; i < items.size(); i++) {
+			KmlItem item = items.get(i);
+
+			// Make sure that all Containers from the top Document down to the parent of the Feature are copied.
+			Container parentCopy = null;
+			for (Iterator<AbstractObject> it = item.getStack().descendingIterator(); it.hasNext();) {
+				AbstractObject orig = it.next();
+				Container copy = copies.get(orig);
+				if (copy == null) {
+					copy = copyContainer((Container) orig);
+					copies.put(orig, copy);
+
+					if (parentCopy == null)
+						kml.setFeature(copy);
+					else
+						getFeatures(parentCopy).add(copy);
+
+					addReferencedId(copy, referencedIds);
+				}
+				parentCopy = copy;
+			}
+
+			// A Feature without parents is the top Feature itself, e.g. a KML with a single Placemark.
+			Feature feat = (features != null) ? features.get(i) : (Feature) item.getObject();
+			if (parentCopy == null)
+				kml.setFeature(feat);
+			else
+				getFeatures(parentCopy).add(feat);
+			addReferencedId(feat, referencedIds);
+		}
+
+		if (kml.getFeature() != null) {
+			// The StyleMaps are shared, so their Pairs must be read through the overlay. The new style lists are
+			// set in the copied Containers right away instead of being kept in the overlay.
+			new StyleOptimizer(overlay).removeUnused(kml, referencedIds);
+			for (Container copy : copies.values()) {
+				overlay.commit(copy);
+			}
+		}
+
+		return kml;
+	}
+
+	/**
+	 * Returns the list of child Features of a Document or Folder.
+	 * @param cont
+	 * @return
+	 */
+	static List<Feature> getFeatures(Container cont) {
+		return (cont instanceof Document) ? ((Document) cont).getFeature() : ((Folder) cont).getFeature();
+	}
+
+	/**
+	 * Builds a KML with only a copy of a Container, without its Features and styles, for example for a file that
+	 * only gets NetworkLinks.
+	 * @param cont
+	 * @return
+	 */
+	public Kml buildEmpty(Container cont) {
+		Container copy = copyContainer(cont);
+		copy.setStyleSelector(new ArrayList<StyleSelector>());
+		overlay.commit(copy);
+
+		Kml kml = new Kml();
+		kml.setFeature(copy);
+		return kml;
+	}
+
+	private Container copyContainer(Container orig) {
+		// Copy all properties of the Document or Folder, like its Region and LookAt, but not its Features.
+		// The properties that the overlay may change are taken from the overlay.
+		Container copy = KmlCopyUtil.shallowCopy(orig);
+		if (copy instanceof Document) {
+			Document doc = (Document) copy;
+			doc.setFeature(new ArrayList<Feature>());
+			doc.setSchema(overlay.getSchemas((Document) orig));
+		}
+		else {
+			((Folder) copy).setFeature(new ArrayList<Feature>());
+		}
+
+		copy.setDescription(overlay.getDescription(orig));
+		copy.setStyleUrl(overlay.getStyleUrl(orig));
+		copy.setStyleSelector(new ArrayList<StyleSelector>(overlay.getStyleSelectors(orig)));
+		copy.setExtendedData(overlay.getExtendedData(orig));
+		return copy;
+	}
+
+	private void addReferencedId(Feature feat, Set<String> referencedIds) {
+		String url = overlay.getStyleUrl(feat);
+		if (url != null && url.startsWith("#"))
+			referencedIds.add(url.substring(1));
+	}
+
+}
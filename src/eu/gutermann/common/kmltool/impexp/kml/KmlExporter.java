@@ -1,45 +1,89 @@
 package eu.gutermann.common.kmltool.impexp.kml;
 
-import java.io.ByteArrayInputStream;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.GeometryFactory;
 
-import net.lingala.zip4j.core.ZipFile;
-import net.lingala.zip4j.exception.ZipException;
-import net.lingala.zip4j.model.ZipParameters;
-import net.lingala.zip4j.util.Zip4jConstants;
 import de.micromata.opengis.kml.v_2_2_0.Container;
 import de.micromata.opengis.kml.v_2_2_0.Document;
 import de.micromata.opengis.kml.v_2_2_0.Feature;
-import de.micromata.opengis.kml.v_2_2_0.Folder;
 import de.micromata.opengis.kml.v_2_2_0.Kml;
+import de.micromata.opengis.kml.v_2_2_0.NetworkLink;
 import de.micromata.opengis.kml.v_2_2_0.Placemark;
+import de.micromata.opengis.kml.v_2_2_0.Region;
+import de.micromata.opengis.kml.v_2_2_0.ViewRefreshMode;
 import eu.gutermann.common.kmltool.impexp.exception.ExportException;
 import eu.gutermann.common.kmltool.model.KmlModel;
+import eu.gutermann.common.kmltool.model.KmlSourceIndex;
+import eu.gutermann.common.kmltool.util.CoordinateFormatter;
+import eu.gutermann.common.kmltool.util.ExtendedDataToBalloonStyleConverter;
 import eu.gutermann.common.kmltool.util.ExtendedDataToDescriptionConverter;
+import eu.gutermann.common.kmltool.util.GeometryClipper;
+import eu.gutermann.common.kmltool.util.GeometrySimplifier;
+import eu.gutermann.common.kmltool.util.KmlGeometryUtil;
+import eu.gutermann.common.kmltool.util.KmlOverlay;
+import eu.gutermann.common.kmltool.util.StyleOptimizer;
 import eu.gutermann.common.kmltool.util.kmlcrawler.KmlCrawler;
 import eu.gutermann.common.kmltool.util.kmlcrawler.KmlCrawlerListener;
 import eu.gutermann.common.kmltool.util.kmlcrawler.KmlItem;
+import eu.gutermann.common.kmltool.util.metrics.JobMetrics;
+import eu.gutermann.common.kmltool.util.metrics.StageTimer;
 
 /**
- * Class for exporting a KML model to a KML or KMZ file(s).
+ * Class for exporting a KML model to a KML or KMZ file(s), or to a stream.
  */
 public class KmlExporter {
 	/**
-	 * KMLCrawler listener for getting the number of Placemark elements in the KML.
+	 * The ways in which ExtendedData can be shown in Google Maps.
 	 */
-	private class PlacemarkCountListener implements KmlCrawlerListener {
-		public int res = 0;
+	public static enum ExtendedDataMode {
+		/**
+		 * Every Feature gets an HTML table with its data as description. See {@link ExtendedDataToDescriptionConverter}.
+		 */
+		DESCRIPTION,
 		
-		@Override
-		public void onStyleSelector(KmlItem item) {}
+		/**
+		 * Schema-backed data is shown with a BalloonStyle template per Schema that is shared by all Features.
+		 * This keeps the exported files much smaller. See {@link ExtendedDataToBalloonStyleConverter}.
+		 */
+		SHARED_BALLOON_STYLE
+	};
+	
+	/**
+	 * A leaf of the quadtree of a tiled export, with its bounds and the indices of the Features that it holds.
+	 */
+	private static class Tile {
+		String quadKey;
+		Envelope bounds;
+		List<Integer> indices;
 		
-		@Override
-		public void onFeature(KmlItem item) {
-			if (item.getObject() instanceof Placemark)
-				res++;
+		Tile(String quadKey, Envelope bounds, List<Integer> indices) {
+			this.quadKey = quadKey;
+			this.bounds = bounds;
+			this.indices = indices;
 		}
 	};
 	
@@ -48,26 +92,221 @@ public class KmlExporter {
 	 */
 	private static final int MAX_KML_SIZE = 5 * 1024 * 1024; // 5 MB
 	
+	/**
+	 * The number of decimals of the coordinates in Google Maps exports, unless another precision is set.
+	 * This is a precision of about 1 cm.
+	 */
+	private static final int GOOGLE_MAPS_COORDINATE_PRECISION = 7;
+	
+	/**
+	 * The maximum depth of the quadtree of a tiled export.
+	 */
+	private static final int MAX_TILE_LEVEL = 16;
+	
+	/**
+	 * The number of Features that is written to estimate the size of a tile.
+	 */
+	private static final int TILE_SIZE_SAMPLE = 1000;
+	
+	/**
+	 * The size in pixels on screen from which a tile is loaded. This is the value that Google recommends for Regions.
+	 */
+	private static final int TILE_MIN_LOD_PIXELS = 128;
+	
+	/**
+	 * The minimum width and height in degrees of the Region of a tile.
+	 */
+	private static final double MIN_REGION_SIZE = 0.001;
+	
+	/**
+	 * The size in pixels on screen from which a tile is shown in full detail instead of simplified.
+	 */
+	private static final int TILE_DETAIL_LOD_PIXELS = 1024;
+	
+	/**
+	 * The minimum fraction of vertices that simplification must remove for a simplified tile to be written.
+	 */
+	private static final double MIN_SIMPLIFICATION_GAIN = 0.25;
+	
+	/**
+	 * The largest byte array that can be allocated on common JVMs.
+	 */
+	private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+	
 	private KmlModel model;
 	
+	private ExtendedDataMode extendedDataMode = ExtendedDataMode.DESCRIPTION;
+	
+	/**
+	 * The maximum number of decimals of exported coordinates, or null for the default of the export.
+	 */
+	private Integer coordinatePrecision;
+	
+	/**
+	 * Whether tiled exports include simplified versions of the tiles for lower zoom levels.
+	 */
+	private boolean lodSimplification = true;
+	
+	/**
+	 * The metrics of the last export job.
+	 */
+	private JobMetrics metrics;
+	
+	/**
+	 * The changes that the export for Google Maps makes to the model's KML, which are only applied while the KML is
+	 * written. See {@link #prepareForGoogleMaps()}.
+	 */
+	private KmlOverlay overlay;
+	
+	/**
+	 * The compressed assets of the loaded KMZ, which are kept between exports.
+	 */
+	private KmzAssets kmzAssets;
+	
 	public KmlExporter(KmlModel model) {
 		this.model = model;
 	}
 	
+	public ExtendedDataMode getExtendedDataMode() {
+		return extendedDataMode;
+	}
+	
+	/**
+	 * Sets how ExtendedData is converted for Google Maps exports.
+	 * @param extendedDataMode
+	 */
+	public void setExtendedDataMode(ExtendedDataMode extendedDataMode) {
+		this.extendedDataMode = extendedDataMode;
+	}
+	
+	public Integer getCoordinatePrecision() {
+		return coordinatePrecision;
+	}
+	
+	/**
+	 * Sets the maximum number of decimals of the exported coordinates. If null, the coordinates are written with
+	 * full precision for Google Earth and with 7 decimals (about 1 cm) for Google Maps.
+	 * @param coordinatePrecision between 0 and {@link CoordinateFormatter#MAX_DECIMALS}, or null
+	 */
+	public void setCoordinatePrecision(Integer coordinatePrecision) {
+		if (coordinatePrecision != null && (coordinatePrecision < 0 || coordinatePrecision > CoordinateFormatter.MAX_DECIMALS))
+			throw new IllegalArgumentException("The coordinate precision must be between 0 and " + CoordinateFormatter.MAX_DECIMALS);
+		this.coordinatePrecision = coordinatePrecision;
+	}
+	
+	public boolean isLodSimplification() {
+		return lodSimplification;
+	}
+	
+	/**
+	 * Sets whether {@link #exportKmzTiles(File)} writes a simplified version of each tile that is shown when zoomed
+	 * out, with the full detail only being loaded when zoomed in. See {@link GeometrySimplifier}.
+	 * @param lodSimplification
+	 */
+	public void setLodSimplification(boolean lodSimplification) {
+		this.lodSimplification = lodSimplification;
+	}
+	
+	/**
+	 * Returns the metrics of the last export, or null if nothing was exported yet.
+	 * @return
+	 */
+	public JobMetrics getMetrics() {
+		return metrics;
+	}
+	
 	/**
 	 * Exports the current KML model to a KMZ file that works in Google Earth (but likely not in Google Maps).
 	 * @param file
 	 */
 	public void exportKmz(File file) {
+		metrics = new JobMetrics("kmz-export");
+		
 		try {
+			// Copy the unchanged elements from the source file if possible, otherwise write the complete KML.
 			Kml kml = model.getKml();
-			byte[] bytes = createKmlBytes(kml);
+			byte[] bytes = createSplicedKmlBytes();
+			if (bytes == null)
+				bytes = createKmlBytes(kml);
 			
 			saveKmzFile(file, bytes);
 		}
 		catch (Exception e) {
 			throw new ExportException("Could not export KMZ file: " + e.getMessage(), e);
 		}
+		finally {
+			metrics.finish();
+		}
+	}
+	
+	/**
+	 * Exports the current KML model as KMZ data that works in Google Earth to a stream. The stream is flushed but not
+	 * closed.
+	 * @param out
+	 */
+	public void exportKmz(OutputStream out) {
+		metrics = new JobMetrics("kmz-export");
+		
+		try {
+			byte[] bytes = createSplicedKmlBytes();
+			if (bytes == null)
+				bytes = createKmlBytes(model.getKml());
+			
+			writeKmz(out, bytes);
+		}
+		catch (Exception e) {
+			throw new ExportException("Could not export KMZ data: " + e.getMessage(), e);
+		}
+		finally {
+			metrics.finish();
+		}
+	}
+	
+	/**
+	 * Exports the current KML model as KMZ data to a channel. See {@link #exportKmz(OutputStream)}.
+	 * @param channel
+	 */
+	public void exportKmz(WritableByteChannel channel) {
+		exportKmz(Channels.newOutputStream(channel));
+	}
+	
+	/**
+	 * Exports the current KML model as uncompressed KML to a stream, for example to pass it on to another tool. The
+	 * assets of a loaded KMZ file are not included. The stream is flushed but not closed.
+	 * @param out
+	 */
+	public void exportKml(OutputStream out) {
+		metrics = new JobMetrics("kml-export");
+		
+		try {
+			byte[] bytes = createSplicedKmlBytes();
+			if (bytes == null)
+				bytes = createKmlBytes(model.getKml());
+			
+			StageTimer timer = metrics.begin("write").addBytesIn(bytes.length);
+			try {
+				out.write(bytes);
+				out.flush();
+				timer.addBytesOut(bytes.length);
+			}
+			finally {
+				timer.end();
+			}
+		}
+		catch (Exception e) {
+			throw new ExportException("Could not export KML data: " + e.getMessage(), e);
+		}
+		finally {
+			metrics.finish();
+		}
+	}
+	
+	/**
+	 * Exports the current KML model as uncompressed KML to a channel. See {@link #exportKml(OutputStream)}.
+	 * @param channel
+	 */
+	public void exportKml(WritableByteChannel channel) {
+		exportKml(Channels.newOutputStream(channel));
 	}
 	
 	/**
@@ -77,19 +316,18 @@ public class KmlExporter {
 	 * @param file
 	 */
 	public void exportKmzForGoogleMaps(File file) {
+		metrics = new JobMetrics("kmz-export-google-maps");
+		
 		try {
-			// Clone the KML from the model so that the original model is untouched.
-			Kml kml = model.getKml().clone();
-			
-			// Convert ExtendedData elements to HTML descriptions.
-			new ExtendedDataToDescriptionConverter().execute(kml);
-			
-			byte[] bytes = createKmlBytes(kml);
+			Kml kml = prepareForGoogleMaps();
+			byte[] bytes = createGoogleMapsKmlBytes(kml);
 			
 			// Save one or multiple KMZ files depending on the number of KML bytes.
 			int numKmzFiles = calcNumKmzFiles(bytes);
+			metrics.addCount("chunk-planning", "kmzFiles", numKmzFiles);
 			if (numKmzFiles == 1) {
 				saveKmzFile(file, bytes);
+				deleteMultipleKmzFiles(file);
 			}
 			else {
 				saveMultipleKmzFiles(file, kml, numKmzFiles);
@@ -98,102 +336,897 @@ public class KmlExporter {
 		catch (Exception e) {
 			throw new ExportException("Could not export KMZ file: " + e.getMessage(), e);
 		}
+		finally {
+			metrics.finish();
+		}
 	}
 	
-	private byte[] createKmlBytes(Kml kml) throws FileNotFoundException {
-		// Output the KML to a byte array.
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();
-		kml.marshal(baos);
-		return baos.toByteArray();
+	/**
+	 * Exports the current KML model as KMZ data for Google Maps to a stream. See
+	 * {@link #exportKmzForGoogleMaps(File)}. Since a stream can only hold one file, an ExportException is thrown if
+	 * the KML is too large for a single KMZ file. The stream is flushed but not closed.
+	 * @param out
+	 */
+	public void exportKmzForGoogleMaps(OutputStream out) {
+		metrics = new JobMetrics("kmz-export-google-maps");
+		
+		try {
+			byte[] bytes = createGoogleMapsKmlBytes(prepareForGoogleMaps());
+			
+			int numKmzFiles = calcNumKmzFiles(bytes);
+			metrics.addCount("chunk-planning", "kmzFiles", numKmzFiles);
+			if (numKmzFiles > 1)
+				throw new IOException("The KML is too large for a single KMZ file for Google Maps");
+			
+			writeKmz(out, bytes);
+		}
+		catch (Exception e) {
+			throw new ExportException("Could not export KMZ data: " + e.getMessage(), e);
+		}
+		finally {
+			metrics.finish();
+		}
 	}
 	
-	private int calcNumKmzFiles(byte[] kmlBytes) {
-		return (int) Math.ceil((double) kmlBytes.length / MAX_KML_SIZE);
+	/**
+	 * Exports the Placemarks of the current KML model that lie within a bounding box to a KMZ file for Google Earth.
+	 * See {@link #exportKmzClipped(File, com.vividsolutions.jts.geom.Geometry)}.
+	 * @param file
+	 * @param area the bounding box with longitude as x and latitude as y
+	 */
+	public void exportKmzClipped(File file, Envelope area) {
+		exportKmzClipped(file, new GeometryFactory().toGeometry(area));
 	}
 	
-	private ZipFile saveKmzFile(File file, byte[] kmlBytes) throws ZipException {
-		// Remove an existing KMZ file to avoid "File already exists" errors from Zip4j.
-		if (file.exists())
-			file.delete();
+	/**
+	 * Exports the Placemarks of the current KML model that lie within an area to a KMZ file for Google Earth.
+	 * Placemarks that cross the boundary of the area are cut off at the boundary, see {@link GeometryClipper}.
+	 * The Placemarks are found with the model's spatial index, so only the Placemarks near the area are visited.
+	 * Features without a geometry, like NetworkLinks and overlays, are not exported.
+	 * @param file
+	 * @param area a Polygon or MultiPolygon with longitude as x and latitude as y
+	 */
+	public void exportKmzClipped(File file, com.vividsolutions.jts.geom.Geometry area) {
+		metrics = new JobMetrics("kmz-export-clipped");
 		
-		ZipFile kmz = new ZipFile(file);
+		try {
+			StageTimer queryTimer = metrics.begin("spatial-query");
+			List<KmlItem> candidates;
+			try {
+				candidates = model.getSpatialIndex().query(area.getEnvelopeInternal());
+				queryTimer.addCount("candidates", candidates.size());
+			}
+			finally {
+				queryTimer.end();
+			}
+			
+			// Cut the Placemarks at the boundary. The ones that are completely inside stay as they are, and the
+			// ones that only have their bounding box in the area are left out.
+			StageTimer clipTimer = metrics.begin("clip");
+			List<KmlItem> items = new ArrayList<KmlItem>();
+			List<Placemark> placemarks = new ArrayList<Placemark>();
+			try {
+				GeometryClipper clipper = new GeometryClipper(area);
+				for (KmlItem item : candidates) {
+					Placemark placemark = item.getObject();
+					Placemark clipped = clipper.clip(placemark);
+					if (clipped != null) {
+						items.add(item);
+						placemarks.add(clipped);
+						if (clipped != placemark)
+							clipTimer.addCount("clipped", 1);
+					}
+				}
+				clipTimer.addCount("placemarks", placemarks.size());
+			}
+			finally {
+				clipTimer.end();
+			}
+			
+			// Build a new KML with only these Placemarks in their original Folders.
+			StageTimer buildTimer = metrics.begin("chunk-build");
+			Kml kml;
+			try {
+				KmlChunkBuilder builder = new KmlChunkBuilder();
+				kml = builder.build(items, placemarks);
+				if (kml.getFeature() == null) {
+					// Nothing lies in the area, so write the top Document or Folder without its Features, or an
+					// empty Document with the original name.
+					Feature topFeat = model.getKml().getFeature();
+					if (topFeat instanceof Container)
+						kml = builder.buildEmpty((Container) topFeat);
+					else
+						kml.createAndSetDocument().withName((topFeat != null) ? topFeat.getName() : null);
+				}
+			}
+			finally {
+				buildTimer.end();
+			}
+			
+			saveKmzFile(file, createKmlBytes(kml));
+		}
+		catch (Exception e) {
+			throw new ExportException("Could not export KMZ file: " + e.getMessage(), e);
+		}
+		finally {
+			metrics.finish();
+		}
+	}
+	
+	/**
+	 * Exports the current KML model for Google Maps as a root KMZ file and a set of tile KMZ files.
+	 * The Features with a geometry are divided over the tiles with a quadtree on the centers of their bounding boxes,
+	 * so that each tile covers a compact area and its KML stays below the maximum size. The root file links to each
+	 * tile with a NetworkLink that has a Region, so that Google Earth and Maps only load the tiles that are in view.
+	 * The Features without a geometry are kept in the root file. If all Features fit in a single file then only the
+	 * given file is written, as with {@link #exportKmzForGoogleMaps(File)}.
+	 * The tile files are named "<base file name>-t<quadkey>.kmz", where each digit of the quadkey is the quadrant
+	 * (0 = north-west, 1 = north-east, 2 = south-west, 3 = south-east) at that level of the quadtree.
+	 * The number of Features per tile is estimated from a sample, so the size of each written tile is checked as
+	 * well. A tile that is too large is split further, and the export fails if that's not possible anymore.
+	 * The tile files of a previous export of the same file that aren't written again are deleted.
+	 * @param file
+	 */
+	public void exportKmzTiles(File file) {
+		metrics = new JobMetrics("kmz-export-tiles");
 		
-		// In case the model contains a loaded KMZ file then the original contents must be
-		// packed in the new KMZ file again.
-		if (model.isZipped() && model.getTempDir().toFile().list().length > 0) {
-			ZipParameters params = new ZipParameters();
-			params.setIncludeRootFolder(false);
-			params.setCompressionMethod(Zip4jConstants.COMP_DEFLATE);
-			params.setCompressionLevel(Zip4jConstants.DEFLATE_LEVEL_MAXIMUM);
-			kmz.createZipFileFromFolder(model.getTempDir().toString(), params, false, -1);
+		try {
+			Kml kml = prepareForGoogleMaps();
+			Set<String> tileNames = new HashSet<String>();
+			
+			if (!(kml.getFeature() instanceof Document)) {
+				// Without a Document there's nothing to divide.
+				saveKmzFile(file, createGoogleMapsKmlBytes(kml));
+				deleteStaleTileFiles(file, tileNames);
+				return;
+			}
+			
+			// Divide the Features into the ones that can be placed in a tile and the ones that stay in the root file.
+			StageTimer planTimer = metrics.begin("chunk-planning");
+			final List<KmlItem> spatialItems = new ArrayList<KmlItem>();
+			final List<Envelope> envelopes = new ArrayList<Envelope>();
+			final List<KmlItem> rootItems = new ArrayList<KmlItem>();
+			List<Tile> tiles = new ArrayList<Tile>();
+			try {
+				KmlCrawlerListener listener = new KmlCrawlerListener() {
+					@Override
+					public void onStyleSelector(KmlItem item) {}
+					
+					@Override
+					public void onFeature(KmlItem item) {
+						// Containers are recreated around their Features by the KmlChunkBuilder.
+						if (item.getObject() instanceof Container)
+							return;
+						
+						Envelope env = KmlGeometryUtil.getEnvelope((Feature) item.getObject());
+						if (env != null) {
+							spatialItems.add(item);
+							envelopes.add(env);
+						}
+						else {
+							rootItems.add(item);
+						}
+					}
+				};
+				new KmlCrawler(kml).setMetrics(metrics).addListener(listener).crawl();
+				
+				int maxPerTile = calcMaxFeaturesPerTile(spatialItems);
+				planTimer.addCount("features", spatialItems.size()).addCount("maxPerTile", maxPerTile);
+				
+				if (spatialItems.size() > maxPerTile) {
+					List<Integer> indices = new ArrayList<Integer>(spatialItems.size());
+					Envelope bounds = new Envelope();
+					for (int i = 0; i < envelopes.size(); i++) {
+						indices.add(i);
+						bounds.expandToInclude(envelopes.get(i));
+					}
+					splitTile("", bounds, indices, envelopes, maxPerTile, tiles);
+				}
+				planTimer.addCount("tiles", tiles.size());
+			}
+			finally {
+				planTimer.end();
+			}
+			
+			if (tiles.isEmpty()) {
+				saveKmzFile(file, createGoogleMapsKmlBytes(kml));
+				deleteStaleTileFiles(file, tileNames);
+				return;
+			}
+			
+			// Write a KMZ file for each tile with only its own Features and the styles they use.
+			KmlChunkBuilder builder = new KmlChunkBuilder(overlay);
+			Document rootDoc = (Document) kml.getFeature();
+			List<NetworkLink> links = new ArrayList<NetworkLink>();
+			LinkedList<Tile> pendingTiles = new LinkedList<Tile>(tiles);
+			while (!pendingTiles.isEmpty()) {
+				Tile tile = pendingTiles.removeFirst();
+				List<KmlItem> items = new ArrayList<KmlItem>(tile.indices.size());
+				Envelope contentEnv = new Envelope();
+				for (int idx : tile.indices) {
+					items.add(spatialItems.get(idx));
+					contentEnv.expandToInclude(envelopes.get(idx));
+				}
+				
+				StageTimer buildTimer = metrics.begin("chunk-build").addCount("features", items.size());
+				Kml tileKml;
+				try {
+					tileKml = builder.build(items);
+				}
+				finally {
+					buildTimer.end();
+				}
+				
+				byte[] tileBytes = createGoogleMapsKmlBytes(tileKml);
+				if (tileBytes.length > MAX_KML_SIZE) {
+					// The estimate was too low for this tile, so split it again based on its actual size.
+					pendingTiles.addAll(0, resplitTile(tile, tileBytes.length, envelopes));
+					metrics.addCount("chunk-planning", "resplitTiles", 1);
+					continue;
+				}
+				
+				File tileFile = createTileFile(file, tile.quadKey, "");
+				saveKmzFile(tileFile, tileBytes, true);
+				tileNames.add(tileFile.getName());
+				
+				// If the geometry can be shown with much fewer vertices when zoomed out, then write a simplified
+				// version of the tile as well, which is shown until the full tile is needed.
+				Envelope regionEnv = createRegionEnvelope(contentEnv);
+				Kml coarseKml = lodSimplification ? createCoarseTileKml(builder, items, regionEnv) : null;
+				if (coarseKml != null) {
+					File coarseFile = createTileFile(file, tile.quadKey, "-coarse");
+					saveKmzFile(coarseFile, createGoogleMapsKmlBytes(coarseKml), true);
+					tileNames.add(coarseFile.getName());
+					links.add(createTileLink(coarseFile, "Tile " + tile.quadKey + " (coarse)", regionEnv, TILE_MIN_LOD_PIXELS, TILE_DETAIL_LOD_PIXELS));
+					links.add(createTileLink(tileFile, "Tile " + tile.quadKey, regionEnv, TILE_DETAIL_LOD_PIXELS, -1));
+				}
+				else {
+					links.add(createTileLink(tileFile, "Tile " + tile.quadKey, regionEnv, TILE_MIN_LOD_PIXELS, -1));
+				}
+			}
+			
+			// Write the root file with the remaining Features and a NetworkLink to each tile.
+			Kml rootKml = builder.build(rootItems);
+			if (rootKml.getFeature() == null) {
+				rootKml = builder.buildEmpty(rootDoc);
+			}
+			((Document) rootKml.getFeature()).getFeature().addAll(links);
+			saveKmzFile(file, createGoogleMapsKmlBytes(rootKml), true);
+			deleteStaleTileFiles(file, tileNames);
+		}
+		catch (Exception e) {
+			throw new ExportException("Could not export KMZ file: " + e.getMessage(), e);
+		}
+		finally {
+			metrics.finish();
+		}
+	}
+	
+	private Kml prepareForGoogleMaps() {
+		// The changes are recorded in an overlay that is only applied to the copies of the elements that are
+		// written, so that the model stays untouched without copying its whole KML first.
+		overlay = new KmlOverlay();
+		Kml kml = model.getKml();
+		
+		if (extendedDataMode == ExtendedDataMode.SHARED_BALLOON_STYLE) {
+			// Replace ExtendedData by shared BalloonStyle templates where possible.
+			StageTimer convertTimer = metrics.begin("extended-data-conversion");
+			try {
+				new ExtendedDataToBalloonStyleConverter(overlay).execute(kml);
+			}
+			finally {
+				convertTimer.end();
+			}
 		}
 		
-		// Add the KML byte array to the new KMZ file.
+		// Merge identical styles and remove the ones that aren't used.
+		// Note: this must happen after the BalloonStyle conversion since that creates new styles.
+		StageTimer styleTimer = metrics.begin("style-optimization");
+		try {
+			StyleOptimizer optimizer = new StyleOptimizer(overlay);
+			Map<String, String> replacedIds = optimizer.mergeDuplicates(kml);
+			styleTimer.addCount("merged", replacedIds.size());
+			
+			if (extendedDataMode == ExtendedDataMode.SHARED_BALLOON_STYLE) {
+				// The BalloonStyle conversion changed the style references, so they must be collected again.
+				styleTimer.addCount("removed", optimizer.removeUnused(kml));
+			}
+			else {
+				// The style references are known from the model's style index. Only the merged ids have changed.
+				Set<String> referencedIds = new HashSet<String>();
+				for (String id : model.getReferencedStyleIds()) {
+					referencedIds.add(replacedIds.containsKey(id) ? replacedIds.get(id) : id);
+				}
+				styleTimer.addCount("removed", optimizer.removeUnused(kml, referencedIds));
+			}
+			styleTimer.addCount("overlaidObjects", overlay.size());
+		}
+		finally {
+			styleTimer.end();
+		}
+		
+		return kml;
+	}
+	
+	private byte[] createGoogleMapsKmlBytes(Kml kml) throws JAXBException {
+		// Google Maps can't show more precise coordinates than the default precision anyway.
+		Integer precision = (coordinatePrecision != null) ? coordinatePrecision : GOOGLE_MAPS_COORDINATE_PRECISION;
+		
+		// The recorded values of the overlay are set in the copies that are written, see WriteCopyListener.
+		Marshaller.Listener listener = null;
+		if (extendedDataMode != ExtendedDataMode.SHARED_BALLOON_STYLE) {
+			// Convert ExtendedData elements to HTML descriptions while the KML is written.
+			listener = new ExtendedDataToDescriptionConverter(overlay).createMarshalListener();
+		}
+		return createKmlBytes(kml, listener, precision, overlay);
+	}
+	
+	private int calcMaxFeaturesPerTile(List<KmlItem> items) throws JAXBException {
+		// Estimate the KML size per Feature by writing an evenly spread sample of them.
+		if (items.isEmpty())
+			return 1;
+		
+		int step = Math.max(1, items.size() / TILE_SIZE_SAMPLE);
+		List<KmlItem> sample = new ArrayList<KmlItem>();
+		for (int i = 0; i < items.size(); i += step) {
+			sample.add(items.get(i));
+		}
+		
+		byte[] bytes = createGoogleMapsKmlBytes(new KmlChunkBuilder(overlay).build(sample));
+		double bytesPerFeature = (double) bytes.length / sample.size();
+		
+		// Leave some room for the Containers and styles, which are repeated in each tile.
+		return Math.max(1, (int) (0.9 * MAX_KML_SIZE / bytesPerFeature));
+	}
+	
+	private void splitTile(String quadKey, Envelope bounds, List<Integer> indices, List<Envelope> envelopes, int maxPerTile, List<Tile> res) {
+		// Keep the Features together if they fit, or if they are so close together that splitting doesn't help anymore.
+		if (quadKey.length() > 0 && (indices.size() <= maxPerTile || quadKey.length() >= MAX_TILE_LEVEL)) {
+			res.add(new Tile(quadKey, bounds, indices));
+			return;
+		}
+		
+		// Assign each Feature to the quadrant that contains the center of its bounding box.
+		double midX = (bounds.getMinX() + bounds.getMaxX()) / 2;
+		double midY = (bounds.getMinY() + bounds.getMaxY()) / 2;
+		List<List<Integer>> quadrants = new ArrayList<List<Integer>>();
+		for (int q = 0; q < 4; q++) {
+			quadrants.add(new ArrayList<Integer>());
+		}
+		
+		for (int idx : indices) {
+			Envelope env = envelopes.get(idx);
+			boolean east = env.centre().x >= midX;
+			boolean south = env.centre().y < midY;
+			quadrants.get((south ? 2 : 0) + (east ? 1 : 0)).add(idx);
+		}
+		
+		Envelope[] quadrantBounds = new Envelope[] {
+			new Envelope(bounds.getMinX(), midX, midY, bounds.getMaxY()),
+			new Envelope(midX, bounds.getMaxX(), midY, bounds.getMaxY()),
+			new Envelope(bounds.getMinX(), midX, bounds.getMinY(), midY),
+			new Envelope(midX, bounds.getMaxX(), bounds.getMinY(), midY)
+		};
+		
+		for (int q = 0; q < 4; q++) {
+			if (!quadrants.get(q).isEmpty())
+				splitTile(quadKey + q, quadrantBounds[q], quadrants.get(q), envelopes, maxPerTile, res);
+		}
+	}
+	
+	private List<Tile> resplitTile(Tile tile, int size, List<Envelope> envelopes) {
+		// Split a tile whose KML turned out to be larger than the maximum size into smaller tiles.
+		if (tile.indices.size() <= 1 || tile.quadKey.length() >= MAX_TILE_LEVEL) {
+			throw new ExportException("Tile " + tile.quadKey + " with " + tile.indices.size() + " Features is " + size
+					+ " bytes, which is more than the maximum of " + MAX_KML_SIZE + " bytes, and it can't be split any further.");
+		}
+		
+		int maxPerTile = Math.max(1, (int) (0.9 * tile.indices.size() * MAX_KML_SIZE / size));
+		List<Tile> res = new ArrayList<Tile>();
+		splitTile(tile.quadKey, tile.bounds, tile.indices, envelopes, maxPerTile, res);
+		return res;
+	}
+	
+	private Kml createCoarseTileKml(KmlChunkBuilder builder, List<KmlItem> items, Envelope regionEnv) {
+		// The coarse tile is shown up to the size at which the full tile takes over, so the removed detail must be
+		// smaller than a pixel at that size. Returns null if too few vertices can be removed to make it worthwhile.
+		StageTimer timer = metrics.begin("simplification");
+		try {
+			double regionSize = Math.sqrt(regionEnv.getWidth() * regionEnv.getHeight());
+			GeometrySimplifier simplifier = new GeometrySimplifier(GeometrySimplifier.getToleranceForLod(regionSize, TILE_DETAIL_LOD_PIXELS));
+			
+			List<Feature> features = new ArrayList<Feature>(items.size());
+			int numVertices = 0;
+			int numSimplifiedVertices = 0;
+			for (KmlItem item : items) {
+				Feature feat = item.getObject();
+				if (feat instanceof Placemark) {
+					Placemark simplified = simplifier.simplify((Placemark) feat);
+					if (simplified != feat) {
+						// The copy only exists for this tile, so the changes can be set in it directly.
+						overlay.copy(feat, simplified);
+						overlay.commit(simplified);
+					}
+					numVertices += KmlGeometryUtil.getNumCoordinates(((Placemark) feat).getGeometry());
+					numSimplifiedVertices += KmlGeometryUtil.getNumCoordinates(simplified.getGeometry());
+					feat = simplified;
+				}
+				features.add(feat);
+			}
+			timer.addCount("vertices", numVertices).addCount("simplifiedVertices", numSimplifiedVertices);
+			
+			if (numSimplifiedVertices > (1 - MIN_SIMPLIFICATION_GAIN) * numVertices)
+				return null;
+			
+			timer.addCount("coarseTiles", 1);
+			return builder.build(items, features);
+		}
+		finally {
+			timer.end();
+		}
+	}
+	
+	private Envelope createRegionEnvelope(Envelope contentEnv) {
+		// The Region covers the Features in the tile, with a minimum size so that a tile with a single Point still
+		// becomes active when zoomed in.
+		Envelope env = new Envelope(contentEnv);
+		if (env.getWidth() < MIN_REGION_SIZE || env.getHeight() < MIN_REGION_SIZE) {
+			double dx = Math.max(0, MIN_REGION_SIZE - env.getWidth()) / 2;
+			double dy = Math.max(0, MIN_REGION_SIZE - env.getHeight()) / 2;
+			env.expandBy(dx, dy);
+		}
+		return env;
+	}
+	
+	private NetworkLink createTileLink(File tileFile, String name, Envelope regionEnv, double minLodPixels, double maxLodPixels) {
+		NetworkLink link = new NetworkLink().withName(name);
+		Region region = link.createAndSetRegion();
+		region.createAndSetLatLonAltBox()
+			.withNorth(regionEnv.getMaxY()).withSouth(regionEnv.getMinY())
+			.withEast(regionEnv.getMaxX()).withWest(regionEnv.getMinX());
+		region.createAndSetLod().withMinLodPixels(minLodPixels).withMaxLodPixels(maxLodPixels);
+		
+		// The tile is only loaded when its Region becomes active, which is checked whenever the view changes.
+		link.createAndSetLink().withHref(tileFile.getName()).withViewRefreshMode(ViewRefreshMode.ON_REGION);
+		return link;
+	}
+	
+	private File createTileFile(File baseFile, String quadKey, String suffix) {
+		// Add the quadkey like "-t0213" and the suffix between the base file name and the extension.
+		String basePath = baseFile.getPath();
+		int offset = basePath.lastIndexOf('.');
+		if (offset < basePath.lastIndexOf(File.separatorChar) + 1)
+			offset = basePath.length();
+		StringBuilder b = new StringBuilder(basePath);
+		b.insert(offset, "-t" + quadKey + suffix);
+		return new File(b.toString());
+	}
+	
+	private void deleteStaleTileFiles(File baseFile, Set<String> tileNames) {
+		// Delete the tile files of a previous export that the new root file doesn't link to anymore, for example
+		// after a previous export with more tiles. They're only deleted after the new root file has been written.
+		String baseName = baseFile.getName();
+		int offset = baseName.lastIndexOf('.');
+		if (offset < 0)
+			offset = baseName.length();
+		Pattern pattern = Pattern.compile(Pattern.quote(baseName.substring(0, offset)) + "-t[0-3]+(-coarse)?"
+				+ Pattern.quote(baseName.substring(offset)));
+		
+		File[] files = baseFile.getAbsoluteFile().getParentFile().listFiles();
+		if (files == null)
+			return;
+		for (File f : files) {
+			if (pattern.matcher(f.getName()).matches() && !tileNames.contains(f.getName()))
+				f.delete();
+		}
+	}
+	
+	private byte[] createKmlBytes(Kml kml) throws JAXBException {
+		return createKmlBytes(kml, null, coordinatePrecision, null);
+	}
+	
+	private byte[] createKmlBytes(Kml kml, Marshaller.Listener listener, Integer precision, KmlOverlay overlay)
+			throws JAXBException {
+		// Output the KML to a byte array. The listener (may be null) sees every element right before it's written.
+		// If a precision is given then the coordinates are written with that number of decimals at most. The
+		// recorded values of the overlay (may be null) are written instead of the values of the elements.
+		StageTimer timer = metrics.begin("marshal");
+		try {
+			Marshaller marshaller = KmlJaxb.acquireMarshaller();
+			try {
+				if (precision != null) {
+					listener = new CompositeMarshalListener()
+						.add(listener)
+						.add(new CoordinateFormatter(precision).createMarshalListener());
+				}
+				if (listener != null || overlay != null) {
+					// The listeners change the elements while they're written, and the elements are shared with the
+					// model while it's edited. So copies of them are written instead.
+					WriteCopyListener copier = new WriteCopyListener(overlay);
+					kml = copier.copy(kml);
+					listener = new CompositeMarshalListener()
+						.add(listener)
+						.add(copier);
+				}
+				marshaller.setListener(listener);
+				
+				ByteArrayOutputStream baos = new ByteArrayOutputStream();
+				marshaller.marshal(kml, baos);
+				timer.addBytesOut(baos.size());
+				return baos.toByteArray();
+			}
+			finally {
+				KmlJaxb.releaseMarshaller(marshaller);
+			}
+		}
+		finally {
+			timer.end();
+		}
+	}
+	
+	/**
+	 * Creates the KML by copying the source file of the model, with only the elements that were changed since the
+	 * import written again. Returns null if the source file can't be used, in which case the complete KML has to be
+	 * written. That's also the case if the KML was changed without {@link KmlModel#markModified(Object)}, which
+	 * {@link KmlSourceIndex#matches(KmlModel)} checks.
+	 * @return
+	 * @throws JAXBException
+	 * @throws IOException
+	 */
+	private byte[] createSplicedKmlBytes() throws JAXBException, IOException {
+		// Changing the coordinate precision changes every Placemark, so then nothing can be copied.
+		KmlSourceIndex index = model.getSourceIndex();
+		if (index == null || coordinatePrecision != null || !index.isSourceUnchanged())
+			return null;
+		
+		// The result must fit into a byte array. The full write then fails in the same way, but with a clear error.
+		if (index.getFile().length() > MAX_ARRAY_SIZE)
+			return null;
+		
+		StageTimer verifyTimer = metrics.begin("verify");
+		try {
+			if (!index.matches(model))
+				return null;
+		}
+		finally {
+			verifyTimer.end();
+		}
+		
+		// Find the ranges of the changed elements in the source file. Elements within another changed element are
+		// written as part of that element.
+		List<long[]> ranges = new ArrayList<long[]>();
+		Map<long[], Object> objectsByRange = new IdentityHashMap<long[], Object>();
+		for (Object obj : model.getModifiedObjects()) {
+			long[] range = index.getRange(model.getSourceObject(obj));
+			if (range == null)
+				return null;
+			ranges.add(range);
+			objectsByRange.put(range, obj);
+		}
+		Collections.sort(ranges, new Comparator<long[]>() {
+			@Override
+			public int compare(long[] r1, long[] r2) {
+				return (r1[0] != r2[0]) ? Long.compare(r1[0], r2[0]) : Long.compare(r2[1], r1[1]);
+			}
+		});
+		
+		StageTimer timer = metrics.begin("splice");
+		try {
+			Marshaller marshaller = KmlJaxb.acquireMarshaller();
+			// The changed elements are written on a single line, which keeps the layout of the surrounding file.
+			marshaller.setProperty(Marshaller.JAXB_FRAGMENT, Boolean.TRUE);
+			marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, Boolean.FALSE);
+			
+			// The changed elements usually take about as much space as before, so the size of the source file is a good
+			// first guess.
+			ByteArrayOutputStream baos = new ByteArrayOutputStream((int) index.getFile().length());
+			RandomAccessFile source = new RandomAccessFile(index.getFile(), "r");
+			try {
+				long pos = 0;
+				for (long[] range : ranges) {
+					if (range[0] < pos)
+						continue;
+					
+					copyRange(source, pos, range[0], baos);
+					marshaller.marshal(objectsByRange.get(range), baos);
+					timer.addCount("fragments", 1);
+					pos = range[1];
+				}
+				copyRange(source, pos, source.length(), baos);
+			}
+			finally {
+				source.close();
+				KmlJaxb.releaseMarshaller(marshaller);
+			}
+			
+			timer.addBytesIn(index.getFile().length()).addBytesOut(baos.size());
+			return baos.toByteArray();
+		}
+		finally {
+			timer.end();
+		}
+	}
+	
+	private static void copyRange(RandomAccessFile source, long start, long end, OutputStream out) throws IOException {
+		byte[] buf = new byte[64 * 1024];
+		source.seek(start);
+		long remaining = end - start;
+		while (remaining > 0) {
+			int len = source.read(buf, 0, (int) Math.min(buf.length, remaining));
+			if (len < 0)
+				throw new IOException("Unexpected end of source file");
+			out.write(buf, 0, len);
+			remaining -= len;
+		}
+	}
+	
+	private int calcNumKmzFiles(byte[] kmlBytes) {
+		return (int) Math.ceil((double) kmlBytes.length / MAX_KML_SIZE);
+	}
+	
+	private void saveKmzFile(File file, byte[] kmlBytes) throws IOException {
+		saveKmzFile(file, kmlBytes, false);
+	}
+	
+	/**
+	 * Saves a KMZ file with the KML and the assets of the loaded KMZ.
+	 * @param file
+	 * @param kmlBytes
+	 * @param referencedAssetsOnly true to only add the assets that the KML refers to, for the files of a split export
+	 * @throws IOException
+	 */
+	private void saveKmzFile(File file, byte[] kmlBytes, boolean referencedAssetsOnly) throws IOException {
+		StageTimer timer = metrics.begin("deflate-write").addBytesIn(kmlBytes.length);
+		try {
+			int numAssets = writeKmzFile(file, kmlBytes, referencedAssetsOnly);
+			timer.addBytesOut(file.length()).addCount("kmzFiles", 1).addCount("assets", numAssets);
+		}
+		finally {
+			timer.end();
+		}
+	}
+	
+	/**
+	 * Writes KMZ data with the KML and the assets of the loaded KMZ to a stream, which is flushed but not closed.
+	 * @param out
+	 * @param kmlBytes
+	 * @throws IOException
+	 */
+	private void writeKmz(OutputStream out, byte[] kmlBytes) throws IOException {
+		StageTimer timer = metrics.begin("deflate-write").addBytesIn(kmlBytes.length);
+		try {
+			KmzWriter writer = new KmzWriter(out);
+			int numAssets = writeKmz(writer, kmlBytes, false);
+			timer.addBytesOut(writer.getLength()).addCount("kmzFiles", 1).addCount("assets", numAssets);
+		}
+		finally {
+			timer.end();
+		}
+	}
+	
+	private int writeKmzFile(File file, byte[] kmlBytes, boolean referencedAssetsOnly) throws IOException {
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+		try {
+			return writeKmz(new KmzWriter(out), kmlBytes, referencedAssetsOnly);
+		}
+		finally {
+			out.close();
+		}
+	}
+	
+	private int writeKmz(KmzWriter writer, byte[] kmlBytes, boolean referencedAssetsOnly) throws IOException {
 		// The name of the KML file within the KMZ is either the original name if it came
 		// from a KMZ originally, or "doc.kml" if it was loaded from another source.
-		ByteArrayInputStream bais = new ByteArrayInputStream(kmlBytes);
-		ZipParameters params = new ZipParameters();
 		String kmlFileName = model.isZipped() ? model.getKmlFilePath() : "doc.kml";
-		params.setFileNameInZip(kmlFileName);
-		params.setSourceExternalStream(true);
-		params.setCompressionMethod(Zip4jConstants.COMP_DEFLATE);
-		params.setCompressionLevel(Zip4jConstants.DEFLATE_LEVEL_MAXIMUM);
-		kmz.addStream(bais, params);
 		
-		return kmz;
+		// In case the model contains a loaded KMZ file then the original contents must be
+		// packed in the new KMZ file again. They are compressed only once for all files.
+		List<KmzWriter.Entry> assetEntries = new ArrayList<KmzWriter.Entry>();
+		if (model.isZipped()) {
+			KmzAssets assets = getKmzAssets();
+			assetEntries = referencedAssetsOnly ? assets.getReferencedEntries(kmlBytes, metrics) : assets.getEntries(metrics);
+		}
+		
+		// The KML is the first entry, since viewers use the first KML file in a KMZ.
+		writer.add(KmzWriter.Entry.deflate(kmlFileName, kmlBytes, System.currentTimeMillis()));
+		for (KmzWriter.Entry entry : assetEntries) {
+			writer.add(entry);
+		}
+		writer.finish();
+		return assetEntries.size();
 	}
 	
-	private void saveMultipleKmzFiles(File baseFile, Kml kml, int numFiles) throws ZipException, FileNotFoundException {
-		// Determine the number of Placemarks in the KML so that we can subdivide them
-		// over multiple KMZ files.
-		int numPlacemarks = getNumPlacemarks(kml);
-		int numPlacemarksPerFile = (int) Math.ceil((double) numPlacemarks / numFiles);
-		
-		// For each file to write, clone the KML and remove all Placemarks that are
-		// going to be in other files.
-		// NOTE: This code is slow because Java API for KML doesn't provide detach functions
-		// for separate elements. Instead, we must get the parent Folder or Document and
-		// remove it from the list there. Since JAK implements them as ArrayLists it's slow
-		// to remove single elements all the time.
-		// A faster solution would be to iterate over the original KML and build new KMLs
-		// from it from scratch instead of cloning and deleting. This would take a lot of
-		// coding though.
-		for (int fileCount = 0; fileCount < numFiles; fileCount++) {
-			Kml curKml = kml.clone();
-			final int startIdx = fileCount * numPlacemarksPerFile;
-			final int endIdx = startIdx + numPlacemarksPerFile - 1;
-			
+	private KmzAssets getKmzAssets() {
+		// The assets of the loaded KMZ are kept between exports, so that they're only compressed again if they change.
+		if (kmzAssets == null || !kmzAssets.getDir().equals(model.getTempDir()))
+			kmzAssets = new KmzAssets(model.getTempDir());
+		kmzAssets.refresh(model.getKmlFilePath());
+		return kmzAssets;
+	}
+	
+	private void saveMultipleKmzFiles(File baseFile, Kml kml, int numFiles) throws JAXBException, IOException {
+		// Collect all Features other than Containers. The Placemarks are subdivided over the KMZ files, all other
+		// Features are put into every file.
+		StageTimer planTimer = metrics.begin("chunk-planning");
+		final List<KmlItem> items = new ArrayList<KmlItem>();
+		ChunkManifest manifest;
+		List<String> keys;
+		int[] fileNumbers;
+		try {
 			KmlCrawlerListener listener = new KmlCrawlerListener() {
-				int placemarktCount = 0;
-				
 				@Override
 				public void onStyleSelector(KmlItem item) {}
 				
 				@Override
 				public void onFeature(KmlItem item) {
-					if (item.getObject() instanceof Placemark) {
-						if (placemarktCount < startIdx || placemarktCount > endIdx) {
-							Container cont = (Container) item.getParent();
-							List<Feature> features = (cont instanceof Document) ? ((Document) cont).getFeature() : ((Folder) cont).getFeature();
-							features.remove(item.getObject());
-						}
-						
-						placemarktCount++;
-					}
+					if (!(item.getObject() instanceof Container))
+						items.add(item);
 				}
 			};
-			new KmlCrawler(curKml).addListener(listener).crawl();
+			new KmlCrawler(kml).setMetrics(metrics).addListener(listener).crawl();
 			
-			// After removal of the Placemarks, the KML may contain empty folders. These are removed.
-			removeEmptyFolders(curKml);
+			// Put the Placemarks into the same files as in the previous export, if there is one.
+			manifest = ChunkManifest.load(baseFile);
+			keys = ChunkManifest.createKeys(items);
+			fileNumbers = assignFileNumbers(keys, numFiles, manifest);
+			
+			int numPlacemarks = 0;
+			for (int number : fileNumbers) {
+				if (number != 0)
+					numPlacemarks++;
+			}
+			planTimer.addCount("placemarks", numPlacemarks);
+		}
+		finally {
+			planTimer.end();
+		}
+		
+		// The number of files is estimated from the size of the whole KML, so the size of each file is checked before
+		// any file is written. If a file is too large, for example because its Placemarks are larger than average,
+		// the Placemarks are divided over one more file.
+		byte[][] fileBytes;
+		while (true) {
+			fileBytes = new byte[numFiles][];
+			int tooLargeNumber = 0;
+			for (int number = 1; number <= numFiles && tooLargeNumber == 0; number++) {
+				fileBytes[number - 1] = createFileKmlBytes(items, fileNumbers, number);
+				if (fileBytes[number - 1].length > MAX_KML_SIZE)
+					tooLargeNumber = number;
+			}
+			if (tooLargeNumber == 0)
+				break;
 			
-			// TODO Remove styles that aren't used anymore as well.
+			int numPlacemarks = 0;
+			for (int i = 0; i < fileNumbers.length; i++) {
+				if (fileNumbers[i] == tooLargeNumber)
+					numPlacemarks++;
+			}
+			if (numPlacemarks <= 1) {
+				throw new ExportException("File " + tooLargeNumber + " with " + numPlacemarks + " Placemarks is "
+						+ fileBytes[tooLargeNumber - 1].length + " bytes, which is more than the maximum of " + MAX_KML_SIZE
+						+ " bytes, and it can't be split any further.");
+			}
 			
-			// Create the new file name for the current KML and save it as KMZ.
-			File numberedFile = createFileWithNumber(baseFile, fileCount+1);
-			byte[] bytes = createKmlBytes(curKml);
-			saveKmzFile(numberedFile, bytes);
+			numFiles++;
+			fileNumbers = assignFileNumbers(keys, numFiles, manifest);
+			metrics.addCount("chunk-planning", "resplitFiles", 1);
+			metrics.addCount("chunk-planning", "kmzFiles", 1);
 		}
+		manifest.setFileNumbers(keys, fileNumbers);
+		
+		for (int number = 1; number <= numFiles; number++) {
+			// Only write the file if its KML or one of its assets differs from the previous export.
+			File numberedFile = createFileWithNumber(baseFile, number);
+			byte[] bytes = fileBytes[number - 1];
+			List<String> assetVersions = model.isZipped() ? getKmzAssets().getReferencedVersions(bytes) : new ArrayList<String>();
+			String hash = ChunkManifest.hash(bytes, assetVersions);
+			if (hash.equals(manifest.getHash(number)) && numberedFile.isFile()) {
+				metrics.addCount("chunk-build", "unchangedFiles", 1);
+				continue;
+			}
+			
+			saveKmzFile(numberedFile, bytes, true);
+			manifest.setHash(number, hash);
+		}
+		
+		// Remove the files of the previous export that are no longer needed.
+		for (int number = numFiles + 1; number <= manifest.getNumFiles(); number++) {
+			createFileWithNumber(baseFile, number).delete();
+		}
+		manifest.setNumFiles(numFiles);
+		manifest.save(baseFile);
+	}
+	
+	private byte[] createFileKmlBytes(List<KmlItem> items, int[] fileNumbers, int number) throws JAXBException {
+		// The file gets its own Placemarks and all Features that are put into every file.
+		StageTimer buildTimer = metrics.begin("chunk-build");
+		Kml kml;
+		try {
+			List<KmlItem> fileItems = new ArrayList<KmlItem>();
+			for (int i = 0; i < items.size(); i++) {
+				if (fileNumbers[i] == number || fileNumbers[i] == 0)
+					fileItems.add(items.get(i));
+			}
+			kml = new KmlChunkBuilder(overlay).build(fileItems);
+		}
+		finally {
+			buildTimer.end();
+		}
+		return createGoogleMapsKmlBytes(kml);
+	}
+	
+	private void deleteMultipleKmzFiles(File baseFile) {
+		// Remove the files and the manifest of a previous export of the same file that was split over multiple files.
+		ChunkManifest manifest = ChunkManifest.load(baseFile);
+		for (int number = 1; number <= manifest.getNumFiles(); number++) {
+			createFileWithNumber(baseFile, number).delete();
+		}
+		ChunkManifest.getFile(baseFile).delete();
+	}
+	
+	/**
+	 * Assigns the number of the KMZ file to each item of a split export. Placemarks keep the file of the previous
+	 * export in the manifest, and new Placemarks are added to the files with the fewest Placemarks. If the number of
+	 * files changed, or if a file would become too large, the Placemarks are assigned again in document order.
+	 * @param keys the keys of the items, see {@link ChunkManifest#createKeys(List)}
+	 * @param numFiles
+	 * @param manifest
+	 * @return the file number of each item, or 0 for items that are put into every file
+	 */
+	private int[] assignFileNumbers(List<String> keys, int numFiles, ChunkManifest manifest) {
+		int[] res = new int[keys.size()];
+		int[] counts = new int[numFiles + 1];
+		
+		int numPlacemarks = 0;
+		for (String key : keys) {
+			if (key != null)
+				numPlacemarks++;
+		}
+		int numPlacemarksPerFile = (int) Math.ceil((double) numPlacemarks / numFiles);
+		
+		boolean reuse = (manifest.getNumFiles() == numFiles);
+		if (reuse) {
+			List<Integer> newIndices = new ArrayList<Integer>();
+			for (int i = 0; i < keys.size(); i++) {
+				if (keys.get(i) == null)
+					continue;
+				
+				Integer number = manifest.getFileNumber(keys.get(i));
+				if (number != null && number >= 1 && number <= numFiles) {
+					res[i] = number;
+					counts[number]++;
+				}
+				else {
+					newIndices.add(i);
+				}
+			}
+			
+			for (int i : newIndices) {
+				int number = 1;
+				for (int n = 2; n <= numFiles; n++) {
+					if (counts[n] < counts[number])
+						number = n;
+				}
+				res[i] = number;
+				counts[number]++;
+			}
+			
+			// Allow some growth of the files before starting over.
+			for (int n = 1; n <= numFiles; n++) {
+				if (counts[n] > numPlacemarksPerFile * 1.1 + 1)
+					reuse = false;
+			}
+			metrics.addCount("chunk-planning", "newPlacemarks", newIndices.size());
+		}
+		
+		if (!reuse) {
+			int placemarkCount = 0;
+			for (int i = 0; i < keys.size(); i++) {
+				res[i] = (keys.get(i) != null) ? 1 + placemarkCount++ / numPlacemarksPerFile : 0;
+			}
+		}
+		
+		return res;
 	}
 	
 	private File createFileWithNumber(File baseFile, int number) {
@@ -208,33 +1241,4 @@ public class KmlExporter {
 		return new File(b.toString());
 	}
 	
-	private int getNumPlacemarks(Kml kml) {
-		PlacemarkCountListener listener = new PlacemarkCountListener();
-		new KmlCrawler(kml).addListener(listener).crawl();
-		return listener.res;
-	}
-	
-	private void removeEmptyFolders(Kml kml) {
-		KmlCrawlerListener listener = new KmlCrawlerListener() {
-			@Override
-			public void onStyleSelector(KmlItem item) {}
-			
-			@Override
-			public void onFeature(KmlItem item) {
-				if (item.getObject() instanceof Folder) {
-					Folder folder = item.getObject();
-					if (folder.getFeature().isEmpty()) {
-						Container cont = (Container) item.getParent();
-						if (cont instanceof Document)
-							((Document) cont).getFeature().remove(folder);
-						else
-							((Folder) cont).getFeature().remove(folder);
-					}
-				}
-			}
-		};
-		
-		new KmlCrawler(kml).addListener(listener).crawl();
-	}
-	
 }
@@ -1,18 +1,34 @@
 package eu.gutermann.common.kmltool.impexp.kml;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
 
 import net.lingala.zip4j.core.ZipFile;
 import net.lingala.zip4j.model.FileHeader;
 import de.micromata.opengis.kml.v_2_2_0.Kml;
+import eu.gutermann.common.kmltool.impexp.FileFormat;
 import eu.gutermann.common.kmltool.impexp.exception.ImportException;
+import eu.gutermann.common.kmltool.impexp.snapshot.KmlSnapshot;
 import eu.gutermann.common.kmltool.model.KmlModel;
+import eu.gutermann.common.kmltool.model.KmlSourceIndex;
+import eu.gutermann.common.kmltool.util.ParallelTasks;
+import eu.gutermann.common.kmltool.util.metrics.JobMetrics;
+import eu.gutermann.common.kmltool.util.metrics.StageTimer;
 
 /**
- * Class for importing single KML files or zipped KML (KMZ) files.
+ * Class for importing single KML files or zipped KML (KMZ) files, from a file or from a stream.
  */
 public class KmlImporter {
 	/**
@@ -20,60 +36,361 @@ public class KmlImporter {
 	 */
 	private KmlModel model;
 	
+	/**
+	 * The metrics of the last import job.
+	 */
+	private JobMetrics metrics;
+	
 	public KmlImporter(KmlModel model) {
 		this.model = model;
 	}
 	
+	/**
+	 * Returns the metrics of the last import, or null if nothing was imported yet.
+	 * @return
+	 */
+	public JobMetrics getMetrics() {
+		return metrics;
+	}
+	
 	public void importFile(File file) {
-		// Choose import method depending on extension.
-		if (file.getName().endsWith(".kmz")) {
-			importKmz(file);
+		metrics = new JobMetrics("kml-import");
+		
+		try {
+			// Choose import method depending on extension, or on the contents if the extension is another one.
+			if (file.getName().endsWith(".kmz") || (!file.getName().endsWith(".kml") && FileFormat.detect(file) == FileFormat.KMZ)) {
+				importKmz(file);
+			}
+			else {
+				importKml(file);
+			}
+		}
+		catch (IOException e) {
+			throw new ImportException("Could not import file: " + e.getMessage(), e);
+		}
+		finally {
+			metrics.finish();
+		}
+	}
+	
+	/**
+	 * Imports KML or KMZ data from a stream, detecting the format from the contents. The stream is read to its end
+	 * but not closed. Since there is no file, no snapshots are used and NetworkLinks are only followed within a KMZ.
+	 * The KML file of KMZ data is stored in a temporary file, so that the exporter can copy unchanged elements from
+	 * it like for KMZ files. For plain KML data the exporter always writes the complete KML.
+	 *
+	 * DXF data is rejected, since it needs a coordinate reference system: use
+	 * {@link eu.gutermann.common.kmltool.impexp.dxf.DxfImporter#importStream(InputStream, String,
+	 * org.opengis.referencing.crs.CoordinateReferenceSystem)} for it.
+	 * @param in
+	 */
+	public void importStream(InputStream in) {
+		metrics = new JobMetrics("kml-import");
+		
+		try {
+			InputStream buffered = new BufferedInputStream(in);
+			FileFormat format = FileFormat.detect(buffered);
+			if (format == FileFormat.KMZ) {
+				importKmzStream(buffered);
+			}
+			else if (format == FileFormat.KML) {
+				importKmlStream(buffered);
+			}
+			else if (format == FileFormat.DXF) {
+				throw new ImportException("The data is DXF, which has to be imported with a coordinate reference system by the DXF importer.");
+			}
+			else {
+				throw new ImportException("The data is neither KML nor KMZ.");
+			}
+		}
+		catch (IOException e) {
+			throw new ImportException("Could not import KML data: " + e.getMessage(), e);
 		}
-		else {
-			importKml(file);
+		finally {
+			metrics.finish();
 		}
 	}
 	
+	/**
+	 * Imports KML or KMZ data from a channel. See {@link #importStream(InputStream)}.
+	 * @param channel
+	 */
+	public void importStream(ReadableByteChannel channel) {
+		importStream(Channels.newInputStream(channel));
+	}
+	
 	private void importKml(File file) {
-		// Simply let the Java API for KML library parse the KML file.
-		Kml kml = Kml.unmarshal(file);
-		model.setKml(kml);
+		if (model.isLinkedFilesMerged()) {
+			KmlLinkResolver resolver = new KmlLinkResolver(metrics);
+			Kml kml = resolver.readKml(file);
+			setKml(kml);
+			
+			// The source index only describes the original file.
+			if (resolver.getNumMergedFiles() == 1)
+				indexSource(file, kml);
+			else
+				model.setSourceIndex(null);
+			return;
+		}
+		
+		Kml kml = model.isSnapshotsEnabled() ? KmlSnapshot.read(file, "", metrics) : null;
+		if (kml == null) {
+			// Simply let the Java API for KML library parse the KML file, in partitions if it's large.
+			StageTimer timer = metrics.begin("parse").addBytesIn(file.length());
+			try {
+				if (model.isParallelParseEnabled() && file.length() >= KmlPartitionParser.MIN_FILE_SIZE && ParallelTasks.getNumThreads() > 1) {
+					KmlPartitionParser parser = new KmlPartitionParser();
+					kml = parser.parse(file);
+					timer.addCount("partitions", parser.getNumPartitions());
+				}
+				if (kml == null)
+					kml = KmlJaxb.unmarshal(file);
+			}
+			catch (Exception e) {
+				throw new ImportException("Could not import KML file: " + e.getMessage(), e);
+			}
+			finally {
+				timer.end();
+			}
+			
+			if (model.isSnapshotsEnabled())
+				KmlSnapshot.write(file, "", kml, metrics);
+		}
+		
+		setKml(kml);
+		indexSource(file, kml);
+	}
+	
+	private void importKmlStream(InputStream in) {
+		StageTimer timer = metrics.begin("parse");
+		Kml kml;
+		try {
+			kml = KmlJaxb.unmarshal(in);
+		}
+		catch (Exception e) {
+			throw new ImportException("Could not import KML data: " + e.getMessage(), e);
+		}
+		finally {
+			timer.end();
+		}
+		
+		setKml(kml);
+		model.setZipped(false);
+	}
+	
+	private void setKml(Kml kml) {
+		// Setting the KML in the model also extracts its styles.
+		StageTimer timer = metrics.begin("style-extraction");
+		try {
+			model.setKml(kml);
+			timer.addCount("styles", model.getStyles().size());
+		}
+		finally {
+			timer.end();
+		}
+		
+		if (model.isSpatialIndexEnabled()) {
+			StageTimer indexTimer = metrics.begin("spatial-index");
+			try {
+				indexTimer.addCount("placemarks", model.getSpatialIndex().size());
+			}
+			finally {
+				indexTimer.end();
+			}
+		}
+	}
+	
+	private void indexSource(File kmlFile, Kml kml) {
+		// Record where each element is in the KML file, so that the exporter can copy unchanged elements from it.
+		StageTimer timer = metrics.begin("source-index").addBytesIn(kmlFile.length());
+		try {
+			model.setSourceIndex(KmlSourceIndex.create(kmlFile, kml));
+		}
+		catch (IOException e) {
+			// Without an index the complete KML is written on export.
+			model.setSourceIndex(null);
+		}
+		finally {
+			timer.end();
+		}
 	}
 	
 	private void importKmz(File file) {
 		try {
 			// Let the Java API for KML library parse the KML files inside the KMZ.
-			// NOTE: if there are more than one KML file in the KMZ then stop import. Almost all KMZ files should contain only one KML file.
-			Kml[] kmlArray = Kml.unmarshalFromKmz(file);
-			if (kmlArray.length != 1)
-				throw new ImportException("The file '" + file + "' contains more than one KML file. Please unpack and import each KML file separately.");
-			Kml kml = kmlArray[0];
-			model.setKml(kml);
-			model.setZipped(true);
+			// NOTE: if there are more than one KML file in the KMZ then stop import, unless the files are merged.
+			// Almost all KMZ files should contain only one KML file.
+			// The snapshot only replaces the KML file, the other files in the KMZ are extracted below either way.
+			Kml kml = null;
+			int numMergedFiles = 1;
+			if (model.isLinkedFilesMerged()) {
+				KmlLinkResolver resolver = new KmlLinkResolver(metrics);
+				kml = resolver.readKmz(file);
+				numMergedFiles = resolver.getNumMergedFiles();
+			}
+			else if (model.isSnapshotsEnabled())
+				kml = KmlSnapshot.read(file, "", metrics);
+			
+			if (kml == null) {
+				StageTimer parseTimer = metrics.begin("parse").addBytesIn(file.length());
+				Kml[] kmlArray;
+				try {
+					kmlArray = KmlJaxb.unmarshalFromKmz(file);
+				}
+				finally {
+					parseTimer.end();
+				}
+				if (kmlArray.length != 1)
+					throw new ImportException("The file '" + file + "' contains more than one KML file. Please unpack and import each KML file separately.");
+				kml = kmlArray[0];
+				
+				if (model.isSnapshotsEnabled())
+					KmlSnapshot.write(file, "", kml, metrics);
+			}
 			
 			// Create a temporary directory where all contents of the KMZ other than the KML file are stored.
-			// Note: this code needs a JRE7 to run.
-			Path tempDir = Files.createTempDirectory("kml");
-			tempDir.toFile().deleteOnExit();
-			model.setTempDir(tempDir);
+			// The KML file itself is extracted into another directory, since everything in the temporary directory is
+			// packed into the KMZ on export.
+			Path tempDir = createTempDir("kml");
+			Path sourceDir = createTempDir("kmlsource");
+			File kmlFile = null;
+			String kmlFilePath = null;
 			
-			ZipFile kmzFile = new ZipFile(file);
-			@SuppressWarnings("unchecked")
-			List<FileHeader> headers = kmzFile.getFileHeaders();
-			for (FileHeader header : headers) {
-				if (header.getFileName().toLowerCase().endsWith(".kml")) {
-					// Store the path of the KML file within the zipfile in the model.
-					// That way the exporter knows where to place the new KML file within the exported KMZ.
-					model.setKmlFilePath(header.getFileName());
-				}
-				else {
-					kmzFile.extractFile(header, tempDir.toString());
+			StageTimer extractTimer = metrics.begin("extract-assets");
+			try {
+				ZipFile kmzFile = new ZipFile(file);
+				@SuppressWarnings("unchecked")
+				List<FileHeader> headers = kmzFile.getFileHeaders();
+				for (FileHeader header : headers) {
+					if (header.getFileName().toLowerCase().endsWith(".kml")) {
+						// Store the path of the KML file within the zipfile in the model (see setKmz).
+						// That way the exporter knows where to place the new KML file within the exported KMZ.
+						// Merged KML files are exported as the first one.
+						if (kmlFile != null)
+							continue;
+						kmlFilePath = header.getFileName();
+						
+						kmzFile.extractFile(header, sourceDir.toString());
+						kmlFile = new File(sourceDir.toFile(), header.getFileName());
+						kmlFile.deleteOnExit();
+					}
+					else {
+						kmzFile.extractFile(header, tempDir.toString());
+						extractTimer.addCount("assets", 1).addBytesOut(header.getUncompressedSize());
+					}
 				}
 			}
+			finally {
+				extractTimer.end();
+			}
+			
+			setKmz(kml, tempDir, kmlFilePath, kmlFile, numMergedFiles);
 		}
 		catch (Exception e) {
 			throw new ImportException("Could not import KMZ file: " + e.getMessage(), e);
 		}
 	}
 	
+	/**
+	 * Sets the KML of a KMZ file or KMZ data in the model, after the other files were extracted.
+	 * @param kml
+	 * @param tempDir the directory with all files of the KMZ other than the KML file, which are packed into the KMZ
+	 * on export
+	 * @param kmlFilePath the path of the (first) KML file in the KMZ, where the exporter places the new KML file
+	 * @param kmlFile the extracted KML file from which the exporter can copy unchanged elements, or null
+	 * @param numMergedFiles
+	 */
+	private void setKmz(Kml kml, Path tempDir, String kmlFilePath, File kmlFile, int numMergedFiles) {
+		setKml(kml);
+		model.setZipped(true);
+		model.setTempDir(tempDir);
+		model.setKmlFilePath(kmlFilePath);
+		
+		// The source index only describes a single original file.
+		if (kmlFile != null && numMergedFiles == 1)
+			indexSource(kmlFile, kml);
+	}
+	
+	private static Path createTempDir(String prefix) throws IOException {
+		// Note: this code needs a JRE7 to run.
+		Path dir = Files.createTempDirectory(prefix);
+		dir.toFile().deleteOnExit();
+		return dir;
+	}
+	
+	private void importKmzStream(InputStream in) {
+		try {
+			// A ZIP stream can only be read once, so the KML files are kept in memory while the other files are
+			// extracted.
+			Path tempDir = createTempDir("kml");
+			Path sourceDir = createTempDir("kmlsource");
+			
+			Map<String, byte[]> kmlEntries = new LinkedHashMap<String, byte[]>();
+			StageTimer extractTimer = metrics.begin("extract-assets");
+			try {
+				// The ZipInputStream isn't closed, since that would close the stream.
+				ZipInputStream zip = new ZipInputStream(in);
+				String dirPath = tempDir.toFile().getCanonicalPath() + File.separator;
+				ZipEntry entry;
+				while ((entry = zip.getNextEntry()) != null) {
+					String name = entry.getName();
+					if (entry.isDirectory()) {
+						continue;
+					}
+					else if (KmlJaxb.isKmlEntry(name)) {
+						kmlEntries.put(name, KmlLinkResolver.readAll(zip));
+					}
+					else if (!name.toLowerCase().endsWith(".kml")) {
+						// Don't write outside of the directory for names like "../file".
+						File assetFile = new File(tempDir.toFile(), name);
+						if (!assetFile.getCanonicalPath().startsWith(dirPath))
+							throw new ImportException("The KMZ data contains an invalid path: " + name);
+						assetFile.getParentFile().mkdirs();
+						long size = Files.copy(zip, assetFile.toPath());
+						extractTimer.addCount("assets", 1).addBytesOut(size);
+					}
+				}
+			}
+			finally {
+				extractTimer.end();
+			}
+			if (kmlEntries.isEmpty())
+				throw new ImportException("The KMZ data doesn't contain a KML file.");
+			
+			Kml kml;
+			int numMergedFiles = 1;
+			if (model.isLinkedFilesMerged()) {
+				KmlLinkResolver resolver = new KmlLinkResolver(metrics);
+				kml = resolver.readKmz(kmlEntries, null);
+				numMergedFiles = resolver.getNumMergedFiles();
+			}
+			else {
+				if (kmlEntries.size() != 1)
+					throw new ImportException("The KMZ data contains more than one KML file. Please unpack and import each KML file separately.");
+				byte[] kmlBytes = kmlEntries.values().iterator().next();
+				StageTimer parseTimer = metrics.begin("parse").addBytesIn(kmlBytes.length);
+				try {
+					kml = KmlJaxb.unmarshal(new ByteArrayInputStream(kmlBytes));
+				}
+				finally {
+					parseTimer.end();
+				}
+			}
+			
+			// The KML file is written to the source directory, like it's extracted from a KMZ file.
+			String kmlFilePath = kmlEntries.keySet().iterator().next();
+			File kmlFile = null;
+			if (numMergedFiles == 1) {
+				kmlFile = new File(sourceDir.toFile(), kmlFilePath);
+				kmlFile.getParentFile().mkdirs();
+				Files.write(kmlFile.toPath(), kmlEntries.get(kmlFilePath));
+				kmlFile.deleteOnExit();
+			}
+			setKmz(kml, tempDir, kmlFilePath, kmlFile, numMergedFiles);
+		}
+		catch (Exception e) {
+			throw new ImportException("Could not import KMZ data: " + e.getMessage(), e);
+		}
+	}
+	
 }
@@ -0,0 +1,286 @@
+package eu.gutermann.common.kmltool.impexp.kml;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+import javax.xml.bind.Unmarshaller;
+import javax.xml.parsers.SAXParserFactory;
+import javax.xml.transform.sax.SAXSource;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.XMLFilterImpl;
+
+import de.micromata.opengis.kml.v_2_2_0.Kml;
+
+/**
+ * Shared JAXB infrastructure for reading and writing KML. The Java API for KML library creates a new JAXBContext
+ * for every Kml.unmarshal() call and for every Kml instance that is marshalled, which takes much longer than
+ * reading or writing a small file. Here a single JAXBContext is created for the whole process, and the Marshallers
+ * and Unmarshallers are kept in pools after use, since they may only be used by one thread at a time.
+ *
+ * KML is read in the same way as by Kml.unmarshal(): older KML namespaces are mapped to KML 2.2. Unlike the library,
+ * files are read as bytes so that the XML parser detects the encoding, and errors are thrown instead of returning
+ * null.
+ */
+public class KmlJaxb {
+	/**
+	 * The maximum number of idle instances in each pool. More instances are created when needed, but not kept.
+	 */
+	private static final int MAX_POOL_SIZE = 2 * Runtime.getRuntime().availableProcessors();
+	
+	private static final String KML_22_NAMESPACE = "http://www.opengis.net/kml/2.2";
+	private static final String KML_21_NAMESPACE = "http://earth.google.com/kml/2.1";
+	private static final String KML_20_NAMESPACE = "http://earth.google.com/kml/2.0";
+	
+	/**
+	 * XML filter that maps the elements of KML 2.0 and 2.1 to the KML 2.2 namespace, like the (package-private)
+	 * NamespaceFilterHandler of the Java API for KML library.
+	 */
+	private static class NamespaceFilter extends XMLFilterImpl {
+		NamespaceFilter(XMLReader parent) {
+			super(parent);
+		}
+		
+		@Override
+		public void startElement(String uri, String localName, String qName, Attributes atts) throws SAXException {
+			super.startElement(mapNamespace(uri), localName, qName, atts);
+		}
+		
+		@Override
+		public void endElement(String uri, String localName, String qName) throws SAXException {
+			super.endElement(mapNamespace(uri), localName, qName);
+		}
+		
+		private static String mapNamespace(String uri) {
+			return (KML_21_NAMESPACE.equals(uri) || KML_20_NAMESPACE.equals(uri)) ? KML_22_NAMESPACE : uri;
+		}
+	};
+	
+	/**
+	 * An Unmarshaller with the XML reader that maps the namespaces, which is also expensive to create.
+	 */
+	private static class Parser {
+		Unmarshaller unmarshaller;
+		XMLReader reader;
+	};
+	
+	private static JAXBContext context;
+	
+	private static ConcurrentLinkedQueue<Marshaller> marshallers = new ConcurrentLinkedQueue<Marshaller>();
+	private static AtomicInteger numMarshallers = new AtomicInteger();
+	
+	private static ConcurrentLinkedQueue<Parser> parsers = new ConcurrentLinkedQueue<Parser>();
+	private static AtomicInteger numParsers = new AtomicInteger();
+	
+	private KmlJaxb() {
+		// static utility class
+	}
+	
+	/**
+	 * Returns the shared JAXBContext for KML, creating it on first use.
+	 * @return
+	 * @throws JAXBException
+	 */
+	public static synchronized JAXBContext getContext() throws JAXBException {
+		if (context == null)
+			context = JAXBContext.newInstance(Kml.class);
+		return context;
+	}
+	
+	/**
+	 * Takes a Marshaller from the pool, or creates one. It's configured in the same way as the Java API for KML
+	 * library does in Kml.marshal(). It must be given back with {@link #releaseMarshaller(Marshaller)}.
+	 * @return
+	 * @throws JAXBException
+	 */
+	public static Marshaller acquireMarshaller() throws JAXBException {
+		Marshaller marshaller = marshallers.poll();
+		if (marshaller != null) {
+			numMarshallers.decrementAndGet();
+			return marshaller;
+		}
+		
+		marshaller = getContext().createMarshaller();
+		marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, Boolean.TRUE);
+		marshaller.setProperty("com.sun.xml.bind.namespacePrefixMapper", new KmlNamespacePrefixMapper());
+		return marshaller;
+	}
+	
+	/**
+	 * Gives a Marshaller back to the pool. The listener and the properties that the exporters change are reset.
+	 * @param marshaller
+	 */
+	public static void releaseMarshaller(Marshaller marshaller) {
+		try {
+			marshaller.setListener(null);
+			marshaller.setProperty(Marshaller.JAXB_FRAGMENT, Boolean.FALSE);
+			marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, Boolean.TRUE);
+		}
+		catch (JAXBException e) {
+			// Don't reuse a Marshaller that can't be reset.
+			return;
+		}
+		
+		if (numMarshallers.incrementAndGet() <= MAX_POOL_SIZE)
+			marshallers.offer(marshaller);
+		else
+			numMarshallers.decrementAndGet();
+	}
+	
+	/**
+	 * Writes a KML element as formatted XML.
+	 * @param obj a Kml or any other KML element
+	 * @param writer
+	 * @throws JAXBException
+	 */
+	public static void marshal(Object obj, Writer writer) throws JAXBException {
+		Marshaller marshaller = acquireMarshaller();
+		try {
+			marshaller.marshal(obj, writer);
+		}
+		finally {
+			releaseMarshaller(marshaller);
+		}
+	}
+	
+	/**
+	 * Reads KML from a stream. The stream is not closed.
+	 * @param in
+	 * @return
+	 * @throws JAXBException
+	 */
+	public static Kml unmarshal(InputStream in) throws JAXBException {
+		return unmarshal(new InputSource(in));
+	}
+	
+	/**
+	 * Reads a KML file.
+	 * @param file
+	 * @return
+	 * @throws JAXBException
+	 * @throws IOException
+	 */
+	public static Kml unmarshal(File file) throws JAXBException, IOException {
+		InputStream in = new BufferedInputStream(new FileInputStream(file));
+		try {
+			InputSource source = new InputSource(in);
+			source.setSystemId(file.toURI().toString());
+			return unmarshal(source);
+		}
+		finally {
+			in.close();
+		}
+	}
+	
+	/**
+	 * Reads KML from a string.
+	 * @param xml
+	 * @return
+	 * @throws JAXBException
+	 */
+	public static Kml unmarshal(String xml) throws JAXBException {
+		return unmarshal(new InputSource(new StringReader(xml)));
+	}
+	
+	/**
+	 * Reads all KML files in a KMZ file, skipping the metadata that Mac OS X adds to ZIP files, in the same way as
+	 * Kml.unmarshalFromKmz() of the Java API for KML library.
+	 * @param file
+	 * @return
+	 * @throws JAXBException
+	 * @throws IOException
+	 */
+	public static Kml[] unmarshalFromKmz(File file) throws JAXBException, IOException {
+		List<Kml> res = new ArrayList<Kml>();
+		ZipFile zip = new ZipFile(file);
+		try {
+			for (Enumeration<? extends ZipEntry> entries = zip.entries(); entries.hasMoreElements();) {
+				ZipEntry entry = entries.nextElement();
+				if (!isKmlEntry(entry.getName()))
+					continue;
+				
+				InputStream in = new BufferedInputStream(zip.getInputStream(entry));
+				try {
+					res.add(unmarshal(in));
+				}
+				finally {
+					in.close();
+				}
+			}
+		}
+		finally {
+			zip.close();
+		}
+		return res.toArray(new Kml[res.size()]);
+	}
+	
+	/**
+	 * Returns true if an entry of a KMZ file is a KML file, and not part of the metadata that Mac OS X adds.
+	 * @param name
+	 * @return
+	 */
+	static boolean isKmlEntry(String name) {
+		return !name.contains("__MACOSX") && !name.contains(".DS_STORE") && name.toLowerCase().endsWith(".kml");
+	}
+	
+	private static Kml unmarshal(InputSource source) throws JAXBException {
+		Parser parser = acquireParser();
+		try {
+			Object res = parser.unmarshaller.unmarshal(new SAXSource(parser.reader, source));
+			if (!(res instanceof Kml))
+				throw new JAXBException("The root element is not a kml element");
+			return (Kml) res;
+		}
+		finally {
+			releaseParser(parser);
+		}
+	}
+	
+	private static Parser acquireParser() throws JAXBException {
+		Parser parser = parsers.poll();
+		if (parser != null) {
+			numParsers.decrementAndGet();
+			return parser;
+		}
+		
+		parser = new Parser();
+		parser.unmarshaller = getContext().createUnmarshaller();
+		try {
+			SAXParserFactory factory = SAXParserFactory.newInstance();
+			factory.setNamespaceAware(true);
+			factory.setValidating(false);
+			parser.reader = new NamespaceFilter(factory.newSAXParser().getXMLReader());
+		}
+		catch (Exception e) {
+			throw new JAXBException("Could not create an XML parser: " + e.getMessage(), e);
+		}
+		return parser;
+	}
+	
+	private static void releaseParser(Parser parser) {
+		parser.unmarshaller.setListener(null);
+		if (numParsers.incrementAndGet() <= MAX_POOL_SIZE)
+			parsers.offer(parser);
+		else
+			numParsers.decrementAndGet();
+	}
+
+}
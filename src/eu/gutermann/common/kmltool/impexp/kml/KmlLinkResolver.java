@@ -0,0 +1,560 @@
+package eu.gutermann.common.kmltool.impexp.kml;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import de.micromata.opengis.kml.v_2_2_0.AbstractObject;
+import de.micromata.opengis.kml.v_2_2_0.Container;
+import de.micromata.opengis.kml.v_2_2_0.Document;
+import de.micromata.opengis.kml.v_2_2_0.Feature;
+import de.micromata.opengis.kml.v_2_2_0.Folder;
+import de.micromata.opengis.kml.v_2_2_0.Kml;
+import de.micromata.opengis.kml.v_2_2_0.Link;
+import de.micromata.opengis.kml.v_2_2_0.NetworkLink;
+import de.micromata.opengis.kml.v_2_2_0.Pair;
+import de.micromata.opengis.kml.v_2_2_0.StyleMap;
+import de.micromata.opengis.kml.v_2_2_0.StyleSelector;
+import eu.gutermann.common.kmltool.impexp.exception.ImportException;
+import eu.gutermann.common.kmltool.util.KmlCopyUtil;
+import eu.gutermann.common.kmltool.util.ParallelTasks;
+import eu.gutermann.common.kmltool.util.kmlcrawler.KmlCrawler;
+import eu.gutermann.common.kmltool.util.kmlcrawler.KmlCrawlerListener;
+import eu.gutermann.common.kmltool.util.kmlcrawler.KmlItem;
+import eu.gutermann.common.kmltool.util.metrics.JobMetrics;
+import eu.gutermann.common.kmltool.util.metrics.StageTimer;
+
+/**
+ * Reads a KML file, or all KML files of a KMZ file, together with the local KML files that their NetworkLinks refer
+ * to, and merges them into a single KML. Each followed NetworkLink is replaced with a Folder that contains the
+ * linked document, and the KML files of a KMZ file that no NetworkLink refers to are added to the first one.
+ *
+ * The files are parsed in parallel, one round for the files that are known so far and one round for each level of
+ * NetworkLinks. Each file is parsed only once: if several NetworkLinks refer to the same file, the later ones get a
+ * copy of it. A NetworkLink is left as it is if its file can't be read or if it refers back to a file that contains
+ * it, and so are links to remote files and to other KMZ files.
+ *
+ * The ids of the shared styles of each merged file except the first get a prefix, so that styles of different
+ * files with the same id don't collide in the merged KML. The styleUrls within such a file that refer to its own
+ * styles are changed accordingly.
+ */
+class KmlLinkResolver {
+	/**
+	 * A KML file in the KMZ file or on disk.
+	 */
+	private static class Source {
+		/**
+		 * The path of the file in the KMZ file, or null if it's on disk.
+		 */
+		String entryName;
+		File file;
+		Kml kml;
+		List<KmlItem> links = new ArrayList<KmlItem>();
+		List<Source> targets = new ArrayList<Source>();
+		boolean expanding;
+		boolean used;
+	};
+	
+	private JobMetrics metrics;
+	
+	/**
+	 * The directory of the KMZ file, or null if the KMZ wasn't read from a file.
+	 */
+	private File kmzDir;
+	
+	/**
+	 * The contents of the KML files in the KMZ file by their path.
+	 */
+	private Map<String, byte[]> kmzEntries = new LinkedHashMap<String, byte[]>();
+	
+	/**
+	 * All files that were found so far by their path.
+	 */
+	private Map<String, Source> sources = new HashMap<String, Source>();
+	
+	/**
+	 * The files that were found but not parsed yet.
+	 */
+	private List<Source> pending = new ArrayList<Source>();
+	
+	/**
+	 * The file into which the others are merged, whose style ids are kept.
+	 */
+	private Source root;
+	
+	/**
+	 * The prefixes that were given to the style ids of the other files.
+	 */
+	private Set<String> stylePrefixes = new HashSet<String>();
+	
+	private int numMergedFiles;
+	
+	public KmlLinkResolver(JobMetrics metrics) {
+		this.metrics = metrics;
+	}
+	
+	/**
+	 * Reads a KML file and the files that its NetworkLinks refer to.
+	 * @param file
+	 * @return
+	 */
+	public Kml readKml(File file) {
+		Source root = getFileSource(file);
+		load();
+		return merge(root, new ArrayList<Source>());
+	}
+	
+	/**
+	 * Reads all KML files in a KMZ file and the files that their NetworkLinks refer to.
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public Kml readKmz(File file) throws IOException {
+		Map<String, byte[]> kmlEntries = new LinkedHashMap<String, byte[]>();
+		ZipFile zip = new ZipFile(file);
+		try {
+			for (Enumeration<? extends ZipEntry> entries = zip.entries(); entries.hasMoreElements();) {
+				ZipEntry entry = entries.nextElement();
+				if (!KmlJaxb.isKmlEntry(entry.getName()))
+					continue;
+				
+				InputStream in = zip.getInputStream(entry);
+				try {
+					kmlEntries.put(entry.getName(), readAll(in));
+				}
+				finally {
+					in.close();
+				}
+			}
+		}
+		finally {
+			zip.close();
+		}
+		if (kmlEntries.isEmpty())
+			throw new ImportException("The file '" + file + "' doesn't contain a KML file.");
+		
+		return readKmz(kmlEntries, file.getAbsoluteFile().getParentFile());
+	}
+	
+	/**
+	 * Reads the KML files of a KMZ file that were already extracted, and the files that their NetworkLinks refer to.
+	 * @param entries the contents of the KML files by their path in the KMZ, in the order of the KMZ
+	 * @param dir the directory of the KMZ file, or null to only follow NetworkLinks within the KMZ
+	 * @return
+	 */
+	public Kml readKmz(Map<String, byte[]> entries, File dir) {
+		kmzEntries.putAll(entries);
+		kmzDir = dir;
+		List<Source> roots = new ArrayList<Source>();
+		for (String name : kmzEntries.keySet()) {
+			roots.add(getEntrySource(name));
+		}
+		load();
+		
+		// Viewers show the first KML file of a KMZ file, so the others are added to that one.
+		return merge(roots.get(0), roots.subList(1, roots.size()));
+	}
+	
+	/**
+	 * Returns the number of files that were merged into the KML, which is 1 if there were no files to merge.
+	 * @return
+	 */
+	public int getNumMergedFiles() {
+		return numMergedFiles;
+	}
+	
+	private void load() {
+		StageTimer timer = metrics.begin("parse");
+		try {
+			boolean first = true;
+			while (!pending.isEmpty()) {
+				final List<Source> round = pending;
+				pending = new ArrayList<Source>();
+				
+				List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+				for (final Source source : round) {
+					timer.addBytesIn((source.entryName != null) ? kmzEntries.get(source.entryName).length : source.file.length());
+					tasks.add(new Callable<Void>() {
+						@Override
+						public Void call() throws Exception {
+							parse(source);
+							return null;
+						}
+					});
+				}
+				
+				// The files of the first round are the ones that were asked for, so their errors aren't ignored.
+				try {
+					ParallelTasks.invokeAll(tasks);
+				}
+				catch (RuntimeException e) {
+					if (first)
+						throw new ImportException("Could not import KML file: " + e.getMessage(), e);
+				}
+				timer.addCount("files", round.size());
+				
+				for (Source source : round) {
+					if (source.kml != null)
+						findLinks(source);
+				}
+				first = false;
+			}
+		}
+		finally {
+			timer.end();
+		}
+	}
+	
+	private void parse(Source source) throws Exception {
+		if (source.entryName != null)
+			source.kml = KmlJaxb.unmarshal(new ByteArrayInputStream(kmzEntries.get(source.entryName)));
+		else
+			source.kml = KmlJaxb.unmarshal(source.file);
+	}
+	
+	private void findLinks(final Source source) {
+		if (source.kml.getFeature() == null)
+			return;
+		
+		new KmlCrawler(source.kml).addListener(new KmlCrawlerListener() {
+			@Override
+			public void onStyleSelector(KmlItem item) {}
+			
+			@Override
+			public void onFeature(KmlItem item) {
+				if (item.getObject() instanceof NetworkLink) {
+					Source target = getLinkedSource(source, (NetworkLink) item.getObject());
+					if (target != null) {
+						source.links.add(item);
+						source.targets.add(target);
+					}
+				}
+			}
+		}).crawl();
+	}
+	
+	/**
+	 * Returns the file that a NetworkLink refers to, or null if it's not a local KML file.
+	 * @param source
+	 * @param link
+	 * @return
+	 */
+	private Source getLinkedSource(Source source, NetworkLink link) {
+		Link target = link.getLink();
+		if (target == null || target.getHref() == null)
+			return null;
+		String href = target.getHref().trim();
+		
+		String path;
+		try {
+			URI uri = new URI(href);
+			// A scheme of one letter is the drive of a Windows path.
+			if (uri.getScheme() != null && uri.getScheme().length() > 1) {
+				if (!"file".equalsIgnoreCase(uri.getScheme()))
+					return null;
+				return getLinkedFileSource(new File(uri));
+			}
+			if (uri.getQuery() != null)
+				return null;
+			path = (uri.getScheme() != null) ? href : uri.getPath();
+		}
+		catch (URISyntaxException e) {
+			// For example a path with spaces that aren't escaped.
+			path = href;
+		}
+		catch (IllegalArgumentException e) {
+			return null;
+		}
+		if (path == null || path.isEmpty())
+			return null;
+		
+		// A relative path in a KMZ file refers to another file in the KMZ file, or else to a file next to the KMZ file.
+		if (source.entryName != null) {
+			String entryName = resolveEntryName(source.entryName, path);
+			if (kmzEntries.containsKey(entryName))
+				return getEntrySource(entryName);
+			if (new File(path).isAbsolute())
+				return getLinkedFileSource(new File(path));
+			return (kmzDir != null) ? getLinkedFileSource(new File(kmzDir, path)) : null;
+		}
+		return getLinkedFileSource(new File(path).isAbsolute() ? new File(path) : new File(source.file.getParentFile(), path));
+	}
+	
+	private Source getLinkedFileSource(File file) {
+		// Other KMZ files are not followed, since their other files would be missing on export.
+		if (!file.getName().toLowerCase().endsWith(".kml") || !file.isFile())
+			return null;
+		return getFileSource(file);
+	}
+	
+	private Source getEntrySource(String entryName) {
+		String key = "kmz:" + entryName;
+		Source source = sources.get(key);
+		if (source == null) {
+			source = new Source();
+			source.entryName = entryName;
+			addSource(key, source);
+		}
+		return source;
+	}
+	
+	private Source getFileSource(File file) {
+		String key;
+		try {
+			key = file.getCanonicalPath();
+		}
+		catch (IOException e) {
+			key = file.getAbsolutePath();
+		}
+		
+		Source source = sources.get(key);
+		if (source == null) {
+			source = new Source();
+			source.file = file;
+			addSource(key, source);
+		}
+		return source;
+	}
+	
+	private void addSource(String key, Source source) {
+		sources.put(key, source);
+		pending.add(source);
+	}
+	
+	/**
+	 * Merges a file with the files that it links to, and adds the other files to it.
+	 * @param root
+	 * @param others
+	 * @return
+	 */
+	private Kml merge(Source root, List<Source> others) {
+		StageTimer timer = metrics.begin("link-merge");
+		try {
+			this.root = root;
+			Feature feature = expand(root);
+			
+			List<Feature> otherFeatures = new ArrayList<Feature>();
+			for (Source other : others) {
+				if (other.kml != null && !other.used) {
+					otherFeatures.add(createFolder(other.entryName, expand(other)));
+				}
+			}
+			
+			// A single Placemark can't contain other files, so it's put in a Document together with them.
+			if (!otherFeatures.isEmpty()) {
+				if (!(feature instanceof Container)) {
+					Document doc = new Document();
+					doc.getFeature().add(feature);
+					feature = doc;
+				}
+				getFeatures((Container) feature).addAll(otherFeatures);
+			}
+			
+			root.kml.setFeature(feature);
+			timer.addCount("files", numMergedFiles);
+			return root.kml;
+		}
+		finally {
+			timer.end();
+		}
+	}
+	
+	/**
+	 * Replaces the NetworkLinks of a file with the files they refer to, and returns its top Feature.
+	 * @param source
+	 * @return
+	 */
+	private Feature expand(Source source) {
+		Feature feature = source.kml.getFeature();
+		if (source.used)
+			return (feature != null) ? feature.clone() : null;
+		source.used = true;
+		numMergedFiles++;
+		if (source != root)
+			prefixStyleIds(source);
+		
+		source.expanding = true;
+		try {
+			for (int i = 0; i < source.links.size(); i++) {
+				Source target = source.targets.get(i);
+				if (target.kml == null || target.kml.getFeature() == null || target.expanding)
+					continue;
+				
+				KmlItem item = source.links.get(i);
+				NetworkLink link = item.getObject();
+				// The Folder takes over all properties of the NetworkLink as a Feature, like its Region, LookAt,
+				// TimePrimitive and ExtendedData.
+				Folder folder = new Folder();
+				KmlCopyUtil.copyProperties(link, folder, Feature.class);
+				folder.getFeature().add(expand(target));
+				
+				if (item.getStack().isEmpty())
+					feature = folder;
+				else
+					replace(getFeatures((Container) item.getParent()), link, folder);
+			}
+		}
+		finally {
+			source.expanding = false;
+		}
+		
+		// Later links to this file get a copy of the merged Feature.
+		source.kml.setFeature(feature);
+		return feature;
+	}
+	
+	/**
+	 * Adds a prefix to the ids of the shared styles of a file, and changes the styleUrls that refer to them. Must be
+	 * called before the linked files are added to the file.
+	 * @param source
+	 */
+	private void prefixStyleIds(Source source) {
+		final List<StyleSelector> selectors = new ArrayList<StyleSelector>();
+		final List<Feature> features = new ArrayList<Feature>();
+		new KmlCrawler(source.kml).addListener(new KmlCrawlerListener() {
+			@Override
+			public void onStyleSelector(KmlItem item) {
+				StyleSelector selector = item.getObject();
+				selectors.add(selector);
+			}
+			
+			@Override
+			public void onFeature(KmlItem item) {
+				Feature feat = item.getObject();
+				features.add(feat);
+			}
+		}).crawl();
+		
+		// All ids are collected first, since a style may be defined after the elements that refer to it.
+		String prefix = createStylePrefix(source);
+		Map<String, String> ids = new HashMap<String, String>();
+		for (StyleSelector selector : selectors) {
+			if (selector.getId() != null)
+				ids.put(selector.getId(), prefix + selector.getId());
+		}
+		if (ids.isEmpty())
+			return;
+		
+		for (StyleSelector selector : selectors) {
+			if (selector.getId() != null)
+				selector.setId(ids.get(selector.getId()));
+			if (selector instanceof StyleMap) {
+				for (Pair pair : ((StyleMap) selector).getPair()) {
+					pair.setStyleUrl(prefixStyleUrl(pair.getStyleUrl(), ids));
+				}
+			}
+		}
+		for (Feature feat : features) {
+			feat.setStyleUrl(prefixStyleUrl(feat.getStyleUrl(), ids));
+		}
+	}
+	
+	private String createStylePrefix(Source source) {
+		// The prefix is the name of the file without its extension, made unique with a number if necessary.
+		String name = (source.entryName != null) ? source.entryName : source.file.getName();
+		name = name.substring(name.lastIndexOf('/') + 1);
+		if (name.lastIndexOf('.') > 0)
+			name = name.substring(0, name.lastIndexOf('.'));
+		
+		// An id must be a valid XML name.
+		name = name.replaceAll("[^A-Za-z0-9_.-]", "_");
+		if (name.isEmpty() || !(Character.isLetter(name.charAt(0)) || name.charAt(0) == '_'))
+			name = "_" + name;
+		
+		String prefix = name + "-";
+		for (int i = 2; !stylePrefixes.add(prefix); i++) {
+			prefix = name + i + "-";
+		}
+		return prefix;
+	}
+	
+	private static String prefixStyleUrl(String styleUrl, Map<String, String> ids) {
+		// Only references within the same file are changed.
+		if (styleUrl == null || !styleUrl.startsWith("#"))
+			return styleUrl;
+		String id = ids.get(styleUrl.substring(1));
+		return (id != null) ? "#" + id : styleUrl;
+	}
+	
+	private static Folder createFolder(String name, Feature feature) {
+		Folder folder = new Folder();
+		folder.setName(name);
+		folder.getFeature().add(feature);
+		return folder;
+	}
+	
+	private static List<Feature> getFeatures(Container cont) {
+		return (cont instanceof Document) ? ((Document) cont).getFeature() : ((Folder) cont).getFeature();
+	}
+	
+	private static void replace(List<Feature> features, AbstractObject oldFeature, Feature newFeature) {
+		for (int i = 0; i < features.size(); i++) {
+			if (features.get(i) == oldFeature) {
+				features.set(i, newFeature);
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * Resolves a path relative to the directory of a file in the KMZ file.
+	 * @param entryName
+	 * @param path
+	 * @return
+	 */
+	private static String resolveEntryName(String entryName, String path) {
+		String dir = (path.startsWith("/") || entryName.lastIndexOf('/') < 0) ? "" : entryName.substring(0, entryName.lastIndexOf('/') + 1);
+		Deque<String> parts = new ArrayDeque<String>();
+		for (String part : (dir + path).split("/")) {
+			if (part.isEmpty() || part.equals("."))
+				continue;
+			if (part.equals(".."))
+				parts.pollLast();
+			else
+				parts.addLast(part);
+		}
+		
+		StringBuilder res = new StringBuilder();
+		for (String part : parts) {
+			if (res.length() > 0)
+				res.append('/');
+			res.append(part);
+		}
+		return res.toString();
+	}
+	
+	/**
+	 * Reads a stream to its end.
+	 * @param in
+	 * @return
+	 * @throws IOException
+	 */
+	static byte[] readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buf = new byte[65536];
+		int len;
+		while ((len = in.read(buf)) > 0) {
+			out.write(buf, 0, len);
+		}
+		return out.toByteArray();
+	}
+
+}
@@ -0,0 +1,23 @@
+package eu.gutermann.common.kmltool.impexp.kml;
+
+import com.sun.xml.bind.marshaller.NamespacePrefixMapper;
+
+/**
+ * Maps the namespaces used in KML to their usual prefixes when marshalling with JAXB.
+ * This is the same mapping that the Java API for KML library uses internally in Kml.marshal(),
+ * so that KML written with our own Marshaller looks the same.
+ */
+class KmlNamespacePrefixMapper extends NamespacePrefixMapper {
+
+	@Override
+	public String getPreferredPrefix(String namespaceUri, String suggestion, boolean requirePrefix) {
+		if (namespaceUri.matches("http://www.w3.org/\\d{4}/Atom"))
+			return "atom";
+		if (namespaceUri.matches("urn:oasis:names:tc:ciq:xsdschema:xAL:.*?"))
+			return "xal";
+		if (namespaceUri.matches("http://www.google.com/kml/ext/.*?"))
+			return "gx";
+		return suggestion;
+	}
+
+}
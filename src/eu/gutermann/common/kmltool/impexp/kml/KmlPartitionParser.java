@@ -0,0 +1,491 @@
+package eu.gutermann.common.kmltool.impexp.kml;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+import de.micromata.opengis.kml.v_2_2_0.Document;
+import de.micromata.opengis.kml.v_2_2_0.Feature;
+import de.micromata.opengis.kml.v_2_2_0.Folder;
+import de.micromata.opengis.kml.v_2_2_0.Kml;
+import eu.gutermann.common.kmltool.util.ParallelTasks;
+
+/**
+ * Parses a large KML file on all processors. The file is scanned for the structure of its XML (without a full XML
+ * parser) to find the Features of the top Document or Folder, and of the Documents and Folders within it that are
+ * too large for a single partition. Consecutive Features of a Container are grouped into partitions of about the
+ * same size, and each partition is parsed in parallel as a KML file of its own, with the start tags of the
+ * Containers around it. Only the Features are taken from the partitions. The rest of the file is parsed without
+ * them, and the Features are then put back in order, which gives the same KML as parsing the whole file at once.
+ *
+ * If the file can't be divided, for example because it's encoded in UTF-16 or because the partitions don't
+ * contain the expected Features, then null is returned and the file should be parsed as a whole. Files of 2 GB
+ * and more are not supported, since the file is read into memory.
+ */
+class KmlPartitionParser {
+	private static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+	
+	/**
+	 * The minimum size of a file to parse it in partitions.
+	 */
+	public static final long MIN_FILE_SIZE = 16 * 1024 * 1024;
+	
+	/**
+	 * The number of partitions per thread, so that the threads finish at about the same time.
+	 */
+	private static final int PARTITIONS_PER_THREAD = 4;
+	
+	private static final Set<String> FEATURE_NAMES = new HashSet<String>(Arrays.asList(
+			"Document", "Folder", "Placemark", "NetworkLink", "GroundOverlay", "PhotoOverlay", "ScreenOverlay", "Tour"));
+	
+	/**
+	 * The kml element or a Document or Folder, with the byte ranges of the Features in it.
+	 */
+	private static class Node {
+		String qName;
+		Node parent;
+		int start;
+		int startTagEnd;
+		int[] starts = new int[4];
+		int[] ends = new int[4];
+		
+		/**
+		 * The Node of each Feature that is a Document or Folder too, otherwise null.
+		 */
+		Node[] children = new Node[4];
+		int numChildren;
+		
+		/**
+		 * The Partitions and the divided child Nodes of the Node in order.
+		 */
+		List<Object> plan = new ArrayList<Object>();
+		
+		void addChild(int start) {
+			if (numChildren == starts.length) {
+				starts = Arrays.copyOf(starts, numChildren * 2);
+				ends = Arrays.copyOf(ends, numChildren * 2);
+				children = Arrays.copyOf(children, numChildren * 2);
+			}
+			starts[numChildren] = start;
+			ends[numChildren] = -1;
+			numChildren++;
+		}
+	};
+	
+	/**
+	 * An open element while scanning the file.
+	 */
+	private static class OpenElement {
+		/**
+		 * The Node if the element is the kml element or a Document or Folder within one, otherwise null.
+		 */
+		Node node;
+		
+		/**
+		 * The Node of which the element is a Feature, or null.
+		 */
+		Node owner;
+	};
+	
+	/**
+	 * Consecutive Features of a Node that are parsed together.
+	 */
+	private static class Partition {
+		Node node;
+		int first;
+		int last;
+		
+		/**
+		 * The number of Containers between the top Feature and the Node.
+		 */
+		int depth;
+		Kml kml;
+	};
+	
+	private int numPartitions;
+	
+	/**
+	 * Returns the number of partitions of the last file that was parsed, or 0 if it wasn't divided.
+	 * @return
+	 */
+	public int getNumPartitions() {
+		return numPartitions;
+	}
+	
+	/**
+	 * Parses a KML file in partitions. Returns null if the file can't be divided into partitions, or if parsing a
+	 * partition fails, in which case the file should be parsed as a whole to get the proper error.
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public Kml parse(File file) throws IOException {
+		numPartitions = 0;
+		if (file.length() >= Integer.MAX_VALUE - 8)
+			return null;
+		
+		final byte[] bytes = Files.readAllBytes(file.toPath());
+		final Node root = scan(bytes);
+		if (root == null || root.numChildren != 1 || root.children[0] == null)
+			return null;
+		
+		// Divide the Features of the top Container into partitions of about the same size.
+		Node top = root.children[0];
+		if (top.numChildren == 0)
+			return null;
+		long total = top.ends[top.numChildren - 1] - top.starts[0];
+		long target = total / (PARTITIONS_PER_THREAD * ParallelTasks.getNumThreads());
+		final List<Partition> partitions = new ArrayList<Partition>();
+		plan(top, 0, target, partitions);
+		if (partitions.size() < 2)
+			return null;
+		
+		// The rest of the file without the Features of the partitions. The other elements between them, such as
+		// StyleSelectors, are kept.
+		ByteArrayOutputStream skeleton = new ByteArrayOutputStream();
+		int pos = 0;
+		for (Partition partition : partitions) {
+			for (int i = partition.first; i < partition.last; i++) {
+				skeleton.write(bytes, pos, partition.node.starts[i] - pos);
+				pos = partition.node.ends[i];
+			}
+		}
+		skeleton.write(bytes, pos, bytes.length - pos);
+		final byte[] skeletonBytes = skeleton.toByteArray();
+		
+		List<Callable<Kml>> tasks = new ArrayList<Callable<Kml>>();
+		tasks.add(new Callable<Kml>() {
+			@Override
+			public Kml call() throws Exception {
+				return KmlJaxb.unmarshal(new ByteArrayInputStream(skeletonBytes));
+			}
+		});
+		for (final Partition partition : partitions) {
+			tasks.add(new Callable<Kml>() {
+				@Override
+				public Kml call() throws Exception {
+					partition.kml = KmlJaxb.unmarshal(createPartitionStream(bytes, root, partition));
+					return partition.kml;
+				}
+			});
+		}
+		
+		List<Kml> results;
+		try {
+			results = ParallelTasks.invokeAll(tasks);
+		}
+		catch (RuntimeException e) {
+			return null;
+		}
+		
+		Kml kml = results.get(0);
+		if (!merge(top, kml.getFeature()))
+			return null;
+		numPartitions = partitions.size();
+		return kml;
+	}
+	
+	/**
+	 * Groups the Features of a Node into partitions. Documents and Folders that are larger than a partition are
+	 * divided themselves.
+	 * @param node
+	 * @param depth
+	 * @param target the size of a partition
+	 * @param partitions
+	 */
+	private static void plan(Node node, int depth, long target, List<Partition> partitions) {
+		Partition partition = null;
+		long size = 0;
+		for (int i = 0; i < node.numChildren; i++) {
+			Node child = node.children[i];
+			long childSize = node.ends[i] - node.starts[i];
+			if (child != null && child.numChildren > 0 && childSize > target) {
+				plan(child, depth + 1, target, partitions);
+				node.plan.add(child);
+				partition = null;
+				continue;
+			}
+			
+			if (partition == null || size >= target) {
+				partition = new Partition();
+				partition.node = node;
+				partition.first = i;
+				partition.depth = depth;
+				partitions.add(partition);
+				node.plan.add(partition);
+				size = 0;
+			}
+			partition.last = i + 1;
+			size += childSize;
+		}
+	}
+	
+	/**
+	 * Returns the XML of a partition: the start of the file up to the kml element, the start tags of the Containers
+	 * around the Features, the Features and the end tags.
+	 * @param bytes
+	 * @param root
+	 * @param partition
+	 * @return
+	 */
+	private static InputStream createPartitionStream(byte[] bytes, Node root, Partition partition) {
+		ByteArrayOutputStream prefix = new ByteArrayOutputStream();
+		StringBuilder suffix = new StringBuilder();
+		Deque<Node> nodes = new ArrayDeque<Node>();
+		for (Node node = partition.node; node != root; node = node.parent) {
+			nodes.push(node);
+			suffix.append("</").append(node.qName).append('>');
+		}
+		suffix.append("</").append(root.qName).append('>');
+		
+		prefix.write(bytes, 0, root.startTagEnd);
+		for (Node node : nodes) {
+			prefix.write(bytes, node.start, node.startTagEnd - node.start);
+		}
+		
+		int start = partition.node.starts[partition.first];
+		int end = partition.node.ends[partition.last - 1];
+		return new SequenceInputStream(new ByteArrayInputStream(prefix.toByteArray()), new SequenceInputStream(
+				new ByteArrayInputStream(bytes, start, end - start), new ByteArrayInputStream(suffix.toString().getBytes(LATIN1))));
+	}
+	
+	/**
+	 * Puts the Features of the partitions of a Node into the Container parsed without them, between the divided
+	 * Containers that it still contains. Returns false if the Features are not the expected ones.
+	 * @param node
+	 * @param container
+	 * @return
+	 */
+	private static boolean merge(Node node, Feature container) {
+		List<Feature> features = getFeatures(container);
+		if (features == null)
+			return false;
+		
+		List<Feature> divided = new ArrayList<Feature>(features);
+		features.clear();
+		int index = 0;
+		for (Object item : node.plan) {
+			if (item instanceof Partition) {
+				Partition partition = (Partition) item;
+				List<Feature> partFeatures = getFeatures(partition.kml, partition.depth);
+				if (partFeatures == null || partFeatures.size() != partition.last - partition.first)
+					return false;
+				features.addAll(partFeatures);
+			}
+			else {
+				if (index >= divided.size())
+					return false;
+				Feature feat = divided.get(index++);
+				features.add(feat);
+				if (!merge((Node) item, feat))
+					return false;
+			}
+		}
+		return index == divided.size();
+	}
+	
+	/**
+	 * Returns the Features of the Container at the given depth below the top Feature, following the only Feature of
+	 * each Container above it.
+	 * @param kml
+	 * @param depth
+	 * @return
+	 */
+	private static List<Feature> getFeatures(Kml kml, int depth) {
+		Feature feat = kml.getFeature();
+		for (int i = 0; i < depth; i++) {
+			List<Feature> features = getFeatures(feat);
+			if (features == null || features.size() != 1)
+				return null;
+			feat = features.get(0);
+		}
+		return getFeatures(feat);
+	}
+	
+	private static List<Feature> getFeatures(Feature feat) {
+		if (feat instanceof Document)
+			return ((Document) feat).getFeature();
+		if (feat instanceof Folder)
+			return ((Folder) feat).getFeature();
+		return null;
+	}
+	
+	/**
+	 * Scans the structure of the file and returns the Node of the kml element, or null if the file can't be divided.
+	 * @param bytes
+	 * @return
+	 */
+	private static Node scan(byte[] bytes) {
+		// The bytes are compared as ASCII, which doesn't work for UTF-16 and UTF-32.
+		if (bytes.length < 2 || bytes[0] == 0 || bytes[1] == 0 || (bytes[0] & 0xFF) == 0xFE || (bytes[0] & 0xFF) == 0xFF)
+			return null;
+		
+		Deque<OpenElement> stack = new ArrayDeque<OpenElement>();
+		Node root = null;
+		int n = bytes.length;
+		int i = 0;
+		while (i < n) {
+			if (bytes[i] != '<') {
+				i++;
+				continue;
+			}
+			
+			int start = i;
+			int b = (i + 1 < n) ? bytes[i + 1] : -1;
+			if (b == '?') {
+				int end = indexOf(bytes, "?>", i + 2);
+				if (end < 0)
+					return null;
+				String pi = new String(bytes, i + 2, end - i - 2, LATIN1);
+				if (pi.startsWith("xml ") && !isAsciiCompatible(pi))
+					return null;
+				i = end + 2;
+			}
+			else if (b == '!') {
+				i = skipDeclaration(bytes, i + 2);
+				if (i < 0)
+					return null;
+			}
+			else if (b == '/') {
+				int end = indexOf(bytes, ">", i + 2);
+				if (end < 0 || stack.isEmpty())
+					return null;
+				OpenElement open = stack.pop();
+				if (open.owner != null)
+					open.owner.ends[open.owner.numChildren - 1] = end + 1;
+				i = end + 1;
+			}
+			else {
+				// Read the start tag, skipping '>' within quoted attribute values.
+				int end = i + 1;
+				int quote = 0;
+				while (end < n) {
+					int c = bytes[end];
+					if (quote != 0) {
+						if (c == quote)
+							quote = 0;
+					}
+					else if (c == '"' || c == '\'') {
+						quote = c;
+					}
+					else if (c == '>') {
+						break;
+					}
+					end++;
+				}
+				if (end >= n)
+					return null;
+				
+				boolean empty = bytes[end - 1] == '/';
+				String qName = getName(bytes, i + 1, end);
+				String name = qName.substring(qName.indexOf(':') + 1);
+				OpenElement parent = stack.peek();
+				OpenElement open = new OpenElement();
+				
+				if (parent == null) {
+					if (root != null || !"kml".equals(name))
+						return null;
+					root = new Node();
+					root.qName = qName;
+					root.startTagEnd = end + 1;
+					open.node = root;
+				}
+				else if (parent.node != null && FEATURE_NAMES.contains(name)) {
+					Node owner = parent.node;
+					owner.addChild(start);
+					open.owner = owner;
+					if (!empty && ("Document".equals(name) || "Folder".equals(name))) {
+						open.node = new Node();
+						open.node.qName = qName;
+						open.node.parent = owner;
+						open.node.start = start;
+						open.node.startTagEnd = end + 1;
+						owner.children[owner.numChildren - 1] = open.node;
+					}
+				}
+				
+				if (empty) {
+					if (open.owner != null)
+						open.owner.ends[open.owner.numChildren - 1] = end + 1;
+				}
+				else {
+					stack.push(open);
+				}
+				i = end + 1;
+			}
+		}
+		return (root != null && stack.isEmpty()) ? root : null;
+	}
+	
+	private static int skipDeclaration(byte[] bytes, int i) {
+		// Comments, CDATA sections and the DOCTYPE declaration (which may contain nested declarations).
+		if (startsWith(bytes, i, "--")) {
+			int end = indexOf(bytes, "-->", i + 2);
+			return (end < 0) ? -1 : end + 3;
+		}
+		if (startsWith(bytes, i, "[CDATA[")) {
+			int end = indexOf(bytes, "]]>", i + 7);
+			return (end < 0) ? -1 : end + 3;
+		}
+		int depth = 0;
+		for (; i < bytes.length; i++) {
+			if (bytes[i] == '[')
+				depth++;
+			else if (bytes[i] == ']')
+				depth--;
+			else if (bytes[i] == '>' && depth == 0)
+				return i + 1;
+		}
+		return -1;
+	}
+	
+	private static boolean startsWith(byte[] bytes, int start, String s) {
+		if (start + s.length() > bytes.length)
+			return false;
+		for (int i = 0; i < s.length(); i++) {
+			if (bytes[start + i] != s.charAt(i))
+				return false;
+		}
+		return true;
+	}
+	
+	private static int indexOf(byte[] bytes, String s, int start) {
+		byte first = (byte) s.charAt(0);
+		for (int i = start; i <= bytes.length - s.length(); i++) {
+			if (bytes[i] == first && startsWith(bytes, i, s))
+				return i;
+		}
+		return -1;
+	}
+	
+	private static String getName(byte[] bytes, int start, int end) {
+		int i = start;
+		while (i < end && bytes[i] > ' ' && bytes[i] != '/')
+			i++;
+		return new String(bytes, start, i - start, LATIN1);
+	}
+	
+	private static boolean isAsciiCompatible(String decl) {
+		// The encodings in which '<', '>' and quotes are always single bytes that don't occur in other characters.
+		int index = decl.indexOf("encoding");
+		if (index < 0)
+			return true;
+		String encoding = decl.substring(index + "encoding".length()).replaceAll("[\\s=\"']", " ").trim().toLowerCase();
+		return encoding.startsWith("utf-8") || encoding.startsWith("us-ascii") || encoding.startsWith("iso-8859-")
+				|| encoding.startsWith("windows-125");
+	}
+
+}
@@ -0,0 +1,268 @@
+package eu.gutermann.common.kmltool.impexp.kml;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import eu.gutermann.common.kmltool.util.metrics.JobMetrics;
+import eu.gutermann.common.kmltool.util.metrics.StageTimer;
+
+/**
+ * The files other than the KML of a loaded KMZ (icons, images, etc.), as compressed entries for new KMZ files.
+ * Each file is compressed only once and then written into every KMZ file that needs it, as long as the file doesn't
+ * change.
+ *
+ * For the files of a split export, only the assets that the KML of each file refers to are needed. A reference is
+ * found by searching the KML for the path of the asset relative to the KML file, for example in the href of an
+ * Icon or in an image tag in a description. The KML is scanned once for words between XML and HTML delimiters,
+ * and each word is only compared with the paths if its hash may belong to one of them. Paths with spaces are
+ * found as the whole value between the delimiters, like the content of an href or the value of an attribute.
+ */
+class KmzAssets {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	
+	/**
+	 * The number of bits of the filter on the hashes of the asset paths.
+	 */
+	private static final int HASH_FILTER_BITS = 16;
+	private static final int HASH_FILTER_MASK = (1 << HASH_FILTER_BITS) - 1;
+	
+	/**
+	 * An asset with its compressed entry, which is created on first use.
+	 */
+	private static class Asset {
+		File file;
+		String name;
+		long length;
+		long lastModified;
+		KmzWriter.Entry entry;
+	};
+	
+	private Path dir;
+	
+	/**
+	 * The assets by their path in the KMZ.
+	 */
+	private Map<String, Asset> assets = new HashMap<String, Asset>();
+	
+	/**
+	 * The assets in the order of the directory listing.
+	 */
+	private List<Asset> assetList = new ArrayList<Asset>();
+	
+	/**
+	 * The assets by each form in which the KML can refer to them.
+	 */
+	private Map<String, Asset> references = new HashMap<String, Asset>();
+	
+	/**
+	 * The hashes of the references, see {@link #hash(byte[], int, int)}.
+	 */
+	private BitSet referenceHashes = new BitSet(1 << HASH_FILTER_BITS);
+	
+	/**
+	 * Creates the assets of a directory. Call {@link #refresh(String)} before using them.
+	 * @param dir
+	 */
+	public KmzAssets(Path dir) {
+		this.dir = dir;
+	}
+	
+	public Path getDir() {
+		return dir;
+	}
+	
+	/**
+	 * Reads the list of files in the directory again. The compressed entries of files that didn't change are kept.
+	 * @param kmlPath the path of the KML file in the KMZ, which the references are relative to
+	 */
+	public void refresh(String kmlPath) {
+		Map<String, Asset> oldAssets = assets;
+		assets = new HashMap<String, Asset>();
+		assetList = new ArrayList<Asset>();
+		collectFiles(dir.toFile(), "", oldAssets);
+		
+		// Build the forms in which the assets can be referred to.
+		references.clear();
+		referenceHashes.clear();
+		Path kmlDir = Paths.get(kmlPath).getParent();
+		for (Asset asset : assetList) {
+			String relPath = (kmlDir != null) ? kmlDir.relativize(Paths.get(asset.name)).toString().replace(File.separatorChar, '/') : asset.name;
+			for (String path : new String[] {relPath, asset.name}) {
+				addReference(path, asset);
+				addReference("./" + path, asset);
+				addReference(path.replace(" ", "%20"), asset);
+			}
+		}
+	}
+	
+	/**
+	 * Returns the compressed entries of all assets.
+	 * @param metrics
+	 * @return
+	 * @throws IOException
+	 */
+	public List<KmzWriter.Entry> getEntries(JobMetrics metrics) throws IOException {
+		return getEntries(assetList, metrics);
+	}
+	
+	/**
+	 * Returns the compressed entries of the assets that a KML refers to.
+	 * @param kmlBytes the KML as UTF-8 bytes
+	 * @param metrics
+	 * @return
+	 * @throws IOException
+	 */
+	public List<KmzWriter.Entry> getReferencedEntries(byte[] kmlBytes, JobMetrics metrics) throws IOException {
+		return getEntries(new ArrayList<Asset>(findReferenced(kmlBytes)), metrics);
+	}
+	
+	/**
+	 * Returns the version of each asset that a KML refers to, as its path with the length and the modification time
+	 * of its file. So a changed asset can be detected without reading it.
+	 * @param kmlBytes the KML as UTF-8 bytes
+	 * @return
+	 */
+	public List<String> getReferencedVersions(byte[] kmlBytes) {
+		List<String> res = new ArrayList<String>();
+		for (Asset asset : findReferenced(kmlBytes)) {
+			res.add(asset.name + ":" + asset.length + ":" + asset.lastModified);
+		}
+		return res;
+	}
+	
+	private Set<Asset> findReferenced(byte[] kmlBytes) {
+		Set<Asset> referenced = new LinkedHashSet<Asset>();
+		if (!references.isEmpty()) {
+			// A word ends at whitespace or markup, a value like the content of an href or an attribute only ends at
+			// markup. Values are only looked up if they contain whitespace, since otherwise they're a single word.
+			int start = -1;
+			int hash = 0;
+			int valueStart = 0;
+			boolean valueHasSpace = false;
+			for (int i = 0; i <= kmlBytes.length; i++) {
+				int b = (i < kmlBytes.length) ? kmlBytes[i] & 0xFF : '<';
+				boolean space = (b <= ' ');
+				if (space || isDelimiter(b)) {
+					if (start >= 0) {
+						if (referenceHashes.get(hash & HASH_FILTER_MASK))
+							addReferenced(kmlBytes, start, i, referenced);
+						valueHasSpace |= space;
+					}
+					start = -1;
+					
+					if (!space) {
+						if (valueHasSpace)
+							addReferencedValue(kmlBytes, valueStart, i, referenced);
+						valueStart = i + 1;
+						valueHasSpace = false;
+					}
+				}
+				else {
+					if (start < 0) {
+						start = i;
+						hash = 0;
+					}
+					hash = 31 * hash + b;
+				}
+			}
+		}
+		return referenced;
+	}
+	
+	private void addReferencedValue(byte[] kmlBytes, int start, int end, Set<Asset> referenced) {
+		// Leave out the whitespace around the value, like the line breaks around the content of an element.
+		while (start < end && (kmlBytes[start] & 0xFF) <= ' ') {
+			start++;
+		}
+		while (end > start && (kmlBytes[end - 1] & 0xFF) <= ' ') {
+			end--;
+		}
+		if (referenceHashes.get(hash(kmlBytes, start, end) & HASH_FILTER_MASK))
+			addReferenced(kmlBytes, start, end, referenced);
+	}
+	
+	private void addReferenced(byte[] kmlBytes, int start, int end, Set<Asset> referenced) {
+		Asset asset = references.get(new String(kmlBytes, start, end - start, UTF8));
+		if (asset != null)
+			referenced.add(asset);
+	}
+	
+	private List<KmzWriter.Entry> getEntries(List<Asset> list, JobMetrics metrics) throws IOException {
+		List<KmzWriter.Entry> entries = new ArrayList<KmzWriter.Entry>(list.size());
+		for (Asset asset : list) {
+			if (asset.entry == null) {
+				StageTimer timer = metrics.begin("asset-deflate").addBytesIn(asset.length);
+				try {
+					asset.entry = KmzWriter.Entry.deflate(asset.name, Files.readAllBytes(asset.file.toPath()), asset.lastModified);
+					timer.addBytesOut(asset.entry.getCompressedSize()).addCount("assets", 1);
+				}
+				finally {
+					timer.end();
+				}
+			}
+			entries.add(asset.entry);
+		}
+		return entries;
+	}
+	
+	private void collectFiles(File folder, String prefix, Map<String, Asset> oldAssets) {
+		File[] files = folder.listFiles();
+		if (files == null)
+			return;
+		
+		for (File file : files) {
+			String name = prefix + file.getName();
+			if (file.isDirectory()) {
+				collectFiles(file, name + "/", oldAssets);
+				continue;
+			}
+			
+			// Keep the compressed entry if the file didn't change.
+			Asset asset = oldAssets.get(name);
+			if (asset == null || asset.length != file.length() || asset.lastModified != file.lastModified()) {
+				asset = new Asset();
+				asset.file = file;
+				asset.name = name;
+				asset.length = file.length();
+				asset.lastModified = file.lastModified();
+			}
+			assets.put(name, asset);
+			assetList.add(asset);
+		}
+	}
+	
+	private void addReference(String path, Asset asset) {
+		if (!references.containsKey(path)) {
+			references.put(path, asset);
+			byte[] bytes = path.getBytes(UTF8);
+			referenceHashes.set(hash(bytes, 0, bytes.length) & HASH_FILTER_MASK);
+		}
+	}
+	
+	private static int hash(byte[] bytes, int start, int end) {
+		// The same hash as the one computed while scanning the KML.
+		int hash = 0;
+		for (int i = start; i < end; i++) {
+			hash = 31 * hash + (bytes[i] & 0xFF);
+		}
+		return hash;
+	}
+	
+	private static boolean isDelimiter(int b) {
+		// XML markup, quotes and the parts of escaped HTML like "&lt;img src=&quot;...&quot;&gt;", but not whitespace,
+		// which can be part of a path.
+		return b == '<' || b == '>' || b == '"' || b == '\'' || b == '(' || b == ')' || b == '&' || b == ';' || b == '=';
+	}
+
+}
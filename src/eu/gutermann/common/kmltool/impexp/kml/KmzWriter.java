@@ -0,0 +1,327 @@
+package eu.gutermann.common.kmltool.impexp.kml;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import eu.gutermann.common.kmltool.util.ParallelTasks;
+
+/**
+ * Writes a KMZ (ZIP) file from entries that are already compressed. Unlike Zip4j and ZipOutputStream this allows
+ * the compressed data of an entry to be created once and written into any number of KMZ files, for example the
+ * icons that are shared by all files of a split export.
+ *
+ * Only the basic ZIP format is written: no ZIP64 extensions, so entries and files are limited to 4 GB, and no
+ * directory entries, since the directories are implied by the entry names.
+ *
+ * Large entries are compressed in blocks on all processors, in the same way as pigz: each block is compressed with
+ * the last 32 KB of the previous block as dictionary and ends with a sync flush, so that the compressed blocks can
+ * be joined into a single deflate stream that any unzip tool can read.
+ */
+class KmzWriter {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	
+	private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+	private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+	private static final int END_SIGNATURE = 0x06054b50;
+	
+	/**
+	 * The version needed to extract the entries: 2.0 for deflated data.
+	 */
+	private static final int VERSION = 20;
+	
+	/**
+	 * General purpose flag for entry names encoded in UTF-8.
+	 */
+	private static final int FLAG_UTF8 = 0x0800;
+	
+	private static final int METHOD_STORED = 0;
+	private static final int METHOD_DEFLATED = 8;
+	
+	/**
+	 * The size of the blocks that large entries are divided into for compressing them in parallel.
+	 */
+	private static final int BLOCK_SIZE = 1 << 20;
+	
+	/**
+	 * The minimum size of an entry to compress it in parallel.
+	 */
+	private static final int PARALLEL_THRESHOLD = 4 * BLOCK_SIZE;
+	
+	/**
+	 * The size of the deflate window, which is the part of the previous block that the matches can refer to.
+	 */
+	private static final int DICTIONARY_SIZE = 32 * 1024;
+	
+	/**
+	 * A compressed entry that can be written into multiple KMZ files.
+	 */
+	static class Entry {
+		private final String name;
+		private final int method;
+		private final long crc;
+		private final long size;
+		private final byte[] data;
+		private final long time;
+		
+		private Entry(String name, int method, long crc, long size, byte[] data, long time) {
+			this.name = name;
+			this.method = method;
+			this.crc = crc;
+			this.size = size;
+			this.data = data;
+			this.time = time;
+		}
+		
+		/**
+		 * Compresses data into an entry. If compressing doesn't make the data smaller, as with most images, the
+		 * data is stored uncompressed instead. Large data is compressed in parallel on the shared pool of
+		 * {@link ParallelTasks}, so this must not be called from a task on that pool.
+		 * @param name the path of the entry in the KMZ with '/' as separator
+		 * @param bytes
+		 * @param time the modification time of the entry
+		 * @return
+		 */
+		public static Entry deflate(String name, byte[] bytes, long time) {
+			CRC32 crc = new CRC32();
+			crc.update(bytes);
+			
+			byte[] data;
+			if (bytes.length < PARALLEL_THRESHOLD || ParallelTasks.getNumThreads() == 1) {
+				// Stop as soon as the compressed data is as large as the original.
+				data = deflateBlock(bytes, 0, bytes.length, true, bytes.length);
+			}
+			else
+				data = deflateBlocks(bytes);
+			
+			if (data != null && data.length < bytes.length)
+				return new Entry(name, METHOD_DEFLATED, crc.getValue(), bytes.length, data, time);
+			return new Entry(name, METHOD_STORED, crc.getValue(), bytes.length, bytes, time);
+		}
+		
+		/**
+		 * Compresses the data in blocks in parallel and joins the compressed blocks.
+		 * @param bytes
+		 * @return
+		 */
+		private static byte[] deflateBlocks(final byte[] bytes) {
+			List<Callable<byte[]>> tasks = new ArrayList<Callable<byte[]>>();
+			for (int start = 0; start < bytes.length; start += BLOCK_SIZE) {
+				final int blockStart = start;
+				final int blockEnd = Math.min(start + BLOCK_SIZE, bytes.length);
+				tasks.add(new Callable<byte[]>() {
+					@Override
+					public byte[] call() {
+						// Deflate never grows the data by more than a few bytes per 16 KB.
+						int size = blockEnd - blockStart;
+						return deflateBlock(bytes, blockStart, blockEnd, blockEnd == bytes.length, size + size / 64 + 64);
+					}
+				});
+			}
+			
+			List<byte[]> blocks = ParallelTasks.invokeAll(tasks);
+			int len = 0;
+			for (byte[] block : blocks) {
+				if (block == null)
+					return null;
+				len += block.length;
+			}
+			byte[] data = new byte[len];
+			int offset = 0;
+			for (byte[] block : blocks) {
+				System.arraycopy(block, 0, data, offset, block.length);
+				offset += block.length;
+			}
+			return data;
+		}
+		
+		/**
+		 * Compresses a block of the data as raw deflate data. The data before the block is used as dictionary.
+		 * Unless it's the last block, the compressed data ends with a sync flush instead of the final deflate block,
+		 * so that the compressed data of the next block can follow it.
+		 * @param bytes
+		 * @param start
+		 * @param end
+		 * @param last
+		 * @param maxLen the maximum length of the compressed data
+		 * @return the compressed data, or null if it would be longer than maxLen
+		 */
+		private static byte[] deflateBlock(byte[] bytes, int start, int end, boolean last, int maxLen) {
+			Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+			try {
+				if (start > 0) {
+					int dictStart = Math.max(0, start - DICTIONARY_SIZE);
+					deflater.setDictionary(bytes, dictStart, start - dictStart);
+				}
+				deflater.setInput(bytes, start, end - start);
+				if (last)
+					deflater.finish();
+				
+				// A sync flush is complete when it doesn't fill the remaining space of the buffer.
+				byte[] buf = new byte[Math.max(64, maxLen)];
+				int len = 0;
+				boolean done = false;
+				while (!done && len < buf.length) {
+					int space = buf.length - len;
+					int n = last ? deflater.deflate(buf, len, space) : deflater.deflate(buf, len, space, Deflater.SYNC_FLUSH);
+					len += n;
+					done = last ? deflater.finished() : n < space;
+				}
+				return done ? Arrays.copyOf(buf, len) : null;
+			}
+			finally {
+				deflater.end();
+			}
+		}
+		
+		public String getName() {
+			return name;
+		}
+		
+		/**
+		 * Returns the size of the compressed data.
+		 * @return
+		 */
+		public long getCompressedSize() {
+			return data.length;
+		}
+		
+		public long getSize() {
+			return size;
+		}
+	};
+	
+	private OutputStream out;
+	
+	/**
+	 * The number of bytes written so far, which is the offset of the next header.
+	 */
+	private long offset = 0;
+	
+	private List<Entry> entries = new ArrayList<Entry>();
+	
+	private List<Long> offsets = new ArrayList<Long>();
+	
+	/**
+	 * Creates a writer. The stream is not closed by the writer.
+	 * @param out
+	 */
+	public KmzWriter(OutputStream out) {
+		this.out = out;
+	}
+	
+	/**
+	 * Returns the number of bytes written so far.
+	 * @return
+	 */
+	public long getLength() {
+		return offset;
+	}
+	
+	/**
+	 * Writes an entry.
+	 * @param entry
+	 * @throws IOException
+	 */
+	public void add(Entry entry) throws IOException {
+		if (offset > 0xFFFFFFFFL || entry.size > 0xFFFFFFFFL)
+			throw new IOException("KMZ files larger than 4 GB are not supported");
+		
+		entries.add(entry);
+		offsets.add(offset);
+		
+		byte[] name = entry.name.getBytes(UTF8);
+		writeInt(LOCAL_HEADER_SIGNATURE);
+		writeShort(VERSION);
+		writeShort(FLAG_UTF8);
+		writeShort(entry.method);
+		writeInt(toDosTime(entry.time));
+		writeInt(entry.crc);
+		writeInt(entry.data.length);
+		writeInt(entry.size);
+		writeShort(name.length);
+		writeShort(0);
+		write(name);
+		write(entry.data);
+	}
+	
+	/**
+	 * Writes the central directory after the last entry. This must be called to create a valid KMZ file.
+	 * @throws IOException
+	 */
+	public void finish() throws IOException {
+		long start = offset;
+		for (int i = 0; i < entries.size(); i++) {
+			Entry entry = entries.get(i);
+			byte[] name = entry.name.getBytes(UTF8);
+			writeInt(CENTRAL_HEADER_SIGNATURE);
+			writeShort(VERSION);
+			writeShort(VERSION);
+			writeShort(FLAG_UTF8);
+			writeShort(entry.method);
+			writeInt(toDosTime(entry.time));
+			writeInt(entry.crc);
+			writeInt(entry.data.length);
+			writeInt(entry.size);
+			writeShort(name.length);
+			writeShort(0);
+			writeShort(0);
+			writeShort(0);
+			writeShort(0);
+			writeInt(0);
+			writeInt(offsets.get(i));
+			write(name);
+		}
+		
+		long size = offset - start;
+		if (entries.size() > 0xFFFF || offset > 0xFFFFFFFFL)
+			throw new IOException("KMZ files larger than 4 GB or with more than 65535 entries are not supported");
+		
+		writeInt(END_SIGNATURE);
+		writeShort(0);
+		writeShort(0);
+		writeShort(entries.size());
+		writeShort(entries.size());
+		writeInt(size);
+		writeInt(start);
+		writeShort(0);
+		out.flush();
+	}
+	
+	private void writeShort(int value) throws IOException {
+		// ZIP headers are little-endian.
+		out.write(value & 0xFF);
+		out.write((value >>> 8) & 0xFF);
+		offset += 2;
+	}
+	
+	private void writeInt(long value) throws IOException {
+		writeShort((int) (value & 0xFFFF));
+		writeShort((int) ((value >>> 16) & 0xFFFF));
+	}
+	
+	private void write(byte[] bytes) throws IOException {
+		out.write(bytes);
+		offset += bytes.length;
+	}
+	
+	private static long toDosTime(long time) {
+		// MS-DOS date and time in local time, with a resolution of two seconds.
+		Calendar cal = Calendar.getInstance();
+		cal.setTimeInMillis(time);
+		int year = cal.get(Calendar.YEAR);
+		if (year < 1980)
+			return (1 << 21) | (1 << 16);
+		return ((long) (year - 1980) << 25) | ((long) (cal.get(Calendar.MONTH) + 1) << 21)
+				| ((long) cal.get(Calendar.DAY_OF_MONTH) << 16) | ((long) cal.get(Calendar.HOUR_OF_DAY) << 11)
+				| ((long) cal.get(Calendar.MINUTE) << 5) | (cal.get(Calendar.SECOND) >> 1);
+	}
+
+}
@@ -0,0 +1,139 @@
+package eu.gutermann.common.kmltool.impexp.kml;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+import javax.xml.bind.Marshaller;
+
+import de.micromata.opengis.kml.v_2_2_0.Boundary;
+import de.micromata.opengis.kml.v_2_2_0.Document;
+import de.micromata.opengis.kml.v_2_2_0.Feature;
+import de.micromata.opengis.kml.v_2_2_0.Folder;
+import de.micromata.opengis.kml.v_2_2_0.Kml;
+import de.micromata.opengis.kml.v_2_2_0.MultiGeometry;
+import de.micromata.opengis.kml.v_2_2_0.Pair;
+import de.micromata.opengis.kml.v_2_2_0.Placemark;
+import de.micromata.opengis.kml.v_2_2_0.Polygon;
+import de.micromata.opengis.kml.v_2_2_0.StyleMap;
+import de.micromata.opengis.kml.v_2_2_0.StyleSelector;
+import eu.gutermann.common.kmltool.util.KmlCopyUtil;
+import eu.gutermann.common.kmltool.util.KmlOverlay;
+
+/**
+ * Marshaller listener that lets the other listeners change copies of the elements instead of the elements of the
+ * model, which read-only copies of the model share with the model while it's edited.
+ *
+ * The Kml is copied with {@link #copy(Kml)} before it's written. Right before a copy is written, its children that
+ * the listeners may change are replaced with copies too: the Features, the StyleMaps with their Pairs and the
+ * geometries down to the coordinates, which stay shared. So the copies are made while the KML is written, each
+ * element only once, and the recorded values of the overlay are set in the copies of the Features and Pairs.
+ *
+ * This listener must be the last one, so that it copies the children that the other listeners have set.
+ */
+class WriteCopyListener extends Marshaller.Listener {
+	private KmlOverlay overlay;
+	
+	/**
+	 * The copies whose children haven't been copied yet.
+	 */
+	private Set<Object> copies = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+	
+	/**
+	 * @param overlay the overlay of the other listeners, or null
+	 */
+	public WriteCopyListener(KmlOverlay overlay) {
+		this.overlay = overlay;
+	}
+	
+	/**
+	 * Returns the copy of the Kml that must be written instead of the Kml itself.
+	 * @param kml
+	 * @return
+	 */
+	public Kml copy(Kml kml) {
+		return copyElement(kml);
+	}
+	
+	@Override
+	public void beforeMarshal(Object source) {
+		if (!copies.remove(source))
+			return;
+		
+		if (source instanceof Kml) {
+			Kml kml = (Kml) source;
+			kml.setFeature(copyElement(kml.getFeature()));
+		}
+		else if (source instanceof Feature) {
+			copyChildren((Feature) source);
+		}
+		else if (source instanceof StyleMap) {
+			copyElements(((StyleMap) source).getPair());
+		}
+		else if (source instanceof MultiGeometry) {
+			copyElements(((MultiGeometry) source).getGeometry());
+		}
+		else if (source instanceof Polygon) {
+			Polygon polygon = (Polygon) source;
+			polygon.setOuterBoundaryIs(copyElement(polygon.getOuterBoundaryIs()));
+			copyElements(polygon.getInnerBoundaryIs());
+		}
+		else if (source instanceof Boundary) {
+			Boundary boundary = (Boundary) source;
+			boundary.setLinearRing(copyElement(boundary.getLinearRing()));
+		}
+	}
+	
+	private void copyChildren(Feature feat) {
+		// Only the StyleMaps are copied, since the Styles aren't changed while they're written. The list may be
+		// a value of the overlay, so it's replaced instead of changed.
+		List<StyleSelector> selectors = new ArrayList<StyleSelector>();
+		for (StyleSelector selector : feat.getStyleSelector()) {
+			selectors.add((selector instanceof StyleMap) ? copyElement(selector) : selector);
+		}
+		feat.setStyleSelector(selectors);
+		
+		if (feat instanceof Document) {
+			copyElements(((Document) feat).getFeature());
+		}
+		else if (feat instanceof Folder) {
+			copyElements(((Folder) feat).getFeature());
+		}
+		else if (feat instanceof Placemark) {
+			Placemark placemark = (Placemark) feat;
+			placemark.setGeometry(copyElement(placemark.getGeometry()));
+		}
+	}
+	
+	private <T> void copyElements(List<T> list) {
+		// The list itself already belongs to the copy of the parent.
+		for (int i = 0; i < list.size(); i++) {
+			list.set(i, copyElement(list.get(i)));
+		}
+	}
+	
+	private <T> T copyElement(T obj) {
+		if (obj == null)
+			return null;
+		
+		// The recorded values are set in the copy right away, which the listener of the overlay then doesn't
+		// need to change anymore.
+		T copy = KmlCopyUtil.shallowCopy(obj);
+		if (overlay != null && (obj instanceof Feature || obj instanceof Pair)) {
+			overlay.copy(obj, copy);
+			overlay.commit(copy);
+		}
+		
+		if (hasCopiedChildren(copy))
+			copies.add(copy);
+		return copy;
+	}
+	
+	private static boolean hasCopiedChildren(Object obj) {
+		return obj instanceof Kml || obj instanceof Feature || obj instanceof StyleMap || obj instanceof MultiGeometry
+				|| obj instanceof Polygon || obj instanceof Boundary;
+	}
+	
+}
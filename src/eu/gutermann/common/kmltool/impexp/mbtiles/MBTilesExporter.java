@@ -0,0 +1,570 @@
+package eu.gutermann.common.kmltool.impexp.mbtiles;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.zip.GZIPOutputStream;
+
+import org.geotools.mbtiles.MBTilesFile;
+import org.json.simple.JSONValue;
+
+import com.vividsolutions.jts.geom.CoordinateSequence;
+import com.vividsolutions.jts.geom.CoordinateSequenceFilter;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.GeometryFactory;
+
+import de.micromata.opengis.kml.v_2_2_0.Feature;
+import de.micromata.opengis.kml.v_2_2_0.Geometry;
+import de.micromata.opengis.kml.v_2_2_0.Placemark;
+import eu.gutermann.common.kmltool.impexp.exception.ExportException;
+import eu.gutermann.common.kmltool.model.KmlModel;
+import eu.gutermann.common.kmltool.model.SpatialIndex;
+import eu.gutermann.common.kmltool.util.ExtendedDataUtil;
+import eu.gutermann.common.kmltool.util.GeometryClipper;
+import eu.gutermann.common.kmltool.util.GeometrySimplifier;
+import eu.gutermann.common.kmltool.util.KmlGeometryUtil;
+import eu.gutermann.common.kmltool.util.ParallelTasks;
+import eu.gutermann.common.kmltool.util.kmlcrawler.KmlCrawler;
+import eu.gutermann.common.kmltool.util.kmlcrawler.KmlCrawlerListener;
+import eu.gutermann.common.kmltool.util.kmlcrawler.KmlItem;
+import eu.gutermann.common.kmltool.util.metrics.JobMetrics;
+import eu.gutermann.common.kmltool.util.metrics.StageTimer;
+
+/**
+ * Class for exporting the KML model to an <a href="https://github.com/mapbox/mbtiles-spec">MBTiles</a> file with
+ * vector tiles, which web maps can load tile by tile instead of loading a whole KML.
+ * It uses the <a href="http://www.geotools.org/">GeoTools</a> library for creating the MBTiles file.
+ *
+ * The Placemarks are tiled in the Web Mercator tiling scheme for every zoom level in a configurable range. For each
+ * tile the Placemarks are found with the model's {@link SpatialIndex}, cut at the tile boundary (plus a small buffer)
+ * with a {@link GeometryClipper}, simplified to the detail that can be seen at that zoom level with a
+ * {@link GeometrySimplifier}, and encoded as a gzipped Mapbox Vector Tile with a single layer. The tiles are
+ * encoded in parallel and written in batches, with one transaction per batch.
+ *
+ * Each feature has the Placemark's name, its style id and its ExtendedData as properties, and the position of the
+ * Placemark in the document as its id, so that the parts of a Placemark in different tiles can be matched.
+ *
+ * Only the tiles that overlap with the bounding box of at least one Placemark are encoded, so sparse data at high zoom
+ * levels doesn't mean visiting every tile of the bounding box of all Placemarks.
+ */
+public class MBTilesExporter {
+	/**
+	 * A tile to be encoded, identified by its zoom level and its column and row in the XYZ scheme (row 0 is north).
+	 */
+	private class TileTask implements Callable<byte[]> {
+		int zoom;
+		int x;
+		int y;
+		
+		TileTask(int zoom, int x, int y) {
+			this.zoom = zoom;
+			this.x = x;
+			this.y = y;
+		}
+		
+		@Override
+		public byte[] call() throws IOException {
+			return encodeTile(zoom, x, y);
+		}
+	};
+	
+	/**
+	 * The name of the layer with the Placemarks in every tile.
+	 */
+	public static final String LAYER_NAME = "placemarks";
+	
+	/**
+	 * The highest zoom level that can be exported.
+	 */
+	public static final int MAX_ZOOM = 22;
+	
+	private static final int DEFAULT_MIN_ZOOM = 10;
+	private static final int DEFAULT_MAX_ZOOM = 16;
+	
+	/**
+	 * The size of a tile in tile coordinates, and the size of the buffer around it within which geometries are kept
+	 * so that lines and polygons are drawn without seams at the tile boundaries.
+	 */
+	private static final int EXTENT = 4096;
+	private static final int BUFFER = 64;
+	
+	/**
+	 * The size of a tile on screen. Details smaller than a pixel at this size are removed.
+	 */
+	private static final int TILE_PIXELS = 256;
+	
+	/**
+	 * The number of tiles that are encoded in parallel and then written in one transaction.
+	 */
+	private static final int BATCH_SIZE = 256;
+	
+	/**
+	 * The latitude limit of the Web Mercator projection.
+	 */
+	private static final double MAX_LATITUDE = 85.0511287798;
+	
+	private KmlModel model;
+	
+	private int minZoom = DEFAULT_MIN_ZOOM;
+	
+	private int maxZoom = DEFAULT_MAX_ZOOM;
+	
+	private GeometryFactory factory = new GeometryFactory();
+	
+	/**
+	 * The index of the Placemarks and their position in the document, while an export is running.
+	 */
+	private SpatialIndex index;
+	private Map<Placemark, Long> placemarkIds;
+	
+	/**
+	 * The bounding boxes of the Placemarks with coordinates, while an export is running.
+	 */
+	private List<Envelope> envelopes;
+	
+	/**
+	 * The metrics of the last export job.
+	 */
+	private JobMetrics metrics;
+	
+	public MBTilesExporter(KmlModel model) {
+		this.model = model;
+	}
+	
+	public int getMinZoom() {
+		return minZoom;
+	}
+	
+	public int getMaxZoom() {
+		return maxZoom;
+	}
+	
+	/**
+	 * Sets the range of zoom levels for which tiles are written. The number of tiles grows by a factor of 4 with
+	 * every zoom level.
+	 * @param minZoom
+	 * @param maxZoom
+	 */
+	public void setZoomRange(int minZoom, int maxZoom) {
+		if (minZoom < 0 || maxZoom > MAX_ZOOM || minZoom > maxZoom)
+			throw new IllegalArgumentException("The zoom levels must be between 0 and " + MAX_ZOOM + ", with the minimum not above the maximum");
+		
+		this.minZoom = minZoom;
+		this.maxZoom = maxZoom;
+	}
+	
+	/**
+	 * Returns the metrics of the last export, or null if nothing was exported yet.
+	 * @return
+	 */
+	public JobMetrics getMetrics() {
+		return metrics;
+	}
+	
+	/**
+	 * Exports the KML model to a new MBTiles file. An existing file is replaced.
+	 * @param file
+	 */
+	public void exportFile(File file) {
+		metrics = new JobMetrics("mbtiles-export");
+		Connection conn = null;
+		boolean success = false;
+		
+		try {
+			if (file.exists() && !file.delete())
+				throw new ExportException("Could not replace the file '" + file + "'.");
+			
+			StageTimer indexTimer = metrics.begin("spatial-index");
+			final Set<String> fields = new LinkedHashSet<String>();
+			try {
+				index = model.getSpatialIndex();
+				
+				// Number the Placemarks in document order, and collect the ExtendedData fields for the metadata.
+				placemarkIds = new IdentityHashMap<Placemark, Long>();
+				envelopes = new ArrayList<Envelope>();
+				if (model.getKml().getFeature() != null) {
+					KmlCrawlerListener listener = new KmlCrawlerListener() {
+						@Override
+						public void onStyleSelector(KmlItem item) {}
+						
+						@Override
+						public void onFeature(KmlItem item) {
+							if (item.getObject() instanceof Placemark) {
+								Placemark placemark = item.getObject();
+								placemarkIds.put(placemark, Long.valueOf(placemarkIds.size()));
+								fields.addAll(ExtendedDataUtil.getValues(placemark).keySet());
+								
+								Envelope env = KmlGeometryUtil.getEnvelope(placemark);
+								if (env != null)
+									envelopes.add(env);
+							}
+						}
+					};
+					new KmlCrawler(model.getKml()).addListener(listener).crawl();
+				}
+				indexTimer.addCount("placemarks", index.size());
+			}
+			finally {
+				indexTimer.end();
+			}
+			
+			// The tables are created by GeoTools. The tiles and metadata are written over a connection of our own,
+			// so that they can be written in batches and with the vector tile format.
+			MBTilesFile mbtiles = new MBTilesFile(file);
+			try {
+				mbtiles.init();
+			}
+			finally {
+				mbtiles.close();
+			}
+			
+			Class.forName("org.sqlite.JDBC");
+			conn = DriverManager.getConnection("jdbc:sqlite:" + file.getPath());
+			conn.setAutoCommit(false);
+			
+			StageTimer tileTimer = metrics.begin("tiles");
+			try {
+				writeTiles(conn, tileTimer);
+			}
+			finally {
+				tileTimer.end();
+			}
+			
+			StageTimer metadataTimer = metrics.begin("metadata");
+			try {
+				writeMetadata(conn, file, fields);
+			}
+			finally {
+				metadataTimer.end();
+			}
+			
+			// Closing the connection finishes the file, after which its size is known.
+			StageTimer writeTimer = metrics.begin("write");
+			try {
+				conn.close();
+				conn = null;
+				writeTimer.addBytesOut(file.length());
+			}
+			finally {
+				writeTimer.end();
+			}
+			
+			success = true;
+		}
+		catch (Exception e) {
+			throw new ExportException("Could not export MBTiles file: " + e.getMessage(), e);
+		}
+		finally {
+			index = null;
+			placemarkIds = null;
+			envelopes = null;
+			close(conn);
+			
+			// Don't leave a half written file behind.
+			if (!success)
+				file.delete();
+			metrics.finish();
+		}
+	}
+	
+	private void writeTiles(Connection conn, StageTimer tileTimer) throws SQLException {
+		if (envelopes.isEmpty())
+			return;
+		
+		PreparedStatement insert = conn.prepareStatement("INSERT INTO tiles (zoom_level, tile_column, tile_row, tile_data) VALUES (?, ?, ?, ?)");
+		try {
+			List<TileTask> batch = new ArrayList<TileTask>(BATCH_SIZE);
+			for (int zoom = minZoom; zoom <= maxZoom; zoom++) {
+				long[] keys = getCandidateTiles(zoom);
+				tileTimer.addCount("candidate-tiles", keys.length);
+				
+				for (long key : keys) {
+					batch.add(new TileTask(zoom, (int) (key >>> 32), (int) key));
+					if (batch.size() == BATCH_SIZE) {
+						writeBatch(conn, insert, batch, tileTimer);
+						batch.clear();
+					}
+				}
+			}
+			
+			if (!batch.isEmpty())
+				writeBatch(conn, insert, batch, tileTimer);
+		}
+		finally {
+			insert.close();
+		}
+	}
+	
+	private long[] getCandidateTiles(int zoom) {
+		// Collect the tiles whose box with the buffer around it overlaps with the bounding box of a Placemark, which
+		// are the tiles for which the spatial index finds any Placemark. The tiles are returned sorted by column and
+		// row, as keys with the column in the upper 32 bits.
+		int maxTile = (1 << zoom) - 1;
+		long[] keys = new long[Math.max(16, envelopes.size())];
+		int numKeys = 0;
+		for (Envelope env : envelopes) {
+			// Start with the tiles that contain the corners of the bounding box, and add the neighbours whose buffer
+			// reaches the bounding box.
+			int minX = getTileX(env.getMinX(), zoom);
+			while (minX > 0 && getClipEnvelope(zoom, minX - 1, 0).getMaxX() >= env.getMinX())
+				minX--;
+			int maxX = getTileX(env.getMaxX(), zoom);
+			while (maxX < maxTile && getClipEnvelope(zoom, maxX + 1, 0).getMinX() <= env.getMaxX())
+				maxX++;
+			int minY = getTileY(env.getMaxY(), zoom);
+			while (minY > 0 && getClipEnvelope(zoom, 0, minY - 1).getMinY() <= env.getMaxY())
+				minY--;
+			int maxY = getTileY(env.getMinY(), zoom);
+			while (maxY < maxTile && getClipEnvelope(zoom, 0, maxY + 1).getMaxY() >= env.getMinY())
+				maxY++;
+			
+			for (int x = minX; x <= maxX; x++) {
+				for (int y = minY; y <= maxY; y++) {
+					if (numKeys == keys.length)
+						keys = Arrays.copyOf(keys, keys.length * 2);
+					keys[numKeys++] = ((long) x << 32) | y;
+				}
+			}
+		}
+		
+		// Remove the tiles that are covered by more than one Placemark.
+		Arrays.sort(keys, 0, numKeys);
+		int numUnique = 0;
+		for (int i = 0; i < numKeys; i++) {
+			if (numUnique == 0 || keys[i] != keys[numUnique - 1])
+				keys[numUnique++] = keys[i];
+		}
+		return Arrays.copyOf(keys, numUnique);
+	}
+	
+	private void writeBatch(Connection conn, PreparedStatement insert, List<TileTask> batch, StageTimer tileTimer) throws SQLException {
+		List<byte[]> tiles = ParallelTasks.invokeAll(batch);
+		
+		int numTiles = 0;
+		for (int i = 0; i < batch.size(); i++) {
+			byte[] data = tiles.get(i);
+			if (data == null)
+				continue;
+			
+			// MBTiles uses the TMS scheme, in which row 0 is south.
+			TileTask task = batch.get(i);
+			insert.setInt(1, task.zoom);
+			insert.setInt(2, task.x);
+			insert.setInt(3, (1 << task.zoom) - 1 - task.y);
+			insert.setBytes(4, data);
+			insert.addBatch();
+			
+			numTiles++;
+			tileTimer.addBytesOut(data.length);
+		}
+		
+		if (numTiles > 0) {
+			insert.executeBatch();
+			conn.commit();
+		}
+		tileTimer.addCount("tiles", numTiles).addCount("empty-tiles", batch.size() - numTiles);
+	}
+	
+	private byte[] encodeTile(int zoom, int x, int y) throws IOException {
+		// The bounding box of the tile in degrees, and the box with the buffer around it.
+		double west = getLongitude(x, zoom);
+		double east = getLongitude(x + 1, zoom);
+		double north = getLatitude(y, zoom);
+		double south = getLatitude(y + 1, zoom);
+		Envelope clipEnv = getClipEnvelope(zoom, x, y);
+		
+		List<KmlItem> items = index.query(clipEnv);
+		if (items.isEmpty())
+			return null;
+		
+		GeometryClipper clipper = new GeometryClipper(factory.toGeometry(clipEnv));
+		GeometrySimplifier simplifier = new GeometrySimplifier(
+				GeometrySimplifier.getToleranceForLod(Math.sqrt((east - west) * (north - south)), TILE_PIXELS));
+		CoordinateSequenceFilter projection = createTileProjection(zoom, x, y);
+		VectorTileEncoder encoder = new VectorTileEncoder(LAYER_NAME, EXTENT);
+		
+		for (KmlItem item : items) {
+			Placemark placemark = item.getObject();
+			Geometry clipped = clipper.clip(placemark.getGeometry());
+			if (clipped == null)
+				continue;
+			
+			com.vividsolutions.jts.geom.Geometry geom = KmlGeometryUtil.toJtsGeometry(simplifier.simplify(clipped), factory);
+			if (geom == null)
+				continue;
+			
+			// The converted geometry is a new object, so it can be projected in place.
+			geom.apply(projection);
+			Long id = placemarkIds.get(placemark);
+			encoder.addFeature((id != null) ? id.longValue() : -1, getProperties(placemark), geom);
+		}
+		
+		if (encoder.getNumFeatures() == 0)
+			return null;
+		
+		// Vector tiles are stored gzipped in MBTiles files.
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		GZIPOutputStream out = new GZIPOutputStream(bytes);
+		try {
+			out.write(encoder.encode());
+		}
+		finally {
+			out.close();
+		}
+		return bytes.toByteArray();
+	}
+	
+	private static Map<String, String> getProperties(Placemark placemark) {
+		// The name and style id take precedence over ExtendedData fields with the same name.
+		Map<String, String> res = new LinkedHashMap<String, String>();
+		res.put("name", placemark.getName());
+		String styleUrl = placemark.getStyleUrl();
+		res.put("style_id", (styleUrl != null && styleUrl.startsWith("#")) ? styleUrl.substring(1) : null);
+		for (Map.Entry<String, String> entry : ExtendedDataUtil.getValues(placemark).entrySet()) {
+			if (!res.containsKey(entry.getKey()))
+				res.put(entry.getKey(), entry.getValue());
+		}
+		return res;
+	}
+	
+	private void writeMetadata(Connection conn, File file, Set<String> fields) throws SQLException {
+		Envelope bounds = index.getBounds();
+		Feature topFeat = model.getKml().getFeature();
+		String name = (topFeat != null && topFeat.getName() != null) ? topFeat.getName() : file.getName();
+		
+		// The fields of the layer, which are all strings.
+		Map<String, String> fieldTypes = new LinkedHashMap<String, String>();
+		fieldTypes.put("name", "String");
+		fieldTypes.put("style_id", "String");
+		for (String field : fields) {
+			fieldTypes.put(field, "String");
+		}
+		Map<String, Object> layer = new LinkedHashMap<String, Object>();
+		layer.put("id", LAYER_NAME);
+		layer.put("fields", fieldTypes);
+		layer.put("minzoom", minZoom);
+		layer.put("maxzoom", maxZoom);
+		List<Object> layers = new ArrayList<Object>();
+		layers.add(layer);
+		Map<String, Object> json = new LinkedHashMap<String, Object>();
+		json.put("vector_layers", layers);
+		
+		Map<String, String> metadata = new LinkedHashMap<String, String>();
+		metadata.put("name", name);
+		metadata.put("format", "pbf");
+		metadata.put("type", "overlay");
+		metadata.put("version", "1");
+		metadata.put("description", "Placemarks of " + name);
+		metadata.put("minzoom", String.valueOf(minZoom));
+		metadata.put("maxzoom", String.valueOf(maxZoom));
+		if (!bounds.isNull()) {
+			metadata.put("bounds", bounds.getMinX() + "," + bounds.getMinY() + "," + bounds.getMaxX() + "," + bounds.getMaxY());
+			metadata.put("center", bounds.centre().x + "," + bounds.centre().y + "," + minZoom);
+		}
+		metadata.put("json", JSONValue.toJSONString(json));
+		
+		PreparedStatement insert = conn.prepareStatement("INSERT OR REPLACE INTO metadata (name, value) VALUES (?, ?)");
+		try {
+			for (Map.Entry<String, String> entry : metadata.entrySet()) {
+				insert.setString(1, entry.getKey());
+				insert.setString(2, entry.getValue());
+				insert.addBatch();
+			}
+			insert.executeBatch();
+		}
+		finally {
+			insert.close();
+		}
+		conn.commit();
+	}
+	
+	private static Envelope getClipEnvelope(int zoom, int x, int y) {
+		// The bounding box of a tile in degrees with the buffer around it.
+		double west = getLongitude(x, zoom);
+		double east = getLongitude(x + 1, zoom);
+		double north = getLatitude(y, zoom);
+		double south = getLatitude(y + 1, zoom);
+		double bufferX = (east - west) * BUFFER / EXTENT;
+		double bufferY = (north - south) * BUFFER / EXTENT;
+		return new Envelope(west - bufferX, east + bufferX, south - bufferY, north + bufferY);
+	}
+	
+	private static CoordinateSequenceFilter createTileProjection(final int zoom, final int x, final int y) {
+		// Projects longitude and latitude to the coordinates within the tile, with y downwards.
+		return new CoordinateSequenceFilter() {
+			@Override
+			public void filter(CoordinateSequence seq, int i) {
+				seq.setOrdinate(i, CoordinateSequence.X, (getWorldX(seq.getX(i), zoom) - x) * EXTENT);
+				seq.setOrdinate(i, CoordinateSequence.Y, (getWorldY(seq.getY(i), zoom) - y) * EXTENT);
+			}
+			
+			@Override
+			public boolean isDone() {
+				return false;
+			}
+			
+			@Override
+			public boolean isGeometryChanged() {
+				return true;
+			}
+		};
+	}
+	
+	/**
+	 * Returns the x position in tiles of a longitude at a zoom level.
+	 */
+	private static double getWorldX(double longitude, int zoom) {
+		return (longitude + 180.0) / 360.0 * (1 << zoom);
+	}
+	
+	/**
+	 * Returns the y position in tiles of a latitude at a zoom level, with 0 at the north edge of the projection.
+	 */
+	private static double getWorldY(double latitude, int zoom) {
+		double lat = Math.toRadians(Math.max(-MAX_LATITUDE, Math.min(MAX_LATITUDE, latitude)));
+		return (1.0 - Math.log(Math.tan(lat) + 1.0 / Math.cos(lat)) / Math.PI) / 2.0 * (1 << zoom);
+	}
+	
+	private static int getTileX(double longitude, int zoom) {
+		return Math.max(0, Math.min((1 << zoom) - 1, (int) Math.floor(getWorldX(longitude, zoom))));
+	}
+	
+	private static int getTileY(double latitude, int zoom) {
+		return Math.max(0, Math.min((1 << zoom) - 1, (int) Math.floor(getWorldY(latitude, zoom))));
+	}
+	
+	private static double getLongitude(int x, int zoom) {
+		return (double) x / (1 << zoom) * 360.0 - 180.0;
+	}
+	
+	private static double getLatitude(int y, int zoom) {
+		double n = Math.PI * (1.0 - 2.0 * y / (1 << zoom));
+		return Math.toDegrees(Math.atan(Math.sinh(n)));
+	}
+	
+	private static void close(Connection conn) {
+		if (conn == null)
+			return;
+		
+		try {
+			conn.close();
+		}
+		catch (SQLException e) {
+			// Nothing more can be done.
+		}
+	}
+
+}
@@ -0,0 +1,353 @@
+package eu.gutermann.common.kmltool.impexp.mbtiles;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryCollection;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.Point;
+import com.vividsolutions.jts.geom.Polygon;
+
+/**
+ * Encoder for a single tile in the <a href="https://github.com/mapbox/vector-tile-spec">Mapbox Vector Tile</a>
+ * format (version 2) with one layer. The protocol buffer messages are written directly, so no protobuf library
+ * is needed.
+ *
+ * Geometries are given in tile coordinates, with x to the right and y downwards, from 0 to the extent within the
+ * tile. They are rounded to integers, and parts that collapse to less than a line or a ring are left out.
+ * The property keys and values of all features are stored once per tile.
+ */
+class VectorTileEncoder {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	
+	private static final int VERSION = 2;
+	
+	// Geometry types of a feature.
+	private static final int TYPE_POINT = 1;
+	private static final int TYPE_LINESTRING = 2;
+	private static final int TYPE_POLYGON = 3;
+	
+	// Geometry commands.
+	private static final int MOVE_TO = 1;
+	private static final int LINE_TO = 2;
+	private static final int CLOSE_PATH = 7;
+	
+	// Protocol buffer wire types.
+	private static final int WIRE_VARINT = 0;
+	private static final int WIRE_LENGTH_DELIMITED = 2;
+	
+	private String layerName;
+	
+	private int extent;
+	
+	private Map<String, Integer> keyIndexes = new LinkedHashMap<String, Integer>();
+	
+	private Map<String, Integer> valueIndexes = new LinkedHashMap<String, Integer>();
+	
+	/**
+	 * The encoded Feature messages of the layer.
+	 */
+	private ByteArrayOutputStream features = new ByteArrayOutputStream();
+	
+	private int numFeatures = 0;
+	
+	/**
+	 * The geometry commands of the feature that is being encoded, and the position of the cursor.
+	 */
+	private int[] commands = new int[256];
+	private int numCommands;
+	private int cursorX;
+	private int cursorY;
+	
+	/**
+	 * @param layerName
+	 * @param extent the size of the tile in tile coordinates, usually 4096
+	 */
+	VectorTileEncoder(String layerName, int extent) {
+		this.layerName = layerName;
+		this.extent = extent;
+	}
+	
+	int getNumFeatures() {
+		return numFeatures;
+	}
+	
+	/**
+	 * Adds a feature with the given properties. A geometry with parts of different types, such as a
+	 * GeometryCollection with Points and LineStrings, is added as one feature per type with the same id.
+	 * @param id the id of the feature, or a negative number for none
+	 * @param properties
+	 * @param geom
+	 */
+	void addFeature(long id, Map<String, String> properties, Geometry geom) {
+		List<Point> points = new ArrayList<Point>();
+		List<LineString> lines = new ArrayList<LineString>();
+		List<Polygon> polygons = new ArrayList<Polygon>();
+		collectParts(geom, points, lines, polygons);
+		
+		int[] tags = null;
+		
+		if (!points.isEmpty()) {
+			startGeometry();
+			encodePoints(points);
+			tags = writeFeature(id, properties, tags, TYPE_POINT);
+		}
+		if (!lines.isEmpty()) {
+			startGeometry();
+			for (LineString line : lines) {
+				encodeLine(line.getCoordinates());
+			}
+			tags = writeFeature(id, properties, tags, TYPE_LINESTRING);
+		}
+		if (!polygons.isEmpty()) {
+			startGeometry();
+			for (Polygon polygon : polygons) {
+				encodePolygon(polygon);
+			}
+			tags = writeFeature(id, properties, tags, TYPE_POLYGON);
+		}
+	}
+	
+	/**
+	 * Returns the encoded tile.
+	 * @return
+	 */
+	byte[] encode() {
+		ByteArrayOutputStream layer = new ByteArrayOutputStream(features.size() + 1024);
+		writeTag(layer, 15, WIRE_VARINT);
+		writeVarint(layer, VERSION);
+		writeString(layer, 1, layerName);
+		byte[] featureBytes = features.toByteArray();
+		layer.write(featureBytes, 0, featureBytes.length);
+		for (String key : keyIndexes.keySet()) {
+			writeString(layer, 3, key);
+		}
+		for (String value : valueIndexes.keySet()) {
+			// A Value message with only a string value.
+			ByteArrayOutputStream valueMsg = new ByteArrayOutputStream();
+			writeString(valueMsg, 1, value);
+			writeBytes(layer, 4, valueMsg.toByteArray());
+		}
+		writeTag(layer, 5, WIRE_VARINT);
+		writeVarint(layer, extent);
+		
+		ByteArrayOutputStream tile = new ByteArrayOutputStream(layer.size() + 8);
+		writeBytes(tile, 3, layer.toByteArray());
+		return tile.toByteArray();
+	}
+	
+	private static void collectParts(Geometry geom, List<Point> points, List<LineString> lines, List<Polygon> polygons) {
+		// Multi-geometries are GeometryCollections too.
+		if (geom instanceof GeometryCollection) {
+			for (int i = 0; i < geom.getNumGeometries(); i++) {
+				collectParts(geom.getGeometryN(i), points, lines, polygons);
+			}
+		}
+		else if (geom instanceof Point) {
+			points.add((Point) geom);
+		}
+		else if (geom instanceof LineString) {
+			lines.add((LineString) geom);
+		}
+		else if (geom instanceof Polygon) {
+			polygons.add((Polygon) geom);
+		}
+	}
+	
+	private int[] writeFeature(long id, Map<String, String> properties, int[] tags, int type) {
+		if (numCommands == 0)
+			return tags;
+		
+		// The tags are the same for all parts of a feature, so they're only looked up once.
+		if (tags == null)
+			tags = getTags(properties);
+		
+		ByteArrayOutputStream feature = new ByteArrayOutputStream(numCommands * 2 + tags.length * 2 + 16);
+		if (id >= 0) {
+			writeTag(feature, 1, WIRE_VARINT);
+			writeVarint(feature, id);
+		}
+		writePacked(feature, 2, tags, tags.length);
+		writeTag(feature, 3, WIRE_VARINT);
+		writeVarint(feature, type);
+		writePacked(feature, 4, commands, numCommands);
+		
+		writeBytes(features, 2, feature.toByteArray());
+		numFeatures++;
+		return tags;
+	}
+	
+	private int[] getTags(Map<String, String> properties) {
+		// Pairs of key and value indexes. Properties without a value are left out.
+		int[] tags = new int[properties.size() * 2];
+		int numTags = 0;
+		for (Map.Entry<String, String> entry : properties.entrySet()) {
+			if (entry.getValue() == null)
+				continue;
+			
+			tags[numTags++] = getIndex(keyIndexes, entry.getKey());
+			tags[numTags++] = getIndex(valueIndexes, entry.getValue());
+		}
+		return (numTags == tags.length) ? tags : Arrays.copyOf(tags, numTags);
+	}
+	
+	private static int getIndex(Map<String, Integer> indexes, String key) {
+		Integer index = indexes.get(key);
+		if (index == null) {
+			index = indexes.size();
+			indexes.put(key, index);
+		}
+		return index;
+	}
+	
+	private void startGeometry() {
+		// The cursor starts at the tile's origin for every feature.
+		numCommands = 0;
+		cursorX = 0;
+		cursorY = 0;
+	}
+	
+	private void encodePoints(List<Point> points) {
+		addCommand(MOVE_TO, points.size());
+		for (Point point : points) {
+			addPosition(point.getCoordinate());
+		}
+	}
+	
+	private void encodeLine(Coordinate[] coords) {
+		int[] xy = round(coords);
+		int numPoints = xy.length / 2;
+		if (numPoints < 2)
+			return;
+		
+		addCommand(MOVE_TO, 1);
+		addPosition(xy[0], xy[1]);
+		addCommand(LINE_TO, numPoints - 1);
+		for (int i = 1; i < numPoints; i++) {
+			addPosition(xy[2 * i], xy[2 * i + 1]);
+		}
+	}
+	
+	private void encodePolygon(Polygon polygon) {
+		// The exterior ring must have a positive area in tile coordinates and the holes a negative one.
+		// If the exterior ring collapses, the holes are left out as well.
+		if (!encodeRing(polygon.getExteriorRing().getCoordinates(), true))
+			return;
+		for (int i = 0; i < polygon.getNumInteriorRing(); i++) {
+			encodeRing(polygon.getInteriorRingN(i).getCoordinates(), false);
+		}
+	}
+	
+	private boolean encodeRing(Coordinate[] coords, boolean exterior) {
+		int[] xy = round(coords);
+		int numPoints = xy.length / 2;
+		
+		// The ring is closed with a ClosePath command instead of repeating the first point.
+		if (numPoints > 1 && xy[0] == xy[2 * numPoints - 2] && xy[1] == xy[2 * numPoints - 1])
+			numPoints--;
+		if (numPoints < 3)
+			return false;
+		
+		long area = 0;
+		for (int i = 0; i < numPoints; i++) {
+			int j = (i + 1) % numPoints;
+			area += (long) xy[2 * i] * xy[2 * j + 1] - (long) xy[2 * j] * xy[2 * i + 1];
+		}
+		if (area == 0)
+			return false;
+		
+		boolean reverse = (area > 0) != exterior;
+		addCommand(MOVE_TO, 1);
+		int first = reverse ? numPoints - 1 : 0;
+		addPosition(xy[2 * first], xy[2 * first + 1]);
+		addCommand(LINE_TO, numPoints - 1);
+		for (int k = 1; k < numPoints; k++) {
+			int i = reverse ? numPoints - 1 - k : k;
+			addPosition(xy[2 * i], xy[2 * i + 1]);
+		}
+		addCommand(CLOSE_PATH, 1);
+		return true;
+	}
+	
+	private static int[] round(Coordinate[] coords) {
+		// Round to integer tile coordinates and leave out the points that end up on the same position as the previous one.
+		int[] xy = new int[coords.length * 2];
+		int n = 0;
+		for (Coordinate coord : coords) {
+			int x = (int) Math.round(coord.x);
+			int y = (int) Math.round(coord.y);
+			if (n > 0 && xy[n - 2] == x && xy[n - 1] == y)
+				continue;
+			xy[n++] = x;
+			xy[n++] = y;
+		}
+		return (n == xy.length) ? xy : Arrays.copyOf(xy, n);
+	}
+	
+	private void addPosition(Coordinate coord) {
+		addPosition((int) Math.round(coord.x), (int) Math.round(coord.y));
+	}
+	
+	private void addPosition(int x, int y) {
+		// Positions are stored as zigzag encoded offsets from the previous position.
+		addInt(zigzag(x - cursorX));
+		addInt(zigzag(y - cursorY));
+		cursorX = x;
+		cursorY = y;
+	}
+	
+	private void addCommand(int command, int count) {
+		addInt((command & 0x7) | (count << 3));
+	}
+	
+	private void addInt(int value) {
+		if (numCommands == commands.length)
+			commands = Arrays.copyOf(commands, commands.length * 2);
+		commands[numCommands++] = value;
+	}
+	
+	private static int zigzag(int n) {
+		return (n << 1) ^ (n >> 31);
+	}
+	
+	private static void writeTag(ByteArrayOutputStream out, int field, int wireType) {
+		writeVarint(out, (field << 3) | wireType);
+	}
+	
+	private static void writeVarint(ByteArrayOutputStream out, long value) {
+		while ((value & ~0x7FL) != 0) {
+			out.write((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.write((int) value);
+	}
+	
+	private static void writeBytes(ByteArrayOutputStream out, int field, byte[] bytes) {
+		writeTag(out, field, WIRE_LENGTH_DELIMITED);
+		writeVarint(out, bytes.length);
+		out.write(bytes, 0, bytes.length);
+	}
+	
+	private static void writeString(ByteArrayOutputStream out, int field, String value) {
+		writeBytes(out, field, value.getBytes(UTF8));
+	}
+	
+	private static void writePacked(ByteArrayOutputStream out, int field, int[] values, int length) {
+		if (length == 0)
+			return;
+		
+		ByteArrayOutputStream packed = new ByteArrayOutputStream(length * 2);
+		for (int i = 0; i < length; i++) {
+			writeVarint(packed, values[i] & 0xFFFFFFFFL);
+		}
+		writeBytes(out, field, packed.toByteArray());
+	}
+
+}
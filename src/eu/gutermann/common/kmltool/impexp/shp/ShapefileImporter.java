@@ -0,0 +1,235 @@
+package eu.gutermann.common.kmltool.impexp.shp;
+
+import java.io.File;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.geotools.data.FeatureReader;
+import org.geotools.data.shapefile.ShapefileDataStore;
+import org.geotools.geometry.jts.JTS;
+import org.geotools.referencing.CRS;
+import org.geotools.referencing.crs.DefaultGeographicCRS;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.AttributeDescriptor;
+import org.opengis.feature.type.GeometryDescriptor;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.opengis.referencing.operation.MathTransform;
+
+import de.micromata.opengis.kml.v_2_2_0.Document;
+import de.micromata.opengis.kml.v_2_2_0.ExtendedData;
+import de.micromata.opengis.kml.v_2_2_0.Folder;
+import de.micromata.opengis.kml.v_2_2_0.Kml;
+import de.micromata.opengis.kml.v_2_2_0.KmlFactory;
+import de.micromata.opengis.kml.v_2_2_0.Placemark;
+import de.micromata.opengis.kml.v_2_2_0.Schema;
+import de.micromata.opengis.kml.v_2_2_0.SchemaData;
+import de.micromata.opengis.kml.v_2_2_0.SimpleField;
+import de.micromata.opengis.kml.v_2_2_0.Style;
+import eu.gutermann.common.kmltool.impexp.exception.ImportException;
+import eu.gutermann.common.kmltool.model.KmlModel;
+import eu.gutermann.common.kmltool.util.KmlGeometryUtil;
+import eu.gutermann.common.kmltool.util.metrics.JobMetrics;
+import eu.gutermann.common.kmltool.util.metrics.StageTimer;
+
+/**
+ * Class for importing ESRI Shapefiles and converting them to the KML model.
+ * It uses the <a href="http://www.geotools.org/">GeoTools</a> library for reading the Shapefile and for converting
+ * the coordinates from the Shapefile's coordinate system to WGS84, in the same way as {@link eu.gutermann.common.kmltool.impexp.dxf.DxfImporter}.
+ * It uses the <a href="http://labs.micromata.de/projects/jak.html">Java API for KML</a> for creating
+ * the KML model.
+ *
+ * The features are read one by one from a memory-mapped file and converted to Placemarks right away, so the
+ * Shapefile is never loaded as a whole. The attributes of the features are stored as ExtendedData, with a Schema
+ * that has a field for each attribute of the Shapefile.
+ */
+public class ShapefileImporter {
+	private KmlModel model;
+	
+	private MathTransform transform;
+	
+	/**
+	 * The metrics of the last import job.
+	 */
+	private JobMetrics metrics;
+	
+	public ShapefileImporter(KmlModel model) {
+		this.model = model;
+	}
+	
+	/**
+	 * Returns the metrics of the last import, or null if nothing was imported yet.
+	 * @return
+	 */
+	public JobMetrics getMetrics() {
+		return metrics;
+	}
+	
+	/**
+	 * Returns true if the Shapefile has a .prj file that defines its coordinate system.
+	 * @param file
+	 * @return
+	 */
+	public static boolean hasProjectionFile(File file) {
+		return getSiblingFile(file, ".prj").exists();
+	}
+	
+	/**
+	 * Imports a Shapefile. The coordinate system from its .prj file is used if there is one, and otherwise the
+	 * given coordinate system.
+	 * @param file the .shp file
+	 * @param srcCrs the coordinate system to use if the Shapefile doesn't define one, may be null
+	 */
+	public void importFile(File file, CoordinateReferenceSystem srcCrs) {
+		metrics = new JobMetrics("shp-import");
+		ShapefileDataStore store = null;
+		
+		try {
+			store = new ShapefileDataStore(file.toURI().toURL());
+			store.setMemoryMapped(true);
+			SimpleFeatureType type = store.getSchema();
+			
+			// Get the transformation algorithm for converting from the Shapefile's coordinate system to WGS84.
+			CoordinateReferenceSystem crs = (type.getCoordinateReferenceSystem() != null) ? type.getCoordinateReferenceSystem() : srcCrs;
+			if (crs == null)
+				throw new ImportException("The file '" + file + "' has no coordinate system. Please select one.");
+			transform = CRS.findMathTransform(crs, DefaultGeographicCRS.WGS84, true);
+			
+			// Create the KML and a Document element with the Shapefile's name.
+			Kml kml = KmlFactory.createKml();
+			Document kmlDoc = kml.createAndSetDocument();
+			
+			String filename = file.getName();
+			int extensionIndex = filename.lastIndexOf('.');
+			String docName = (extensionIndex > 0) ? filename.substring(0, extensionIndex) : filename;
+			kmlDoc.setName(docName);
+			
+			// Like a DXF layer, the Shapefile gets a Style and a Folder with its type name.
+			String typeName = type.getTypeName();
+			Style style = kmlDoc.createAndAddStyle();
+			style.setId(typeName);
+			style.createAndSetLineStyle().withColor("ff000000").withWidth(1.0);
+			
+			Folder folder = kmlDoc.createAndAddFolder();
+			folder.setName(typeName);
+			
+			List<AttributeDescriptor> attributes = createSchema(kmlDoc, type);
+			
+			// Convert the features to KML Placemarks while they're read.
+			StageTimer convertTimer = metrics.begin("convert").addBytesIn(file.length());
+			FeatureReader<SimpleFeatureType, SimpleFeature> reader = store.getFeatureReader();
+			try {
+				while (reader.hasNext()) {
+					handleFeature(reader.next(), attributes, folder, style, convertTimer);
+				}
+			}
+			finally {
+				reader.close();
+				convertTimer.end();
+			}
+			
+			StageTimer styleTimer = metrics.begin("style-extraction");
+			try {
+				model.setKml(kml);
+				styleTimer.addCount("styles", model.getStyles().size());
+			}
+			finally {
+				styleTimer.end();
+			}
+			
+			if (model.isSpatialIndexEnabled()) {
+				StageTimer indexTimer = metrics.begin("spatial-index");
+				try {
+					indexTimer.addCount("placemarks", model.getSpatialIndex().size());
+				}
+				finally {
+					indexTimer.end();
+				}
+			}
+		}
+		catch (Exception e) {
+			throw new ImportException("Could not import Shapefile: " + e.getMessage(), e);
+		}
+		finally {
+			if (store != null)
+				store.dispose();
+			metrics.finish();
+		}
+	}
+	
+	private List<AttributeDescriptor> createSchema(Document kmlDoc, SimpleFeatureType type) {
+		// Create a Schema with a field for each attribute other than the geometry.
+		Schema schema = kmlDoc.createAndAddSchema();
+		schema.setId(type.getTypeName());
+		schema.setName(type.getTypeName());
+		
+		List<AttributeDescriptor> attributes = new ArrayList<AttributeDescriptor>();
+		for (AttributeDescriptor attr : type.getAttributeDescriptors()) {
+			if (attr instanceof GeometryDescriptor)
+				continue;
+			
+			SimpleField field = schema.createAndAddSimpleField();
+			field.setName(attr.getLocalName());
+			field.setType(getKmlType(attr.getType().getBinding()));
+			attributes.add(attr);
+		}
+		return attributes;
+	}
+	
+	private void handleFeature(SimpleFeature feature, List<AttributeDescriptor> attributes, Folder folder, Style style, StageTimer convertTimer) throws Exception {
+		// Features without a geometry can't be shown, so they are skipped.
+		com.vividsolutions.jts.geom.Geometry geom = (com.vividsolutions.jts.geom.Geometry) feature.getDefaultGeometry();
+		if (geom == null || geom.isEmpty()) {
+			convertTimer.addCount("skipped", 1);
+			return;
+		}
+		
+		Placemark placemark = folder.createAndAddPlacemark();
+		placemark.setStyleUrl("#" + style.getId());
+		placemark.setGeometry(KmlGeometryUtil.toKmlGeometry(JTS.transform(geom, transform)));
+		
+		// Store the attribute values as SchemaData. Empty values are left out.
+		ExtendedData extData = placemark.createAndSetExtendedData();
+		SchemaData schemaData = extData.createAndAddSchemaData();
+		schemaData.setSchemaUrl("#" + feature.getFeatureType().getTypeName());
+		for (AttributeDescriptor attr : attributes) {
+			Object value = feature.getAttribute(attr.getLocalName());
+			if (value == null || "".equals(value.toString().trim()))
+				continue;
+			
+			String text = value.toString().trim();
+			schemaData.createAndAddSimpleData(attr.getLocalName()).setValue(text);
+			
+			// An attribute called "name" is also used as the name of the Placemark.
+			if ("name".equalsIgnoreCase(attr.getLocalName()))
+				placemark.setName(text);
+		}
+		
+		convertTimer.addCount("placemarks", 1).addCount("vertices", geom.getNumPoints());
+	}
+	
+	private static String getKmlType(Class<?> binding) {
+		// Map the Java class of an attribute to one of the types that KML SimpleFields support.
+		if (Integer.class.equals(binding) || Long.class.equals(binding) || Short.class.equals(binding) || BigInteger.class.equals(binding))
+			return "int";
+		if (Float.class.equals(binding))
+			return "float";
+		if (Double.class.equals(binding) || BigDecimal.class.equals(binding))
+			return "double";
+		if (Boolean.class.equals(binding))
+			return "bool";
+		return "string";
+	}
+	
+	private static File getSiblingFile(File file, String extension) {
+		// Returns the file with the same base name and another extension, e.g. the .prj file of a .shp file.
+		String path = file.getPath();
+		int extensionIndex = path.lastIndexOf('.');
+		if (extensionIndex > path.lastIndexOf(File.separatorChar))
+			path = path.substring(0, extensionIndex);
+		return new File(path + extension);
+	}
+
+}
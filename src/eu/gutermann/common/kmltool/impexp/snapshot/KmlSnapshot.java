@@ -0,0 +1,222 @@
+package eu.gutermann.common.kmltool.impexp.snapshot;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import de.micromata.opengis.kml.v_2_2_0.Coordinate;
+import de.micromata.opengis.kml.v_2_2_0.Kml;
+import eu.gutermann.common.kmltool.util.metrics.JobMetrics;
+import eu.gutermann.common.kmltool.util.metrics.StageTimer;
+
+/**
+ * Reads and writes snapshots of imported files, so that a file that didn't change since its last import can be
+ * loaded without parsing it again. A snapshot is stored next to its source file with the extension
+ * {@link #EXTENSION}.
+ *
+ * The snapshot is a binary format: a header with the size and modification time of the source file, a table of all
+ * StyleSelectors (stored as KML, since they are small and have many elements), followed by the Feature tree. Strings
+ * are written once and referred to by their index afterwards, and coordinates are written as plain doubles.
+ * The format only supports the elements that the importers of this tool create. A snapshot is only kept if reading
+ * it back gives the same KML as the original, so KML files with other elements are simply parsed on every import.
+ */
+public class KmlSnapshot {
+	public static final String EXTENSION = ".kmlsnapshot";
+	
+	static final int MAGIC = 0x4B4D4C53;
+	
+	/**
+	 * The version of the format. Snapshots of other versions are ignored.
+	 */
+	static final int VERSION = 1;
+	
+	// Types of Features and Geometries.
+	static final int NONE = 0;
+	static final int DOCUMENT = 1;
+	static final int FOLDER = 2;
+	static final int PLACEMARK = 3;
+	static final int POINT = 4;
+	static final int LINE_STRING = 5;
+	static final int LINEAR_RING = 6;
+	static final int POLYGON = 7;
+	static final int MULTI_GEOMETRY = 8;
+	
+	/**
+	 * The fields of each KML class, used for comparing a snapshot with the original KML.
+	 */
+	private static final Map<Class<?>, List<Field>> FIELDS = new ConcurrentHashMap<Class<?>, List<Field>>();
+	
+	private KmlSnapshot() {
+		// static utility class
+	}
+	
+	/**
+	 * Returns the snapshot file of a source file.
+	 * @param source
+	 * @return
+	 */
+	public static File getFile(File source) {
+		return new File(source.getPath() + EXTENSION);
+	}
+	
+	/**
+	 * Reads the snapshot of a source file. Returns null if there is no snapshot, if the source file changed since the
+	 * snapshot was written, if the snapshot was written with another key or if it can't be read.
+	 * @param source
+	 * @param key any text that also determines the result of the import, for example the coordinate system
+	 * @param metrics
+	 * @return
+	 */
+	public static Kml read(File source, String key, JobMetrics metrics) {
+		File file = getFile(source);
+		if (!file.isFile())
+			return null;
+		
+		StageTimer timer = metrics.begin("snapshot-read").addBytesIn(file.length());
+		try {
+			InputStream in = new BufferedInputStream(new FileInputStream(file));
+			try {
+				SnapshotReader reader = new SnapshotReader(in);
+				if (!reader.readHeader(source, key)) {
+					timer.addCount("misses", 1);
+					return null;
+				}
+				
+				Kml kml = reader.readKml();
+				timer.addCount("hits", 1);
+				return kml;
+			}
+			finally {
+				in.close();
+			}
+		}
+		catch (Exception e) {
+			// A broken snapshot is no problem, the source file is parsed instead.
+			timer.addCount("misses", 1);
+			return null;
+		}
+		finally {
+			timer.end();
+		}
+	}
+	
+	/**
+	 * Writes the snapshot of a source file that was imported into the given KML. The snapshot is only written if it
+	 * can hold all elements of the KML. Returns true if the snapshot was written.
+	 * @param source
+	 * @param key see {@link #read(File, String, JobMetrics)}
+	 * @param kml
+	 * @param metrics
+	 * @return
+	 */
+	public static boolean write(File source, String key, Kml kml, JobMetrics metrics) {
+		File file = getFile(source);
+		File tempFile = new File(file.getPath() + ".tmp");
+		
+		StageTimer timer = metrics.begin("snapshot-write");
+		try {
+			OutputStream out = new BufferedOutputStream(new FileOutputStream(tempFile));
+			try {
+				new SnapshotWriter(out).write(source, key, kml);
+			}
+			finally {
+				out.close();
+			}
+			timer.addBytesOut(tempFile.length());
+			
+			// Read the snapshot back and only keep it if nothing was lost.
+			Kml copy;
+			InputStream in = new BufferedInputStream(new FileInputStream(tempFile));
+			try {
+				SnapshotReader reader = new SnapshotReader(in);
+				reader.readHeader(source, key);
+				copy = reader.readKml();
+			}
+			finally {
+				in.close();
+			}
+			
+			if (!equalsIgnoringEmptyLists(kml, copy)) {
+				tempFile.delete();
+				return false;
+			}
+			
+			file.delete();
+			return tempFile.renameTo(file);
+		}
+		catch (Exception e) {
+			// The snapshot is only an optimization, so the import doesn't fail if it can't be written.
+			tempFile.delete();
+			return false;
+		}
+		finally {
+			timer.end();
+		}
+	}
+	
+	/**
+	 * Compares two KML trees field by field, treating empty lists the same as missing lists. The KML classes create
+	 * lists on first access, so otherwise two equal trees would differ depending on which lists were accessed.
+	 * Neither tree is modified.
+	 * @param obj1
+	 * @param obj2
+	 * @return
+	 * @throws IllegalAccessException
+	 */
+	private static boolean equalsIgnoringEmptyLists(Object obj1, Object obj2) throws IllegalAccessException {
+		if (obj1 == obj2)
+			return true;
+		if (obj1 == null || obj2 == null || obj1.getClass() != obj2.getClass())
+			return false;
+		if (obj1 instanceof Coordinate || obj1.getClass().isEnum() || !obj1.getClass().getName().startsWith("de.micromata."))
+			return obj1.equals(obj2);
+		
+		for (Field field : getFields(obj1.getClass())) {
+			Object value1 = field.get(obj1);
+			Object value2 = field.get(obj2);
+			if (value1 instanceof List || value2 instanceof List) {
+				List<?> list1 = (value1 != null) ? (List<?>) value1 : Collections.emptyList();
+				List<?> list2 = (value2 != null) ? (List<?>) value2 : Collections.emptyList();
+				if (list1.size() != list2.size())
+					return false;
+				for (int i = 0; i < list1.size(); i++) {
+					if (!equalsIgnoringEmptyLists(list1.get(i), list2.get(i)))
+						return false;
+				}
+			}
+			else if (!equalsIgnoringEmptyLists(value1, value2)) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	private static List<Field> getFields(Class<?> cls) {
+		List<Field> fields = FIELDS.get(cls);
+		if (fields == null) {
+			fields = new ArrayList<Field>();
+			for (Class<?> c = cls; c != null && c != Object.class; c = c.getSuperclass()) {
+				for (Field field : c.getDeclaredFields()) {
+					if (!Modifier.isStatic(field.getModifiers())) {
+						field.setAccessible(true);
+						fields.add(field);
+					}
+				}
+			}
+			FIELDS.put(cls, fields);
+		}
+		return fields;
+	}
+
+}
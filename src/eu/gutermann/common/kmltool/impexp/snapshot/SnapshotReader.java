@@ -0,0 +1,340 @@
+package eu.gutermann.common.kmltool.impexp.snapshot;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.bind.JAXBException;
+
+import de.micromata.opengis.kml.v_2_2_0.AltitudeMode;
+import de.micromata.opengis.kml.v_2_2_0.Boundary;
+import de.micromata.opengis.kml.v_2_2_0.Container;
+import de.micromata.opengis.kml.v_2_2_0.Coordinate;
+import de.micromata.opengis.kml.v_2_2_0.Data;
+import de.micromata.opengis.kml.v_2_2_0.Document;
+import de.micromata.opengis.kml.v_2_2_0.ExtendedData;
+import de.micromata.opengis.kml.v_2_2_0.Feature;
+import de.micromata.opengis.kml.v_2_2_0.Folder;
+import de.micromata.opengis.kml.v_2_2_0.Geometry;
+import de.micromata.opengis.kml.v_2_2_0.Kml;
+import de.micromata.opengis.kml.v_2_2_0.LineString;
+import de.micromata.opengis.kml.v_2_2_0.LinearRing;
+import de.micromata.opengis.kml.v_2_2_0.MultiGeometry;
+import de.micromata.opengis.kml.v_2_2_0.Placemark;
+import de.micromata.opengis.kml.v_2_2_0.Point;
+import de.micromata.opengis.kml.v_2_2_0.Polygon;
+import de.micromata.opengis.kml.v_2_2_0.Schema;
+import de.micromata.opengis.kml.v_2_2_0.SchemaData;
+import de.micromata.opengis.kml.v_2_2_0.SimpleData;
+import de.micromata.opengis.kml.v_2_2_0.SimpleField;
+import de.micromata.opengis.kml.v_2_2_0.StyleSelector;
+import eu.gutermann.common.kmltool.impexp.kml.KmlJaxb;
+
+/**
+ * Reads a KML in the snapshot format described in {@link KmlSnapshot}.
+ */
+class SnapshotReader {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	
+	private static final AltitudeMode[] ALTITUDE_MODES = AltitudeMode.values();
+	
+	private DataInputStream in;
+	
+	/**
+	 * The strings read so far, by their index.
+	 */
+	private List<String> strings = new ArrayList<String>();
+	
+	private List<StyleSelector> styleTable;
+	
+	private byte[] coordBytes = new byte[8 * 3 * 1024];
+	
+	SnapshotReader(InputStream in) {
+		this.in = new DataInputStream(in);
+	}
+	
+	/**
+	 * Reads the header and returns true if the snapshot was made from the source file as it is now, with the same
+	 * key and in the current format version.
+	 * @param source
+	 * @param key
+	 * @return
+	 * @throws IOException
+	 */
+	boolean readHeader(File source, String key) throws IOException {
+		return in.readInt() == KmlSnapshot.MAGIC
+				&& in.readInt() == KmlSnapshot.VERSION
+				&& in.readLong() == source.length()
+				&& in.readLong() == source.lastModified()
+				&& readText().equals(key);
+	}
+	
+	/**
+	 * Reads the KML after the header.
+	 * @return
+	 * @throws IOException
+	 */
+	Kml readKml() throws IOException {
+		String styleTableKml = readText();
+		styleTable = new ArrayList<StyleSelector>();
+		if (!styleTableKml.isEmpty()) {
+			try {
+				styleTable.addAll(KmlJaxb.unmarshal(styleTableKml).getFeature().getStyleSelector());
+			}
+			catch (JAXBException e) {
+				throw new IOException("Could not read the styles: " + e.getMessage(), e);
+			}
+		}
+		
+		Kml kml = new Kml();
+		kml.setFeature(readFeature());
+		return kml;
+	}
+	
+	/**
+	 * The Snippet class of the Java API for KML library is deprecated, but it's the one that holds the KML 2.2
+	 * &lt;Snippet maxLines="..."&gt; element. The String alternative (snippetd) is the lowercase &lt;snippet&gt; of
+	 * KML 2.1 without maxLines, so the class is still used here.
+	 */
+	@SuppressWarnings("deprecation")
+	private void readSnippet(Feature feat) throws IOException {
+		de.micromata.opengis.kml.v_2_2_0.Snippet snippet = new de.micromata.opengis.kml.v_2_2_0.Snippet();
+		snippet.setValue(readString());
+		snippet.setMaxLines(readVarint());
+		feat.setSnippet(snippet);
+	}
+	
+	private Feature readFeature() throws IOException {
+		Feature feat;
+		int type = in.readByte();
+		if (type == KmlSnapshot.DOCUMENT)
+			feat = new Document();
+		else if (type == KmlSnapshot.FOLDER)
+			feat = new Folder();
+		else if (type == KmlSnapshot.PLACEMARK)
+			feat = new Placemark();
+		else if (type == KmlSnapshot.NONE)
+			return null;
+		else
+			throw new IOException("Unknown feature type " + type);
+		
+		feat.setId(readString());
+		feat.setTargetId(readString());
+		feat.setName(readString());
+		feat.setVisibility(readBoolean());
+		feat.setOpen(readBoolean());
+		feat.setDescription(readString());
+		feat.setStyleUrl(readString());
+		
+		if (in.readBoolean())
+			readSnippet(feat);
+		
+		int numSelectors = readVarint();
+		for (int i = 0; i < numSelectors; i++) {
+			feat.getStyleSelector().add(styleTable.get(readVarint()));
+		}
+		
+		feat.setExtendedData(readExtendedData());
+		
+		if (feat instanceof Document) {
+			Document doc = (Document) feat;
+			int numSchemas = readVarint();
+			for (int i = 0; i < numSchemas; i++) {
+				Schema schema = doc.createAndAddSchema();
+				schema.setId(readString());
+				schema.setName(readString());
+				int numFields = readVarint();
+				for (int j = 0; j < numFields; j++) {
+					SimpleField field = schema.createAndAddSimpleField();
+					field.setType(readString());
+					field.setName(readString());
+					field.setDisplayName(readString());
+				}
+			}
+		}
+		
+		if (feat instanceof Container) {
+			List<Feature> children = (feat instanceof Document) ? ((Document) feat).getFeature() : ((Folder) feat).getFeature();
+			int numChildren = readVarint();
+			for (int i = 0; i < numChildren; i++) {
+				Feature child = readFeature();
+				if (child != null)
+					children.add(child);
+			}
+		}
+		else {
+			((Placemark) feat).setGeometry(readGeometry());
+		}
+		return feat;
+	}
+	
+	private ExtendedData readExtendedData() throws IOException {
+		if (!in.readBoolean())
+			return null;
+		
+		ExtendedData extData = new ExtendedData();
+		int numData = readVarint();
+		for (int i = 0; i < numData; i++) {
+			Data data = new Data(null);
+			data.setName(readString());
+			data.setDisplayName(readString());
+			data.setValue(readString());
+			extData.getData().add(data);
+		}
+		int numSchemaData = readVarint();
+		for (int i = 0; i < numSchemaData; i++) {
+			SchemaData schemaData = extData.createAndAddSchemaData();
+			schemaData.setSchemaUrl(readString());
+			int numSimpleData = readVarint();
+			for (int j = 0; j < numSimpleData; j++) {
+				SimpleData simpleData = new SimpleData(readString());
+				simpleData.setValue(readString());
+				schemaData.getSimpleData().add(simpleData);
+			}
+		}
+		return extData;
+	}
+	
+	private Geometry readGeometry() throws IOException {
+		int type = in.readByte();
+		if (type == KmlSnapshot.NONE)
+			return null;
+		
+		String id = readString();
+		String targetId = readString();
+		Geometry geom;
+		
+		if (type == KmlSnapshot.POINT) {
+			Point point = new Point();
+			point.setExtrude(readBoolean());
+			point.setAltitudeMode(readAltitudeMode());
+			point.setCoordinates(readCoordinates());
+			geom = point;
+		}
+		else if (type == KmlSnapshot.LINE_STRING) {
+			LineString line = new LineString();
+			line.setExtrude(readBoolean());
+			line.setTessellate(readBoolean());
+			line.setAltitudeMode(readAltitudeMode());
+			line.setCoordinates(readCoordinates());
+			geom = line;
+		}
+		else if (type == KmlSnapshot.LINEAR_RING) {
+			LinearRing ring = new LinearRing();
+			ring.setExtrude(readBoolean());
+			ring.setTessellate(readBoolean());
+			ring.setAltitudeMode(readAltitudeMode());
+			ring.setCoordinates(readCoordinates());
+			geom = ring;
+		}
+		else if (type == KmlSnapshot.POLYGON) {
+			Polygon polygon = new Polygon();
+			polygon.setExtrude(readBoolean());
+			polygon.setTessellate(readBoolean());
+			polygon.setAltitudeMode(readAltitudeMode());
+			polygon.setOuterBoundaryIs(readBoundary());
+			int numInner = readVarint();
+			for (int i = 0; i < numInner; i++) {
+				polygon.getInnerBoundaryIs().add(readBoundary());
+			}
+			geom = polygon;
+		}
+		else if (type == KmlSnapshot.MULTI_GEOMETRY) {
+			MultiGeometry multi = new MultiGeometry();
+			int numChildren = readVarint();
+			for (int i = 0; i < numChildren; i++) {
+				Geometry child = readGeometry();
+				if (child != null)
+					multi.getGeometry().add(child);
+			}
+			geom = multi;
+		}
+		else {
+			throw new IOException("Unknown geometry type " + type);
+		}
+		
+		geom.setId(id);
+		geom.setTargetId(targetId);
+		return geom;
+	}
+	
+	private Boundary readBoundary() throws IOException {
+		Geometry ring = readGeometry();
+		if (ring == null)
+			return null;
+		
+		Boundary boundary = new Boundary();
+		boundary.setLinearRing((LinearRing) ring);
+		return boundary;
+	}
+	
+	private AltitudeMode readAltitudeMode() throws IOException {
+		int ordinal = in.readByte();
+		return (ordinal > 0) ? ALTITUDE_MODES[ordinal - 1] : null;
+	}
+	
+	private List<Coordinate> readCoordinates() throws IOException {
+		int size = readVarint();
+		if (size == 0)
+			return null;
+		
+		boolean hasAltitude = in.readBoolean();
+		int dims = hasAltitude ? 3 : 2;
+		List<Coordinate> coords = new ArrayList<Coordinate>(size);
+		
+		// Read the doubles in blocks that fit into the buffer.
+		int coordsPerBlock = coordBytes.length / (8 * dims);
+		for (int start = 0; start < size; start += coordsPerBlock) {
+			int count = Math.min(coordsPerBlock, size - start);
+			in.readFully(coordBytes, 0, count * 8 * dims);
+			ByteBuffer buffer = ByteBuffer.wrap(coordBytes, 0, count * 8 * dims);
+			for (int i = 0; i < count; i++) {
+				double longitude = buffer.getDouble();
+				double latitude = buffer.getDouble();
+				double altitude = hasAltitude ? buffer.getDouble() : 0.0;
+				coords.add(new Coordinate(longitude, latitude, altitude));
+			}
+		}
+		return coords;
+	}
+	
+	private Boolean readBoolean() throws IOException {
+		int value = in.readByte();
+		return (value == 0) ? null : Boolean.valueOf(value == 2);
+	}
+	
+	private String readString() throws IOException {
+		int ref = readVarint();
+		if (ref == 0)
+			return null;
+		if (ref > 1)
+			return strings.get(ref - 2);
+		
+		String value = readText();
+		strings.add(value);
+		return value;
+	}
+	
+	private String readText() throws IOException {
+		byte[] bytes = new byte[readVarint()];
+		in.readFully(bytes);
+		return new String(bytes, UTF8);
+	}
+	
+	private int readVarint() throws IOException {
+		int res = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			int b = in.readByte();
+			res |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return res;
+		}
+		throw new IOException("Malformed varint");
+	}
+
+}
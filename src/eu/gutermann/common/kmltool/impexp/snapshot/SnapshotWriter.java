@@ -0,0 +1,349 @@
+package eu.gutermann.common.kmltool.impexp.snapshot;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.bind.JAXBException;
+
+import de.micromata.opengis.kml.v_2_2_0.AltitudeMode;
+import de.micromata.opengis.kml.v_2_2_0.Boundary;
+import de.micromata.opengis.kml.v_2_2_0.Container;
+import de.micromata.opengis.kml.v_2_2_0.Coordinate;
+import de.micromata.opengis.kml.v_2_2_0.Data;
+import de.micromata.opengis.kml.v_2_2_0.Document;
+import de.micromata.opengis.kml.v_2_2_0.ExtendedData;
+import de.micromata.opengis.kml.v_2_2_0.Feature;
+import de.micromata.opengis.kml.v_2_2_0.Folder;
+import de.micromata.opengis.kml.v_2_2_0.Geometry;
+import de.micromata.opengis.kml.v_2_2_0.Kml;
+import de.micromata.opengis.kml.v_2_2_0.LineString;
+import de.micromata.opengis.kml.v_2_2_0.LinearRing;
+import de.micromata.opengis.kml.v_2_2_0.MultiGeometry;
+import de.micromata.opengis.kml.v_2_2_0.Placemark;
+import de.micromata.opengis.kml.v_2_2_0.Point;
+import de.micromata.opengis.kml.v_2_2_0.Polygon;
+import de.micromata.opengis.kml.v_2_2_0.Schema;
+import de.micromata.opengis.kml.v_2_2_0.SchemaData;
+import de.micromata.opengis.kml.v_2_2_0.SimpleData;
+import de.micromata.opengis.kml.v_2_2_0.SimpleField;
+import de.micromata.opengis.kml.v_2_2_0.StyleSelector;
+import eu.gutermann.common.kmltool.impexp.kml.KmlJaxb;
+
+/**
+ * Writes a KML in the snapshot format described in {@link KmlSnapshot}.
+ * Elements that the format doesn't support are left out, which is detected by comparing the snapshot with the
+ * original KML afterwards.
+ */
+class SnapshotWriter {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	
+	private DataOutputStream out;
+	
+	/**
+	 * The index of every string written so far. Each string is written once and referred to by its index afterwards.
+	 */
+	private Map<String, Integer> strings = new HashMap<String, Integer>();
+	
+	/**
+	 * The index of every StyleSelector in the style table.
+	 */
+	private Map<StyleSelector, Integer> styleIndexes = new IdentityHashMap<StyleSelector, Integer>();
+	
+	private ByteBuffer coordBuffer = ByteBuffer.allocate(8 * 3 * 1024);
+	
+	SnapshotWriter(OutputStream out) {
+		this.out = new DataOutputStream(out);
+	}
+	
+	void write(File source, String key, Kml kml) throws IOException {
+		out.writeInt(KmlSnapshot.MAGIC);
+		out.writeInt(KmlSnapshot.VERSION);
+		out.writeLong(source.length());
+		out.writeLong(source.lastModified());
+		writeText(key);
+		
+		writeStyleTable(kml.getFeature());
+		writeFeature(kml.getFeature());
+		out.flush();
+	}
+	
+	private void writeStyleTable(Feature topFeat) throws IOException {
+		// All StyleSelectors are written together as the StyleSelectors of a single KML Document. Features refer to
+		// them by their position within this Document.
+		List<StyleSelector> selectors = new ArrayList<StyleSelector>();
+		collectStyleSelectors(topFeat, selectors);
+		if (selectors.isEmpty()) {
+			writeText("");
+			return;
+		}
+		
+		Kml tableKml = new Kml();
+		tableKml.createAndSetDocument().getStyleSelector().addAll(selectors);
+		StringWriter writer = new StringWriter();
+		try {
+			KmlJaxb.marshal(tableKml, writer);
+		}
+		catch (JAXBException e) {
+			throw new IOException("Could not write the styles: " + e.getMessage(), e);
+		}
+		writeText(writer.toString());
+	}
+	
+	private void collectStyleSelectors(Feature feat, List<StyleSelector> selectors) {
+		if (feat == null)
+			return;
+		
+		for (StyleSelector selector : feat.getStyleSelector()) {
+			styleIndexes.put(selector, selectors.size());
+			selectors.add(selector);
+		}
+		for (Feature child : getChildren(feat)) {
+			collectStyleSelectors(child, selectors);
+		}
+	}
+	
+	/**
+	 * See {@link SnapshotReader} for why the deprecated Snippet class is used.
+	 */
+	@SuppressWarnings("deprecation")
+	private void writeSnippet(Feature feat) throws IOException {
+		de.micromata.opengis.kml.v_2_2_0.Snippet snippet = feat.getSnippet();
+		out.writeBoolean(snippet != null);
+		if (snippet != null) {
+			writeString(snippet.getValue());
+			writeVarint(snippet.getMaxLines());
+		}
+	}
+	
+	private void writeFeature(Feature feat) throws IOException {
+		if (feat instanceof Document)
+			out.writeByte(KmlSnapshot.DOCUMENT);
+		else if (feat instanceof Folder)
+			out.writeByte(KmlSnapshot.FOLDER);
+		else if (feat instanceof Placemark)
+			out.writeByte(KmlSnapshot.PLACEMARK);
+		else {
+			out.writeByte(KmlSnapshot.NONE);
+			return;
+		}
+		
+		writeString(feat.getId());
+		writeString(feat.getTargetId());
+		writeString(feat.getName());
+		writeBoolean(feat.isVisibility());
+		writeBoolean(feat.isOpen());
+		writeString(feat.getDescription());
+		writeString(feat.getStyleUrl());
+		
+		writeSnippet(feat);
+		
+		List<StyleSelector> selectors = feat.getStyleSelector();
+		writeVarint(selectors.size());
+		for (StyleSelector selector : selectors) {
+			writeVarint(styleIndexes.get(selector));
+		}
+		
+		writeExtendedData(feat.getExtendedData());
+		
+		if (feat instanceof Document) {
+			List<Schema> schemas = ((Document) feat).getSchema();
+			writeVarint(schemas.size());
+			for (Schema schema : schemas) {
+				writeString(schema.getId());
+				writeString(schema.getName());
+				writeVarint(schema.getSimpleField().size());
+				for (SimpleField field : schema.getSimpleField()) {
+					writeString(field.getType());
+					writeString(field.getName());
+					writeString(field.getDisplayName());
+				}
+			}
+		}
+		
+		if (feat instanceof Container) {
+			List<Feature> children = getChildren(feat);
+			writeVarint(children.size());
+			for (Feature child : children) {
+				writeFeature(child);
+			}
+		}
+		else {
+			writeGeometry(((Placemark) feat).getGeometry());
+		}
+	}
+	
+	private void writeExtendedData(ExtendedData extData) throws IOException {
+		out.writeBoolean(extData != null);
+		if (extData == null)
+			return;
+		
+		writeVarint(extData.getData().size());
+		for (Data data : extData.getData()) {
+			writeString(data.getName());
+			writeString(data.getDisplayName());
+			writeString(data.getValue());
+		}
+		writeVarint(extData.getSchemaData().size());
+		for (SchemaData schemaData : extData.getSchemaData()) {
+			writeString(schemaData.getSchemaUrl());
+			writeVarint(schemaData.getSimpleData().size());
+			for (SimpleData simpleData : schemaData.getSimpleData()) {
+				writeString(simpleData.getName());
+				writeString(simpleData.getValue());
+			}
+		}
+	}
+	
+	private void writeGeometry(Geometry geom) throws IOException {
+		if (geom instanceof Point) {
+			Point point = (Point) geom;
+			out.writeByte(KmlSnapshot.POINT);
+			writeGeometryId(geom);
+			writeBoolean(point.isExtrude());
+			writeAltitudeMode(point.getAltitudeMode());
+			writeCoordinates(point.getCoordinates());
+		}
+		else if (geom instanceof LineString) {
+			LineString line = (LineString) geom;
+			out.writeByte(KmlSnapshot.LINE_STRING);
+			writeGeometryId(geom);
+			writeBoolean(line.isExtrude());
+			writeBoolean(line.isTessellate());
+			writeAltitudeMode(line.getAltitudeMode());
+			writeCoordinates(line.getCoordinates());
+		}
+		else if (geom instanceof LinearRing) {
+			LinearRing ring = (LinearRing) geom;
+			out.writeByte(KmlSnapshot.LINEAR_RING);
+			writeGeometryId(geom);
+			writeBoolean(ring.isExtrude());
+			writeBoolean(ring.isTessellate());
+			writeAltitudeMode(ring.getAltitudeMode());
+			writeCoordinates(ring.getCoordinates());
+		}
+		else if (geom instanceof Polygon) {
+			Polygon polygon = (Polygon) geom;
+			out.writeByte(KmlSnapshot.POLYGON);
+			writeGeometryId(geom);
+			writeBoolean(polygon.isExtrude());
+			writeBoolean(polygon.isTessellate());
+			writeAltitudeMode(polygon.getAltitudeMode());
+			writeBoundary(polygon.getOuterBoundaryIs());
+			writeVarint(polygon.getInnerBoundaryIs().size());
+			for (Boundary inner : polygon.getInnerBoundaryIs()) {
+				writeBoundary(inner);
+			}
+		}
+		else if (geom instanceof MultiGeometry) {
+			MultiGeometry multi = (MultiGeometry) geom;
+			out.writeByte(KmlSnapshot.MULTI_GEOMETRY);
+			writeGeometryId(geom);
+			writeVarint(multi.getGeometry().size());
+			for (Geometry child : multi.getGeometry()) {
+				writeGeometry(child);
+			}
+		}
+		else {
+			out.writeByte(KmlSnapshot.NONE);
+		}
+	}
+	
+	private void writeGeometryId(Geometry geom) throws IOException {
+		writeString(geom.getId());
+		writeString(geom.getTargetId());
+	}
+	
+	private void writeBoundary(Boundary boundary) throws IOException {
+		writeGeometry((boundary != null) ? boundary.getLinearRing() : null);
+	}
+	
+	private void writeAltitudeMode(AltitudeMode mode) throws IOException {
+		out.writeByte((mode != null) ? mode.ordinal() + 1 : 0);
+	}
+	
+	private void writeCoordinates(List<Coordinate> coords) throws IOException {
+		// The coordinates are written as one block of doubles. The altitude is only written if any coordinate has one.
+		int size = (coords != null) ? coords.size() : 0;
+		writeVarint(size);
+		if (size == 0)
+			return;
+		
+		boolean hasAltitude = false;
+		for (Coordinate coord : coords) {
+			if (coord.getAltitude() != 0.0) {
+				hasAltitude = true;
+				break;
+			}
+		}
+		out.writeBoolean(hasAltitude);
+		
+		coordBuffer.clear();
+		for (Coordinate coord : coords) {
+			if (coordBuffer.remaining() < 24) {
+				out.write(coordBuffer.array(), 0, coordBuffer.position());
+				coordBuffer.clear();
+			}
+			coordBuffer.putDouble(coord.getLongitude());
+			coordBuffer.putDouble(coord.getLatitude());
+			if (hasAltitude)
+				coordBuffer.putDouble(coord.getAltitude());
+		}
+		out.write(coordBuffer.array(), 0, coordBuffer.position());
+	}
+	
+	private void writeBoolean(Boolean value) throws IOException {
+		// Booleans that aren't set are kept apart from false, since they're written differently in KML.
+		out.writeByte((value == null) ? 0 : (value ? 2 : 1));
+	}
+	
+	private void writeString(String value) throws IOException {
+		// 0 is null, 1 is a new string that follows, and any other number is the index of an earlier string plus 2.
+		if (value == null) {
+			writeVarint(0);
+			return;
+		}
+		
+		Integer index = strings.get(value);
+		if (index != null) {
+			writeVarint(index + 2);
+		}
+		else {
+			strings.put(value, strings.size());
+			writeVarint(1);
+			writeText(value);
+		}
+	}
+	
+	private void writeText(String value) throws IOException {
+		byte[] bytes = value.getBytes(UTF8);
+		writeVarint(bytes.length);
+		out.write(bytes);
+	}
+	
+	private void writeVarint(int value) throws IOException {
+		while ((value & ~0x7F) != 0) {
+			out.writeByte((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte(value);
+	}
+	
+	private static List<Feature> getChildren(Feature feat) {
+		if (feat instanceof Document)
+			return ((Document) feat).getFeature();
+		if (feat instanceof Folder)
+			return ((Folder) feat).getFeature();
+		return new ArrayList<Feature>();
+	}
+
+}
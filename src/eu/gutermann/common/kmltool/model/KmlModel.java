@@ -2,16 +2,36 @@ package eu.gutermann.common.kmltool.model;
 
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
+import de.micromata.opengis.kml.v_2_2_0.AbstractObject;
+import de.micromata.opengis.kml.v_2_2_0.Document;
+import de.micromata.opengis.kml.v_2_2_0.Feature;
+import de.micromata.opengis.kml.v_2_2_0.Folder;
 import de.micromata.opengis.kml.v_2_2_0.Kml;
 import de.micromata.opengis.kml.v_2_2_0.Style;
+import de.micromata.opengis.kml.v_2_2_0.StyleMap;
+import de.micromata.opengis.kml.v_2_2_0.StyleSelector;
+import eu.gutermann.common.kmltool.util.KmlCopyUtil;
 import eu.gutermann.common.kmltool.util.kmlcrawler.KmlCrawler;
 import eu.gutermann.common.kmltool.util.kmlcrawler.KmlCrawlerListener;
 import eu.gutermann.common.kmltool.util.kmlcrawler.KmlItem;
 
 /**
  * The main data model for handling a single KML file or the contents of a KMZ file.
+ *
+ * An export or analysis job can work on a read-only copy from {@link #createReadOnlyCopy()} while the model is
+ * edited. The copy shares the KML and the indexes with the model, so creating it takes constant time. Afterwards
+ * the model copies an element before it's changed (copy-on-write): {@link #edit(AbstractObject)} replaces the
+ * element and its parent elements up to the Kml root with copies, while all other elements stay shared. The
+ * indexes are copied on the first change.
  */
 public class KmlModel {
 	/**
@@ -39,16 +59,112 @@ public class KmlModel {
 	 * A list of style definitions from the currently loaded KML.
 	 */
 	private List<Style> styles = new ArrayList<Style>();
+	
+	/**
+	 * All shared style definitions (Style and StyleMap) from the currently loaded KML by their id.
+	 */
+	private Map<String, StyleSelector> styleSelectorsById = new LinkedHashMap<String, StyleSelector>();
+	
+	/**
+	 * The Features that refer to a shared style by the style's id. Only local references like "#id" are indexed.
+	 */
+	private Map<String, Set<Feature>> featuresByStyleId = new HashMap<String, Set<Feature>>();
+	
+	/**
+	 * If true then the spatial index is built while a file is imported instead of on first use.
+	 */
+	private boolean spatialIndexEnabled = false;
+	
+	/**
+	 * If true then the importers reuse and write binary snapshots of imported files.
+	 */
+	private boolean snapshotsEnabled = false;
+	
+	/**
+	 * If true then the KML importer merges all KML files of a KMZ file and the local files of NetworkLinks into one KML.
+	 */
+	private boolean linkedFilesMerged = false;
+	
+	/**
+	 * If true then the KML importer parses large KML files in partitions on all processors.
+	 */
+	private boolean parallelParseEnabled = false;
+	
+	/**
+	 * The spatial index of the Placemarks in the current KML, or null if it wasn't built yet.
+	 */
+	private SpatialIndex spatialIndex;
+	
+	/**
+	 * The byte ranges of the elements in the file from which the current KML was loaded, or null if unknown.
+	 */
+	private KmlSourceIndex sourceIndex;
+	
+	/**
+	 * The objects in the current KML that were changed since it was loaded, compared by identity.
+	 */
+	private Set<Object> modifiedObjects = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+	
+	/**
+	 * The elements of the imported KML that the copied elements in the current KML were created from, for looking
+	 * up the copies in the source index.
+	 */
+	private Map<Object, Object> sourceObjects = new IdentityHashMap<Object, Object>();
+	
+	/**
+	 * True if this is a read-only copy of another model.
+	 */
+	private boolean readOnly = false;
+	
+	/**
+	 * True if the KML is shared with read-only copies, so that only the elements in writableObjects may be changed.
+	 */
+	private boolean kmlShared = false;
+	
+	/**
+	 * The elements that were copied since the last read-only copy was created, compared by identity.
+	 */
+	private Set<Object> writableObjects;
+	
+	/**
+	 * The parent element of each Feature and shared StyleSelector in the current KML, built on the first copy of
+	 * an element. The parent of the top Feature is the Kml element.
+	 */
+	private Map<Object, Object> parents;
+	
+	/**
+	 * True if the style index, the modified objects and the source objects are shared with read-only copies.
+	 */
+	private boolean indexesShared = false;
 
 	public Kml getKml() {
 		return kml;
 	}
 
 	public void setKml(Kml kml) {
+		checkWritable();
 		this.kml = kml;
 		
+		// The new KML isn't shared yet. The old indexes may still be shared with read-only copies, so new ones are
+		// created instead of clearing them.
+		kmlShared = false;
+		writableObjects = null;
+		parents = null;
+		indexesShared = false;
+		
 		// Extract all style definitions in the newly set KML.
+		styles = new ArrayList<Style>();
+		styleSelectorsById = new LinkedHashMap<String, StyleSelector>();
+		featuresByStyleId = new HashMap<String, Set<Feature>>();
 		extractStyles();
+		
+		// The spatial index is built again for the new KML when needed.
+		spatialIndex = null;
+		
+		// The importer sets the source index of the new KML, if it has one.
+		sourceIndex = null;
+		modifiedObjects = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+		sourceObjects = new IdentityHashMap<Object, Object>();
 	}
 
 	public boolean isZipped() {
@@ -56,6 +172,7 @@ public class KmlModel {
 	}
 
 	public void setZipped(boolean zipped) {
+		checkWritable();
 		this.zipped = zipped;
 	}
 
@@ -64,6 +181,7 @@ public class KmlModel {
 	}
 
 	public void setKmlFilePath(String kmlFilePath) {
+		checkWritable();
 		this.kmlFilePath = kmlFilePath;
 	}
 
@@ -72,6 +190,7 @@ public class KmlModel {
 	}
 
 	public void setTempDir(Path tempDir) {
+		checkWritable();
 		this.tempDir = tempDir;
 	}
 
@@ -80,27 +199,478 @@ public class KmlModel {
 	}
 
 	public void setStyles(List<Style> styles) {
+		checkWritable();
+		unshareIndexes();
 		if (styles == null)
-			styles = new ArrayList<Style>();
+			this.styles = new ArrayList<Style>();
 		else
 			this.styles = styles;
+		
+		// Rebuild the index by id from scratch, so that the replaced Styles are no longer found.
+		// The other StyleSelectors (StyleMaps) are kept.
+		Map<String, StyleSelector> selectors = new LinkedHashMap<String, StyleSelector>();
+		for (StyleSelector selector : styleSelectorsById.values()) {
+			if (!(selector instanceof Style))
+				selectors.put(selector.getId(), selector);
+		}
+		for (Style style : this.styles) {
+			if (style.getId() != null)
+				selectors.put(style.getId(), style);
+		}
+		styleSelectorsById = selectors;
+	}
+	
+	public boolean isSpatialIndexEnabled() {
+		return spatialIndexEnabled;
+	}
+	
+	/**
+	 * Sets whether the importers build the spatial index right after a file is loaded. Otherwise it's built on the
+	 * first call to {@link #getSpatialIndex()}.
+	 * @param spatialIndexEnabled
+	 */
+	public void setSpatialIndexEnabled(boolean spatialIndexEnabled) {
+		this.spatialIndexEnabled = spatialIndexEnabled;
+	}
+	
+	public boolean isSnapshotsEnabled() {
+		return snapshotsEnabled;
+	}
+	
+	/**
+	 * Sets whether the importers load a file from its snapshot if the file didn't change since the snapshot was
+	 * written, and write a new snapshot after parsing a file otherwise.
+	 * @param snapshotsEnabled
+	 */
+	public void setSnapshotsEnabled(boolean snapshotsEnabled) {
+		this.snapshotsEnabled = snapshotsEnabled;
+	}
+	
+	public boolean isLinkedFilesMerged() {
+		return linkedFilesMerged;
+	}
+	
+	/**
+	 * Sets whether the KML importer reads all KML files of a KMZ file instead of rejecting KMZ files with more than
+	 * one, and follows the NetworkLinks to local KML files. Each followed NetworkLink is replaced with a Folder that
+	 * contains the linked document. Snapshots are not used for these imports.
+	 * @param linkedFilesMerged
+	 */
+	public void setLinkedFilesMerged(boolean linkedFilesMerged) {
+		this.linkedFilesMerged = linkedFilesMerged;
+	}
+	
+	public boolean isParallelParseEnabled() {
+		return parallelParseEnabled;
+	}
+	
+	/**
+	 * Sets whether the KML importer divides large KML files into partitions of Features that are parsed in
+	 * parallel. The result is the same as parsing the file at once.
+	 * @param parallelParseEnabled
+	 */
+	public void setParallelParseEnabled(boolean parallelParseEnabled) {
+		this.parallelParseEnabled = parallelParseEnabled;
+	}
+	
+	/**
+	 * Returns the spatial index of the Placemarks in the current KML, building it if necessary.
+	 * Returns null if no KML is loaded.
+	 * @return
+	 */
+	public synchronized SpatialIndex getSpatialIndex() {
+		if (spatialIndex == null && kml != null)
+			spatialIndex = new SpatialIndex(kml);
+		return spatialIndex;
+	}
+	
+	private synchronized SpatialIndex getCurrentSpatialIndex() {
+		return spatialIndex;
+	}
+	
+	private synchronized void resetSpatialIndex() {
+		spatialIndex = null;
+	}
+	
+	public KmlSourceIndex getSourceIndex() {
+		return sourceIndex;
+	}
+	
+	/**
+	 * Sets the index of the file from which the current KML was loaded. Must be called after {@link #setKml(Kml)}.
+	 * @param sourceIndex
+	 */
+	public void setSourceIndex(KmlSourceIndex sourceIndex) {
+		checkWritable();
+		this.sourceIndex = sourceIndex;
+	}
+	
+	/**
+	 * Marks an element of the current KML as changed, so that exporters write it again instead of copying it from
+	 * the source file. Any code that changes the KML in place must call this method with the changed Feature or
+	 * StyleSelector.
+	 * @param obj
+	 */
+	public void markModified(Object obj) {
+		checkWritable();
+		unshareIndexes();
+		modifiedObjects.add(obj);
+	}
+	
+	/**
+	 * Returns the elements that were changed since the current KML was loaded.
+	 * @return
+	 */
+	public Set<Object> getModifiedObjects() {
+		return Collections.unmodifiableSet(modifiedObjects);
+	}
+	
+	/**
+	 * Returns the element of the imported KML that an element was copied from by {@link #edit(AbstractObject)},
+	 * or the element itself if it's not a copy. The ranges in the source index belong to the imported elements.
+	 * @param obj
+	 * @return
+	 */
+	public Object getSourceObject(Object obj) {
+		Object source = sourceObjects.get(obj);
+		return (source != null) ? source : obj;
+	}
+	
+	/**
+	 * Creates a read-only copy of the model for an export or analysis job that runs while the model is edited.
+	 * The copy shares the KML and the indexes with this model until they are changed, see {@link KmlModel}.
+	 *
+	 * Elements that the copy shares may be read by multiple threads, but they must not be changed, not even
+	 * temporarily. Exporters that change elements while they write them must write copies of them instead.
+	 * @return
+	 */
+	public KmlModel createReadOnlyCopy() {
+		if (readOnly)
+			return this;
+		
+		KmlModel copy = new KmlModel();
+		copy.kml = kml;
+		copy.zipped = zipped;
+		copy.kmlFilePath = kmlFilePath;
+		copy.tempDir = tempDir;
+		copy.styles = styles;
+		copy.styleSelectorsById = styleSelectorsById;
+		copy.featuresByStyleId = featuresByStyleId;
+		copy.spatialIndexEnabled = spatialIndexEnabled;
+		copy.snapshotsEnabled = snapshotsEnabled;
+		copy.linkedFilesMerged = linkedFilesMerged;
+		copy.parallelParseEnabled = parallelParseEnabled;
+		copy.spatialIndex = getCurrentSpatialIndex();
+		copy.sourceIndex = sourceIndex;
+		copy.modifiedObjects = modifiedObjects;
+		copy.sourceObjects = sourceObjects;
+		copy.readOnly = true;
+		
+		// From now on everything that exists is shared, until it's copied.
+		kmlShared = true;
+		writableObjects = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+		indexesShared = true;
+		return copy;
+	}
+	
+	/**
+	 * Returns true if this is a read-only copy of another model, which throws an IllegalStateException on changes.
+	 * @return
+	 */
+	public boolean isReadOnly() {
+		return readOnly;
+	}
+	
+	/**
+	 * Returns a Feature or StyleSelector of the current KML that may be changed in place. If the element is shared
+	 * with a read-only copy, it's replaced in the KML with a copy, which is returned. The changed element must then
+	 * be passed to {@link #markModified(Object)}. Only the elements that are visited by KmlCrawler can be edited.
+	 * @param obj
+	 * @return the element itself or its copy
+	 */
+	@SuppressWarnings("unchecked")
+	public <T extends AbstractObject> T edit(T obj) {
+		checkWritable();
+		if (!kmlShared)
+			return obj;
+		return (T) copyForWrite(obj);
+	}
+	
+	/**
+	 * Returns the shared Style with the given id, or null if there's no such Style.
+	 * @param id
+	 * @return
+	 */
+	public Style getStyle(String id) {
+		StyleSelector selector = styleSelectorsById.get(id);
+		return (selector instanceof Style) ? (Style) selector : null;
+	}
+	
+	/**
+	 * Returns the shared Style or StyleMap with the given id, or null if there's no such element.
+	 * @param id
+	 * @return
+	 */
+	public StyleSelector getStyleSelector(String id) {
+		return styleSelectorsById.get(id);
+	}
+	
+	/**
+	 * Returns all shared Styles and StyleMaps, in document order.
+	 * @return
+	 */
+	public Collection<StyleSelector> getStyleSelectors() {
+		return Collections.unmodifiableCollection(styleSelectorsById.values());
 	}
 
+	/**
+	 * Returns the Features that refer to the shared style with the given id.
+	 * @param id
+	 * @return
+	 */
+	public Collection<Feature> getFeaturesUsingStyle(String id) {
+		Set<Feature> features = featuresByStyleId.get(id);
+		if (features == null)
+			return Collections.emptySet();
+		return Collections.unmodifiableSet(features);
+	}
+	
+	/**
+	 * Returns the ids of all shared styles that are directly referenced by a Feature.
+	 * Note that the Styles referenced by a StyleMap are not included.
+	 * @return
+	 */
+	public Set<String> getReferencedStyleIds() {
+		return Collections.unmodifiableSet(featuresByStyleId.keySet());
+	}
+	
+	/**
+	 * Changes the styleUrl of a Feature in the KML and updates the style index accordingly.
+	 * Use this method instead of Feature.setStyleUrl() for Features within the model.
+	 * @param feat
+	 * @param styleUrl
+	 * @return the changed Feature, which is a copy of the given one if that's shared with a read-only copy
+	 */
+	public Feature setStyleUrl(Feature feat, String styleUrl) {
+		feat = edit(feat);
+		unshareIndexes();
+		removeStyleReference(feat);
+		feat.setStyleUrl(styleUrl);
+		addStyleReference(feat);
+		markModified(feat);
+		return feat;
+	}
+	
+	private void checkWritable() {
+		if (readOnly)
+			throw new IllegalStateException("A read-only copy of a KML model can't be changed");
+	}
+	
+	/**
+	 * Replaces a shared element with a copy, after making its parent writable in the same way. Returns the element
+	 * itself if it was already copied since the last read-only copy was created.
+	 * @param obj a Feature, a StyleSelector or the Kml
+	 * @return
+	 */
+	private Object copyForWrite(Object obj) {
+		if (writableObjects.contains(obj))
+			return obj;
+		
+		if (parents == null)
+			parents = createParentIndex();
+		if (!(obj instanceof Kml) && !parents.containsKey(obj))
+			throw new IllegalArgumentException("The element is not part of the KML of the model");
+		
+		// Styles and StyleMaps are changed in depth, the other elements only get new children or a new styleUrl.
+		Object copy;
+		if (obj instanceof Style || obj instanceof StyleMap)
+			copy = KmlCopyUtil.deepCopy(obj);
+		else
+			copy = KmlCopyUtil.shallowCopy(obj);
+		writableObjects.add(copy);
+		
+		if (copy instanceof Kml) {
+			kml = (Kml) copy;
+			if (kml.getFeature() != null)
+				parents.put(kml.getFeature(), kml);
+		}
+		else {
+			// The children of the copy are the same as of the original, and the copy replaces the original in a
+			// writable parent.
+			if (copy instanceof Feature) {
+				for (Object child : getChildren((Feature) copy)) {
+					parents.put(child, copy);
+				}
+			}
+			Object writableParent = copyForWrite(parents.get(obj));
+			replaceChild(writableParent, obj, copy);
+			parents.remove(obj);
+			parents.put(copy, writableParent);
+		}
+		
+		updateIndexes(obj, copy);
+		return copy;
+	}
+	
+	private Map<Object, Object> createParentIndex() {
+		final Map<Object, Object> res = new IdentityHashMap<Object, Object>();
+		if (kml.getFeature() == null)
+			return res;
+		
+		KmlCrawlerListener listener = new KmlCrawlerListener() {
+			@Override
+			public void onStyleSelector(KmlItem item) {
+				res.put(item.getObject(), item.getParent());
+			}
+			
+			@Override
+			public void onFeature(KmlItem item) {
+				res.put(item.getObject(), item.getStack().isEmpty() ? kml : item.getParent());
+			}
+		};
+		new KmlCrawler(kml).addListener(listener).crawl();
+		return res;
+	}
+	
+	private static List<Object> getChildren(Feature feat) {
+		List<Object> res = new ArrayList<Object>(feat.getStyleSelector());
+		if (feat instanceof Document)
+			res.addAll(((Document) feat).getFeature());
+		else if (feat instanceof Folder)
+			res.addAll(((Folder) feat).getFeature());
+		return res;
+	}
+	
+	private static void replaceChild(Object parent, Object child, Object copy) {
+		if (parent instanceof Kml)
+			((Kml) parent).setFeature((Feature) copy);
+		else if (child instanceof StyleSelector)
+			replace(((Feature) parent).getStyleSelector(), child, copy);
+		else if (parent instanceof Document)
+			replace(((Document) parent).getFeature(), child, copy);
+		else if (parent instanceof Folder)
+			replace(((Folder) parent).getFeature(), child, copy);
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static <T> void replace(List<T> list, Object obj, Object copy) {
+		// The elements are compared by identity, since their equals() compares the complete element tree.
+		for (int i = 0; i < list.size(); i++) {
+			if (list.get(i) == obj)
+				list.set(i, (T) copy);
+		}
+	}
+	
+	/**
+	 * Lets the indexes refer to the copy of an element instead of the original.
+	 * @param obj
+	 * @param copy
+	 */
+	private void updateIndexes(Object obj, Object copy) {
+		unshareIndexes();
+		
+		if (obj instanceof Style) {
+			replace(styles, obj, copy);
+		}
+		if (obj instanceof StyleSelector) {
+			String id = ((StyleSelector) copy).getId();
+			if (id != null && styleSelectorsById.get(id) == obj)
+				styleSelectorsById.put(id, (StyleSelector) copy);
+		}
+		if (obj instanceof Feature) {
+			String id = getLocalStyleId((Feature) copy);
+			Set<Feature> features = (id != null) ? featuresByStyleId.get(id) : null;
+			if (features != null && features.remove(obj))
+				features.add((Feature) copy);
+			
+			// The index refers to the parent Containers of the Placemarks, which may have been copied.
+			resetSpatialIndex();
+		}
+		
+		if (modifiedObjects.remove(obj))
+			modifiedObjects.add(copy);
+		Object source = sourceObjects.remove(obj);
+		sourceObjects.put(copy, (source != null) ? source : obj);
+	}
+	
+	/**
+	 * Gives this model its own copies of the indexes if they are shared with read-only copies.
+	 */
+	private void unshareIndexes() {
+		if (!indexesShared)
+			return;
+		
+		styles = new ArrayList<Style>(styles);
+		styleSelectorsById = new LinkedHashMap<String, StyleSelector>(styleSelectorsById);
+		Map<String, Set<Feature>> featureIndex = new HashMap<String, Set<Feature>>();
+		for (Map.Entry<String, Set<Feature>> entry : featuresByStyleId.entrySet()) {
+			Set<Feature> features = Collections.newSetFromMap(new IdentityHashMap<Feature, Boolean>());
+			features.addAll(entry.getValue());
+			featureIndex.put(entry.getKey(), features);
+		}
+		featuresByStyleId = featureIndex;
+		Set<Object> modified = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+		modified.addAll(modifiedObjects);
+		modifiedObjects = modified;
+		sourceObjects = new IdentityHashMap<Object, Object>(sourceObjects);
+		indexesShared = false;
+	}
+	
 	private void extractStyles() {
 		// Crawl over all Style elements and add them into a list.
+		// At the same time index all shared styles by id, and all Features by the style they refer to.
 		KmlCrawlerListener listener = new KmlCrawlerListener() {
 			@Override
 			public void onStyleSelector(KmlItem item) {
-				if (item.getObject() instanceof Style) {
-					styles.add((Style) item.getObject());
+				StyleSelector selector = item.getObject();
+				if (selector instanceof Style) {
+					styles.add((Style) selector);
+				}
+				
+				if (selector.getId() != null) {
+					styleSelectorsById.put(selector.getId(), selector);
 				}
 			}
 			
 			@Override
-			public void onFeature(KmlItem item) {}
+			public void onFeature(KmlItem item) {
+				addStyleReference((Feature) item.getObject());
+			}
 		};
 		
 		new KmlCrawler(kml).addListener(listener).crawl();
 	}
 	
+	private void addStyleReference(Feature feat) {
+		String id = getLocalStyleId(feat);
+		if (id != null) {
+			Set<Feature> features = featuresByStyleId.get(id);
+			if (features == null) {
+				// Features are compared by identity, since their equals() compares the complete element tree.
+				features = Collections.newSetFromMap(new IdentityHashMap<Feature, Boolean>());
+				featuresByStyleId.put(id, features);
+			}
+			features.add(feat);
+		}
+	}
+	
+	private void removeStyleReference(Feature feat) {
+		String id = getLocalStyleId(feat);
+		if (id != null) {
+			Set<Feature> features = featuresByStyleId.get(id);
+			if (features != null) {
+				features.remove(feat);
+				if (features.isEmpty())
+					featuresByStyleId.remove(id);
+			}
+		}
+	}
+	
+	private static String getLocalStyleId(Feature feat) {
+		String url = feat.getStyleUrl();
+		if (url == null || !url.startsWith("#"))
+			return null;
+		return url.substring(1);
+	}
+	
 }
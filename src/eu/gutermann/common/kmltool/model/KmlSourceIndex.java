@@ -0,0 +1,466 @@
+package eu.gutermann.common.kmltool.model;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import de.micromata.opengis.kml.v_2_2_0.Document;
+import de.micromata.opengis.kml.v_2_2_0.Feature;
+import de.micromata.opengis.kml.v_2_2_0.Folder;
+import de.micromata.opengis.kml.v_2_2_0.Kml;
+import de.micromata.opengis.kml.v_2_2_0.StyleSelector;
+
+/**
+ * Index of the byte ranges in the source KML file of the Features and the shared StyleSelectors of the loaded KML.
+ * This allows the exporter to copy elements that weren't changed straight from the source file instead of writing
+ * them again.
+ *
+ * The source file is scanned for the elements without a full XML parser, and the elements are matched to the
+ * objects of the loaded KML by their order. If the two don't match, for example because the file contains
+ * elements that the Java API for KML doesn't know, then no index is created.
+ *
+ * Changes that are made without {@link KmlModel#markModified(Object)} are detected by {@link #matches(KmlModel)},
+ * which compares the structure of the KML and a hash code of each indexed element with the state when the index
+ * was created.
+ */
+public class KmlSourceIndex {
+	private static final String KML_NAMESPACE = "http://www.opengis.net/kml/2.2";
+	
+	private static final Set<String> FEATURE_NAMES = new HashSet<String>(Arrays.asList(
+			"Document", "Folder", "Placemark", "NetworkLink", "GroundOverlay", "PhotoOverlay", "ScreenOverlay"));
+	
+	private static final Set<String> STYLE_SELECTOR_NAMES = new HashSet<String>(Arrays.asList("Style", "StyleMap"));
+	
+	/**
+	 * An element that was found in the source file.
+	 */
+	private static class Element {
+		String name;
+		long start;
+		long end = -1;
+		
+		/**
+		 * The index of the Feature that holds a StyleSelector, or -1 for Features.
+		 */
+		int owner;
+		
+		Element(String name, long start, int owner) {
+			this.name = name;
+			this.start = start;
+			this.owner = owner;
+		}
+	};
+	
+	/**
+	 * An open element while scanning the file.
+	 */
+	private static class OpenElement {
+		String name;
+		
+		/**
+		 * True for the kml element and the Documents and Folders in it, whose children are indexed.
+		 */
+		boolean container;
+		
+		/**
+		 * The indexed element, or null if it isn't indexed.
+		 */
+		Element element;
+		
+		/**
+		 * The index of the Feature if this is an indexed Feature, otherwise -1.
+		 */
+		int featureIndex = -1;
+	};
+	
+	private File file;
+	
+	private long fileLength;
+	
+	private long fileLastModified;
+	
+	/**
+	 * The byte range of each indexed object, as an array of start and end offset.
+	 */
+	private Map<Object, long[]> ranges = new IdentityHashMap<Object, long[]>();
+	
+	/**
+	 * The indexed objects in the order in which they are bound, which is the order that {@link #matches(KmlModel)}
+	 * visits them in.
+	 */
+	private List<Object> objects = new ArrayList<Object>();
+	
+	/**
+	 * The hash code of each indexed object when the index was created, see {@link #hash(Object)}.
+	 */
+	private List<Integer> hashes = new ArrayList<Integer>();
+	
+	private KmlSourceIndex(File file) {
+		this.file = file;
+		this.fileLength = file.length();
+		this.fileLastModified = file.lastModified();
+	}
+	
+	/**
+	 * Scans the source file of a KML and creates its index. Returns null if the file can't be indexed or doesn't
+	 * match the KML.
+	 * @param file the KML file from which the KML was loaded
+	 * @param kml
+	 * @return
+	 * @throws IOException
+	 */
+	public static KmlSourceIndex create(File file, Kml kml) throws IOException {
+		KmlSourceIndex index = new KmlSourceIndex(file);
+		
+		List<Element> features = new ArrayList<Element>();
+		List<Element> selectors = new ArrayList<Element>();
+		InputStream in = new FileInputStream(file);
+		try {
+			if (!new Scanner(in).scan(features, selectors))
+				return null;
+		}
+		finally {
+			in.close();
+		}
+		
+		return index.bind(kml, features, selectors) ? index : null;
+	}
+	
+	public File getFile() {
+		return file;
+	}
+	
+	/**
+	 * Returns true if the source file wasn't changed since it was indexed.
+	 * @return
+	 */
+	public boolean isSourceUnchanged() {
+		return file.isFile() && file.length() == fileLength && file.lastModified() == fileLastModified;
+	}
+	
+	/**
+	 * Returns the start and end offset (exclusive) of an element in the source file, or null if the object isn't
+	 * indexed. Only Features and the StyleSelectors of Documents and Folders are indexed.
+	 * @param obj
+	 * @return
+	 */
+	public long[] getRange(Object obj) {
+		return ranges.get(obj);
+	}
+	
+	/**
+	 * Returns true if the KML of a model still matches the index, apart from the elements that were marked as
+	 * modified. Returns false if elements were added, removed or moved, or if an element that wasn't marked as
+	 * modified was changed. The comparison of the hash codes visits the complete KML, but it's much faster than
+	 * writing it.
+	 * @param model
+	 * @return
+	 */
+	public boolean matches(KmlModel model) {
+		List<Feature> kmlFeatures = new ArrayList<Feature>();
+		collectFeatures(model.getKml().getFeature(), kmlFeatures);
+		
+		Set<Object> modified = model.getModifiedObjects();
+		int i = 0;
+		for (Feature feat : kmlFeatures) {
+			if (!matches(model, modified, feat, i++))
+				return false;
+			if (feat instanceof Document || feat instanceof Folder) {
+				for (StyleSelector selector : feat.getStyleSelector()) {
+					if (!matches(model, modified, selector, i++))
+						return false;
+				}
+			}
+		}
+		return i == objects.size();
+	}
+	
+	private boolean matches(KmlModel model, Set<Object> modified, Object obj, int i) {
+		// Copies made by KmlModel.edit() stand for the imported element they were copied from.
+		if (i >= objects.size() || model.getSourceObject(obj) != objects.get(i))
+			return false;
+		return modified.contains(obj) || hash(obj) == hashes.get(i);
+	}
+	
+	private boolean bind(Kml kml, List<Element> features, List<Element> selectors) {
+		// Group the StyleSelectors by the Feature that holds them.
+		List<List<Element>> ownerSelectors = new ArrayList<List<Element>>();
+		for (int i = 0; i < features.size(); i++) {
+			ownerSelectors.add(new ArrayList<Element>());
+		}
+		for (Element selector : selectors) {
+			ownerSelectors.get(selector.owner).add(selector);
+		}
+		
+		// Match the Features in document order. The Java API for KML keeps the order of Features and of
+		// StyleSelectors, but not how the two are mixed, which is why StyleSelectors are matched per Feature.
+		List<Feature> kmlFeatures = new ArrayList<Feature>();
+		collectFeatures(kml.getFeature(), kmlFeatures);
+		if (kmlFeatures.size() != features.size())
+			return false;
+		
+		for (int i = 0; i < kmlFeatures.size(); i++) {
+			Feature feat = kmlFeatures.get(i);
+			Element element = features.get(i);
+			if (!feat.getClass().getSimpleName().equals(element.name))
+				return false;
+			ranges.put(feat, new long[] {element.start, element.end});
+			objects.add(feat);
+			hashes.add(hash(feat));
+			
+			List<Element> elements = ownerSelectors.get(i);
+			List<StyleSelector> featSelectors = (feat instanceof Document || feat instanceof Folder)
+					? feat.getStyleSelector() : new ArrayList<StyleSelector>();
+			if (featSelectors.size() != elements.size())
+				return false;
+			for (int j = 0; j < elements.size(); j++) {
+				StyleSelector selector = featSelectors.get(j);
+				Element selectorElement = elements.get(j);
+				if (!selector.getClass().getSimpleName().equals(selectorElement.name))
+					return false;
+				ranges.put(selector, new long[] {selectorElement.start, selectorElement.end});
+				objects.add(selector);
+				hashes.add(hash(selector));
+			}
+		}
+		return true;
+	}
+	
+	@SuppressWarnings("deprecation")
+	private static int hash(Object obj) {
+		// The hash code of a Document or Folder would include all its children, which are hashed on their own.
+		// Only the Feature properties of a container are hashed. The deprecated Snippet is the KML 2.2 <Snippet>
+		// element, see SnapshotReader.
+		if (obj instanceof Document || obj instanceof Folder) {
+			Feature feat = (Feature) obj;
+			int h = Arrays.hashCode(new Object[] {
+					feat.getClass(), feat.getId(), feat.getTargetId(), feat.getName(), feat.isVisibility(),
+					feat.isOpen(), feat.getAtomAuthor(), feat.getAtomLink(), feat.getAddress(),
+					feat.getXalAddressDetails(), feat.getPhoneNumber(), feat.getSnippet(), feat.getSnippetd(),
+					feat.getDescription(), feat.getAbstractView(), feat.getTimePrimitive(), feat.getStyleUrl(),
+					feat.getRegion(), feat.getExtendedData()
+			});
+			if (feat instanceof Document)
+				h = 31 * h + ((Document) feat).getSchema().hashCode();
+			return h;
+		}
+		return obj.hashCode();
+	}
+	
+	private static void collectFeatures(Feature feat, List<Feature> res) {
+		if (feat == null)
+			return;
+		
+		res.add(feat);
+		List<Feature> children = null;
+		if (feat instanceof Document)
+			children = ((Document) feat).getFeature();
+		else if (feat instanceof Folder)
+			children = ((Folder) feat).getFeature();
+		
+		if (children != null) {
+			for (Feature child : children) {
+				collectFeatures(child, res);
+			}
+		}
+	}
+	
+	/**
+	 * Finds the indexed elements in a KML file. Only the structure of the XML is scanned: tags, comments, CDATA
+	 * sections and processing instructions.
+	 */
+	private static class Scanner {
+		private InputStream in;
+		private byte[] buf = new byte[64 * 1024];
+		private int bufLen = 0;
+		private int bufPos = 0;
+		
+		/**
+		 * The offset in the file of the next byte.
+		 */
+		private long pos = 0;
+		
+		Scanner(InputStream in) {
+			this.in = in;
+		}
+		
+		/**
+		 * Scans the file and adds the Feature and StyleSelector elements to the lists in document order. Returns false
+		 * if the file isn't a UTF-8 encoded KML 2.2 file.
+		 * @param features
+		 * @param selectors
+		 * @return
+		 * @throws IOException
+		 */
+		boolean scan(List<Element> features, List<Element> selectors) throws IOException {
+			Deque<OpenElement> stack = new ArrayDeque<OpenElement>();
+			boolean rootFound = false;
+			StringBuilder tag = new StringBuilder();
+			
+			int b;
+			while ((b = read()) != -1) {
+				if (b != '<')
+					continue;
+				
+				long start = pos - 1;
+				b = read();
+				if (b == '?') {
+					// The XML declaration must not specify an encoding other than UTF-8.
+					String pi = readUntil("?>", true);
+					if (pi.startsWith("xml ") && !isUtf8Declaration(pi))
+						return false;
+				}
+				else if (b == '!') {
+					skipDeclaration();
+				}
+				else if (b == '/') {
+					readUntil(">", false);
+					if (stack.isEmpty())
+						return false;
+					OpenElement open = stack.pop();
+					if (open.element != null)
+						open.element.end = pos;
+				}
+				else if (b != -1) {
+					// Read the start tag, skipping '>' within quoted attribute values.
+					tag.setLength(0);
+					tag.append((char) b);
+					int quote = 0;
+					while ((b = read()) != -1) {
+						if (quote != 0) {
+							if (b == quote)
+								quote = 0;
+						}
+						else if (b == '"' || b == '\'') {
+							quote = b;
+						}
+						else if (b == '>') {
+							break;
+						}
+						tag.append((char) b);
+					}
+					
+					boolean empty = tag.length() > 0 && tag.charAt(tag.length() - 1) == '/';
+					String name = getLocalName(tag);
+					OpenElement parent = stack.peek();
+					OpenElement open = new OpenElement();
+					open.name = name;
+					
+					if (parent == null) {
+						// The root element must be a KML 2.2 kml element. Since only ASCII characters are compared,
+						// the bytes read as chars are good enough.
+						if (rootFound || !"kml".equals(name) || tag.indexOf(KML_NAMESPACE) < 0)
+							return false;
+						rootFound = true;
+						open.container = true;
+					}
+					else if (parent.container && FEATURE_NAMES.contains(name)) {
+						open.element = new Element(name, start, -1);
+						open.featureIndex = features.size();
+						open.container = "Document".equals(name) || "Folder".equals(name);
+						features.add(open.element);
+					}
+					else if (parent.container && parent.featureIndex >= 0 && STYLE_SELECTOR_NAMES.contains(name)) {
+						open.element = new Element(name, start, parent.featureIndex);
+						selectors.add(open.element);
+					}
+					
+					if (empty) {
+						if (open.element != null)
+							open.element.end = pos;
+					}
+					else {
+						stack.push(open);
+					}
+				}
+			}
+			return rootFound && stack.isEmpty();
+		}
+		
+		private void skipDeclaration() throws IOException {
+			// Comments, CDATA sections and the DOCTYPE declaration (which may contain nested declarations).
+			int b = read();
+			if (b == '-') {
+				readUntil("-->", false);
+			}
+			else if (b == '[') {
+				readUntil("]]>", false);
+			}
+			else {
+				int depth = 0;
+				while (b != -1 && !(b == '>' && depth == 0)) {
+					if (b == '[')
+						depth++;
+					else if (b == ']')
+						depth--;
+					b = read();
+				}
+			}
+		}
+		
+		private String readUntil(String end, boolean keep) throws IOException {
+			// Compare the last bytes read with the end marker after each byte.
+			StringBuilder b = keep ? new StringBuilder() : null;
+			int[] last = new int[end.length()];
+			int count = 0;
+			int c;
+			while ((c = read()) != -1) {
+				if (keep)
+					b.append((char) c);
+				last[count++ % last.length] = c;
+				if (count >= last.length && endsWith(last, count, end))
+					break;
+			}
+			return keep ? b.toString() : null;
+		}
+		
+		private static boolean endsWith(int[] last, int count, String end) {
+			for (int i = 0; i < end.length(); i++) {
+				if (last[(count - end.length() + i) % last.length] != end.charAt(i))
+					return false;
+			}
+			return true;
+		}
+		
+		private int read() throws IOException {
+			if (bufPos == bufLen) {
+				bufLen = in.read(buf);
+				bufPos = 0;
+				if (bufLen <= 0) {
+					bufLen = 0;
+					return -1;
+				}
+			}
+			pos++;
+			return buf[bufPos++] & 0xFF;
+		}
+		
+		private static boolean isUtf8Declaration(String decl) {
+			int index = decl.indexOf("encoding");
+			if (index < 0)
+				return true;
+			String rest = decl.substring(index + "encoding".length()).replaceAll("[\\s=\"']", " ").trim();
+			return rest.toLowerCase().startsWith("utf-8");
+		}
+		
+		private static String getLocalName(CharSequence tag) {
+			int end = 0;
+			while (end < tag.length() && !Character.isWhitespace(tag.charAt(end)) && tag.charAt(end) != '/')
+				end++;
+			String name = tag.subSequence(0, end).toString();
+			int colon = name.indexOf(':');
+			return (colon >= 0) ? name.substring(colon + 1) : name;
+		}
+	};
+
+}
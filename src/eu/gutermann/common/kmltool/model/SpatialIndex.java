@@ -0,0 +1,317 @@
+package eu.gutermann.common.kmltool.model;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.index.strtree.ItemBoundable;
+import com.vividsolutions.jts.index.strtree.ItemDistance;
+import com.vividsolutions.jts.index.strtree.STRtree;
+
+import de.micromata.opengis.kml.v_2_2_0.Feature;
+import de.micromata.opengis.kml.v_2_2_0.Kml;
+import de.micromata.opengis.kml.v_2_2_0.Placemark;
+import eu.gutermann.common.kmltool.util.KmlGeometryUtil;
+import eu.gutermann.common.kmltool.util.ParallelTasks;
+import eu.gutermann.common.kmltool.util.kmlcrawler.KmlCrawler;
+import eu.gutermann.common.kmltool.util.kmlcrawler.KmlCrawlerListener;
+import eu.gutermann.common.kmltool.util.kmlcrawler.KmlItem;
+
+/**
+ * Spatial index over the Placemarks of a KML, for finding the Placemarks in an area without visiting all of them.
+ * The bounding boxes of the Placemarks are stored in <a href="http://tsusiatsoftware.net/jts/main.html">JTS</a>
+ * STRtrees, with longitude as x and latitude as y. Query results are returned as KmlItems in document order,
+ * so that they can be used in the same way as the items from a {@link KmlCrawler}.
+ *
+ * Large documents are divided into vertical slices with the same number of Placemarks, by the center of their
+ * bounding boxes. Each slice gets its own tree, so that the trees can be built in parallel. The queries only visit
+ * the slices whose bounds can hold a result.
+ *
+ * The index is a snapshot of the geometries when it was built. It must be rebuilt after geometries are changed.
+ */
+public class SpatialIndex {
+	/**
+	 * An indexed Placemark with its position in the document, its bounding box and its JTS geometry.
+	 */
+	private static class Entry {
+		int ordinal;
+		KmlItem item;
+		Envelope env;
+		
+		/**
+		 * The geometry converted to JTS, or null if it wasn't needed yet. It's only converted for the Placemarks
+		 * that {@link SpatialIndex#nearest(double, double)} can't rule out by their bounding box, and kept for later
+		 * queries. The conversion always gives the same result, so it doesn't matter if two queries do it at once.
+		 */
+		volatile com.vividsolutions.jts.geom.Geometry geom;
+		
+		Entry(int ordinal, KmlItem item) {
+			this.ordinal = ordinal;
+			this.item = item;
+		}
+	};
+	
+	/**
+	 * A vertical slice of the index, with its own tree and the bounds of all entries in it.
+	 */
+	private static class Slice {
+		STRtree tree = new STRtree();
+		Envelope bounds = new Envelope();
+		double distance;
+	};
+	
+	/**
+	 * Orders entries by the x-coordinate of the center of their bounding box.
+	 */
+	private static final Comparator<Entry> X_ORDER = new Comparator<Entry>() {
+		@Override
+		public int compare(Entry e1, Entry e2) {
+			return Double.compare(e1.env.getMinX() + e1.env.getMaxX(), e2.env.getMinX() + e2.env.getMaxX());
+		}
+	};
+	
+	/**
+	 * Orders slices by their distance to the location of a nearest neighbour query.
+	 */
+	private static final Comparator<Slice> DISTANCE_ORDER = new Comparator<Slice>() {
+		@Override
+		public int compare(Slice s1, Slice s2) {
+			return Double.compare(s1.distance, s2.distance);
+		}
+	};
+	
+	/**
+	 * Orders entries by their position in the document.
+	 */
+	private static final Comparator<Entry> DOCUMENT_ORDER = new Comparator<Entry>() {
+		@Override
+		public int compare(Entry e1, Entry e2) {
+			return (e1.ordinal < e2.ordinal) ? -1 : ((e1.ordinal == e2.ordinal) ? 0 : 1);
+		}
+	};
+	
+	/**
+	 * From this number of Placemarks on, the bounding boxes are computed in parallel and the index is divided into
+	 * slices that are built in parallel.
+	 */
+	private static final int PARALLEL_THRESHOLD = 10000;
+	
+	/**
+	 * The slices of the index. The Placemarks without coordinates aren't in any slice.
+	 */
+	private List<Slice> slices;
+	
+	private Envelope bounds = new Envelope();
+	
+	private int size = 0;
+	
+	private GeometryFactory factory = new GeometryFactory();
+	
+	/**
+	 * Builds the index for all Placemarks with coordinates in a KML.
+	 * @param kml
+	 */
+	public SpatialIndex(Kml kml) {
+		// Collect the Placemarks in document order.
+		final List<Entry> entries = new ArrayList<Entry>();
+		if (kml.getFeature() != null) {
+			KmlCrawlerListener listener = new KmlCrawlerListener() {
+				@Override
+				public void onStyleSelector(KmlItem item) {}
+				
+				@Override
+				public void onFeature(KmlItem item) {
+					if (item.getObject() instanceof Placemark)
+						entries.add(new Entry(entries.size(), item));
+				}
+			};
+			new KmlCrawler(kml).addListener(listener).crawl();
+		}
+		
+		computeEnvelopes(entries);
+		
+		List<Entry> spatialEntries = new ArrayList<Entry>(entries.size());
+		for (Entry entry : entries) {
+			if (entry.env != null) {
+				spatialEntries.add(entry);
+				bounds.expandToInclude(entry.env);
+			}
+		}
+		size = spatialEntries.size();
+		slices = buildSlices(spatialEntries);
+	}
+	
+	/**
+	 * Returns the number of indexed Placemarks.
+	 * @return
+	 */
+	public int size() {
+		return size;
+	}
+	
+	/**
+	 * Returns the bounding box of all indexed Placemarks. The envelope is empty (isNull()) if there are none.
+	 * @return
+	 */
+	public Envelope getBounds() {
+		return new Envelope(bounds);
+	}
+	
+	/**
+	 * Returns the Placemarks whose bounding box intersects with the given envelope, in document order.
+	 * @param env
+	 * @return
+	 */
+	public List<KmlItem> query(Envelope env) {
+		List<Entry> entries = queryEntries(env);
+		
+		List<KmlItem> res = new ArrayList<KmlItem>(entries.size());
+		for (Entry entry : entries) {
+			res.add(entry.item);
+		}
+		return res;
+	}
+	
+	/**
+	 * Returns the Placemark whose geometry is nearest to the given location, or null if the index is empty.
+	 * The distance is measured in degrees.
+	 * @param longitude
+	 * @param latitude
+	 * @return
+	 */
+	public KmlItem nearest(double longitude, double latitude) {
+		if (size == 0)
+			return null;
+		
+		final com.vividsolutions.jts.geom.Point point = factory.createPoint(new com.vividsolutions.jts.geom.Coordinate(longitude, latitude));
+		Entry target = new Entry(-1, null);
+		target.env = point.getEnvelopeInternal();
+		
+		ItemDistance distance = new ItemDistance() {
+			@Override
+			public double distance(ItemBoundable item1, ItemBoundable item2) {
+				// One of the two items is the target location.
+				Entry entry = (Entry) ((((Entry) item1.getItem()).item != null) ? item1.getItem() : item2.getItem());
+				com.vividsolutions.jts.geom.Geometry geom = getJtsGeometry(entry);
+				return (geom != null) ? geom.distance(point) : entry.env.distance(point.getEnvelopeInternal());
+			}
+		};
+		
+		// Visit the slices from near to far, until a slice is farther away than the nearest Placemark found so far.
+		// The distances are kept in copies, since the index may be queried from multiple threads.
+		List<Slice> candidates = new ArrayList<Slice>(slices.size());
+		for (Slice slice : slices) {
+			Slice candidate = new Slice();
+			candidate.tree = slice.tree;
+			candidate.distance = slice.bounds.distance(target.env);
+			candidates.add(candidate);
+		}
+		Collections.sort(candidates, DISTANCE_ORDER);
+		
+		Entry res = null;
+		double resDistance = Double.POSITIVE_INFINITY;
+		for (Slice slice : candidates) {
+			if (slice.distance > resDistance)
+				break;
+			
+			Entry entry = (Entry) slice.tree.nearestNeighbour(target.env, target, distance);
+			if (entry != null) {
+				com.vividsolutions.jts.geom.Geometry geom = getJtsGeometry(entry);
+				double d = (geom != null) ? geom.distance(point) : entry.env.distance(target.env);
+				if (d < resDistance) {
+					res = entry;
+					resDistance = d;
+				}
+			}
+		}
+		return (res != null) ? res.item : null;
+	}
+	
+	private List<Entry> queryEntries(Envelope env) {
+		List<Entry> res = new ArrayList<Entry>();
+		if (env == null)
+			return res;
+		
+		for (Slice slice : slices) {
+			if (!slice.bounds.intersects(env))
+				continue;
+			
+			for (Object obj : slice.tree.query(env)) {
+				res.add((Entry) obj);
+			}
+		}
+		Collections.sort(res, DOCUMENT_ORDER);
+		return res;
+	}
+	
+	private com.vividsolutions.jts.geom.Geometry getJtsGeometry(Entry entry) {
+		// Convert the geometry on first use and keep it in the entry.
+		com.vividsolutions.jts.geom.Geometry geom = entry.geom;
+		if (geom == null) {
+			Placemark placemark = entry.item.getObject();
+			geom = KmlGeometryUtil.toJtsGeometry(placemark.getGeometry(), factory);
+			entry.geom = geom;
+		}
+		return geom;
+	}
+	
+	private void computeEnvelopes(final List<Entry> entries) {
+		// Computing the bounding boxes means visiting all coordinates, which is the expensive part for large documents.
+		// The entries are divided into consecutive partitions which are handled in parallel.
+		int numPartitions = (entries.size() < PARALLEL_THRESHOLD) ? 1 : ParallelTasks.getNumThreads();
+		int partitionSize = (entries.size() + numPartitions - 1) / numPartitions;
+		
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (int start = 0; start < entries.size(); start += partitionSize) {
+			final List<Entry> partition = entries.subList(start, Math.min(start + partitionSize, entries.size()));
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() {
+					for (Entry entry : partition) {
+						entry.env = KmlGeometryUtil.getEnvelope((Feature) entry.item.getObject());
+					}
+					return null;
+				}
+			});
+		}
+		
+		if (!tasks.isEmpty())
+			ParallelTasks.invokeAll(tasks);
+	}
+	
+	private List<Slice> buildSlices(List<Entry> entries) {
+		// Divide the entries into vertical slices, so that each slice covers its own part of the area, and build the
+		// tree of each slice in parallel. The trees are built right away so that they can be queried from multiple
+		// threads afterwards.
+		int numSlices = (entries.size() < PARALLEL_THRESHOLD) ? 1 : ParallelTasks.getNumThreads();
+		if (numSlices > 1)
+			Collections.sort(entries, X_ORDER);
+		int sliceSize = (entries.size() + numSlices - 1) / numSlices;
+		
+		List<Callable<Slice>> tasks = new ArrayList<Callable<Slice>>();
+		for (int start = 0; start < entries.size(); start += sliceSize) {
+			final List<Entry> sliceEntries = entries.subList(start, Math.min(start + sliceSize, entries.size()));
+			tasks.add(new Callable<Slice>() {
+				@Override
+				public Slice call() {
+					Slice slice = new Slice();
+					for (Entry entry : sliceEntries) {
+						slice.tree.insert(entry.env, entry);
+						slice.bounds.expandToInclude(entry.env);
+					}
+					slice.tree.build();
+					return slice;
+				}
+			});
+		}
+		
+		if (tasks.isEmpty())
+			return new ArrayList<Slice>();
+		return ParallelTasks.invokeAll(tasks);
+	}
+
+}
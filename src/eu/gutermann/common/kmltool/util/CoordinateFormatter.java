@@ -0,0 +1,205 @@
+package eu.gutermann.common.kmltool.util;
+
+import java.util.Collections;
+import java.util.List;
+
+import javax.xml.bind.Marshaller;
+
+import de.micromata.opengis.kml.v_2_2_0.Coordinate;
+import de.micromata.opengis.kml.v_2_2_0.LineString;
+import de.micromata.opengis.kml.v_2_2_0.LinearRing;
+import de.micromata.opengis.kml.v_2_2_0.Point;
+
+/**
+ * Utility class for writing KML coordinates with a fixed maximum number of decimals, e.g. 7 decimals for a
+ * precision of about 1 cm in WGS84. Trailing zeros are left out, so "8.5382349876,47.36612" is written as
+ * "8.538235,47.36612" with 6 decimals. Altitudes are written with at most 3 decimals (1 mm), and left out if they're 0
+ * in the same way as the Java API for KML library does.
+ *
+ * The numbers are written directly into a reused StringBuilder with integer arithmetic, without creating
+ * intermediate Strings or going through Double.toString(). The Java API for KML library only writes coordinates
+ * through their toString() values though, so the marshal listener still creates one String for each geometry.
+ */
+public class CoordinateFormatter {
+	/**
+	 * Coordinate with the text of a complete coordinate list as its string representation.
+	 * The Java API for KML library writes a list of coordinates by joining their toString() values with spaces,
+	 * so a list with only this coordinate is written as the formatted text.
+	 */
+	private static class FormattedCoordinates extends Coordinate {
+		private String text;
+		
+		FormattedCoordinates() {
+			super(0.0, 0.0);
+		}
+		
+		@Override
+		public String toString() {
+			return text;
+		}
+	};
+	
+	/**
+	 * The maximum number of decimals, beyond which a double has no more precision for longitudes anyway.
+	 */
+	public static final int MAX_DECIMALS = 12;
+	
+	private static final int MAX_ALTITUDE_DECIMALS = 3;
+	
+	private static final long[] POWERS_OF_TEN = new long[MAX_DECIMALS + 1];
+	static {
+		POWERS_OF_TEN[0] = 1;
+		for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+			POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+		}
+	}
+	
+	private int decimals;
+	
+	private int altitudeDecimals;
+	
+	private StringBuilder buffer = new StringBuilder();
+	
+	/**
+	 * @param decimals the maximum number of decimals, between 0 and {@link #MAX_DECIMALS}
+	 */
+	public CoordinateFormatter(int decimals) {
+		if (decimals < 0 || decimals > MAX_DECIMALS)
+			throw new IllegalArgumentException("The number of decimals must be between 0 and " + MAX_DECIMALS);
+		
+		this.decimals = decimals;
+		this.altitudeDecimals = Math.min(decimals, MAX_ALTITUDE_DECIMALS);
+	}
+	
+	/**
+	 * Returns a Marshaller listener that writes the coordinates of Points, LineStrings and LinearRings with this
+	 * formatter. The coordinate list of each geometry is temporarily replaced while it's written and restored
+	 * afterwards, so the KML itself isn't changed. The replacement list is reused for all geometries. Geometries
+	 * that other threads may read at the same time must not be written with it, but copies of them.
+	 * @return
+	 */
+	public Marshaller.Listener createMarshalListener() {
+		return new Marshaller.Listener() {
+			/**
+			 * The geometry whose coordinates are replaced and its original coordinates. Geometries with coordinates
+			 * can't be nested, so there's at most one at a time.
+			 */
+			private Object geometry;
+			private List<Coordinate> coordinates;
+			
+			private FormattedCoordinates formatted = new FormattedCoordinates();
+			private List<Coordinate> formattedList = Collections.<Coordinate>singletonList(formatted);
+			
+			@Override
+			public void beforeMarshal(Object source) {
+				List<Coordinate> coords = getCoordinates(source);
+				if (coords == null)
+					return;
+				
+				geometry = source;
+				coordinates = coords;
+				
+				// The getters of the Java API for KML library create an empty list if there are no coordinates.
+				// It's left out while writing so that no empty coordinates element is written.
+				if (coords.isEmpty()) {
+					setCoordinates(source, null);
+					return;
+				}
+				
+				formatted.text = format(coords);
+				setCoordinates(source, formattedList);
+			}
+			
+			@Override
+			public void afterMarshal(Object source) {
+				if (source == geometry) {
+					setCoordinates(source, coordinates);
+					geometry = null;
+					coordinates = null;
+					formatted.text = null;
+				}
+			}
+		};
+	}
+	
+	/**
+	 * Returns the KML text of a list of coordinates.
+	 * @param coords
+	 * @return
+	 */
+	public String format(List<Coordinate> coords) {
+		buffer.setLength(0);
+		for (Coordinate coord : coords) {
+			if (buffer.length() > 0)
+				buffer.append(' ');
+			append(buffer, coord);
+		}
+		return buffer.toString();
+	}
+	
+	/**
+	 * Appends a single coordinate as "longitude,latitude[,altitude]".
+	 * @param b
+	 * @param coord
+	 */
+	public void append(StringBuilder b, Coordinate coord) {
+		append(b, coord.getLongitude(), decimals);
+		b.append(',');
+		append(b, coord.getLatitude(), decimals);
+		if (coord.getAltitude() != 0.0) {
+			b.append(',');
+			append(b, coord.getAltitude(), altitudeDecimals);
+		}
+	}
+	
+	private static void append(StringBuilder b, double value, int decimals) {
+		// Values that can't be scaled to a long are written in the default way.
+		long pow = POWERS_OF_TEN[decimals];
+		double scaledValue = Math.abs(value) * pow;
+		if (Double.isNaN(value) || scaledValue >= Long.MAX_VALUE / 10) {
+			b.append(value);
+			return;
+		}
+		
+		long scaled = Math.round(scaledValue);
+		if (value < 0 && scaled != 0)
+			b.append('-');
+		b.append(scaled / pow);
+		
+		long fraction = scaled % pow;
+		if (fraction == 0)
+			return;
+		
+		// Leave out the trailing zeros, and write the leading zeros of the fraction.
+		int numDigits = decimals;
+		while (fraction % 10 == 0) {
+			fraction /= 10;
+			numDigits--;
+		}
+		b.append('.');
+		for (long p = POWERS_OF_TEN[numDigits - 1]; p > fraction; p /= 10) {
+			b.append('0');
+		}
+		b.append(fraction);
+	}
+	
+	private static List<Coordinate> getCoordinates(Object geom) {
+		if (geom instanceof Point)
+			return ((Point) geom).getCoordinates();
+		if (geom instanceof LineString)
+			return ((LineString) geom).getCoordinates();
+		if (geom instanceof LinearRing)
+			return ((LinearRing) geom).getCoordinates();
+		return null;
+	}
+	
+	private static void setCoordinates(Object geom, List<Coordinate> coords) {
+		if (geom instanceof Point)
+			((Point) geom).setCoordinates(coords);
+		else if (geom instanceof LineString)
+			((LineString) geom).setCoordinates(coords);
+		else if (geom instanceof LinearRing)
+			((LinearRing) geom).setCoordinates(coords);
+	}
+
+}
@@ -0,0 +1,290 @@
+package eu.gutermann.common.kmltool.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import de.micromata.opengis.kml.v_2_2_0.Document;
+import de.micromata.opengis.kml.v_2_2_0.ExtendedData;
+import de.micromata.opengis.kml.v_2_2_0.Feature;
+import de.micromata.opengis.kml.v_2_2_0.Kml;
+import de.micromata.opengis.kml.v_2_2_0.Pair;
+import de.micromata.opengis.kml.v_2_2_0.Schema;
+import de.micromata.opengis.kml.v_2_2_0.SchemaData;
+import de.micromata.opengis.kml.v_2_2_0.SimpleField;
+import de.micromata.opengis.kml.v_2_2_0.Style;
+import de.micromata.opengis.kml.v_2_2_0.StyleMap;
+import de.micromata.opengis.kml.v_2_2_0.StyleSelector;
+import eu.gutermann.common.kmltool.util.kmlcrawler.KmlCrawler;
+import eu.gutermann.common.kmltool.util.kmlcrawler.KmlCrawlerListener;
+import eu.gutermann.common.kmltool.util.kmlcrawler.KmlItem;
+
+/**
+ * Utility class for showing Schema-backed ExtendedData in a balloon without copying an HTML table into every Feature.
+ * For each Schema a single BalloonStyle text is created with "$[schemaName/fieldName]" placeholders, which Google Earth
+ * and Maps fill in from the SchemaData of the Feature that is clicked. The BalloonStyle is placed in a copy of the
+ * Style that the Feature refers to, so the Features only keep their compact SchemaData values and their styleUrl is
+ * changed to the copy. The Schemas are kept in the Document.
+ * See <a href="http://labs.micromata.de/projects/jak.html">Java API for KML</a> for the KML elements used.
+ *
+ * Features for which no template can be used (plain Data elements, multiple or unknown Schemas, inline styles or
+ * styles in other files) get an HTML description with {@link ExtendedDataToDescriptionConverter} instead.
+ *
+ * Note: the Kml instance is modified, unless the converter is created with a {@link KmlOverlay} in which the
+ * changes are recorded instead.
+ */
+public class ExtendedDataToBalloonStyleConverter {
+	/**
+	 * The BalloonStyle text for each Schema id. Only Schemas with a name can be used in placeholders.
+	 */
+	private Map<String, String> templates = new HashMap<String, String>();
+
+	/**
+	 * All StyleSelectors with an id in the KML.
+	 */
+	private Map<String, StyleSelector> styleSelectors = new HashMap<String, StyleSelector>();
+
+	/**
+	 * All ids of StyleSelectors and Features in the KML, including those of the created style copies.
+	 */
+	private Set<String> usedIds = new HashSet<String>();
+
+	/**
+	 * The ids of the created style copies by original styleUrl and Schema id. The id is null if no copy
+	 * can be made, or while the copy is still being made.
+	 */
+	private Map<String, String> derivedIds = new HashMap<String, String>();
+
+	/**
+	 * The Document into which the style copies are added.
+	 */
+	private Document document;
+
+	/**
+	 * The StyleSelectors of the Document including the style copies, or null if no copy was added yet.
+	 */
+	private List<StyleSelector> documentSelectors;
+
+	/**
+	 * The overlay through which the KML is read and in which the changes are recorded.
+	 */
+	private KmlOverlay overlay;
+
+	/**
+	 * Whether the changes are set in the KML at the end of the conversion.
+	 */
+	private boolean commit;
+
+	private ExtendedDataToDescriptionConverter fallbackConverter;
+
+	/**
+	 * Creates a converter that modifies the KML.
+	 */
+	public ExtendedDataToBalloonStyleConverter() {
+		this(new KmlOverlay());
+		this.commit = true;
+	}
+
+	/**
+	 * Creates a converter that records its changes in an overlay, so that the KML itself isn't modified.
+	 * @param overlay
+	 */
+	public ExtendedDataToBalloonStyleConverter(KmlOverlay overlay) {
+		this.overlay = overlay;
+		this.fallbackConverter = new ExtendedDataToDescriptionConverter(overlay);
+	}
+
+	/**
+	 * Execute the conversion on a Kml instance.
+	 * @param kml
+	 */
+	public void execute(Kml kml) {
+		// The style copies can only be shared if there's a Document to put them in.
+		if (!(kml.getFeature() instanceof Document)) {
+			fallbackConverter.execute(kml);
+			if (commit)
+				overlay.commit();
+			return;
+		}
+
+		document = (Document) kml.getFeature();
+		documentSelectors = null;
+		registerSchemas(overlay.getSchemas(document));
+
+		// First collect all StyleSelectors so that styleUrls can be resolved. The Features are handled afterwards
+		// because StyleSelectors may be defined after the Features that use them.
+		KmlCrawlerListener styleListener = new KmlCrawlerListener() {
+			@Override
+			public void onStyleSelector(KmlItem item) {
+				StyleSelector selector = item.getObject();
+				if (selector.getId() != null) {
+					styleSelectors.put(selector.getId(), selector);
+					usedIds.add(selector.getId());
+				}
+			}
+
+			@Override
+			public void onFeature(KmlItem item) {
+				Feature feat = item.getObject();
+				if (feat.getId() != null)
+					usedIds.add(feat.getId());
+			}
+		};
+		new KmlCrawler(kml).setOverlay(overlay).addListener(styleListener).crawl();
+
+		KmlCrawlerListener featureListener = new KmlCrawlerListener() {
+			@Override
+			public void onStyleSelector(KmlItem item) {}
+
+			@Override
+			public void onFeature(KmlItem item) {
+				if (!(item.getObject() instanceof Document))
+					handleFeature((Feature) item.getObject());
+			}
+		};
+		new KmlCrawler(kml).setOverlay(overlay).addListener(featureListener).crawl();
+		if (commit)
+			overlay.commit();
+	}
+
+	private void registerSchemas(List<Schema> schemas) {
+		// Build the BalloonStyle text for each Schema, using the same table layout as the HTML descriptions.
+		for (Schema schema : schemas) {
+			if (schema.getId() == null || schema.getName() == null)
+				continue;
+
+			StringBuilder b = new StringBuilder();
+			b.append("<h3>$[name]</h3>\n");
+			b.append("$[description]\n");
+			b.append("<center><table border='0'>\n");
+
+			// The Schema is shared with the model, so its list is read without the getter.
+			List<SimpleField> fields = KmlReadUtil.getList(schema, "simpleField");
+			boolean oddLine = true;
+			for (SimpleField field : fields) {
+				String label = (field.getDisplayName() != null) ? field.getDisplayName() : field.getName();
+				b.append("<tr bgcolor='").append(oddLine ? "#E3E3F3" : "#FFFFFF").append("'>");
+				b.append("<th>").append(label).append("</th>");
+				b.append("<td>$[").append(schema.getName()).append('/').append(field.getName()).append("]</td>");
+				b.append("</tr>\n");
+				oddLine = !oddLine;
+			}
+
+			b.append("</table></center>");
+			templates.put(schema.getId(), b.toString());
+		}
+	}
+
+	private void handleFeature(Feature feat) {
+		ExtendedData extData = overlay.getExtendedData(feat);
+		if (extData == null)
+			return;
+
+		String derivedId = null;
+		// The same for the ExtendedData.
+		List<SchemaData> schemaDatas = KmlReadUtil.getList(extData, "schemaData");
+		if (KmlReadUtil.getList(extData, "data").isEmpty() && schemaDatas.size() == 1 && overlay.getStyleSelectors(feat).isEmpty()) {
+			SchemaData schemaData = schemaDatas.get(0);
+			String schemaId = getId(schemaData.getSchemaUrl());
+			if (templates.containsKey(schemaId))
+				derivedId = getDerivedStyleId(overlay.getStyleUrl(feat), schemaId);
+		}
+
+		if (derivedId != null) {
+			overlay.setStyleUrl(feat, "#" + derivedId);
+		}
+		else {
+			// No shared template possible, so fall back to a description for this Feature only.
+			overlay.setDescription(feat, fallbackConverter.convert(feat));
+			overlay.setExtendedData(feat, null);
+		}
+	}
+
+	private String getDerivedStyleId(String styleUrl, String schemaId) {
+		// Returns the id of the copy of the referenced StyleSelector that contains the BalloonStyle, creating it on
+		// first use. Returns null if the styleUrl can't be resolved within this KML.
+		String key = styleUrl + "|" + schemaId;
+		if (derivedIds.containsKey(key))
+			return derivedIds.get(key);
+
+		// Record the key before recursing into the Pairs of a StyleMap, so that a StyleMap that refers to itself
+		// resolves to null instead of recursing endlessly.
+		derivedIds.put(key, null);
+
+		String derivedId = null;
+		if (styleUrl == null) {
+			Style style = new Style();
+			derivedId = addDerivedStyle(style, "balloon", schemaId);
+		}
+		else if (styleUrl.startsWith("#")) {
+			StyleSelector selector = styleSelectors.get(styleUrl.substring(1));
+			if (selector instanceof Style) {
+				derivedId = addDerivedStyle(KmlCopyUtil.deepCopy((Style) selector), selector.getId(), schemaId);
+			}
+			else if (selector instanceof StyleMap) {
+				derivedId = addDerivedStyleMap((StyleMap) selector, schemaId);
+			}
+		}
+
+		derivedIds.put(key, derivedId);
+		return derivedId;
+	}
+
+	private String addDerivedStyle(Style style, String baseId, String schemaId) {
+		style.setId(createUniqueId(baseId + "-" + schemaId));
+		style.createAndSetBalloonStyle().setText(templates.get(schemaId));
+		addToDocument(style);
+		return style.getId();
+	}
+
+	private String addDerivedStyleMap(StyleMap styleMap, String schemaId) {
+		// Copy the StyleMap and let each Pair refer to a copy of its Style with the BalloonStyle.
+		StyleMap copy = KmlCopyUtil.deepCopy(styleMap);
+		copy.setId(createUniqueId(styleMap.getId() + "-" + schemaId));
+
+		for (Pair pair : copy.getPair()) {
+			if (pair.getStyleSelector() instanceof Style) {
+				((Style) pair.getStyleSelector()).createAndSetBalloonStyle().setText(templates.get(schemaId));
+			}
+			else {
+				String pairId = getDerivedStyleId(pair.getStyleUrl(), schemaId);
+				if (pairId == null)
+					return null;
+				pair.setStyleUrl("#" + pairId);
+			}
+		}
+
+		addToDocument(copy);
+		return copy.getId();
+	}
+
+	private String createUniqueId(String id) {
+		// Add a numeric suffix if the id is already used in the KML.
+		String res = id;
+		for (int i = 2; usedIds.contains(res); i++) {
+			res = id + "-" + i;
+		}
+		usedIds.add(res);
+		return res;
+	}
+
+	private void addToDocument(StyleSelector selector) {
+		// The style copies are added to a new list, so that the original list of the Document stays the same.
+		if (documentSelectors == null) {
+			documentSelectors = new ArrayList<StyleSelector>(overlay.getStyleSelectors(document));
+			overlay.setStyleSelectors(document, documentSelectors);
+		}
+		documentSelectors.add(selector);
+	}
+
+	private static String getId(String url) {
+		// A url is a reference like "#id" or "file.kml#id".
+		if (url == null)
+			return null;
+		return url.substring(url.lastIndexOf('#') + 1);
+	}
+
+}
@@ -1,6 +1,9 @@
 package eu.gutermann.common.kmltool.util;
 
-import java.util.List;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.xml.bind.Marshaller;
 
 import de.micromata.opengis.kml.v_2_2_0.Data;
 import de.micromata.opengis.kml.v_2_2_0.Document;
@@ -17,12 +20,64 @@ import eu.gutermann.common.kmltool.util.kmlcrawler.KmlItem;
  * Utility class for converting KML ExtendedData elements to an HTML description within a Feature (such as a Placemark).
  * It also erases the Schemas within the Document.
  * See <a href="http://labs.micromata.de/projects/jak.html">Java API for KML</a> for the KML elements used.
- * 
+ *
+ * The conversion can either run over a complete Kml instance with {@link #execute(Kml)}, or while the KML is being
+ * written by JAXB with the listener from {@link #createMarshalListener()}. In the latter case every Feature is
+ * converted right before it is marshalled, so no separate pass over the tree is needed.
+ *
+ * If the converter is created with a {@link KmlOverlay}, the Features aren't modified: {@link #execute(Kml)} records
+ * the changes in the overlay, and the marshal listener only changes each Feature while it's written.
+ *
+ * The HTML of a table row only depends on the field name and whether it's an odd or even row, so the start of
+ * each row is built once per field and cached. A single buffer is reused for all Features.
+ * Because of this, an instance must not be used by multiple threads at the same time.
+ *
  * IMPORTANT: The Java API for KML library does not allow to set CDATA inside a description element. The HTML written
  * inside will be HTML-encoded, meaning that all tags will look like "&lt;table&gt;" etc. This however is still rendered
  * correctly by Google Earth and Maps.
  */
 public class ExtendedDataToDescriptionConverter {
+	private static final String TABLE_START = "<center><table border='0'>\n";
+	private static final String TABLE_END = "</table></center>";
+	private static final String ROW_END = "</td></tr>\n";
+	
+	/**
+	 * The precompiled start of the table rows for each field name: index 0 for odd rows, index 1 for even rows.
+	 */
+	private Map<String, String[]> rowStarts = new HashMap<String, String[]>();
+	
+	/**
+	 * The buffer in which the HTML is built. It's reused for every Feature so that it keeps the capacity of the
+	 * largest description built so far.
+	 */
+	private StringBuilder buffer = new StringBuilder(1024);
+	
+	/**
+	 * The overlay through which the Features are read and changed.
+	 */
+	private KmlOverlay overlay;
+	
+	/**
+	 * Whether the changes are set in the Features themselves, when no overlay was given.
+	 */
+	private boolean commit;
+	
+	/**
+	 * Creates a converter that modifies the Features.
+	 */
+	public ExtendedDataToDescriptionConverter() {
+		this.overlay = new KmlOverlay();
+		this.commit = true;
+	}
+	
+	/**
+	 * Creates a converter that changes the Features through an overlay.
+	 * @param overlay
+	 */
+	public ExtendedDataToDescriptionConverter(KmlOverlay overlay) {
+		this.overlay = overlay;
+		this.commit = false;
+	}
 	
 	/**
 	 * Execute the conversion on a Kml instance.
@@ -37,80 +92,125 @@ public class ExtendedDataToDescriptionConverter {
 			public void onFeature(KmlItem item) {
 				// Handle Document and other Features separately.
 				if (item.getObject() instanceof Document) {
-					handleDocument(item);
+					handleDocument((Document) item.getObject(), false);
 				}
 				else {
-					handleOtherFeatures(item);
+					handleOtherFeature((Feature) item.getObject(), false);
 				}
 			}
 		};
 		
-		new KmlCrawler(kml).addListener(listener).crawl();
+		new KmlCrawler(kml).setOverlay(overlay).addListener(listener).crawl();
+		if (commit)
+			overlay.commit();
 	}
 	
-	private void handleDocument(KmlItem item) {
-		// Remove all Schemas from the Document.
-		Document doc = item.getObject();
-		doc.setSchema(null);
-	}
-	
-	private void handleOtherFeatures(KmlItem item) {
-		// If a Feature contains an ExtendedData element then start the conversion.
-		Feature feat = item.getObject();
-		ExtendedData extData = feat.getExtendedData();
-		if (extData != null) {
-			// Create an HTML table for the key-value pairs in the ExtendedData.
-			StringBuilder b = new StringBuilder();
-			b.append("<center><table border='0'>\n");
-			
-			boolean oddLine = true;
-			
-			// Convert the key-value pairs to HTML table rows for all SchemaData-SimpleData elements within the ExtendedData element.
-			List<SchemaData> schemaDatas = extData.getSchemaData();
-			if (schemaDatas != null) {
-				for (SchemaData schemaData : schemaDatas) {
-					List<SimpleData> simpleDatas = schemaData.getSimpleData();
-					if (simpleDatas != null) {
-						for (SimpleData simpleData : simpleDatas) {
-							addTableRow(b, simpleData.getName(), simpleData.getValue(), oddLine);
-							oddLine = !oddLine;
-						}
-					}
+	/**
+	 * Creates a JAXB marshal listener that executes the conversion on each Feature right before it is written.
+	 * Note that the marshalled objects themselves are modified, unless the converter has an overlay, in which case
+	 * they are restored right after they're written.
+	 * @return
+	 */
+	public Marshaller.Listener createMarshalListener() {
+		return new Marshaller.Listener() {
+			@Override
+			public void beforeMarshal(Object source) {
+				if (source instanceof Document) {
+					handleDocument((Document) source, true);
 				}
-			}
-			
-			// Convert the key-value pairs to HTML table rows for all Data elements within the ExtendedData element.
-			List<Data> datas = extData.getData();
-			if (datas != null) {
-				for (Data data : datas) {
-					addTableRow(b, data.getName(), data.getValue(), oddLine);
-					oddLine = !oddLine;
+				else if (source instanceof Feature) {
+					handleOtherFeature((Feature) source, true);
 				}
 			}
 			
-			b.append("</table></center>");
+			@Override
+			public void afterMarshal(Object source) {
+				if (!commit && source instanceof Feature)
+					overlay.restore(source);
+			}
+		};
+	}
+	
+	/**
+	 * Returns the HTML description for the ExtendedData of a Feature, or null if it has no ExtendedData.
+	 * Neither the Feature nor its ExtendedData are modified.
+	 * @param feat
+	 * @return
+	 */
+	public String convert(Feature feat) {
+		ExtendedData extData = overlay.getExtendedData(feat);
+		if (extData == null)
+			return null;
 			
+		// Create an HTML table for the key-value pairs in the ExtendedData.
+		StringBuilder b = buffer;
+		b.setLength(0);
+		b.append(TABLE_START);
+		
+		int row = 0;
+		
+		// Convert the key-value pairs to HTML table rows for all SchemaData-SimpleData elements within the ExtendedData element.
+		// The lists are read without the getters, which would create them in the shared ExtendedData.
+		for (SchemaData schemaData : KmlReadUtil.<SchemaData>getList(extData, "schemaData")) {
+			for (SimpleData simpleData : KmlReadUtil.<SimpleData>getList(schemaData, "simpleData")) {
+				addTableRow(b, getRowStarts(simpleData.getName()), simpleData.getValue(), row++);
+			}
+		}
+		
+		// Convert the key-value pairs to HTML table rows for all Data elements within the ExtendedData element.
+		for (Data data : KmlReadUtil.<Data>getList(extData, "data")) {
+			addTableRow(b, getRowStarts(data.getName()), data.getValue(), row++);
+		}
+		
+		b.append(TABLE_END);
+		return b.toString();
+	}
+	
+	private void handleDocument(Document doc, boolean marshalling) {
+		// Remove all Schemas from the Document.
+		setProperty(doc, KmlOverlay.Property.SCHEMAS, null, marshalling);
+	}
+	
+	private void handleOtherFeature(Feature feat, boolean marshalling) {
+		// If a Feature contains an ExtendedData element then start the conversion.
+		String description = convert(feat);
+		if (description != null) {
 			// Set the HTML table as the description of the feature.
-			feat.setDescription(b.toString());
+			setProperty(feat, KmlOverlay.Property.DESCRIPTION, description, marshalling);
 			
 			// Remove the ExtendedData element.
-			feat.setExtendedData(null);
+			setProperty(feat, KmlOverlay.Property.EXTENDED_DATA, null, marshalling);
+		}
+	}
+	
+	private void setProperty(Feature feat, KmlOverlay.Property prop, Object value, boolean marshalling) {
+		// While marshalling, the value is either set for good or only until the Feature is written.
+		if (marshalling && !commit) {
+			overlay.apply(feat, prop, value);
+		}
+		else {
+			overlay.set(feat, prop, value);
+			if (marshalling)
+				overlay.commit(feat);
+		}
+	}
+	
+	private String[] getRowStarts(String name) {
+		// Build the start of a table row with a key for odd and even rows once and cache it.
+		String[] starts = rowStarts.get(name);
+		if (starts == null) {
+			starts = new String[] {
+					"<tr bgcolor='#E3E3F3'><th>" + name + "</th><td>",
+					"<tr bgcolor='#FFFFFF'><th>" + name + "</th><td>"
+			};
+			rowStarts.put(name, starts);
 		}
+		return starts;
 	}
 	
-	private void addTableRow(StringBuilder b, String name, String value, boolean oddLine) {
+	private void addTableRow(StringBuilder b, String[] starts, String value, int row) {
 		// Add a new table row with a key-value pair. Color odd and even rows differently.
-		b.append("<tr bgcolor='");
-		b.append(oddLine ? "#E3E3F3" : "#FFFFFF");
-		b.append("'>");
-		b.append("<th>");
-		b.append(name);
-		b.append("</th>");
-		b.append("<td>");
-		b.append(value);
-		b.append("</td>");
-		b.append("</tr>");
-		b.append('\n');
+		b.append(starts[row & 1]).append(value).append(ROW_END);
 	}
 	
 }
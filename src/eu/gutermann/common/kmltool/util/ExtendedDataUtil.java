@@ -0,0 +1,47 @@
+package eu.gutermann.common.kmltool.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import de.micromata.opengis.kml.v_2_2_0.Data;
+import de.micromata.opengis.kml.v_2_2_0.ExtendedData;
+import de.micromata.opengis.kml.v_2_2_0.Feature;
+import de.micromata.opengis.kml.v_2_2_0.SchemaData;
+import de.micromata.opengis.kml.v_2_2_0.SimpleData;
+
+/**
+ * Utility class for reading the ExtendedData of a Feature as plain key-value pairs, for formats that store
+ * attributes as columns or properties instead of KML elements.
+ */
+public class ExtendedDataUtil {
+	private ExtendedDataUtil() {
+		// static utility class
+	}
+	
+	/**
+	 * Returns the values of all Data and SchemaData-SimpleData elements of a Feature by their name, in document order.
+	 * Elements without a name are left out. Returns an empty map if the Feature has no ExtendedData.
+	 * The Feature isn't changed.
+	 * @param feat
+	 * @return
+	 */
+	public static Map<String, String> getValues(Feature feat) {
+		Map<String, String> res = new LinkedHashMap<String, String>();
+		ExtendedData extData = feat.getExtendedData();
+		if (extData == null)
+			return res;
+		
+		for (Data data : KmlReadUtil.<Data>getList(extData, "data")) {
+			if (data.getName() != null)
+				res.put(data.getName(), data.getValue());
+		}
+		for (SchemaData schemaData : KmlReadUtil.<SchemaData>getList(extData, "schemaData")) {
+			for (SimpleData simpleData : KmlReadUtil.<SimpleData>getList(schemaData, "simpleData")) {
+				if (simpleData.getName() != null)
+					res.put(simpleData.getName(), simpleData.getValue());
+			}
+		}
+		return res;
+	}
+
+}
@@ -0,0 +1,160 @@
+package eu.gutermann.common.kmltool.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.prep.PreparedGeometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometryFactory;
+import com.vividsolutions.jts.geom.util.LineStringExtracter;
+import com.vividsolutions.jts.geom.util.PolygonExtracter;
+
+import de.micromata.opengis.kml.v_2_2_0.Geometry;
+import de.micromata.opengis.kml.v_2_2_0.LineString;
+import de.micromata.opengis.kml.v_2_2_0.LinearRing;
+import de.micromata.opengis.kml.v_2_2_0.MultiGeometry;
+import de.micromata.opengis.kml.v_2_2_0.Placemark;
+import de.micromata.opengis.kml.v_2_2_0.Point;
+import de.micromata.opengis.kml.v_2_2_0.Polygon;
+
+/**
+ * Utility class for cutting KML geometries at the boundary of an area, such as a bounding box or a district.
+ * LineStrings and LinearRings are cut into the parts that lie inside the area, Polygons are intersected with the
+ * area, and Points are kept if they lie inside. The area is a
+ * <a href="http://tsusiatsoftware.net/jts/main.html">JTS</a> geometry with longitude as x and latitude as y.
+ *
+ * The original geometries are never modified. Geometries that lie completely inside the area are returned as
+ * they are, and cut geometries are new objects with the same extrude, tessellate and altitudeMode properties.
+ */
+public class GeometryClipper {
+	private com.vividsolutions.jts.geom.Geometry area;
+	
+	/**
+	 * The area prepared for fast repeated intersection tests.
+	 */
+	private PreparedGeometry preparedArea;
+	
+	private GeometryFactory factory;
+	
+	/**
+	 * @param area a Polygon or MultiPolygon
+	 */
+	public GeometryClipper(com.vividsolutions.jts.geom.Geometry area) {
+		this.area = area;
+		this.preparedArea = PreparedGeometryFactory.prepare(area);
+		this.factory = area.getFactory();
+	}
+	
+	/**
+	 * Returns the Placemark itself if it lies completely inside the area, a copy with the part of its geometry
+	 * inside the area if it crosses the boundary, or null if it lies outside the area.
+	 * @param placemark
+	 * @return
+	 */
+	public Placemark clip(Placemark placemark) {
+		Geometry geom = placemark.getGeometry();
+		Geometry clipped = clip(geom);
+		if (clipped == geom)
+			return placemark;
+		if (clipped == null)
+			return null;
+		
+		return KmlGeometryUtil.copyWithGeometry(placemark, clipped);
+	}
+	
+	/**
+	 * Returns the geometry itself if it lies completely inside the area, a new geometry with the part inside the area
+	 * if it crosses the boundary, or null if it lies outside the area or is not supported.
+	 * @param geom
+	 * @return
+	 */
+	public Geometry clip(Geometry geom) {
+		if (geom instanceof MultiGeometry)
+			return clip((MultiGeometry) geom);
+		
+		com.vividsolutions.jts.geom.Geometry jtsGeom = KmlGeometryUtil.toJtsGeometry(geom, factory);
+		if (jtsGeom == null || !preparedArea.intersects(jtsGeom))
+			return null;
+		if (preparedArea.contains(jtsGeom))
+			return geom;
+		
+		// Only the parts of the same dimension as the original are kept, e.g. a line that touches the boundary doesn't
+		// result in a Point.
+		com.vividsolutions.jts.geom.Geometry intersection = area.intersection(jtsGeom);
+		List<Geometry> parts = new ArrayList<Geometry>();
+		
+		if (geom instanceof LineString || geom instanceof LinearRing) {
+			for (Object obj : LineStringExtracter.getLines(intersection)) {
+				parts.add(createLineString(geom, (com.vividsolutions.jts.geom.LineString) obj));
+			}
+		}
+		else if (geom instanceof Polygon) {
+			for (Object obj : PolygonExtracter.getPolygons(intersection)) {
+				parts.add(createPolygon((Polygon) geom, (com.vividsolutions.jts.geom.Polygon) obj));
+			}
+		}
+		else if (geom instanceof Point) {
+			// A Point that intersects the area lies inside it or on its boundary.
+			return geom;
+		}
+		
+		if (parts.isEmpty())
+			return null;
+		if (parts.size() == 1)
+			return parts.get(0);
+		
+		MultiGeometry multi = new MultiGeometry();
+		multi.getGeometry().addAll(parts);
+		return multi;
+	}
+	
+	private Geometry clip(MultiGeometry multi) {
+		boolean changed = false;
+		MultiGeometry copy = new MultiGeometry();
+		copy.setId(multi.getId());
+		for (Geometry child : KmlReadUtil.<Geometry>getList(multi, "geometry")) {
+			Geometry clipped = clip(child);
+			changed |= (clipped != child);
+			if (clipped != null)
+				copy.getGeometry().add(clipped);
+		}
+		
+		if (copy.getGeometry().isEmpty())
+			return null;
+		return changed ? copy : multi;
+	}
+	
+	private LineString createLineString(Geometry orig, com.vividsolutions.jts.geom.LineString line) {
+		// A cut LinearRing isn't closed anymore, so it becomes a LineString.
+		LineString res = new LineString();
+		if (orig instanceof LineString) {
+			LineString origLine = (LineString) orig;
+			res.setExtrude(origLine.isExtrude());
+			res.setTessellate(origLine.isTessellate());
+			res.setAltitudeMode(origLine.getAltitudeMode());
+		}
+		else {
+			LinearRing origRing = (LinearRing) orig;
+			res.setExtrude(origRing.isExtrude());
+			res.setTessellate(origRing.isTessellate());
+			res.setAltitudeMode(origRing.getAltitudeMode());
+		}
+		res.setCoordinates(KmlGeometryUtil.toKmlCoordinates(line.getCoordinates()));
+		return res;
+	}
+	
+	private Polygon createPolygon(Polygon orig, com.vividsolutions.jts.geom.Polygon polygon) {
+		Polygon res = new Polygon();
+		res.setExtrude(orig.isExtrude());
+		res.setTessellate(orig.isTessellate());
+		res.setAltitudeMode(orig.getAltitudeMode());
+		res.createAndSetOuterBoundaryIs().createAndSetLinearRing().setCoordinates(
+			KmlGeometryUtil.toKmlCoordinates(polygon.getExteriorRing().getCoordinates()));
+		for (int i = 0; i < polygon.getNumInteriorRing(); i++) {
+			res.createAndAddInnerBoundaryIs().createAndSetLinearRing().setCoordinates(
+				KmlGeometryUtil.toKmlCoordinates(polygon.getInteriorRingN(i).getCoordinates()));
+		}
+		return res;
+	}
+
+}
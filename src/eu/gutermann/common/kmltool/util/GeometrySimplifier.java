@@ -0,0 +1,195 @@
+package eu.gutermann.common.kmltool.util;
+
+import java.util.List;
+
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.simplify.DouglasPeuckerSimplifier;
+import com.vividsolutions.jts.simplify.TopologyPreservingSimplifier;
+
+import de.micromata.opengis.kml.v_2_2_0.Boundary;
+import de.micromata.opengis.kml.v_2_2_0.Coordinate;
+import de.micromata.opengis.kml.v_2_2_0.Geometry;
+import de.micromata.opengis.kml.v_2_2_0.LineString;
+import de.micromata.opengis.kml.v_2_2_0.LinearRing;
+import de.micromata.opengis.kml.v_2_2_0.MultiGeometry;
+import de.micromata.opengis.kml.v_2_2_0.Placemark;
+import de.micromata.opengis.kml.v_2_2_0.Polygon;
+
+/**
+ * Utility class for reducing the number of vertices of KML geometries, for showing them at a lower level of detail.
+ * LineStrings are simplified with the Douglas-Peucker algorithm. LinearRings and Polygons are simplified with the
+ * topology preserving simplifier, so that rings stay valid and holes stay inside their outer boundary.
+ * See <a href="http://tsusiatsoftware.net/jts/main.html">JTS Topology Suite</a> for the algorithms used.
+ *
+ * The tolerance is a distance in degrees. For a Region that is shown with a size of a certain number of pixels,
+ * {@link #getToleranceForLod(double, double)} returns the tolerance at which the removed detail is smaller than
+ * a pixel.
+ *
+ * The original geometries are never modified. Simplified geometries are new objects, and geometries that can't
+ * be simplified are returned as they are.
+ */
+public class GeometrySimplifier {
+	private double tolerance;
+
+	private GeometryFactory factory = new GeometryFactory();
+
+	/**
+	 * @param tolerance the maximum distance in degrees between the original and the simplified geometry
+	 */
+	public GeometrySimplifier(double tolerance) {
+		this.tolerance = tolerance;
+	}
+
+	/**
+	 * Returns the tolerance for a Region of the given size that is shown with at most the given number of pixels.
+	 * The size is the square root of the Region's area in degrees, in the same way as the Lod pixels of a Region
+	 * are the square root of its area on screen.
+	 * @param regionSize
+	 * @param lodPixels
+	 * @return
+	 */
+	public static double getToleranceForLod(double regionSize, double lodPixels) {
+		return regionSize / lodPixels;
+	}
+
+	public double getTolerance() {
+		return tolerance;
+	}
+
+	/**
+	 * Returns a copy of a Placemark with a simplified geometry, or the Placemark itself if its geometry can't be
+	 * simplified. All other properties of the copy are cloned from the original.
+	 * @param placemark
+	 * @return
+	 */
+	public Placemark simplify(Placemark placemark) {
+		Geometry geom = placemark.getGeometry();
+		Geometry simplified = simplify(geom);
+		if (simplified == geom)
+			return placemark;
+		return KmlGeometryUtil.copyWithGeometry(placemark, simplified);
+	}
+
+	/**
+	 * Returns a simplified copy of a geometry, or the geometry itself if it can't be simplified.
+	 * @param geom
+	 * @return
+	 */
+	public Geometry simplify(Geometry geom) {
+		if (geom instanceof LineString)
+			return simplify((LineString) geom);
+		if (geom instanceof LinearRing)
+			return simplify((LinearRing) geom);
+		if (geom instanceof Polygon)
+			return simplify((Polygon) geom);
+		if (geom instanceof MultiGeometry)
+			return simplify((MultiGeometry) geom);
+
+		// Points and other geometries stay as they are.
+		return geom;
+	}
+
+	private Geometry simplify(LineString line) {
+		List<Coordinate> coords = line.getCoordinates();
+		if (coords == null || coords.size() <= 2)
+			return line;
+
+		com.vividsolutions.jts.geom.Geometry simplified = DouglasPeuckerSimplifier.simplify(
+			factory.createLineString(KmlGeometryUtil.toJtsCoordinates(coords)), tolerance);
+		if (simplified.getNumPoints() < 2 || simplified.getNumPoints() == coords.size())
+			return line;
+
+		LineString copy = new LineString();
+		copy.setId(line.getId());
+		copy.setExtrude(line.isExtrude());
+		copy.setTessellate(line.isTessellate());
+		copy.setAltitudeMode(line.getAltitudeMode());
+		copy.setCoordinates(KmlGeometryUtil.toKmlCoordinates(simplified.getCoordinates()));
+		return copy;
+	}
+
+	private Geometry simplify(LinearRing ring) {
+		com.vividsolutions.jts.geom.LinearRing jtsRing = toJtsRing(ring);
+		if (jtsRing == null)
+			return ring;
+
+		com.vividsolutions.jts.geom.Geometry simplified = TopologyPreservingSimplifier.simplify(jtsRing, tolerance);
+		if (simplified.getNumPoints() == jtsRing.getNumPoints())
+			return ring;
+
+		return createRing(ring, simplified.getCoordinates());
+	}
+
+	private Geometry simplify(Polygon polygon) {
+		// The rings of the Polygon are simplified together so that the holes can't cross the outer boundary.
+		if (polygon.getOuterBoundaryIs() == null)
+			return polygon;
+
+		com.vividsolutions.jts.geom.LinearRing shell = toJtsRing(polygon.getOuterBoundaryIs().getLinearRing());
+		if (shell == null)
+			return polygon;
+
+		List<Boundary> inner = KmlReadUtil.getList(polygon, "innerBoundaryIs");
+		com.vividsolutions.jts.geom.LinearRing[] holes = new com.vividsolutions.jts.geom.LinearRing[inner.size()];
+		for (int i = 0; i < holes.length; i++) {
+			holes[i] = toJtsRing(inner.get(i).getLinearRing());
+			if (holes[i] == null)
+				return polygon;
+		}
+
+		com.vividsolutions.jts.geom.Polygon jtsPolygon = factory.createPolygon(shell, holes);
+		com.vividsolutions.jts.geom.Geometry simplified = TopologyPreservingSimplifier.simplify(jtsPolygon, tolerance);
+		if (!(simplified instanceof com.vividsolutions.jts.geom.Polygon) || simplified.getNumPoints() == jtsPolygon.getNumPoints())
+			return polygon;
+
+		com.vividsolutions.jts.geom.Polygon simplifiedPolygon = (com.vividsolutions.jts.geom.Polygon) simplified;
+		Polygon copy = new Polygon();
+		copy.setId(polygon.getId());
+		copy.setExtrude(polygon.isExtrude());
+		copy.setTessellate(polygon.isTessellate());
+		copy.setAltitudeMode(polygon.getAltitudeMode());
+		copy.createAndSetOuterBoundaryIs().setLinearRing(
+			createRing(polygon.getOuterBoundaryIs().getLinearRing(), simplifiedPolygon.getExteriorRing().getCoordinates()));
+		for (int i = 0; i < simplifiedPolygon.getNumInteriorRing(); i++) {
+			copy.createAndAddInnerBoundaryIs().setLinearRing(
+				createRing(inner.get(i).getLinearRing(), simplifiedPolygon.getInteriorRingN(i).getCoordinates()));
+		}
+		return copy;
+	}
+
+	private Geometry simplify(MultiGeometry multi) {
+		boolean changed = false;
+		MultiGeometry copy = new MultiGeometry();
+		copy.setId(multi.getId());
+		for (Geometry child : KmlReadUtil.<Geometry>getList(multi, "geometry")) {
+			Geometry simplified = simplify(child);
+			changed |= (simplified != child);
+			copy.getGeometry().add(simplified);
+		}
+		return changed ? copy : multi;
+	}
+
+	private com.vividsolutions.jts.geom.LinearRing toJtsRing(LinearRing ring) {
+		// Returns null if the ring isn't a valid closed ring, in which case it's left alone.
+		if (ring == null || ring.getCoordinates() == null || ring.getCoordinates().size() < 4)
+			return null;
+
+		try {
+			return factory.createLinearRing(KmlGeometryUtil.toJtsCoordinates(ring.getCoordinates()));
+		}
+		catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	private LinearRing createRing(LinearRing orig, com.vividsolutions.jts.geom.Coordinate[] coords) {
+		LinearRing copy = new LinearRing();
+		copy.setId(orig.getId());
+		copy.setExtrude(orig.isExtrude());
+		copy.setTessellate(orig.isTessellate());
+		copy.setAltitudeMode(orig.getAltitudeMode());
+		copy.setCoordinates(KmlGeometryUtil.toKmlCoordinates(coords));
+		return copy;
+	}
+
+}
@@ -0,0 +1,138 @@
+package eu.gutermann.common.kmltool.util;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import de.micromata.opengis.kml.v_2_2_0.Kml;
+
+/**
+ * Utility class for copying elements of a KML. The clone() methods of the Java API for KML library copy the
+ * complete element tree, which is too slow for a Document with all its Features when only the Document itself
+ * has to be copied. They also create the empty lists of the original through its getters, which changes an
+ * element that other threads may be reading. The copies here only read the fields of the original.
+ */
+public class KmlCopyUtil {
+	/**
+	 * The instance fields of each copied class, including the ones of its superclasses.
+	 */
+	private static final Map<Class<?>, List<Field>> FIELDS = new ConcurrentHashMap<Class<?>, List<Field>>();
+	
+	private KmlCopyUtil() {
+		// static utility class
+	}
+	
+	/**
+	 * Creates a copy of an element that shares the child elements with the original. Lists are copied, so that
+	 * children can be replaced in the copy only. Only the classes of the Java API for KML library can be copied,
+	 * since they are plain beans whose state is completely in their fields.
+	 * @param obj
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> T shallowCopy(T obj) {
+		Class<?> c = obj.getClass();
+		if (c.getPackage() != Kml.class.getPackage())
+			throw new IllegalArgumentException("Can't copy a " + c.getName() + ", which isn't a KML element");
+		
+		try {
+			Object copy = c.getDeclaredConstructor().newInstance();
+			for (Field field : getFields(c)) {
+				Object value = field.get(obj);
+				if (value instanceof List)
+					value = new ArrayList<Object>((List<Object>) value);
+				field.set(copy, value);
+			}
+			return (T) copy;
+		}
+		catch (Exception e) {
+			throw new IllegalStateException("Could not copy a " + c.getSimpleName() + " element", e);
+		}
+	}
+	
+	/**
+	 * Creates a copy of an element and of all elements in it, like clone() but without changing the original.
+	 * Values that aren't KML elements, like the extension objects of other namespaces, are shared.
+	 * @param obj
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> T deepCopy(T obj) {
+		Class<?> c = obj.getClass();
+		if (c.getPackage() != Kml.class.getPackage())
+			throw new IllegalArgumentException("Can't copy a " + c.getName() + ", which isn't a KML element");
+		
+		try {
+			Object copy = c.getDeclaredConstructor().newInstance();
+			for (Field field : getFields(c)) {
+				field.set(copy, deepCopyValue(field.get(obj)));
+			}
+			return (T) copy;
+		}
+		catch (Exception e) {
+			throw new IllegalStateException("Could not copy a " + c.getSimpleName() + " element", e);
+		}
+	}
+	
+	/**
+	 * Copies the properties that two elements of different classes have in common, like the properties of a Feature
+	 * from a NetworkLink to a Folder that replaces it. Lists are copied, the other values are shared.
+	 * @param from
+	 * @param to
+	 * @param c the common superclass whose properties are copied, like Feature.class
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> void copyProperties(T from, T to, Class<T> c) {
+		if (c.getPackage() != Kml.class.getPackage())
+			throw new IllegalArgumentException("Can't copy the properties of a " + c.getName() + ", which isn't a KML element");
+		
+		try {
+			for (Field field : getFields(c)) {
+				Object value = field.get(from);
+				if (value instanceof List)
+					value = new ArrayList<Object>((List<Object>) value);
+				field.set(to, value);
+			}
+		}
+		catch (Exception e) {
+			throw new IllegalStateException("Could not copy the properties of a " + c.getSimpleName() + " element", e);
+		}
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static Object deepCopyValue(Object value) {
+		if (value instanceof List) {
+			List<Object> list = new ArrayList<Object>();
+			for (Object item : (List<Object>) value) {
+				list.add(deepCopyValue(item));
+			}
+			return list;
+		}
+		if (value == null || value instanceof Enum || value.getClass().getPackage() != Kml.class.getPackage())
+			return value;
+		return deepCopy(value);
+	}
+	
+	private static List<Field> getFields(Class<?> c) {
+		List<Field> res = FIELDS.get(c);
+		if (res != null)
+			return res;
+		
+		res = new ArrayList<Field>();
+		for (Class<?> sc = c; sc != Object.class; sc = sc.getSuperclass()) {
+			for (Field field : sc.getDeclaredFields()) {
+				if (Modifier.isStatic(field.getModifiers()))
+					continue;
+				
+				field.setAccessible(true);
+				res.add(field);
+			}
+		}
+		FIELDS.put(c, res);
+		return res;
+	}
+	
+}
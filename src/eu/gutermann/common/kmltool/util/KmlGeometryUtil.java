@@ -0,0 +1,269 @@
+package eu.gutermann.common.kmltool.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.GeometryFactory;
+
+import de.micromata.opengis.kml.v_2_2_0.Boundary;
+import de.micromata.opengis.kml.v_2_2_0.Coordinate;
+import de.micromata.opengis.kml.v_2_2_0.Feature;
+import de.micromata.opengis.kml.v_2_2_0.Geometry;
+import de.micromata.opengis.kml.v_2_2_0.LineString;
+import de.micromata.opengis.kml.v_2_2_0.LinearRing;
+import de.micromata.opengis.kml.v_2_2_0.MultiGeometry;
+import de.micromata.opengis.kml.v_2_2_0.Placemark;
+import de.micromata.opengis.kml.v_2_2_0.Point;
+import de.micromata.opengis.kml.v_2_2_0.Polygon;
+
+/**
+ * Utility methods for working with the geometry of KML Placemarks.
+ * Envelopes use the <a href="http://tsusiatsoftware.net/jts/main.html">JTS Topology Suite</a> class, with
+ * longitude as x and latitude as y.
+ * See <a href="http://labs.micromata.de/projects/jak.html">Java API for KML</a> for the KML elements used.
+ */
+public class KmlGeometryUtil {
+
+	private KmlGeometryUtil() {
+		// static utility class
+	}
+
+	/**
+	 * Returns the bounding box of a Feature's geometry, or null if it's not a Placemark or has no coordinates.
+	 * @param feat
+	 * @return
+	 */
+	public static Envelope getEnvelope(Feature feat) {
+		if (!(feat instanceof Placemark))
+			return null;
+
+		return getEnvelope(((Placemark) feat).getGeometry());
+	}
+
+	/**
+	 * Returns the bounding box of a geometry, or null if it has no coordinates.
+	 * Supported are Point, LineString, LinearRing, Polygon and MultiGeometry.
+	 * @param geom
+	 * @return
+	 */
+	public static Envelope getEnvelope(Geometry geom) {
+		Envelope env = new Envelope();
+		expandToInclude(env, geom);
+		return env.isNull() ? null : env;
+	}
+
+	/**
+	 * Returns a copy of a Placemark with another geometry. All other properties are shared with the original,
+	 * which isn't changed.
+	 * @param placemark
+	 * @param geom
+	 * @return
+	 */
+	public static Placemark copyWithGeometry(Placemark placemark, Geometry geom) {
+		Placemark copy = KmlCopyUtil.shallowCopy(placemark);
+		copy.setGeometry(geom);
+		return copy;
+	}
+
+	/**
+	 * Returns the total number of coordinates in a geometry.
+	 * @param geom
+	 * @return
+	 */
+	public static int getNumCoordinates(Geometry geom) {
+		if (geom instanceof Point)
+			return size(((Point) geom).getCoordinates());
+		if (geom instanceof LineString)
+			return size(((LineString) geom).getCoordinates());
+		if (geom instanceof LinearRing)
+			return size(((LinearRing) geom).getCoordinates());
+		
+		int res = 0;
+		if (geom instanceof Polygon) {
+			Polygon polygon = (Polygon) geom;
+			if (polygon.getOuterBoundaryIs() != null)
+				res += getNumCoordinates(polygon.getOuterBoundaryIs().getLinearRing());
+			for (Boundary inner : KmlReadUtil.<Boundary>getList(polygon, "innerBoundaryIs")) {
+				res += getNumCoordinates(inner.getLinearRing());
+			}
+		}
+		else if (geom instanceof MultiGeometry) {
+			for (Geometry child : KmlReadUtil.<Geometry>getList(geom, "geometry")) {
+				res += getNumCoordinates(child);
+			}
+		}
+		return res;
+	}
+	
+	/**
+	 * Converts a KML geometry to a JTS geometry, or returns null if it has no coordinates.
+	 * A MultiGeometry becomes a GeometryCollection. Rings that aren't closed are converted to LineStrings.
+	 * @param geom
+	 * @param factory
+	 * @return
+	 */
+	public static com.vividsolutions.jts.geom.Geometry toJtsGeometry(Geometry geom, GeometryFactory factory) {
+		if (geom instanceof Point) {
+			List<Coordinate> coords = ((Point) geom).getCoordinates();
+			return (size(coords) > 0) ? factory.createPoint(toJtsCoordinates(coords.subList(0, 1))[0]) : null;
+		}
+		if (geom instanceof LineString) {
+			List<Coordinate> coords = ((LineString) geom).getCoordinates();
+			return (size(coords) > 1) ? factory.createLineString(toJtsCoordinates(coords)) : null;
+		}
+		if (geom instanceof LinearRing) {
+			return toJtsRingOrLine(((LinearRing) geom).getCoordinates(), factory);
+		}
+		if (geom instanceof Polygon) {
+			Polygon polygon = (Polygon) geom;
+			if (polygon.getOuterBoundaryIs() == null || polygon.getOuterBoundaryIs().getLinearRing() == null)
+				return null;
+			
+			com.vividsolutions.jts.geom.Geometry shell = toJtsRingOrLine(polygon.getOuterBoundaryIs().getLinearRing().getCoordinates(), factory);
+			if (!(shell instanceof com.vividsolutions.jts.geom.LinearRing))
+				return shell;
+			
+			List<com.vividsolutions.jts.geom.LinearRing> holes = new ArrayList<com.vividsolutions.jts.geom.LinearRing>();
+			for (Boundary inner : KmlReadUtil.<Boundary>getList(polygon, "innerBoundaryIs")) {
+				com.vividsolutions.jts.geom.Geometry hole = (inner.getLinearRing() != null) ? toJtsRingOrLine(inner.getLinearRing().getCoordinates(), factory) : null;
+				if (hole instanceof com.vividsolutions.jts.geom.LinearRing)
+					holes.add((com.vividsolutions.jts.geom.LinearRing) hole);
+			}
+			return factory.createPolygon((com.vividsolutions.jts.geom.LinearRing) shell,
+				holes.toArray(new com.vividsolutions.jts.geom.LinearRing[holes.size()]));
+		}
+		if (geom instanceof MultiGeometry) {
+			List<com.vividsolutions.jts.geom.Geometry> children = new ArrayList<com.vividsolutions.jts.geom.Geometry>();
+			for (Geometry child : KmlReadUtil.<Geometry>getList(geom, "geometry")) {
+				com.vividsolutions.jts.geom.Geometry jtsChild = toJtsGeometry(child, factory);
+				if (jtsChild != null)
+					children.add(jtsChild);
+			}
+			return children.isEmpty() ? null : factory.createGeometryCollection(
+				children.toArray(new com.vividsolutions.jts.geom.Geometry[children.size()]));
+		}
+		return null;
+	}
+
+	/**
+	 * Converts a JTS geometry to a KML geometry, or returns null if it's empty.
+	 * Multi-geometries and GeometryCollections become a MultiGeometry.
+	 * @param geom
+	 * @return
+	 */
+	public static Geometry toKmlGeometry(com.vividsolutions.jts.geom.Geometry geom) {
+		if (geom == null || geom.isEmpty())
+			return null;
+		
+		if (geom instanceof com.vividsolutions.jts.geom.Point) {
+			Point point = new Point();
+			point.setCoordinates(toKmlCoordinates(geom.getCoordinates()));
+			return point;
+		}
+		if (geom instanceof com.vividsolutions.jts.geom.LinearRing) {
+			LinearRing ring = new LinearRing();
+			ring.setCoordinates(toKmlCoordinates(geom.getCoordinates()));
+			return ring;
+		}
+		if (geom instanceof com.vividsolutions.jts.geom.LineString) {
+			LineString line = new LineString();
+			line.setCoordinates(toKmlCoordinates(geom.getCoordinates()));
+			return line;
+		}
+		if (geom instanceof com.vividsolutions.jts.geom.Polygon) {
+			com.vividsolutions.jts.geom.Polygon jtsPolygon = (com.vividsolutions.jts.geom.Polygon) geom;
+			Polygon polygon = new Polygon();
+			polygon.createAndSetOuterBoundaryIs().createAndSetLinearRing().setCoordinates(
+				toKmlCoordinates(jtsPolygon.getExteriorRing().getCoordinates()));
+			for (int i = 0; i < jtsPolygon.getNumInteriorRing(); i++) {
+				polygon.createAndAddInnerBoundaryIs().createAndSetLinearRing().setCoordinates(
+					toKmlCoordinates(jtsPolygon.getInteriorRingN(i).getCoordinates()));
+			}
+			return polygon;
+		}
+		
+		// MultiPoint, MultiLineString, MultiPolygon and GeometryCollection
+		MultiGeometry multi = new MultiGeometry();
+		for (int i = 0; i < geom.getNumGeometries(); i++) {
+			Geometry child = toKmlGeometry(geom.getGeometryN(i));
+			if (child != null)
+				multi.getGeometry().add(child);
+		}
+		return multi.getGeometry().isEmpty() ? null : multi;
+	}
+
+	/**
+	 * Converts KML coordinates to JTS coordinates. The altitude is kept as z.
+	 * @param coords
+	 * @return
+	 */
+	public static com.vividsolutions.jts.geom.Coordinate[] toJtsCoordinates(List<Coordinate> coords) {
+		com.vividsolutions.jts.geom.Coordinate[] res = new com.vividsolutions.jts.geom.Coordinate[coords.size()];
+		for (int i = 0; i < res.length; i++) {
+			Coordinate coord = coords.get(i);
+			res[i] = new com.vividsolutions.jts.geom.Coordinate(coord.getLongitude(), coord.getLatitude(), coord.getAltitude());
+		}
+		return res;
+	}
+	
+	/**
+	 * Converts JTS coordinates to KML coordinates. The z value is used as altitude.
+	 * @param coords
+	 * @return
+	 */
+	public static List<Coordinate> toKmlCoordinates(com.vividsolutions.jts.geom.Coordinate[] coords) {
+		List<Coordinate> res = new ArrayList<Coordinate>(coords.length);
+		for (com.vividsolutions.jts.geom.Coordinate coord : coords) {
+			res.add(new Coordinate(coord.x, coord.y, Double.isNaN(coord.z) ? 0.0 : coord.z));
+		}
+		return res;
+	}
+	
+	private static com.vividsolutions.jts.geom.Geometry toJtsRingOrLine(List<Coordinate> coords, GeometryFactory factory) {
+		if (size(coords) < 2)
+			return null;
+		
+		com.vividsolutions.jts.geom.Coordinate[] jtsCoords = toJtsCoordinates(coords);
+		if (jtsCoords.length >= 4 && jtsCoords[0].equals2D(jtsCoords[jtsCoords.length - 1]))
+			return factory.createLinearRing(jtsCoords);
+		return factory.createLineString(jtsCoords);
+	}
+	
+	private static int size(List<Coordinate> coords) {
+		return (coords != null) ? coords.size() : 0;
+	}
+	
+	private static void expandToInclude(Envelope env, Geometry geom) {
+		if (geom instanceof Point) {
+			expandToInclude(env, ((Point) geom).getCoordinates());
+		}
+		else if (geom instanceof LineString) {
+			expandToInclude(env, ((LineString) geom).getCoordinates());
+		}
+		else if (geom instanceof LinearRing) {
+			expandToInclude(env, ((LinearRing) geom).getCoordinates());
+		}
+		else if (geom instanceof Polygon) {
+			// The inner boundaries lie within the outer boundary, so only that one is needed.
+			Boundary outer = ((Polygon) geom).getOuterBoundaryIs();
+			if (outer != null)
+				expandToInclude(env, outer.getLinearRing());
+		}
+		else if (geom instanceof MultiGeometry) {
+			for (Geometry child : KmlReadUtil.<Geometry>getList(geom, "geometry")) {
+				expandToInclude(env, child);
+			}
+		}
+	}
+
+	private static void expandToInclude(Envelope env, List<Coordinate> coords) {
+		if (coords == null)
+			return;
+
+		for (Coordinate coord : coords) {
+			env.expandToInclude(coord.getLongitude(), coord.getLatitude());
+		}
+	}
+
+}
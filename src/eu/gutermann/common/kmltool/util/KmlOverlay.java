@@ -0,0 +1,294 @@
+package eu.gutermann.common.kmltool.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.bind.Marshaller;
+
+import de.micromata.opengis.kml.v_2_2_0.Document;
+import de.micromata.opengis.kml.v_2_2_0.ExtendedData;
+import de.micromata.opengis.kml.v_2_2_0.Feature;
+import de.micromata.opengis.kml.v_2_2_0.Pair;
+import de.micromata.opengis.kml.v_2_2_0.Schema;
+import de.micromata.opengis.kml.v_2_2_0.StyleSelector;
+
+/**
+ * Changes to a KML that are only visible while it's written, so that an export can transform the model's KML
+ * without modifying it and without copying all of it first.
+ *
+ * Transforms record the new value of a property of a Feature (or the styleUrl of a StyleMap Pair) in the overlay,
+ * and read the properties through the overlay so that they see each other's changes. The listener from
+ * {@link #createMarshalListener()} sets the new values right before an element is written and restores the
+ * original values right after it, in the same way as {@link CoordinateFormatter#createMarshalListener()}.
+ * {@link #restoreAll()} must be called when marshalling fails, so that no change is left behind. Elements that
+ * other threads may read at the same time must not be changed at all, so for those the values are set in copies
+ * that are only used for writing, see {@link #copy(Object, Object)} and {@link #commit(Object)}.
+ *
+ * The objects are compared by identity. An instance must not be used by multiple threads at the same time.
+ */
+public class KmlOverlay {
+	/**
+	 * The properties that can be changed.
+	 */
+	public static enum Property {
+		DESCRIPTION,
+		EXTENDED_DATA,
+		STYLE_URL,
+		STYLE_SELECTORS,
+		SCHEMAS
+	};
+	
+	/**
+	 * The new values of the properties of each changed object.
+	 */
+	private Map<Object, Map<Property, Object>> overrides = new IdentityHashMap<Object, Map<Property, Object>>();
+	
+	/**
+	 * The original values of the properties of each object whose new values are currently set.
+	 */
+	private Map<Object, Map<Property, Object>> originals = new IdentityHashMap<Object, Map<Property, Object>>();
+	
+	/**
+	 * Records a new value of a property.
+	 * @param obj a Feature, or a Pair for {@link Property#STYLE_URL}
+	 * @param prop
+	 * @param value
+	 */
+	public void set(Object obj, Property prop, Object value) {
+		Map<Property, Object> values = overrides.get(obj);
+		if (values == null) {
+			values = new EnumMap<Property, Object>(Property.class);
+			overrides.put(obj, values);
+		}
+		values.put(prop, value);
+	}
+	
+	/**
+	 * Returns the new value of a property if one was recorded, otherwise its current value.
+	 * @param obj
+	 * @param prop
+	 * @return
+	 */
+	public Object get(Object obj, Property prop) {
+		Map<Property, Object> values = overrides.get(obj);
+		if (values != null && values.containsKey(prop))
+			return values.get(prop);
+		return getValue(obj, prop);
+	}
+	
+	public String getDescription(Feature feat) {
+		return (String) get(feat, Property.DESCRIPTION);
+	}
+	
+	public void setDescription(Feature feat, String description) {
+		set(feat, Property.DESCRIPTION, description);
+	}
+	
+	public ExtendedData getExtendedData(Feature feat) {
+		return (ExtendedData) get(feat, Property.EXTENDED_DATA);
+	}
+	
+	public void setExtendedData(Feature feat, ExtendedData extData) {
+		set(feat, Property.EXTENDED_DATA, extData);
+	}
+	
+	public String getStyleUrl(Object obj) {
+		return (String) get(obj, Property.STYLE_URL);
+	}
+	
+	public void setStyleUrl(Object obj, String styleUrl) {
+		set(obj, Property.STYLE_URL, styleUrl);
+	}
+	
+	/**
+	 * Returns the Styles and StyleMaps of a Feature, or an empty list that must not be changed if there are none.
+	 * @param feat
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	public List<StyleSelector> getStyleSelectors(Feature feat) {
+		List<StyleSelector> selectors = (List<StyleSelector>) get(feat, Property.STYLE_SELECTORS);
+		return (selectors != null) ? selectors : Collections.<StyleSelector>emptyList();
+	}
+	
+	public void setStyleSelectors(Feature feat, List<StyleSelector> selectors) {
+		set(feat, Property.STYLE_SELECTORS, selectors);
+	}
+	
+	/**
+	 * Returns the Schemas of a Document, or an empty list that must not be changed if there are none.
+	 * @param doc
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	public List<Schema> getSchemas(Document doc) {
+		List<Schema> schemas = (List<Schema>) get(doc, Property.SCHEMAS);
+		return (schemas != null) ? schemas : Collections.<Schema>emptyList();
+	}
+	
+	public void setSchemas(Document doc, List<Schema> schemas) {
+		set(doc, Property.SCHEMAS, schemas);
+	}
+	
+	/**
+	 * Records the new values of one object for another object too, for example for a copy of a Placemark with
+	 * another geometry.
+	 * @param from
+	 * @param to
+	 */
+	public void copy(Object from, Object to) {
+		Map<Property, Object> values = overrides.get(from);
+		if (values != null)
+			overrides.put(to, new EnumMap<Property, Object>(values));
+	}
+	
+	/**
+	 * Returns the number of objects with new values.
+	 * @return
+	 */
+	public int size() {
+		return overrides.size();
+	}
+	
+	/**
+	 * Sets a value of an object until {@link #restore(Object)} is called for the object. The original value is
+	 * remembered the first time that a property is set.
+	 * @param obj
+	 * @param prop
+	 * @param value
+	 */
+	public void apply(Object obj, Property prop, Object value) {
+		Map<Property, Object> values = originals.get(obj);
+		if (values == null) {
+			values = new EnumMap<Property, Object>(Property.class);
+			originals.put(obj, values);
+		}
+		if (!values.containsKey(prop))
+			values.put(prop, getValue(obj, prop));
+		setValue(obj, prop, value);
+	}
+	
+	/**
+	 * Restores the original values of an object that were replaced with {@link #apply(Object, Property, Object)}.
+	 * @param obj
+	 */
+	public void restore(Object obj) {
+		Map<Property, Object> values = originals.remove(obj);
+		if (values != null) {
+			for (Map.Entry<Property, Object> entry : values.entrySet()) {
+				setValue(obj, entry.getKey(), entry.getValue());
+			}
+		}
+	}
+	
+	/**
+	 * Restores the original values of all objects.
+	 */
+	public void restoreAll() {
+		for (Object obj : new ArrayList<Object>(originals.keySet())) {
+			restore(obj);
+		}
+	}
+	
+	/**
+	 * Sets all recorded values permanently, for transforms that are executed on a KML that may be modified.
+	 */
+	public void commit() {
+		for (Map.Entry<Object, Map<Property, Object>> entry : overrides.entrySet()) {
+			for (Map.Entry<Property, Object> value : entry.getValue().entrySet()) {
+				setValue(entry.getKey(), value.getKey(), value.getValue());
+			}
+		}
+		overrides.clear();
+	}
+	
+	/**
+	 * Sets the recorded values of one object permanently, for example for a copy that is only used for writing.
+	 * @param obj
+	 */
+	public void commit(Object obj) {
+		Map<Property, Object> values = overrides.remove(obj);
+		if (values != null) {
+			for (Map.Entry<Property, Object> entry : values.entrySet()) {
+				setValue(obj, entry.getKey(), entry.getValue());
+			}
+		}
+	}
+	
+	/**
+	 * Creates a JAXB marshal listener that sets the recorded values of each object while it's written.
+	 * @return
+	 */
+	public Marshaller.Listener createMarshalListener() {
+		return new Marshaller.Listener() {
+			@Override
+			public void beforeMarshal(Object source) {
+				Map<Property, Object> values = overrides.get(source);
+				if (values != null) {
+					for (Map.Entry<Property, Object> entry : values.entrySet()) {
+						apply(source, entry.getKey(), entry.getValue());
+					}
+				}
+			}
+			
+			@Override
+			public void afterMarshal(Object source) {
+				restore(source);
+			}
+		};
+	}
+	
+	private static Object getValue(Object obj, Property prop) {
+		// The lists are read without the getters, which would create them. So the original value that is restored
+		// is the one that was set, and the elements that are only read stay unchanged.
+		if (obj instanceof Pair && prop == Property.STYLE_URL)
+			return ((Pair) obj).getStyleUrl();
+		
+		Feature feat = (Feature) obj;
+		switch (prop) {
+		case DESCRIPTION:
+			return feat.getDescription();
+		case EXTENDED_DATA:
+			return feat.getExtendedData();
+		case STYLE_URL:
+			return feat.getStyleUrl();
+		case STYLE_SELECTORS:
+			return KmlReadUtil.getListOrNull(feat, "styleSelector");
+		case SCHEMAS:
+			return KmlReadUtil.getListOrNull(feat, "schema");
+		}
+		return null;
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static void setValue(Object obj, Property prop, Object value) {
+		if (obj instanceof Pair && prop == Property.STYLE_URL) {
+			((Pair) obj).setStyleUrl((String) value);
+			return;
+		}
+		
+		Feature feat = (Feature) obj;
+		switch (prop) {
+		case DESCRIPTION:
+			feat.setDescription((String) value);
+			break;
+		case EXTENDED_DATA:
+			feat.setExtendedData((ExtendedData) value);
+			break;
+		case STYLE_URL:
+			feat.setStyleUrl((String) value);
+			break;
+		case STYLE_SELECTORS:
+			feat.setStyleSelector((List<StyleSelector>) value);
+			break;
+		case SCHEMAS:
+			((Document) feat).setSchema((List<Schema>) value);
+			break;
+		}
+	}
+
+}
@@ -0,0 +1,76 @@
+package eu.gutermann.common.kmltool.util;
+
+import java.lang.reflect.Field;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Utility class for reading the list properties of KML elements without changing them. The getters of the Java API
+ * for KML library create and set an empty list if there is none, which changes an element that other threads may
+ * be reading, like the elements of a read-only copy of the model. It also changes the hash code of the element,
+ * with which KmlSourceIndex detects changes.
+ */
+public class KmlReadUtil {
+	/**
+	 * The list fields by class and name, like "Polygon.innerBoundaryIs".
+	 */
+	private static final Map<String, Field> FIELDS = new ConcurrentHashMap<String, Field>();
+	
+	private KmlReadUtil() {
+		// static utility class
+	}
+	
+	/**
+	 * Returns a list property of an element, or an empty list if it isn't set.
+	 * The returned list must not be changed.
+	 * @param obj
+	 * @param name the name of the field, like "innerBoundaryIs" for Polygon.getInnerBoundaryIs()
+	 * @return
+	 */
+	public static <T> List<T> getList(Object obj, String name) {
+		List<T> list = getListOrNull(obj, name);
+		return (list != null) ? list : Collections.<T>emptyList();
+	}
+	
+	/**
+	 * Returns a list property of an element as it is set, which is null if it isn't set.
+	 * @param obj
+	 * @param name the name of the field, like "innerBoundaryIs" for Polygon.getInnerBoundaryIs()
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> List<T> getListOrNull(Object obj, String name) {
+		try {
+			return (List<T>) getField(obj.getClass(), name).get(obj);
+		}
+		catch (IllegalAccessException e) {
+			throw new IllegalStateException("Could not read " + name + " of a " + obj.getClass().getSimpleName(), e);
+		}
+	}
+	
+	private static Field getField(Class<?> c, String name) {
+		String key = c.getName() + "." + name;
+		Field field = FIELDS.get(key);
+		if (field != null)
+			return field;
+		
+		for (Class<?> sc = c; sc != Object.class; sc = sc.getSuperclass()) {
+			try {
+				field = sc.getDeclaredField(name);
+				break;
+			}
+			catch (NoSuchFieldException e) {
+				// declared by a superclass
+			}
+		}
+		if (field == null || !List.class.isAssignableFrom(field.getType()))
+			throw new IllegalArgumentException("A " + c.getSimpleName() + " has no list " + name);
+		
+		field.setAccessible(true);
+		FIELDS.put(key, field);
+		return field;
+	}
+	
+}
@@ -0,0 +1,100 @@
+package eu.gutermann.common.kmltool.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Utility class for running CPU-bound work on all processors. All tasks share a single pool of daemon threads with
+ * one thread per processor, so that concurrent imports and exports don't create more threads than can run at once
+ * and the pool never keeps the application from exiting.
+ */
+public class ParallelTasks {
+	private static final int NUM_THREADS = Runtime.getRuntime().availableProcessors();
+	
+	private static ExecutorService executor;
+	
+	private ParallelTasks() {
+		// static utility class
+	}
+	
+	/**
+	 * Returns the number of threads in the shared pool, which is a good number of partitions for splitting work.
+	 * @return
+	 */
+	public static int getNumThreads() {
+		return NUM_THREADS;
+	}
+	
+	/**
+	 * Returns the shared pool, creating it on first use.
+	 * @return
+	 */
+	public static synchronized ExecutorService getExecutor() {
+		if (executor == null) {
+			executor = Executors.newFixedThreadPool(NUM_THREADS, new ThreadFactory() {
+				private AtomicInteger count = new AtomicInteger();
+				
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "kmltool-worker-" + count.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return executor;
+	}
+	
+	/**
+	 * Runs the tasks on the shared pool and returns their results in the same order.
+	 * If a task fails then its exception is rethrown, wrapped in a RuntimeException if it's a checked exception.
+	 * Note: the tasks must not wait for other tasks on the shared pool themselves, since that may block all threads.
+	 * @param tasks
+	 * @return
+	 */
+	public static <T> List<T> invokeAll(List<? extends Callable<T>> tasks) {
+		// A single task is run directly on the calling thread.
+		if (tasks.size() == 1) {
+			try {
+				List<T> res = new ArrayList<T>(1);
+				res.add(tasks.get(0).call());
+				return res;
+			}
+			catch (RuntimeException e) {
+				throw e;
+			}
+			catch (Exception e) {
+				throw new RuntimeException(e.getMessage(), e);
+			}
+		}
+		
+		try {
+			List<Future<T>> futures = getExecutor().invokeAll(tasks);
+			List<T> res = new ArrayList<T>(futures.size());
+			for (Future<T> future : futures) {
+				res.add(future.get());
+			}
+			return res;
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while waiting for parallel tasks", e);
+		}
+		catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			if (cause instanceof Error)
+				throw (Error) cause;
+			throw new RuntimeException(cause.getMessage(), cause);
+		}
+	}
+
+}
@@ -0,0 +1,287 @@
+package eu.gutermann.common.kmltool.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import de.micromata.opengis.kml.v_2_2_0.Container;
+import de.micromata.opengis.kml.v_2_2_0.Document;
+import de.micromata.opengis.kml.v_2_2_0.Feature;
+import de.micromata.opengis.kml.v_2_2_0.Folder;
+import de.micromata.opengis.kml.v_2_2_0.Kml;
+import de.micromata.opengis.kml.v_2_2_0.Pair;
+import de.micromata.opengis.kml.v_2_2_0.Style;
+import de.micromata.opengis.kml.v_2_2_0.StyleMap;
+import de.micromata.opengis.kml.v_2_2_0.StyleSelector;
+import eu.gutermann.common.kmltool.util.kmlcrawler.KmlCrawler;
+import eu.gutermann.common.kmltool.util.kmlcrawler.KmlCrawlerListener;
+import eu.gutermann.common.kmltool.util.kmlcrawler.KmlItem;
+
+/**
+ * Utility class for reducing the number of shared Style and StyleMap elements in a KML before it's exported.
+ * It can merge StyleSelectors that only differ in their id, and remove StyleSelectors that aren't referenced
+ * by any Feature. Only local references like "#id" are taken into account. StyleSelectors without an id and
+ * StyleSelectors inside Features are never touched.
+ * See <a href="http://labs.micromata.de/projects/jak.html">Java API for KML</a> for the KML elements used.
+ *
+ * Note: the Kml instance is modified, unless the optimizer is created with a {@link KmlOverlay} in which the changes
+ * are recorded instead.
+ */
+public class StyleOptimizer {
+	/**
+	 * Index of the shared StyleSelectors and the styleUrl references in a KML, built in a single crawl.
+	 */
+	private class StyleIndex implements KmlCrawlerListener {
+		/**
+		 * The StyleSelectors with an id and the Containers they're in, in document order.
+		 */
+		List<KmlItem> selectors = new ArrayList<KmlItem>();
+
+		/**
+		 * All Features that have a styleUrl.
+		 */
+		List<Feature> styledFeatures = new ArrayList<Feature>();
+
+		@Override
+		public void onStyleSelector(KmlItem item) {
+			StyleSelector selector = item.getObject();
+			if (selector.getId() != null)
+				selectors.add(item);
+		}
+
+		@Override
+		public void onFeature(KmlItem item) {
+			Feature feat = item.getObject();
+			if (overlay.getStyleUrl(feat) != null)
+				styledFeatures.add(feat);
+		}
+	};
+
+	/**
+	 * The overlay through which the KML is read and in which the changes are recorded.
+	 */
+	private KmlOverlay overlay;
+
+	/**
+	 * Whether the changes are set in the KML at the end of each operation.
+	 */
+	private boolean commit;
+
+	/**
+	 * Creates an optimizer that modifies the KML.
+	 */
+	public StyleOptimizer() {
+		this.overlay = new KmlOverlay();
+		this.commit = true;
+	}
+
+	/**
+	 * Creates an optimizer that records its changes in an overlay, so that the KML itself isn't modified.
+	 * @param overlay
+	 */
+	public StyleOptimizer(KmlOverlay overlay) {
+		this.overlay = overlay;
+		this.commit = false;
+	}
+
+	/**
+	 * Merges all Styles and then all StyleMaps that are identical apart from their id into the first one of
+	 * them, and lets all references point to the one that is kept.
+	 * @param kml
+	 * @return the ids of the removed StyleSelectors mapped to the ids of the ones that replace them
+	 */
+	public Map<String, String> mergeDuplicates(Kml kml) {
+		StyleIndex index = createIndex(kml);
+
+		// Styles must be merged first, since StyleMaps can only be compared after their Pairs refer to the merged Styles.
+		Map<String, String> replacedIds = new HashMap<String, String>();
+		mergeDuplicates(index, Style.class, replacedIds);
+		replaceStyleUrls(index, replacedIds);
+
+		Map<String, String> replacedMapIds = new HashMap<String, String>();
+		mergeDuplicates(index, StyleMap.class, replacedMapIds);
+		replaceStyleUrls(index, replacedMapIds);
+
+		replacedIds.putAll(replacedMapIds);
+		if (commit)
+			overlay.commit();
+		return replacedIds;
+	}
+
+	/**
+	 * Removes all StyleSelectors that aren't referenced by a Feature, directly or through a StyleMap.
+	 * @param kml
+	 * @return the number of removed StyleSelectors
+	 */
+	public int removeUnused(Kml kml) {
+		StyleIndex index = createIndex(kml);
+
+		Set<String> referencedIds = new HashSet<String>();
+		for (Feature feat : index.styledFeatures) {
+			String id = getLocalId(overlay.getStyleUrl(feat));
+			if (id != null)
+				referencedIds.add(id);
+		}
+
+		return removeUnused(kml, referencedIds);
+	}
+
+	/**
+	 * Removes all StyleSelectors that aren't in the given set of ids referenced by Features, and aren't referenced
+	 * through a StyleMap in that set either. Use this if the referenced ids are already known, e.g. from the
+	 * style index of the KmlModel, since it only visits the Containers of the KML and not all Features.
+	 * @param kml
+	 * @param referencedIds
+	 * @return the number of removed StyleSelectors
+	 */
+	public int removeUnused(Kml kml, Set<String> referencedIds) {
+		List<Container> containers = new ArrayList<Container>();
+		if (kml.getFeature() instanceof Container)
+			collectContainers((Container) kml.getFeature(), containers);
+
+		// Add the ids of the Styles referenced by the StyleMaps that are used.
+		Set<String> usedIds = new HashSet<String>(referencedIds);
+		for (Container cont : containers) {
+			for (StyleSelector selector : overlay.getStyleSelectors(cont)) {
+				if (selector instanceof StyleMap && referencedIds.contains(selector.getId())) {
+					List<Pair> pairs = KmlReadUtil.getList(selector, "pair");
+					for (Pair pair : pairs) {
+						String pairId = getLocalId(overlay.getStyleUrl(pair));
+						if (pairId != null)
+							usedIds.add(pairId);
+					}
+				}
+			}
+		}
+
+		int numRemoved = 0;
+		for (Container cont : containers) {
+			List<StyleSelector> selectors = overlay.getStyleSelectors(cont);
+			List<StyleSelector> kept = new ArrayList<StyleSelector>();
+			for (StyleSelector selector : selectors) {
+				if (selector.getId() == null || usedIds.contains(selector.getId()))
+					kept.add(selector);
+			}
+
+			int numUnused = selectors.size() - kept.size();
+			if (numUnused > 0) {
+				overlay.setStyleSelectors(cont, kept);
+				numRemoved += numUnused;
+			}
+		}
+		if (commit)
+			overlay.commit();
+		return numRemoved;
+	}
+
+	private void collectContainers(Container cont, List<Container> res) {
+		// Collect the Container and all nested Containers, without visiting the other Features.
+		res.add(cont);
+
+		List<Feature> features = (cont instanceof Document) ? ((Document) cont).getFeature() : ((Folder) cont).getFeature();
+		for (Feature feat : features) {
+			if (feat instanceof Container)
+				collectContainers((Container) feat, res);
+		}
+	}
+
+	private StyleIndex createIndex(Kml kml) {
+		StyleIndex index = new StyleIndex();
+		new KmlCrawler(kml).setOverlay(overlay).addListener(index).crawl();
+		return index;
+	}
+
+	private void mergeDuplicates(StyleIndex index, Class<? extends StyleSelector> clazz, Map<String, String> replacedIds) {
+		// StyleSelectors are compared with their equals() method on a copy without id.
+		Map<StyleSelector, String> keptIds = new HashMap<StyleSelector, String>();
+		Map<Container, Set<StyleSelector>> removed = new IdentityHashMap<Container, Set<StyleSelector>>();
+
+		for (KmlItem item : index.selectors) {
+			StyleSelector selector = item.getObject();
+			if (!clazz.isInstance(selector))
+				continue;
+
+			// The selector is shared with the model and must not be changed, which clone() does by creating its
+			// empty lists. The clone() of the copy creates them in the copy, so that unset and empty lists compare
+			// equal.
+			StyleSelector key;
+			if (selector instanceof Style) {
+				key = KmlCopyUtil.deepCopy((Style) selector).clone();
+			}
+			else {
+				// The Pairs of the copy must refer to the Styles that the overlay refers to.
+				StyleMap copy = KmlCopyUtil.deepCopy((StyleMap) selector).clone();
+				List<Pair> pairs = KmlReadUtil.getList(selector, "pair");
+				for (int i = 0; i < pairs.size(); i++) {
+					copy.getPair().get(i).setStyleUrl(overlay.getStyleUrl(pairs.get(i)));
+				}
+				key = copy;
+			}
+			key.setId(null);
+
+			String keptId = keptIds.get(key);
+			if (keptId == null) {
+				keptIds.put(key, selector.getId());
+			}
+			else if (!keptId.equals(selector.getId())) {
+				Container parent = (Container) item.getParent();
+				Set<StyleSelector> parentRemoved = removed.get(parent);
+				if (parentRemoved == null) {
+					parentRemoved = Collections.newSetFromMap(new IdentityHashMap<StyleSelector, Boolean>());
+					removed.put(parent, parentRemoved);
+				}
+				parentRemoved.add(selector);
+				replacedIds.put(selector.getId(), keptId);
+			}
+		}
+
+		// Remove the merged StyleSelectors from each Container at once.
+		for (Map.Entry<Container, Set<StyleSelector>> entry : removed.entrySet()) {
+			List<StyleSelector> kept = new ArrayList<StyleSelector>();
+			for (StyleSelector selector : overlay.getStyleSelectors(entry.getKey())) {
+				if (!entry.getValue().contains(selector))
+					kept.add(selector);
+			}
+			overlay.setStyleSelectors(entry.getKey(), kept);
+		}
+	}
+
+	private void replaceStyleUrls(StyleIndex index, Map<String, String> replacedIds) {
+		if (replacedIds.isEmpty())
+			return;
+
+		for (Feature feat : index.styledFeatures) {
+			String id = getLocalId(overlay.getStyleUrl(feat));
+			if (replacedIds.containsKey(id))
+				overlay.setStyleUrl(feat, "#" + replacedIds.get(id));
+		}
+
+		for (KmlItem item : index.selectors) {
+			if (item.getObject() instanceof StyleMap) {
+				List<Pair> pairs = KmlReadUtil.getList(item.getObject(), "pair");
+				for (Pair pair : pairs) {
+					String id = getLocalId(overlay.getStyleUrl(pair));
+					if (replacedIds.containsKey(id))
+						overlay.setStyleUrl(pair, "#" + replacedIds.get(id));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the id from a local reference like "#id", or null if it's not a local reference.
+	 * @param url
+	 * @return
+	 */
+	static String getLocalId(String url) {
+		if (url == null || !url.startsWith("#"))
+			return null;
+		return url.substring(1);
+	}
+
+}
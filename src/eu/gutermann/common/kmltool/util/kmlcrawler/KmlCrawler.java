@@ -12,6 +12,9 @@ import de.micromata.opengis.kml.v_2_2_0.Feature;
 import de.micromata.opengis.kml.v_2_2_0.Folder;
 import de.micromata.opengis.kml.v_2_2_0.Kml;
 import de.micromata.opengis.kml.v_2_2_0.StyleSelector;
+import eu.gutermann.common.kmltool.util.KmlOverlay;
+import eu.gutermann.common.kmltool.util.metrics.JobMetrics;
+import eu.gutermann.common.kmltool.util.metrics.StageTimer;
 
 /**
  * Utility class for iteration over a KML's Document, nested Folders and the elements they hold.
@@ -28,10 +31,44 @@ public class KmlCrawler {
 	
 	private List<KmlCrawlerListener> listeners = new ArrayList<KmlCrawlerListener>();
 	
+	/**
+	 * Optional job metrics into which the crawl time and the number of visited elements are recorded.
+	 */
+	private JobMetrics metrics;
+	
+	/**
+	 * Optional overlay through which the StyleSelectors of the Containers are read.
+	 */
+	private KmlOverlay overlay;
+	
+	private long numFeatures;
+	private long numStyleSelectors;
+	
 	public KmlCrawler(Kml kml) {
 		this.kml = kml;
 	}
 	
+	/**
+	 * Sets the job metrics into which each crawl is recorded as the stage "crawl". May be null.
+	 * @param metrics
+	 * @return
+	 */
+	public KmlCrawler setMetrics(JobMetrics metrics) {
+		this.metrics = metrics;
+		return this;
+	}
+	
+	/**
+	 * Sets the overlay through which the StyleSelectors of the Containers are read, so that the crawl sees the
+	 * StyleSelectors that a transform added or removed. May be null.
+	 * @param overlay
+	 * @return
+	 */
+	public KmlCrawler setOverlay(KmlOverlay overlay) {
+		this.overlay = overlay;
+		return this;
+	}
+	
 	/**
 	 * Adds a listener to the crawler.
 	 * @param listener
@@ -58,7 +95,24 @@ public class KmlCrawler {
 	 */
 	public KmlCrawler crawl() {
 		stack = new ArrayDeque<AbstractObject>();
+		numFeatures = 0;
+		numStyleSelectors = 0;
+		StageTimer timer = (metrics != null) ? metrics.begin("crawl") : null;
+		
+		try {
+			crawlTopFeature();
+		}
+		finally {
+			if (timer != null) {
+				timer.addCount("features", numFeatures).addCount("styleSelectors", numStyleSelectors);
+				timer.end();
+			}
+		}
 		
+		return this;
+	}
+	
+	private void crawlTopFeature() {
 		// Start iterating with the top Feature. This is usually a Document, but may also be a single Placemark.
 		Feature topFeat = kml.getFeature();
 		fireEventFor(topFeat);
@@ -74,8 +128,6 @@ public class KmlCrawler {
 				stack.pop();
 			}
 		}
-		
-		return this;
 	}
 	
 	private void crawlContainer(Container cont) {
@@ -90,7 +142,7 @@ public class KmlCrawler {
 			objects.addAll(((Folder) cont).getFeature());
 		}
 		
-		objects.addAll(cont.getStyleSelector());
+		objects.addAll((overlay != null) ? overlay.getStyleSelectors(cont) : cont.getStyleSelector());
 		
 		// For each of the elements, fire an event. If the element is a Container (should be a Folder) recursively iterate over its elements.
 		for (AbstractObject obj : objects) {
@@ -115,10 +167,12 @@ public class KmlCrawler {
 		
 		// features
 		if (obj instanceof Feature) {
+			numFeatures++;
 			onFeature(new KmlItem(obj, stack));
 		}
 		// style
 		else if (obj instanceof StyleSelector) {
+			numStyleSelectors++;
 			onStyleSelector(new KmlItem(obj, stack));
 		}
 		// ignore all other items
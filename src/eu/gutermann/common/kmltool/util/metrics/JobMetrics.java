@@ -0,0 +1,182 @@
+package eu.gutermann.common.kmltool.util.metrics;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.json.simple.JSONValue;
+
+/**
+ * Collects the performance measurements of a single import or export job: the wall time, bytes in/out
+ * and object counts per stage, and the peak heap usage of the whole job.
+ * When the job is finished the measurements are passed on to all registered {@link MetricsSink}s and
+ * may be written as a JSON report with {@link #toJson()}.
+ *
+ * Note: the peak heap usage is the highest heap usage sampled when the job starts, when each stage
+ * invocation ends and when the job finishes. Short-lived peaks in between are not seen, but the JVM-wide
+ * peak values of the memory pools are left alone so concurrent jobs don't disturb each other.
+ */
+public class JobMetrics {
+	/**
+	 * The sinks that are notified of every finished job.
+	 */
+	private static final List<MetricsSink> sinks = new CopyOnWriteArrayList<MetricsSink>();
+
+	private final String name;
+	private final long startMillis;
+	private final long startNanos;
+	private final long startHeapUsed;
+	private long endNanos = -1;
+	private long peakHeapUsed = -1;
+
+	private Map<String, StageMetrics> stages = new LinkedHashMap<String, StageMetrics>();
+
+	/**
+	 * Starts a new job with the given name (e.g. "kml-import").
+	 * @param name
+	 */
+	public JobMetrics(String name) {
+		this.name = name;
+		this.startMillis = System.currentTimeMillis();
+		this.startNanos = System.nanoTime();
+		this.startHeapUsed = getHeapUsed();
+	}
+
+	/**
+	 * Registers a sink that is notified of every finished job.
+	 * @param sink
+	 */
+	public static void addSink(MetricsSink sink) {
+		sinks.add(sink);
+	}
+
+	/**
+	 * Unregisters a sink.
+	 * @param sink
+	 */
+	public static void removeSink(MetricsSink sink) {
+		sinks.remove(sink);
+	}
+
+	/**
+	 * Starts an invocation of a stage. The returned timer must be ended when the stage is done.
+	 * @param stageName
+	 * @return
+	 */
+	public synchronized StageTimer begin(String stageName) {
+		return new StageTimer(getStage(stageName));
+	}
+
+	/**
+	 * Adds to a named object count of a stage without timing it.
+	 * @param stageName
+	 * @param key
+	 * @param count
+	 */
+	public synchronized void addCount(String stageName, String key, long count) {
+		getStage(stageName).addCount(key, count);
+	}
+
+	/**
+	 * Ends the job and notifies all registered sinks. Calling it more than once has no effect.
+	 */
+	public void finish() {
+		synchronized (this) {
+			if (endNanos >= 0)
+				return;
+
+			endNanos = System.nanoTime();
+
+			long peak = Math.max(startHeapUsed, getHeapUsed());
+			for (StageMetrics stage : stages.values()) {
+				peak = Math.max(peak, stage.getMaxHeapUsed());
+			}
+			peakHeapUsed = peak;
+		}
+
+		for (MetricsSink sink : sinks) {
+			sink.onJobFinished(this);
+		}
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public long getStartMillis() {
+		return startMillis;
+	}
+
+	/**
+	 * Returns the wall time of the job so far, or in total if it's finished.
+	 * @return
+	 */
+	public synchronized long getWallNanos() {
+		return ((endNanos >= 0) ? endNanos : System.nanoTime()) - startNanos;
+	}
+
+	/**
+	 * Returns the peak heap usage during the job in bytes, or -1 if the job isn't finished yet.
+	 * @return
+	 */
+	public synchronized long getPeakHeapUsed() {
+		return peakHeapUsed;
+	}
+
+	/**
+	 * Returns the stages of the job in the order in which they were first entered.
+	 * @return
+	 */
+	public synchronized List<StageMetrics> getStages() {
+		return new ArrayList<StageMetrics>(stages.values());
+	}
+
+	/**
+	 * Returns the measurements of the job as a JSON object.
+	 * @return
+	 */
+	public String toJson() {
+		List<Object> stageList = new ArrayList<Object>();
+		for (StageMetrics stage : getStages()) {
+			Map<String, Object> stageMap = new LinkedHashMap<String, Object>();
+			stageMap.put("name", stage.getName());
+			stageMap.put("invocations", stage.getInvocations());
+			stageMap.put("wallMillis", stage.getWallNanos() / 1000000.0);
+			stageMap.put("bytesIn", stage.getBytesIn());
+			stageMap.put("bytesOut", stage.getBytesOut());
+			stageMap.put("maxHeapBytes", stage.getMaxHeapUsed());
+			stageMap.put("counts", stage.getCounts());
+			stageList.add(stageMap);
+		}
+
+		Map<String, Object> job = new LinkedHashMap<String, Object>();
+		job.put("job", name);
+		job.put("startMillis", startMillis);
+		job.put("wallMillis", getWallNanos() / 1000000.0);
+		job.put("peakHeapBytes", getPeakHeapUsed());
+		job.put("stages", stageList);
+		return JSONValue.toJSONString(job);
+	}
+
+	@Override
+	public String toString() {
+		return toJson();
+	}
+
+	private StageMetrics getStage(String stageName) {
+		StageMetrics stage = stages.get(stageName);
+		if (stage == null) {
+			stage = new StageMetrics(stageName);
+			stages.put(stageName, stage);
+		}
+		return stage;
+	}
+
+	private static long getHeapUsed() {
+		Runtime rt = Runtime.getRuntime();
+		return rt.totalMemory() - rt.freeMemory();
+	}
+
+}
@@ -0,0 +1,36 @@
+package eu.gutermann.common.kmltool.util.metrics;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * Metrics sink that writes the JSON report of every finished job to a file in a directory.
+ * The file names are "<job name>-<start time>.json".
+ */
+public class JsonFileMetricsSink implements MetricsSink {
+	private final File directory;
+
+	public JsonFileMetricsSink(File directory) {
+		this.directory = directory;
+	}
+
+	@Override
+	public void onJobFinished(JobMetrics job) {
+		String timestamp = new SimpleDateFormat("yyyyMMdd-HHmmss-SSS").format(new Date(job.getStartMillis()));
+		File file = new File(directory, job.getName() + "-" + timestamp + ".json");
+
+		try {
+			directory.mkdirs();
+			Files.write(file.toPath(), job.toJson().getBytes(StandardCharsets.UTF_8));
+		}
+		catch (IOException e) {
+			// Ignored on purpose: a failing metrics report must never break the actual import or export,
+			// and there is no user to report it to at this point.
+		}
+	}
+
+}
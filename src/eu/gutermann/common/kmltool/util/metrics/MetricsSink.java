@@ -0,0 +1,17 @@
+package eu.gutermann.common.kmltool.util.metrics;
+
+import java.util.EventListener;
+
+/**
+ * Receiver for the metrics of finished import and export jobs.
+ * Sinks are registered globally with {@link JobMetrics#addSink(MetricsSink)}.
+ */
+public interface MetricsSink extends EventListener {
+
+	/**
+	 * Fired when a job has finished, whether it succeeded or not.
+	 * @param job
+	 */
+	void onJobFinished(JobMetrics job);
+
+}
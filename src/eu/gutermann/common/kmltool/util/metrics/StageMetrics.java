@@ -0,0 +1,83 @@
+package eu.gutermann.common.kmltool.util.metrics;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The accumulated measurements of a single named stage within a job (e.g. "parse" or "marshal").
+ * A stage may be entered multiple times, e.g. once for each KMZ file of a split export. In that
+ * case the measurements of all invocations are summed up.
+ */
+public class StageMetrics {
+	private final String name;
+
+	private int invocations = 0;
+	private long wallNanos = 0;
+	private long bytesIn = 0;
+	private long bytesOut = 0;
+
+	/**
+	 * The highest used heap size sampled at the end of an invocation of this stage.
+	 */
+	private long maxHeapUsed = 0;
+
+	private Map<String, Long> counts = new LinkedHashMap<String, Long>();
+
+	StageMetrics(String name) {
+		// package-protected constructor
+
+		this.name = name;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public synchronized int getInvocations() {
+		return invocations;
+	}
+
+	public synchronized long getWallNanos() {
+		return wallNanos;
+	}
+
+	public synchronized long getBytesIn() {
+		return bytesIn;
+	}
+
+	public synchronized long getBytesOut() {
+		return bytesOut;
+	}
+
+	public synchronized long getMaxHeapUsed() {
+		return maxHeapUsed;
+	}
+
+	/**
+	 * Returns a copy of the object counts of this stage.
+	 * @return
+	 */
+	public synchronized Map<String, Long> getCounts() {
+		return new LinkedHashMap<String, Long>(counts);
+	}
+
+	synchronized void addInvocation(long nanos, long heapUsed) {
+		invocations++;
+		wallNanos += nanos;
+		maxHeapUsed = Math.max(maxHeapUsed, heapUsed);
+	}
+
+	synchronized void addBytesIn(long bytes) {
+		bytesIn += bytes;
+	}
+
+	synchronized void addBytesOut(long bytes) {
+		bytesOut += bytes;
+	}
+
+	synchronized void addCount(String key, long count) {
+		Long cur = counts.get(key);
+		counts.put(key, (cur == null) ? count : cur + count);
+	}
+
+}
@@ -0,0 +1,62 @@
+package eu.gutermann.common.kmltool.util.metrics;
+
+/**
+ * Handle for a single running invocation of a stage, as returned by {@link JobMetrics#begin(String)}.
+ * Call {@link #end()} when the stage is done, preferably in a finally block.
+ */
+public class StageTimer {
+	private final StageMetrics stage;
+	private final long startNanos;
+	private boolean ended = false;
+
+	StageTimer(StageMetrics stage) {
+		// package-protected constructor
+
+		this.stage = stage;
+		this.startNanos = System.nanoTime();
+	}
+
+	/**
+	 * Adds to the number of bytes read by the stage.
+	 * @param bytes
+	 * @return
+	 */
+	public StageTimer addBytesIn(long bytes) {
+		stage.addBytesIn(bytes);
+		return this;
+	}
+
+	/**
+	 * Adds to the number of bytes written by the stage.
+	 * @param bytes
+	 * @return
+	 */
+	public StageTimer addBytesOut(long bytes) {
+		stage.addBytesOut(bytes);
+		return this;
+	}
+
+	/**
+	 * Adds to a named object count of the stage (e.g. "placemarks").
+	 * @param key
+	 * @param count
+	 * @return
+	 */
+	public StageTimer addCount(String key, long count) {
+		stage.addCount(key, count);
+		return this;
+	}
+
+	/**
+	 * Stops the timer and adds the elapsed time to the stage. Calling it more than once has no effect.
+	 */
+	public void end() {
+		if (ended)
+			return;
+		ended = true;
+
+		Runtime rt = Runtime.getRuntime();
+		stage.addInvocation(System.nanoTime() - startNanos, rt.totalMemory() - rt.freeMemory());
+	}
+
+}
@@ -0,0 +1,229 @@
+package eu.gutermann.common.kmltool.impexp.kml;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import com.vividsolutions.jts.geom.Envelope;
+
+import de.micromata.opengis.kml.v_2_2_0.Document;
+import de.micromata.opengis.kml.v_2_2_0.Feature;
+import de.micromata.opengis.kml.v_2_2_0.Folder;
+import de.micromata.opengis.kml.v_2_2_0.Kml;
+import eu.gutermann.common.kmltool.impexp.geojson.GeoJsonExporter;
+import eu.gutermann.common.kmltool.model.KmlModel;
+
+/**
+ * Checks the exports that only write parts of the model or change what they write: the split export for Google
+ * Maps, the tiled export and the clipped export. They must keep the properties of the Folders, like their Region,
+ * LookAt and TimeSpan, and pack the assets that the parts refer to, also if their paths contain spaces. No export
+ * may change the model, which is checked with the hash code of its KML and with a plain export before and after.
+ *
+ * The project has no test framework, so this is a plain program: it prints the result of each case and exits with
+ * status 1 if a case fails. Run it with the libraries of the project on the classpath.
+ */
+public class KmlExportRoundTripTest {
+	private static final String ICON_PATH = "files/my icon.png";
+	
+	/**
+	 * The number of Placemarks, which makes the KML large enough to be split into multiple files and tiles.
+	 */
+	private static final int NUM_PLACEMARKS = 8000;
+	
+	private static int failures = 0;
+	
+	public static void main(String[] args) throws Exception {
+		File dir = Files.createTempDirectory("kmlroundtrip").toFile();
+		try {
+			File source = new File(dir, "source.kmz");
+			writeKmz(source);
+			
+			KmlModel model = new KmlModel();
+			model.setSnapshotsEnabled(false);
+			new KmlImporter(model).importFile(source);
+			KmlExporter exporter = new KmlExporter(model);
+			int hash = model.getKml().hashCode();
+			byte[] plain = exportPlain(exporter);
+			
+			exporter.setExtendedDataMode(KmlExporter.ExtendedDataMode.DESCRIPTION);
+			exporter.exportKmzForGoogleMaps(new File(dir, "gm.kmz"));
+			checkParts("split", listFiles(dir, "gm[0-9]+\\.kmz"), true);
+			checkModel("split", model, exporter, hash, plain);
+			
+			exporter.setExtendedDataMode(KmlExporter.ExtendedDataMode.SHARED_BALLOON_STYLE);
+			exporter.exportKmzForGoogleMaps(new File(dir, "gmshared.kmz"));
+			checkParts("split-shared", listFiles(dir, "gmshared[0-9]+\\.kmz"), true);
+			checkModel("split-shared", model, exporter, hash, plain);
+			
+			exporter.exportKmzTiles(new File(dir, "tiles.kmz"));
+			checkParts("tiles", listFiles(dir, "tiles-t[0-3]+\\.kmz"), true);
+			checkModel("tiles", model, exporter, hash, plain);
+			
+			File clipped = new File(dir, "clipped.kmz");
+			exporter.exportKmzClipped(clipped, new Envelope(8.2, 8.4, 47.2, 47.4));
+			checkParts("clipped", Arrays.asList(clipped), false);
+			checkModel("clipped", model, exporter, hash, plain);
+			
+			new GeoJsonExporter(model).exportGeoJson(new File(dir, "export.geojson"));
+			checkModel("geojson", model, exporter, hash, plain);
+		}
+		finally {
+			delete(dir);
+		}
+		
+		System.out.println((failures == 0) ? "All cases passed" : failures + " case(s) failed");
+		System.exit((failures == 0) ? 0 : 1);
+	}
+	
+	/**
+	 * Checks that the Folder of the written parts of an export has kept its properties, and that the parts contain
+	 * the icon of the shared Style.
+	 * @param name
+	 * @param files
+	 * @param multiple whether the export is expected to write multiple parts
+	 * @throws Exception
+	 */
+	private static void checkParts(String name, List<File> files, boolean multiple) throws Exception {
+		String error = null;
+		if (files.size() < (multiple ? 2 : 1))
+			error = "only " + files.size() + " file(s)";
+		
+		for (File file : files) {
+			if (error != null)
+				break;
+			
+			Kml kml = KmlJaxb.unmarshalFromKmz(file)[0];
+			Folder folder = findFolder(kml.getFeature());
+			if (folder == null)
+				error = file.getName() + " has no Folder";
+			else if (folder.getRegion() == null || folder.getAbstractView() == null || folder.getTimePrimitive() == null)
+				error = "the Folder in " + file.getName() + " lost its Region, LookAt or TimeSpan";
+			else if (!hasEntry(file, ICON_PATH))
+				error = file.getName() + " doesn't contain \"" + ICON_PATH + "\"";
+		}
+		
+		if (error != null)
+			failures++;
+		System.out.println(name + ": " + ((error == null) ? "ok (" + files.size() + " files)" : "FAILED, " + error));
+	}
+	
+	/**
+	 * Checks that an export didn't change the model.
+	 * @param name
+	 * @param model
+	 * @param exporter
+	 * @param hash the hash code of the KML before the exports
+	 * @param plain the plain KML export before the exports
+	 * @throws Exception
+	 */
+	private static void checkModel(String name, KmlModel model, KmlExporter exporter, int hash, byte[] plain) throws Exception {
+		String error = null;
+		if (model.getKml().hashCode() != hash)
+			error = "the hash code of the KML changed";
+		else if (!Arrays.equals(exportPlain(exporter), plain))
+			error = "a plain export differs from the one before";
+		
+		if (error != null)
+			failures++;
+		System.out.println(name + " model: " + ((error == null) ? "ok" : "FAILED, " + error));
+	}
+	
+	private static byte[] exportPlain(KmlExporter exporter) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		exporter.exportKml(out);
+		return out.toByteArray();
+	}
+	
+	private static Folder findFolder(Feature feat) {
+		if (feat instanceof Folder)
+			return (Folder) feat;
+		if (feat instanceof Document) {
+			for (Feature child : ((Document) feat).getFeature()) {
+				Folder folder = findFolder(child);
+				if (folder != null)
+					return folder;
+			}
+		}
+		return null;
+	}
+	
+	private static boolean hasEntry(File file, String name) throws IOException {
+		ZipFile zip = new ZipFile(file);
+		try {
+			return zip.getEntry(name) != null;
+		}
+		finally {
+			zip.close();
+		}
+	}
+	
+	private static List<File> listFiles(File dir, final String regex) {
+		File[] files = dir.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File d, String name) {
+				return name.matches(regex);
+			}
+		});
+		return Arrays.asList(files);
+	}
+	
+	private static void writeKmz(File file) throws IOException {
+		StringBuilder b = new StringBuilder();
+		b.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+		b.append("<kml xmlns=\"http://www.opengis.net/kml/2.2\">\n");
+		b.append("<Document><name>doc</name>\n");
+		b.append("<Style id=\"icon\"><IconStyle><Icon><href>").append(ICON_PATH).append("</href></Icon></IconStyle></Style>\n");
+		
+		// The Folder has the properties that the copies of the exports must keep.
+		b.append("<Folder><name>folder</name>\n");
+		b.append("<LookAt><longitude>8.5</longitude><latitude>47.5</latitude><range>50000</range></LookAt>\n");
+		b.append("<TimeSpan><begin>2020-01-01</begin></TimeSpan>\n");
+		b.append("<Region><LatLonAltBox><north>48</north><south>47</south><east>9</east><west>8</west></LatLonAltBox>");
+		b.append("<Lod><minLodPixels>16</minLodPixels></Lod></Region>\n");
+		for (int i = 0; i < NUM_PLACEMARKS; i++) {
+			double lon = 8 + (i % 100) * 0.01;
+			double lat = 47 + (i / 100) * 0.0125;
+			b.append("<Placemark><name>p").append(i).append("</name><styleUrl>#icon</styleUrl>");
+			b.append("<ExtendedData><Data name=\"index\"><value>").append(i).append("</value></Data></ExtendedData>");
+			b.append("<LineString><coordinates>");
+			for (int j = 0; j < 40; j++) {
+				b.append(lon + j * 0.0001).append(',').append(lat + j * 0.0001).append(' ');
+			}
+			b.append("</coordinates></LineString></Placemark>\n");
+		}
+		b.append("</Folder>\n");
+		b.append("</Document>\n</kml>\n");
+		
+		OutputStream out = Files.newOutputStream(file.toPath());
+		try {
+			ZipOutputStream zip = new ZipOutputStream(out);
+			zip.putNextEntry(new ZipEntry("doc.kml"));
+			zip.write(b.toString().getBytes("UTF-8"));
+			zip.putNextEntry(new ZipEntry(ICON_PATH));
+			zip.write(new byte[] {(byte) 0x89, 'P', 'N', 'G'});
+			zip.finish();
+		}
+		finally {
+			out.close();
+		}
+	}
+	
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+	
+}
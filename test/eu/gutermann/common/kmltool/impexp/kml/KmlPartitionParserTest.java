@@ -0,0 +1,143 @@
+package eu.gutermann.common.kmltool.impexp.kml;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+
+import de.micromata.opengis.kml.v_2_2_0.Kml;
+
+/**
+ * Checks that {@link KmlPartitionParser} gives the same KML as parsing the whole file with {@link KmlJaxb}, for
+ * files with the XML constructs that the scan of the partition parser has to handle.
+ *
+ * The project has no test framework, so this is a plain program: it prints the result of each case and exits with
+ * status 1 if a case fails. Run it with the libraries of the project on the classpath.
+ */
+public class KmlPartitionParserTest {
+	private static final String KML_22 = "http://www.opengis.net/kml/2.2";
+	private static final String KML_21 = "http://earth.google.com/kml/2.1";
+	
+	private static int failures = 0;
+	
+	public static void main(String[] args) throws Exception {
+		File dir = Files.createTempDirectory("kmlpartition").toFile();
+		try {
+			check(dir, "interleaved-styles", "UTF-8", KML_22, "", false, true);
+			check(dir, "kml-2.1", "UTF-8", KML_21, "", false, true);
+			check(dir, "prefixed", "UTF-8", KML_22, "k:", false, true);
+			check(dir, "cdata-comments", "UTF-8", KML_22, "", true, true);
+			check(dir, "latin-1", "ISO-8859-1", KML_22, "", true, true);
+			
+			// UTF-16 can't be scanned byte by byte, so the file must be left to the normal parser.
+			check(dir, "utf-16", "UTF-16", KML_22, "", true, false);
+		}
+		finally {
+			for (File file : dir.listFiles()) {
+				file.delete();
+			}
+			dir.delete();
+		}
+		
+		System.out.println((failures == 0) ? "All cases passed" : failures + " case(s) failed");
+		System.exit((failures == 0) ? 0 : 1);
+	}
+	
+	/**
+	 * Writes a test file, parses it in both ways and compares the results.
+	 * @param dir
+	 * @param name
+	 * @param encoding
+	 * @param namespace
+	 * @param prefix the namespace prefix of the KML elements including the colon, or "" for the default namespace
+	 * @param markup true to add comments, CDATA sections and non-ASCII characters
+	 * @param divisible whether the partition parser is expected to divide the file
+	 * @throws IOException
+	 */
+	private static void check(File dir, String name, String encoding, String namespace, String prefix,
+			boolean markup, boolean divisible) throws Exception {
+		File file = new File(dir, name + ".kml");
+		writeKml(file, encoding, namespace, prefix, markup);
+		
+		Kml expected = KmlJaxb.unmarshal(file);
+		KmlPartitionParser parser = new KmlPartitionParser();
+		Kml actual = parser.parse(file);
+		
+		String error = null;
+		if (!divisible) {
+			if (actual != null)
+				error = "the file should not have been divided";
+		}
+		else if (actual == null) {
+			error = "the file was not divided";
+		}
+		else if (parser.getNumPartitions() < 2) {
+			error = "only " + parser.getNumPartitions() + " partition(s)";
+		}
+		else if (!expected.equals(actual)) {
+			error = "the KML differs from the KML parsed at once";
+		}
+		
+		if (error != null)
+			failures++;
+		System.out.println(name + ": " + ((error == null) ? "ok (" + parser.getNumPartitions() + " partitions)" : "FAILED, " + error));
+	}
+	
+	private static void writeKml(File file, String encoding, String namespace, String prefix, boolean markup) throws IOException {
+		String p = prefix;
+		String text = markup ? "caf\u00e9 &amp; <![CDATA[<Placemark><name>not a Feature</name></Placemark>]]>" : "text";
+		
+		StringBuilder b = new StringBuilder();
+		b.append("<?xml version=\"1.0\" encoding=\"").append(encoding).append("\"?>\n");
+		b.append('<').append(p).append("kml xmlns").append(p.isEmpty() ? "" : ":" + p.substring(0, p.length() - 1))
+				.append("=\"").append(namespace).append("\">\n");
+		b.append('<').append(p).append("Document><").append(p).append("name>doc</").append(p).append("name>\n");
+		
+		// Folders, and Placemarks directly in the Document. Both contain StyleSelectors between the Features, which
+		// the partitions must keep.
+		for (int f = 0; f < 4; f++) {
+			b.append('<').append(p).append("Style id=\"s").append(f).append("\"><").append(p).append("LineStyle><")
+					.append(p).append("color>ff0000ff</").append(p).append("color></").append(p).append("LineStyle></")
+					.append(p).append("Style>\n");
+			b.append('<').append(p).append("Folder><").append(p).append("name>folder ").append(f).append("</")
+					.append(p).append("name>\n");
+			appendPlacemarks(b, p, "f" + f, 200, text, markup);
+			b.append("</").append(p).append("Folder>\n");
+		}
+		appendPlacemarks(b, p, "d", 400, text, markup);
+		b.append("</").append(p).append("Document>\n");
+		b.append("</").append(p).append("kml>\n");
+		
+		OutputStream out = Files.newOutputStream(file.toPath());
+		try {
+			Writer writer = new OutputStreamWriter(out, encoding);
+			writer.write(b.toString());
+			writer.flush();
+		}
+		finally {
+			out.close();
+		}
+	}
+	
+	private static void appendPlacemarks(StringBuilder b, String p, String name, int count, String text, boolean markup) {
+		for (int i = 0; i < count; i++) {
+			if (markup && i % 50 == 0)
+				b.append("<!-- <Placemark> in a comment -->\n");
+			if (i % 70 == 0) {
+				b.append('<').append(p).append("StyleMap id=\"").append(name).append('_').append(i).append("\"><")
+						.append(p).append("Pair><").append(p).append("key>normal</").append(p).append("key><")
+						.append(p).append("styleUrl>#s0</").append(p).append("styleUrl></").append(p).append("Pair></")
+						.append(p).append("StyleMap>\n");
+			}
+			b.append('<').append(p).append("Placemark><").append(p).append("name>").append(name).append('_').append(i)
+					.append("</").append(p).append("name><").append(p).append("description>").append(text)
+					.append("</").append(p).append("description><").append(p).append("styleUrl>#").append(name)
+					.append('_').append(i - i % 70).append("</").append(p).append("styleUrl><").append(p).append("Point><")
+					.append(p).append("coordinates>").append(8 + i * 0.001).append(",47</").append(p)
+					.append("coordinates></").append(p).append("Point></").append(p).append("Placemark>\n");
+		}
+	}
+	
+}